@@ -0,0 +1,196 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+// the capped database classes live (shaded) inside the agent jar and so cannot be referenced from
+// here, instead this compares the two access strategies over the same circular file layout: all
+// reads and writes serialized through one lock using RandomAccessFile (the prior implementation)
+// vs a memory mapped file with lock-free readers validated against the write cursor (the current
+// implementation)
+//
+// write() measures write throughput and read() measures read latency while both run concurrently
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Group)
+public class CappedDatabaseBenchmark {
+
+    private static final int SIZE_BYTES = 64 * 1024 * 1024;
+    private static final int BLOCK_SIZE_BYTES = 16 * 1024;
+
+    @Param
+    private StoreType storeType;
+
+    private File file;
+    private Store store;
+
+    @Setup
+    public void setup() throws IOException {
+        file = File.createTempFile("glowroot-benchmark-", ".capped.db");
+        store = storeType == StoreType.LOCKED ? new LockedStore(file) : new MappedStore(file);
+        byte[] block = new byte[BLOCK_SIZE_BYTES];
+        // fill the file once so that reads are always of blocks that have been written
+        for (int i = 0; i < SIZE_BYTES / BLOCK_SIZE_BYTES; i++) {
+            store.write(block);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        store.close();
+        file.delete();
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(1)
+    public void write(WriterState writerState) throws IOException {
+        store.write(writerState.block);
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(4)
+    public boolean read(ReaderState readerState) throws IOException {
+        // read one of the most recent blocks, which is the typical UI access pattern
+        long currIndex = store.getCurrIndex();
+        long index = currIndex - BLOCK_SIZE_BYTES * (1 + readerState.random.nextInt(64));
+        return store.read(index, readerState.block);
+    }
+
+    public enum StoreType {
+        LOCKED, MAPPED
+    }
+
+    @State(Scope.Thread)
+    public static class WriterState {
+        private final byte[] block = new byte[BLOCK_SIZE_BYTES];
+    }
+
+    @State(Scope.Thread)
+    public static class ReaderState {
+        private final byte[] block = new byte[BLOCK_SIZE_BYTES];
+        private final Random random = new Random();
+    }
+
+    private interface Store {
+        void write(byte[] block) throws IOException;
+        boolean read(long index, byte[] block) throws IOException;
+        long getCurrIndex();
+        void close() throws IOException;
+    }
+
+    private static class LockedStore implements Store {
+
+        private final RandomAccessFile out;
+        private long currIndex;
+
+        private LockedStore(File file) throws IOException {
+            out = new RandomAccessFile(file, "rw");
+            out.setLength(SIZE_BYTES);
+        }
+
+        @Override
+        public synchronized void write(byte[] block) throws IOException {
+            out.seek(currIndex % SIZE_BYTES);
+            out.write(block);
+            currIndex += block.length;
+        }
+
+        @Override
+        public synchronized boolean read(long index, byte[] block) throws IOException {
+            if (index < currIndex - SIZE_BYTES) {
+                return false;
+            }
+            out.seek(index % SIZE_BYTES);
+            out.readFully(block);
+            return true;
+        }
+
+        @Override
+        public synchronized long getCurrIndex() {
+            return currIndex;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static class MappedStore implements Store {
+
+        private final RandomAccessFile out;
+        private final MappedByteBuffer buffer;
+        private volatile long currIndex;
+
+        private MappedStore(File file) throws IOException {
+            out = new RandomAccessFile(file, "rw");
+            buffer = out.getChannel().map(MapMode.READ_WRITE, 0, SIZE_BYTES);
+        }
+
+        // single writer, same as CappedDatabaseOutputStream
+        @Override
+        public synchronized void write(byte[] block) {
+            int position = (int) (currIndex % SIZE_BYTES);
+            currIndex += block.length;
+            ByteBuffer duplicate = buffer.duplicate();
+            duplicate.position(position);
+            duplicate.put(block);
+        }
+
+        @Override
+        public boolean read(long index, byte[] block) {
+            if (index < currIndex - SIZE_BYTES) {
+                return false;
+            }
+            ByteBuffer duplicate = buffer.duplicate();
+            duplicate.position((int) (index % SIZE_BYTES));
+            duplicate.get(block);
+            return index >= currIndex - SIZE_BYTES;
+        }
+
+        @Override
+        public long getCurrIndex() {
+            return currIndex;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.common.model.MutableProfile;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+// measures merging stack trace samples into a profile, and merging the resulting profiles together
+// (which is what happens when viewing the profile over a long time range)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class ProfileMergeBenchmark {
+
+    private static final int SAMPLES = 100000;
+    private static final int DISTINCT_STACK_TRACES = 1000;
+    private static final int PROFILES = 100;
+
+    private List<ImmutableList<StackTraceElement>> stackTraces;
+    private Thread.State[] threadStates;
+
+    private List<Profile> profiles;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        // stack traces share common prefixes (from the bottom of the stack) like real samples do
+        List<StackTraceElement> frames = Lists.newArrayList();
+        for (int i = 0; i < 500; i++) {
+            frames.add(new StackTraceElement("org.example.pkg" + (i % 20) + ".Class" + i,
+                    "method" + (i % 7), "Class" + i + ".java", 10 + i));
+        }
+        List<ImmutableList<StackTraceElement>> distinctStackTraces = Lists.newArrayList();
+        for (int i = 0; i < DISTINCT_STACK_TRACES; i++) {
+            int depth = 20 + random.nextInt(80);
+            List<StackTraceElement> stackTrace = Lists.newArrayList();
+            for (int j = 0; j < depth; j++) {
+                // deeper frames are drawn from a wider range, so the tree fans out
+                stackTrace.add(frames.get(random.nextInt(Math.min(frames.size(), 2 + j * 5))));
+            }
+            distinctStackTraces.add(ImmutableList.copyOf(Lists.reverse(stackTrace)));
+        }
+        stackTraces = Lists.newArrayList();
+        Thread.State[] states = Thread.State.values();
+        threadStates = new Thread.State[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            // copy the elements so that equal frames are not identical instances, like real samples
+            List<StackTraceElement> stackTrace = Lists.newArrayList();
+            for (StackTraceElement element : distinctStackTraces
+                    .get(random.nextInt(DISTINCT_STACK_TRACES))) {
+                stackTrace.add(new StackTraceElement(element.getClassName(),
+                        element.getMethodName(), element.getFileName(),
+                        element.getLineNumber()));
+            }
+            stackTraces.add(ImmutableList.copyOf(stackTrace));
+            threadStates[i] = states[random.nextInt(states.length)];
+        }
+        profiles = Lists.newArrayList();
+        for (int i = 0; i < PROFILES; i++) {
+            MutableProfile profile = new MutableProfile();
+            for (int j = i; j < SAMPLES; j += PROFILES) {
+                profile.merge(stackTraces.get(j), threadStates[j]);
+            }
+            profiles.add(profile.toProto());
+        }
+    }
+
+    @Benchmark
+    public MutableProfile mergeStackTraces() {
+        MutableProfile profile = new MutableProfile();
+        for (int i = 0; i < SAMPLES; i++) {
+            profile.merge(stackTraces.get(i), threadStates[i]);
+        }
+        return profile;
+    }
+
+    @Benchmark
+    public Profile mergeProfiles() {
+        MutableProfile profile = new MutableProfile();
+        for (Profile toBeMerged : profiles) {
+            profile.merge(toBeMerged);
+        }
+        return profile.toProto();
+    }
+}
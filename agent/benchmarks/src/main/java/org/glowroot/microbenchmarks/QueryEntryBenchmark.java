@@ -0,0 +1,70 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.microbenchmarks.support.QueryEntryWorthy;
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// measures the per-transaction query data map (looked up on every query execution) as the number
+// of distinct queries in a transaction grows
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class QueryEntryBenchmark extends TransactionWorthy {
+
+    private static final int QUERY_EXECUTIONS = 10000;
+
+    @Param({"1", "10", "1000", "10000"})
+    private int distinctQueries;
+
+    private QueryEntryWorthy queryEntryWorthy;
+
+    private String[] queryTexts;
+
+    @Setup
+    public void setup() {
+        queryEntryWorthy = new QueryEntryWorthy();
+        queryTexts = new String[distinctQueries];
+        for (int i = 0; i < distinctQueries; i++) {
+            queryTexts[i] = "select * from employee where id = " + i;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERY_EXECUTIONS)
+    public void execute() throws Exception {
+        doSomethingTransactionWorthy();
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy() throws Exception {
+        for (int i = 0; i < QUERY_EXECUTIONS; i++) {
+            queryEntryWorthy.doSomethingQueryEntryWorthy(queryTexts[i % distinctQueries]);
+        }
+    }
+}
@@ -19,6 +19,7 @@ import java.util.concurrent.TimeUnit;
 
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.OperationsPerInvocation;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
@@ -30,6 +31,8 @@ import org.openjdk.jmh.annotations.State;
 import org.glowroot.microbenchmarks.support.TraceEntryWorthy;
 import org.glowroot.microbenchmarks.support.TransactionWorthy;
 
+// run with "-prof gc" to report allocation rate (gc.alloc.rate.norm is bytes per trace entry), in
+// particular to compare executeWithRecycling() against execute()
 @BenchmarkMode(Mode.AverageTime)
 @OutputTimeUnit(TimeUnit.NANOSECONDS)
 @State(Scope.Thread)
@@ -51,6 +54,24 @@ public class TraceEntryBenchmark extends TransactionWorthy {
         doSomethingTransactionWorthy();
     }
 
+    // the transactions in this benchmark are not slow, so are not stored, and so their trace
+    // entries are recycled
+    @Benchmark
+    @OperationsPerInvocation(2000)
+    @Fork(jvmArgsAppend = "-Dglowroot.internal.recycleTraceEntries=true")
+    public void executeWithRecycling() throws Exception {
+        doSomethingTransactionWorthy();
+    }
+
+    // the trace entry timers are directly under the root timer, so need depth 0 for them to only
+    // increment their counters-only count
+    @Benchmark
+    @OperationsPerInvocation(2000)
+    @Fork(jvmArgsAppend = "-Dglowroot.internal.forceTimerCountersOnlyDepth=0")
+    public void executeWithTimerCountersOnly() throws Exception {
+        doSomethingTransactionWorthy();
+    }
+
     @Override
     public void doSomethingTransactionWorthy() throws Exception {
         switch (pointcutType) {
@@ -19,6 +19,7 @@ import java.util.concurrent.TimeUnit;
 
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
 import org.openjdk.jmh.annotations.Param;
@@ -45,6 +46,17 @@ public class TransactionBenchmark {
 
     @Benchmark
     public void execute() throws Exception {
+        executeInternal();
+    }
+
+    // only the root timer is timed, all nested timers only increment their counters-only count
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dglowroot.internal.forceTimerCountersOnlyDepth=0")
+    public void executeWithTimerCountersOnly() throws Exception {
+        executeInternal();
+    }
+
+    private void executeInternal() throws Exception {
         switch (pointcutType) {
             case API:
                 transactionWorthy.doSomethingTransactionWorthy();
@@ -28,6 +28,7 @@ import com.google.common.base.Splitter;
 import com.google.common.base.StandardSystemProperty;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
 import org.openjdk.jmh.annotations.Measurement;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
@@ -77,7 +78,35 @@ public class WeavingBenchmark {
     }
 
     @Benchmark
+    @Fork(jvmArgsAppend = "-Dglowroot.internal.weavingCache.maxBytes=0")
     public void execute() throws ClassNotFoundException {
+        loadClasses();
+    }
+
+    // baseline for measuring the pre-filter that skips the full class parse for classes which
+    // cannot match any advice
+    @Benchmark
+    @Fork(jvmArgsAppend = {"-Dglowroot.internal.weavingCache.maxBytes=0",
+            "-Dglowroot.internal.weaving.disablePreFilter=true"})
+    public void executeWithoutPreFilter() throws ClassNotFoundException {
+        loadClasses();
+    }
+
+    // the weaving cache is emptied at jvm startup, so this measures the overhead of populating it
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dglowroot.internal.weavingCache.reset=true")
+    public void executeWithColdWeavingCache() throws ClassNotFoundException {
+        loadClasses();
+    }
+
+    // the warmup fork populates the weaving cache that is then read by the measured fork
+    @Benchmark
+    @Fork(warmups = 1)
+    public void executeWithWarmWeavingCache() throws ClassNotFoundException {
+        loadClasses();
+    }
+
+    private void loadClasses() throws ClassNotFoundException {
         for (String className : classNames) {
             try {
                 Class.forName(className, false, WeavingBenchmark.class.getClassLoader());
@@ -15,6 +15,9 @@
  */
 package org.glowroot.agent.config;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.google.common.collect.ImmutableList;
 import org.immutables.value.Value;
 
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
@@ -42,11 +45,24 @@ public abstract class TransactionConfig {
         return true;
     }
 
+    // transactions of these types only time the root timer and nested timers down to
+    // timerCountersOnlyDepth, deeper nested timers only increment a per timer name counter
+    @JsonInclude(value = Include.NON_EMPTY)
+    public abstract ImmutableList<String> timerCountersOnlyTransactionTypes();
+
+    // depth of the root timer is 0, so 1 means root and first-level nested timers are timed
+    @Value.Default
+    public int timerCountersOnlyDepth() {
+        return 1;
+    }
+
     public AgentConfig.TransactionConfig toProto() {
         return AgentConfig.TransactionConfig.newBuilder()
                 .setSlowThresholdMillis(of(slowThresholdMillis()))
                 .setProfilingIntervalMillis(of(profilingIntervalMillis()))
                 .setCaptureThreadStats(captureThreadStats())
+                .addAllTimerCountersOnlyTransactionType(timerCountersOnlyTransactionTypes())
+                .setTimerCountersOnlyDepth(of(timerCountersOnlyDepth()))
                 .build();
     }
 
@@ -58,7 +74,12 @@ public abstract class TransactionConfig {
         if (config.hasProfilingIntervalMillis()) {
             builder.profilingIntervalMillis(config.getProfilingIntervalMillis().getValue());
         }
+        if (config.hasTimerCountersOnlyDepth()) {
+            builder.timerCountersOnlyDepth(config.getTimerCountersOnlyDepth().getValue());
+        }
         return builder.captureThreadStats(config.getCaptureThreadStats())
+                .addAllTimerCountersOnlyTransactionTypes(
+                        config.getTimerCountersOnlyTransactionTypeList())
                 .build();
     }
 
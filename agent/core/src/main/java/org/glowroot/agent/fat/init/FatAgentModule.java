@@ -115,7 +115,8 @@ class FatAgentModule {
                     GlowrootThinAgentInit.createBackgroundExecutorSupplier();
 
             agentModule = new AgentModule(clock, null, pluginCache, configService,
-                    backgroundExecutorSupplier, collectorProxy, instrumentation, baseDir);
+                    backgroundExecutorSupplier, collectorProxy, instrumentation, baseDir,
+                    glowrootVersion);
 
             backgroundExecutor = backgroundExecutorSupplier.get();
 
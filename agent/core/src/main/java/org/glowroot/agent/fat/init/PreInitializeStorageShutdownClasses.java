@@ -73,7 +73,9 @@ class PreInitializeStorageShutdownClasses {
         types.add("org.glowroot.agent.fat.storage.util.CappedDatabase");
         types.add("org.glowroot.agent.fat.storage.util.CappedDatabase$ShutdownHookThread");
         types.add("org.glowroot.agent.fat.storage.util.CappedDatabaseOutputStream");
+        types.add("org.glowroot.agent.fat.storage.util.CappedDatabaseOutputStream$Ring");
         types.add("org.glowroot.agent.fat.storage.util.DataSource");
+        types.add("org.glowroot.agent.fat.storage.util.DataSource$CachedConnection");
         types.add("org.glowroot.agent.fat.storage.util.DataSource$ShutdownHookThread");
         return types;
     }
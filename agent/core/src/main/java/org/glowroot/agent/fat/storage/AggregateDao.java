@@ -40,6 +40,7 @@ import org.glowroot.agent.fat.storage.util.DataSource.JdbcQuery;
 import org.glowroot.agent.fat.storage.util.DataSource.JdbcRowQuery;
 import org.glowroot.agent.fat.storage.util.ImmutableColumn;
 import org.glowroot.agent.fat.storage.util.ImmutableIndex;
+import org.glowroot.agent.fat.storage.util.PartitionedTable;
 import org.glowroot.agent.fat.storage.util.RowMappers;
 import org.glowroot.agent.fat.storage.util.Schemas.Column;
 import org.glowroot.agent.fat.storage.util.Schemas.ColumnType;
@@ -151,6 +152,9 @@ class AggregateDao implements AggregateRepository {
                     "total_duration_nanos", "transaction_count", "error_count");
 
     private final DataSource dataSource;
+    // one per rollup level
+    private final ImmutableList<PartitionedTable> overallTables;
+    private final ImmutableList<PartitionedTable> transactionTables;
     private final List<CappedDatabase> rollupCappedDatabases;
     private final ConfigRepository configRepository;
     private final TransactionTypeDao transactionTypeDao;
@@ -170,16 +174,28 @@ class AggregateDao implements AggregateRepository {
         this.fullQueryTextDao = fullQueryTextDao;
 
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        // partition size needs to be a multiple of all rollup intervals so that each rollup
+        // interval falls within a single partition
+        long partitionMillis = PartitionedTable.getPartitionMillis(
+                rollupConfigs.get(rollupConfigs.size() - 1).intervalMillis());
+        List<PartitionedTable> overallTables = Lists.newArrayList();
+        List<PartitionedTable> transactionTables = Lists.newArrayList();
         for (int i = 0; i < rollupConfigs.size(); i++) {
             String overallTableName = "aggregate_tt_rollup_" + castUntainted(i);
-            dataSource.syncTable(overallTableName, overallAggregatePointColumns);
-            dataSource.syncIndexes(overallTableName, ImmutableList.<Index>of(
-                    ImmutableIndex.of(overallTableName + "_idx", overallAggregateIndexColumns)));
+            overallTables.add(new PartitionedTable(dataSource, overallTableName,
+                    overallAggregatePointColumns,
+                    ImmutableList.<Index>of(ImmutableIndex.of(overallTableName + "_idx",
+                            overallAggregateIndexColumns)),
+                    partitionMillis));
             String transactionTableName = "aggregate_tn_rollup_" + castUntainted(i);
-            dataSource.syncTable(transactionTableName, transactionAggregateColumns);
-            dataSource.syncIndexes(transactionTableName, ImmutableList.<Index>of(ImmutableIndex
-                    .of(transactionTableName + "_idx", transactionAggregateIndexColumns)));
+            transactionTables.add(new PartitionedTable(dataSource, transactionTableName,
+                    transactionAggregateColumns,
+                    ImmutableList.<Index>of(ImmutableIndex.of(transactionTableName + "_idx",
+                            transactionAggregateIndexColumns)),
+                    partitionMillis));
         }
+        this.overallTables = ImmutableList.copyOf(overallTables);
+        this.transactionTables = ImmutableList.copyOf(transactionTables);
 
         // don't need last_rollup_times table like in GaugeValueDao since there is already index
         // on capture_time so these queries are relatively fast
@@ -187,7 +203,7 @@ class AggregateDao implements AggregateRepository {
         lastRollupTimes[0] = 0;
         for (int i = 1; i < lastRollupTimes.length; i++) {
             lastRollupTimes[i] = dataSource.queryForLong("select ifnull(max(capture_time), 0)"
-                    + " from aggregate_tt_rollup_" + castUntainted(i));
+                    + " from " + overallTables.get(i).getLatestPartitionName());
         }
         this.lastRollupTimes = new AtomicLongArray(lastRollupTimes);
 
@@ -215,16 +231,20 @@ class AggregateDao implements AggregateRepository {
         // intentionally not using batch update as that could cause memory spike while preparing a
         // large batch
         CappedDatabase cappedDatabase = rollupCappedDatabases.get(0);
+        String overallPartitionName = overallTables.get(0).getPartitionName(captureTime);
+        String transactionPartitionName = transactionTables.get(0).getPartitionName(captureTime);
         for (AggregatesByType aggregatesByType1 : aggregatesByType) {
             String transactionType = aggregatesByType1.getTransactionType();
             dataSource.update(new AggregateInsert(transactionType, null, captureTime,
-                    aggregatesByType1.getOverallAggregate(), sharedQueries, 0, cappedDatabase));
+                    aggregatesByType1.getOverallAggregate(), sharedQueries, overallPartitionName,
+                    cappedDatabase));
             transactionTypeDao.updateLastCaptureTime(transactionType, captureTime);
             for (TransactionAggregate transactionAggregate : aggregatesByType1
                     .getTransactionAggregateList()) {
                 dataSource.update(new AggregateInsert(transactionType,
                         transactionAggregate.getTransactionName(), captureTime,
-                        transactionAggregate.getAggregate(), sharedQueries, 0, cappedDatabase));
+                        transactionAggregate.getAggregate(), sharedQueries,
+                        transactionPartitionName, cappedDatabase));
             }
         }
         synchronized (rollupLock) {
@@ -410,8 +430,8 @@ class AggregateDao implements AggregateRepository {
     }
 
     void deleteBefore(long captureTime, int rollupLevel) throws Exception {
-        dataSource.deleteBefore("aggregate_tt_rollup_" + castUntainted(rollupLevel), captureTime);
-        dataSource.deleteBefore("aggregate_tn_rollup_" + castUntainted(rollupLevel), captureTime);
+        overallTables.get(rollupLevel).dropBefore(captureTime);
+        transactionTables.get(rollupLevel).dropBefore(captureTime);
     }
 
     private void rollup(long lastRollupTime, long curentRollupTime, long fixedIntervalMillis,
@@ -550,12 +570,14 @@ class AggregateDao implements AggregateRepository {
         }
     }
 
-    private static @Untainted String getTableName(TransactionQuery query) {
+    private @Untainted String getFrom(TransactionQuery query) {
+        PartitionedTable table;
         if (query.transactionName() == null) {
-            return "aggregate_tt_rollup_" + castUntainted(query.rollupLevel());
+            table = overallTables.get(query.rollupLevel());
         } else {
-            return "aggregate_tn_rollup_" + castUntainted(query.rollupLevel());
+            table = transactionTables.get(query.rollupLevel());
         }
+        return table.from(query.from(), query.to());
     }
 
     private static @Untainted String getTransactionNameCriteria(TransactionQuery query) {
@@ -579,6 +601,32 @@ class AggregateDao implements AggregateRepository {
         return i;
     }
 
+    private static @Nullable Aggregate.ThreadStats buildThreadStats(
+            @Nullable Double totalCpuNanos, @Nullable Double totalBlockedNanos,
+            @Nullable Double totalWaitedNanos, @Nullable Double totalAllocatedBytes) {
+        if (totalCpuNanos == null && totalBlockedNanos == null && totalWaitedNanos == null
+                && totalAllocatedBytes == null) {
+            return null;
+        }
+        Aggregate.ThreadStats.Builder threadStats = Aggregate.ThreadStats.newBuilder();
+        if (totalCpuNanos != null) {
+            threadStats.setTotalCpuNanos(OptionalDouble.newBuilder().setValue(totalCpuNanos));
+        }
+        if (totalBlockedNanos != null) {
+            threadStats.setTotalBlockedNanos(
+                    OptionalDouble.newBuilder().setValue(totalBlockedNanos));
+        }
+        if (totalWaitedNanos != null) {
+            threadStats.setTotalWaitedNanos(
+                    OptionalDouble.newBuilder().setValue(totalWaitedNanos));
+        }
+        if (totalAllocatedBytes != null) {
+            threadStats.setTotalAllocatedBytes(
+                    OptionalDouble.newBuilder().setValue(totalAllocatedBytes));
+        }
+        return threadStats.build();
+    }
+
     private static <T extends /*@NonNull*/ Object> List<T> readMessages(byte[] bytes,
             Parser<T> parser) throws InvalidProtocolBufferException {
         ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
@@ -590,7 +638,7 @@ class AggregateDao implements AggregateRepository {
         return messages;
     }
 
-    private static class OverallSummaryQuery implements JdbcQuery</*@Nullable*/ Void> {
+    private class OverallSummaryQuery implements JdbcQuery</*@Nullable*/ Void> {
 
         private final OverallSummaryCollector collector;
         private final OverallQuery query;
@@ -605,7 +653,8 @@ class AggregateDao implements AggregateRepository {
             // it's important that all these columns are in a single index so h2 can return the
             // result set directly from the index without having to reference the table for each row
             return "select sum(total_duration_nanos), sum(transaction_count), max(capture_time)"
-                    + " from aggregate_tt_rollup_" + castUntainted(query.rollupLevel())
+                    + " from " + overallTables.get(query.rollupLevel()).from(query.from(),
+                            query.to())
                     + " where transaction_type = ? and capture_time > ? and capture_time <= ?";
         }
 
@@ -657,8 +706,8 @@ class AggregateDao implements AggregateRepository {
             // result set directly from the index without having to reference the table for each row
             StringBuilder sb = new StringBuilder();
             sb.append("select transaction_name, sum(total_duration_nanos), sum(transaction_count),"
-                    + " max(capture_time) from aggregate_tn_rollup_");
-            sb.append(query.rollupLevel());
+                    + " max(capture_time) from ");
+            sb.append(transactionTables.get(query.rollupLevel()).from(query.from(), query.to()));
             sb.append(" where transaction_type = ? and capture_time > ? and capture_time <= ?"
                     + " group by transaction_name order by ");
             sb.append(getSortClause(sortOrder));
@@ -707,7 +756,7 @@ class AggregateDao implements AggregateRepository {
         }
     }
 
-    private static class OverallErrorSummaryQuery implements JdbcQuery</*@Nullable*/ Void> {
+    private class OverallErrorSummaryQuery implements JdbcQuery</*@Nullable*/ Void> {
 
         private final OverallErrorSummaryCollector collector;
         private final OverallQuery query;
@@ -721,7 +770,8 @@ class AggregateDao implements AggregateRepository {
         @Override
         public @Untainted String getSql() {
             return "select sum(error_count), sum(transaction_count), max(capture_time)"
-                    + " from aggregate_tt_rollup_" + castUntainted(query.rollupLevel())
+                    + " from " + overallTables.get(query.rollupLevel()).from(query.from(),
+                            query.to())
                     + " where transaction_type = ? and capture_time > ? and capture_time <= ?";
         }
 
@@ -773,8 +823,8 @@ class AggregateDao implements AggregateRepository {
             // result set directly from the index without having to reference the table for each row
             StringBuilder sb = new StringBuilder();
             sb.append("select transaction_name, sum(error_count), sum(transaction_count),");
-            sb.append(" max(capture_time) from aggregate_tn_rollup_");
-            sb.append(castUntainted(query.rollupLevel()));
+            sb.append(" max(capture_time) from ");
+            sb.append(transactionTables.get(query.rollupLevel()).from(query.from(), query.to()));
             sb.append(" where transaction_type = ? and capture_time > ? and capture_time <= ?"
                     + " group by transaction_name having sum(error_count) > 0 order by ");
             sb.append(getSortClause(sortOrder));
@@ -822,7 +872,7 @@ class AggregateDao implements AggregateRepository {
 
     }
 
-    private static class OverviewAggregateQuery implements JdbcRowQuery<OverviewAggregate> {
+    private class OverviewAggregateQuery implements JdbcRowQuery<OverviewAggregate> {
 
         private final TransactionQuery query;
 
@@ -832,7 +882,7 @@ class AggregateDao implements AggregateRepository {
 
         @Override
         public @Untainted String getSql() {
-            String tableName = getTableName(query);
+            String from = getFrom(query);
             String transactionNameCriteria = getTransactionNameCriteria(query);
             return "select capture_time, total_duration_nanos, transaction_count,"
                     + " async_transactions, main_thread_root_timers, aux_thread_root_timers,"
@@ -840,7 +890,7 @@ class AggregateDao implements AggregateRepository {
                     + " main_thread_total_blocked_nanos, main_thread_total_waited_nanos,"
                     + " main_thread_total_allocated_bytes, aux_thread_total_cpu_nanos,"
                     + " aux_thread_total_blocked_nanos, aux_thread_total_waited_nanos,"
-                    + " aux_thread_total_allocated_bytes from " + tableName
+                    + " aux_thread_total_allocated_bytes from " + from
                     + " where transaction_type = ?" + transactionNameCriteria
                     + " and capture_time >= ? and capture_time <= ? order by capture_time";
         }
@@ -886,35 +936,9 @@ class AggregateDao implements AggregateRepository {
             }
             return builder.build();
         }
-
-        private static @Nullable Aggregate.ThreadStats buildThreadStats(
-                @Nullable Double totalCpuNanos, @Nullable Double totalBlockedNanos,
-                @Nullable Double totalWaitedNanos, @Nullable Double totalAllocatedBytes) {
-            if (totalCpuNanos == null && totalBlockedNanos == null && totalWaitedNanos == null
-                    && totalAllocatedBytes == null) {
-                return null;
-            }
-            Aggregate.ThreadStats.Builder threadStats = Aggregate.ThreadStats.newBuilder();
-            if (totalCpuNanos != null) {
-                threadStats.setTotalCpuNanos(OptionalDouble.newBuilder().setValue(totalCpuNanos));
-            }
-            if (totalBlockedNanos != null) {
-                threadStats.setTotalBlockedNanos(
-                        OptionalDouble.newBuilder().setValue(totalBlockedNanos));
-            }
-            if (totalWaitedNanos != null) {
-                threadStats.setTotalWaitedNanos(
-                        OptionalDouble.newBuilder().setValue(totalWaitedNanos));
-            }
-            if (totalAllocatedBytes != null) {
-                threadStats.setTotalAllocatedBytes(
-                        OptionalDouble.newBuilder().setValue(totalAllocatedBytes));
-            }
-            return threadStats.build();
-        }
     }
 
-    private static class PercentileAggregateQuery implements JdbcRowQuery<PercentileAggregate> {
+    private class PercentileAggregateQuery implements JdbcRowQuery<PercentileAggregate> {
 
         private final TransactionQuery query;
 
@@ -924,10 +948,10 @@ class AggregateDao implements AggregateRepository {
 
         @Override
         public @Untainted String getSql() {
-            String tableName = getTableName(query);
+            String from = getFrom(query);
             String transactionNameCriteria = getTransactionNameCriteria(query);
             return "select capture_time, total_duration_nanos, transaction_count,"
-                    + " duration_nanos_histogram from " + tableName + " where transaction_type = ?"
+                    + " duration_nanos_histogram from " + from + " where transaction_type = ?"
                     + transactionNameCriteria + " and capture_time >= ? and capture_time <= ?"
                     + " order by capture_time";
         }
@@ -951,7 +975,7 @@ class AggregateDao implements AggregateRepository {
         }
     }
 
-    private static class ThroughputAggregateQuery implements JdbcRowQuery<ThroughputAggregate> {
+    private class ThroughputAggregateQuery implements JdbcRowQuery<ThroughputAggregate> {
 
         private final TransactionQuery query;
 
@@ -961,9 +985,9 @@ class AggregateDao implements AggregateRepository {
 
         @Override
         public @Untainted String getSql() {
-            String tableName = getTableName(query);
+            String from = getFrom(query);
             String transactionNameCriteria = getTransactionNameCriteria(query);
-            return "select capture_time, transaction_count from " + tableName
+            return "select capture_time, transaction_count from " + from
                     + " where transaction_type = ?" + transactionNameCriteria
                     + " and capture_time >= ? and capture_time <= ? order by capture_time";
         }
@@ -1009,9 +1033,10 @@ class AggregateDao implements AggregateRepository {
                     + " main_thread_total_waited_nanos, main_thread_total_allocated_bytes,"
                     + " aux_thread_total_cpu_nanos, aux_thread_total_blocked_nanos,"
                     + " aux_thread_total_waited_nanos, aux_thread_total_allocated_bytes,"
-                    + " duration_nanos_histogram from aggregate_tt_rollup_"
-                    + castUntainted(fromRollupLevel) + " where capture_time > ?"
-                    + " and capture_time <= ? order by transaction_type";
+                    + " duration_nanos_histogram from "
+                    + overallTables.get(fromRollupLevel)
+                            .from(rollupCaptureTime - fixedIntervalMillis, rollupCaptureTime)
+                    + " where capture_time > ? and capture_time <= ? order by transaction_type";
         }
 
         @Override
@@ -1025,13 +1050,15 @@ class AggregateDao implements AggregateRepository {
             int maxAggregateQueriesPerType = getMaxAggregateQueriesPerType();
             int maxAggregateServiceCallsPerType = getMaxAggregateServiceCallsPerType();
             CappedDatabase cappedDatabase = rollupCappedDatabases.get(toRollupLevel);
+            String partitionName =
+                    overallTables.get(toRollupLevel).getPartitionName(rollupCaptureTime);
             MutableOverallAggregate curr = null;
             while (resultSet.next()) {
                 String transactionType = checkNotNull(resultSet.getString(1));
                 if (curr == null || !transactionType.equals(curr.transactionType())) {
                     if (curr != null) {
                         dataSource.update(new AggregateInsert(curr.transactionType(), null,
-                                rollupCaptureTime, curr.aggregate(), toRollupLevel,
+                                rollupCaptureTime, curr.aggregate(), partitionName,
                                 cappedDatabase, scratchBuffer));
                     }
                     curr = ImmutableMutableOverallAggregate.of(transactionType,
@@ -1042,7 +1069,7 @@ class AggregateDao implements AggregateRepository {
             }
             if (curr != null) {
                 dataSource.update(new AggregateInsert(curr.transactionType(), null,
-                        rollupCaptureTime, curr.aggregate(), toRollupLevel, cappedDatabase,
+                        rollupCaptureTime, curr.aggregate(), partitionName, cappedDatabase,
                         scratchBuffer));
             }
             return null;
@@ -1080,7 +1107,8 @@ class AggregateDao implements AggregateRepository {
                     + " main_thread_total_allocated_bytes, aux_thread_total_cpu_nanos,"
                     + " aux_thread_total_blocked_nanos, aux_thread_total_waited_nanos,"
                     + " aux_thread_total_allocated_bytes, duration_nanos_histogram"
-                    + " from aggregate_tn_rollup_" + castUntainted(fromRollupLevel)
+                    + " from " + transactionTables.get(fromRollupLevel)
+                            .from(rollupCaptureTime - fixedIntervalMillis, rollupCaptureTime)
                     + " where capture_time > ? and capture_time <= ? order by transaction_type,"
                     + " transaction_name";
         }
@@ -1096,6 +1124,8 @@ class AggregateDao implements AggregateRepository {
             int maxAggregateQueriesPerType = getMaxAggregateQueriesPerType();
             int maxAggregateServiceCallsPerType = getMaxAggregateServiceCallsPerType();
             CappedDatabase cappedDatabase = rollupCappedDatabases.get(toRollupLevel);
+            String partitionName =
+                    transactionTables.get(toRollupLevel).getPartitionName(rollupCaptureTime);
             ScratchBuffer scratchBuffer = new ScratchBuffer();
             MutableTransactionAggregate curr = null;
             while (resultSet.next()) {
@@ -1106,7 +1136,7 @@ class AggregateDao implements AggregateRepository {
                     if (curr != null) {
                         dataSource.update(new AggregateInsert(curr.transactionType(),
                                 curr.transactionName(), rollupCaptureTime, curr.aggregate(),
-                                toRollupLevel, cappedDatabase, scratchBuffer));
+                                partitionName, cappedDatabase, scratchBuffer));
                     }
                     curr = ImmutableMutableTransactionAggregate.of(transactionType, transactionName,
                             new MutableAggregate(maxAggregateQueriesPerType,
@@ -1116,7 +1146,7 @@ class AggregateDao implements AggregateRepository {
             }
             if (curr != null) {
                 dataSource.update(new AggregateInsert(curr.transactionType(),
-                        curr.transactionName(), rollupCaptureTime, curr.aggregate(), toRollupLevel,
+                        curr.transactionName(), rollupCaptureTime, curr.aggregate(), partitionName,
                         cappedDatabase, scratchBuffer));
             }
             return null;
@@ -1143,9 +1173,9 @@ class AggregateDao implements AggregateRepository {
 
         @Override
         public @Untainted String getSql() {
-            String tableName = getTableName(query);
+            String from = getFrom(query);
             String transactionNameCriteria = getTransactionNameCriteria(query);
-            return "select capture_time, " + cappedIdColumnName + " from " + tableName
+            return "select capture_time, " + cappedIdColumnName + " from " + from
                     + " where transaction_type = ?" + transactionNameCriteria
                     + " and capture_time > ? and capture_time <= ? and " + cappedIdColumnName
                     + " >= ?";
@@ -1172,7 +1202,7 @@ class AggregateDao implements AggregateRepository {
         }
     }
 
-    private static class ShouldHaveSomethingQuery implements JdbcQuery<Boolean> {
+    private class ShouldHaveSomethingQuery implements JdbcQuery<Boolean> {
 
         private final TransactionQuery query;
         private final @Untainted String cappedIdColumnName;
@@ -1185,9 +1215,9 @@ class AggregateDao implements AggregateRepository {
 
         @Override
         public @Untainted String getSql() {
-            String tableName = getTableName(query);
+            String from = getFrom(query);
             String transactionNameCriteria = getTransactionNameCriteria(query);
-            return "select 1 from " + tableName + " where transaction_type = ?"
+            return "select 1 from " + from + " where transaction_type = ?"
                     + transactionNameCriteria + " and capture_time > ? and capture_time <= ?"
                     + " and " + cappedIdColumnName + " is not null limit 1";
         }
@@ -1215,7 +1245,7 @@ class AggregateDao implements AggregateRepository {
         }
     }
 
-    private static class RollupTimeRowMapper implements JdbcRowQuery<Long> {
+    private class RollupTimeRowMapper implements JdbcRowQuery<Long> {
 
         private final int rollupLevel;
         private final long fixedIntervalMillis;
@@ -1235,8 +1265,9 @@ class AggregateDao implements AggregateRepository {
             // need ".0" to force double result
             String captureTimeSql = castUntainted(
                     "ceil(capture_time / " + fixedIntervalMillis + ".0) * " + fixedIntervalMillis);
-            return "select distinct " + captureTimeSql + " from aggregate_tt_rollup_"
-                    + castUntainted(rollupLevel) + " where capture_time > ? and capture_time <= ?";
+            return "select distinct " + captureTimeSql + " from "
+                    + overallTables.get(rollupLevel).from(lastRollupTime, curentRollupTime)
+                    + " where capture_time > ? and capture_time <= ?";
         }
 
         @Override
@@ -36,6 +36,7 @@ import org.glowroot.agent.fat.storage.util.DataSource.JdbcRowQuery;
 import org.glowroot.agent.fat.storage.util.DataSource.JdbcUpdate;
 import org.glowroot.agent.fat.storage.util.ImmutableColumn;
 import org.glowroot.agent.fat.storage.util.ImmutableIndex;
+import org.glowroot.agent.fat.storage.util.PartitionedTable;
 import org.glowroot.agent.fat.storage.util.Schemas.Column;
 import org.glowroot.agent.fat.storage.util.Schemas.ColumnType;
 import org.glowroot.agent.fat.storage.util.Schemas.Index;
@@ -64,6 +65,9 @@ class GaugeValueDao implements GaugeValueRepository {
     private final Clock clock;
     private final ImmutableList<RollupConfig> rollupConfigs;
 
+    // one per rollup level
+    private final ImmutableList<PartitionedTable> tables;
+
     // AtomicLongArray used for visibility
     private final AtomicLongArray lastRollupTimes;
 
@@ -75,9 +79,14 @@ class GaugeValueDao implements GaugeValueRepository {
         this.clock = clock;
         this.rollupConfigs = ImmutableList.copyOf(RollupConfig.buildRollupConfigs());
 
+        // partition size needs to be a multiple of all rollup intervals so that each rollup
+        // interval falls within a single partition
+        long partitionMillis = PartitionedTable.getPartitionMillis(
+                rollupConfigs.get(rollupConfigs.size() - 1).intervalMillis());
+        List<PartitionedTable> tables = Lists.newArrayList();
         for (int i = 0; i <= rollupConfigs.size(); i++) {
-            dataSource.syncTable("gauge_value_rollup_" + castUntainted(i), columns);
-            dataSource.syncIndexes("gauge_value_rollup_" + castUntainted(i),
+            tables.add(new PartitionedTable(dataSource, "gauge_value_rollup_" + castUntainted(i),
+                    columns,
                     ImmutableList.<Index>of(
                             ImmutableIndex.of(
                                     "gauge_value_rollup_" + castUntainted(i) + "_idx",
@@ -88,8 +97,10 @@ class GaugeValueDao implements GaugeValueRepository {
                                     "gauge_value_rollup_" + castUntainted(i)
                                             + "_by_capture_time_idx",
                                     ImmutableList.of("capture_time", "gauge_id", "value",
-                                            "weight"))));
+                                            "weight"))),
+                    partitionMillis));
         }
+        this.tables = ImmutableList.copyOf(tables);
         List<Column> columns = Lists.newArrayList();
         for (int i = 1; i <= rollupConfigs.size(); i++) {
             columns.add(ImmutableColumn.of("last_rollup_" + i + "_time", ColumnType.BIGINT));
@@ -128,7 +139,24 @@ class GaugeValueDao implements GaugeValueRepository {
             }
             gaugeValueIdMap.put(gaugeValue, gaugeId);
         }
-        dataSource.batchUpdate(new GaugeValuesBinder(gaugeValueIdMap));
+        // gauge values are normally captured at the same time, but can still straddle partitions
+        Map<String, Map<GaugeValue, Long>> partitionedGaugeValueIdMaps = Maps.newHashMap();
+        for (Entry<GaugeValue, Long> entry : gaugeValueIdMap.entrySet()) {
+            String partitionName =
+                    tables.get(0).getPartitionName(entry.getKey().getCaptureTime());
+            Map<GaugeValue, Long> partitionGaugeValueIdMap =
+                    partitionedGaugeValueIdMaps.get(partitionName);
+            if (partitionGaugeValueIdMap == null) {
+                partitionGaugeValueIdMap = Maps.newLinkedHashMap();
+                partitionedGaugeValueIdMaps.put(partitionName, partitionGaugeValueIdMap);
+            }
+            partitionGaugeValueIdMap.put(entry.getKey(), entry.getValue());
+        }
+        for (Entry<String, Map<GaugeValue, Long>> entry : partitionedGaugeValueIdMaps
+                .entrySet()) {
+            dataSource.batchUpdate(
+                    new GaugeValuesBinder(castUntainted(entry.getKey()), entry.getValue()));
+        }
         synchronized (rollupLock) {
             // clock can never go backwards and future gauge captures will wait until this method
             // completes since ScheduledExecutorService.scheduleAtFixedRate() guarantees that future
@@ -165,7 +193,7 @@ class GaugeValueDao implements GaugeValueRepository {
     }
 
     void deleteBefore(long captureTime, int rollupLevel) throws Exception {
-        dataSource.deleteBefore("gauge_value_rollup_" + castUntainted(rollupLevel), captureTime);
+        tables.get(rollupLevel).dropBefore(captureTime);
     }
 
     void reinitAfterDeletingDatabase() throws Exception {
@@ -180,13 +208,26 @@ class GaugeValueDao implements GaugeValueRepository {
         // need ".0" to force double result
         String captureTimeSql = castUntainted(
                 "ceil(capture_time / " + fixedIntervalMillis + ".0) * " + fixedIntervalMillis);
-        dataSource.update("merge into gauge_value_rollup_" + castUntainted(toRollupLevel)
-                + " (gauge_id, capture_time, value, weight) key (gauge_id, capture_time)"
-                + " select gauge_id, " + captureTimeSql + " ceil_capture_time,"
-                + " sum(value * weight) / sum(weight), sum(weight) from gauge_value_rollup_"
-                + castUntainted(fromRollupLevel) + " gp where gp.capture_time > ?"
-                + " and gp.capture_time <= ? group by gp.gauge_id, ceil_capture_time",
-                lastRollupTime, safeRollupTime);
+        PartitionedTable fromTable = tables.get(fromRollupLevel);
+        PartitionedTable toTable = tables.get(toRollupLevel);
+        long partitionMillis = toTable.getPartitionMillis();
+        // rolling up one partition at a time, since merge can only target a single table
+        long from = lastRollupTime;
+        while (from < safeRollupTime) {
+            long to = Math.min((from / partitionMillis + 1) * partitionMillis, safeRollupTime);
+            if (!fromTable.partitionExists(to)) {
+                from = to;
+                continue;
+            }
+            dataSource.update("merge into " + toTable.getPartitionName(to)
+                    + " (gauge_id, capture_time, value, weight) key (gauge_id, capture_time)"
+                    + " select gauge_id, " + captureTimeSql + " ceil_capture_time,"
+                    + " sum(value * weight) / sum(weight), sum(weight) from "
+                    + fromTable.from(from + 1, to) + " where capture_time > ?"
+                    + " and capture_time <= ? group by gauge_id, ceil_capture_time",
+                    from, to);
+            from = to;
+        }
     }
 
     private static AtomicLongArray initData(ImmutableList<RollupConfig> rollupConfigs,
@@ -211,15 +252,18 @@ class GaugeValueDao implements GaugeValueRepository {
 
     private class GaugeValuesBinder implements JdbcUpdate {
 
+        private final @Untainted String partitionName;
         private final Map<GaugeValue, Long> gaugeValueIdMap;
 
-        private GaugeValuesBinder(Map<GaugeValue, Long> gaugeValueIdMap) {
+        private GaugeValuesBinder(@Untainted String partitionName,
+                Map<GaugeValue, Long> gaugeValueIdMap) {
+            this.partitionName = partitionName;
             this.gaugeValueIdMap = gaugeValueIdMap;
         }
 
         @Override
         public @Untainted String getSql() {
-            return "insert into gauge_value_rollup_0 (gauge_id, capture_time, value, weight)"
+            return "insert into " + partitionName + " (gauge_id, capture_time, value, weight)"
                     + " values (?, ?, ?, ?)";
         }
 
@@ -288,9 +332,10 @@ class GaugeValueDao implements GaugeValueRepository {
 
         @Override
         public @Untainted String getSql() {
-            return "select capture_time, value, weight from gauge_value_rollup_"
-                    + castUntainted(rollupLevel) + " where gauge_id = ? and capture_time >= ?"
-                    + " and capture_time <= ? order by capture_time";
+            return "select capture_time, value, weight from "
+                    + tables.get(rollupLevel).from(from, to)
+                    + " where gauge_id = ? and capture_time >= ? and capture_time <= ?"
+                    + " order by capture_time";
         }
 
         @Override
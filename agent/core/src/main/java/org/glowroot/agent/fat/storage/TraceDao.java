@@ -26,6 +26,8 @@ import java.util.Locale;
 import javax.annotation.Nullable;
 
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import org.checkerframework.checker.tainting.qual.Untainted;
 
@@ -36,6 +38,7 @@ import org.glowroot.agent.fat.storage.util.DataSource.JdbcRowQuery;
 import org.glowroot.agent.fat.storage.util.DataSource.JdbcUpdate;
 import org.glowroot.agent.fat.storage.util.ImmutableColumn;
 import org.glowroot.agent.fat.storage.util.ImmutableIndex;
+import org.glowroot.agent.fat.storage.util.PartitionedTable;
 import org.glowroot.agent.fat.storage.util.RowMappers;
 import org.glowroot.agent.fat.storage.util.Schemas.Column;
 import org.glowroot.agent.fat.storage.util.Schemas.ColumnType;
@@ -61,6 +64,9 @@ class TraceDao implements TraceRepository {
 
     private static final String AGENT_ID = "";
 
+    private static final int TRACE_CAPTURE_TIME_CACHE_SIZE =
+            Integer.getInteger("glowroot.internal.h2.traceCaptureTimeCacheSize", 10000);
+
     private static final ImmutableList<Column> traceColumns = ImmutableList.<Column>of(
             ImmutableColumn.of("id", ColumnType.VARCHAR),
             ImmutableColumn.of("partial", ColumnType.BOOLEAN),
@@ -106,9 +112,6 @@ class TraceDao implements TraceRepository {
             ImmutableIndex.of("trace_transaction_error_idx",
                     ImmutableList.of("transaction_type", "transaction_name", "error",
                             "capture_time", "duration_nanos", "id")),
-            // trace_capture_time_idx is for reaper, this is very important when trace table is huge
-            // e.g. after leaving slow threshold at 0 for a while
-            ImmutableIndex.of("trace_capture_time_idx", ImmutableList.of("capture_time")),
             // trace_idx is for trace header lookup
             ImmutableIndex.of("trace_idx", ImmutableList.of("id")));
 
@@ -116,31 +119,55 @@ class TraceDao implements TraceRepository {
             ImmutableIndex.of("trace_attribute_idx", ImmutableList.of("trace_id")));
 
     private final DataSource dataSource;
+    private final PartitionedTable traceTable;
+    private final PartitionedTable traceAttributeTable;
     private final CappedDatabase traceCappedDatabase;
     private final TraceAttributeNameDao traceAttributeNameDao;
     private final TransactionTypeDao transactionTypeDao;
 
+    // capture times of recently stored (or looked up) traces, so that looking up a trace by id only
+    // needs to query the partition that holds it
+    private final Cache<String, Long> traceCaptureTimes =
+            CacheBuilder.newBuilder().maximumSize(TRACE_CAPTURE_TIME_CACHE_SIZE).build();
+
     TraceDao(DataSource dataSource, CappedDatabase traceCappedDatabase,
             TransactionTypeDao transactionTypeDao) throws Exception {
         this.dataSource = dataSource;
         this.traceCappedDatabase = traceCappedDatabase;
         traceAttributeNameDao = new TraceAttributeNameDao(dataSource);
         this.transactionTypeDao = transactionTypeDao;
-        dataSource.syncTable("trace", traceColumns);
-        dataSource.syncIndexes("trace", traceIndexes);
-        dataSource.syncTable("trace_attribute", traceAttributeColumns);
-        dataSource.syncIndexes("trace_attribute", traceAttributeIndexes);
+        traceTable = new PartitionedTable(dataSource, "trace", traceColumns, traceIndexes,
+                PartitionedTable.DEFAULT_PARTITION_MILLIS);
+        traceAttributeTable = new PartitionedTable(dataSource, "trace_attribute",
+                traceAttributeColumns, traceAttributeIndexes,
+                PartitionedTable.DEFAULT_PARTITION_MILLIS);
     }
 
     @Override
     public void store(final String agentId, final Trace trace) throws Exception {
         final Trace.Header header = trace.getHeader();
-        dataSource.update(new TraceMerge(trace));
+        String tracePartitionName = traceTable.getPartitionName(header.getCaptureTime());
+        if (trace.getUpdate()) {
+            // capture time of a trace moves forward while it is still active, so prior (partial)
+            // versions of the trace can be in a different partition
+            for (String partitionName : traceTable.getPartitionNames()) {
+                if (!partitionName.equals(tracePartitionName)) {
+                    dataSource.update("delete from " + castUntainted(partitionName)
+                            + " where id = ?", trace.getId());
+                }
+            }
+        }
+        dataSource.update(new TraceMerge(tracePartitionName, trace));
+        traceCaptureTimes.put(trace.getId(), header.getCaptureTime());
         if (header.getAttributeCount() > 0) {
             if (trace.getUpdate()) {
-                dataSource.update("delete from trace_attribute where trace_id = ?", trace.getId());
+                for (String partitionName : traceAttributeTable.getPartitionNames()) {
+                    dataSource.update("delete from " + castUntainted(partitionName)
+                            + " where trace_id = ?", trace.getId());
+                }
             }
-            dataSource.batchUpdate(new TraceAttributeInsert(trace));
+            dataSource.batchUpdate(new TraceAttributeInsert(
+                    traceAttributeTable.getPartitionName(header.getCaptureTime()), trace));
             for (Trace.Attribute attribute : header.getAttributeList()) {
                 traceAttributeNameDao.updateLastCaptureTime(header.getTransactionType(),
                         attribute.getName(), header.getCaptureTime());
@@ -172,14 +199,16 @@ class TraceDao implements TraceRepository {
     public long readSlowCount(String agentRollup, TraceQuery query) throws Exception {
         String transactionName = query.transactionName();
         if (transactionName == null) {
-            return dataSource.queryForLong(
-                    "select count(*) from trace where transaction_type = ? and capture_time > ?"
-                            + " and capture_time <= ? and slow = ?",
+            return dataSource.queryForLong("select count(*) from "
+                    + traceTable.from(query.from(), query.to())
+                    + " where transaction_type = ? and capture_time > ? and capture_time <= ?"
+                    + " and slow = ?",
                     query.transactionType(), query.from(), query.to(), true);
         } else {
-            return dataSource.queryForLong(
-                    "select count(*) from trace where transaction_type = ? and transaction_name = ?"
-                            + " and capture_time > ? and capture_time <= ? and slow = ?",
+            return dataSource.queryForLong("select count(*) from "
+                    + traceTable.from(query.from(), query.to())
+                    + " where transaction_type = ? and transaction_name = ? and capture_time > ?"
+                    + " and capture_time <= ? and slow = ?",
                     query.transactionType(), transactionName, query.from(), query.to(), true);
         }
     }
@@ -188,14 +217,16 @@ class TraceDao implements TraceRepository {
     public long readErrorCount(String agentRollup, TraceQuery query) throws Exception {
         String transactionName = query.transactionName();
         if (transactionName == null) {
-            return dataSource.queryForLong(
-                    "select count(*) from trace where transaction_type = ? and capture_time > ?"
-                            + " and capture_time <= ? and error = ?",
+            return dataSource.queryForLong("select count(*) from "
+                    + traceTable.from(query.from(), query.to())
+                    + " where transaction_type = ? and capture_time > ? and capture_time <= ?"
+                    + " and error = ?",
                     query.transactionType(), query.from(), query.to(), true);
         } else {
-            return dataSource.queryForLong(
-                    "select count(*) from trace where transaction_type = ? and transaction_name = ?"
-                            + " and capture_time > ? and capture_time <= ? and error = ?",
+            return dataSource.queryForLong("select count(*) from "
+                    + traceTable.from(query.from(), query.to())
+                    + " where transaction_type = ? and transaction_name = ? and capture_time > ?"
+                    + " and capture_time <= ? and error = ?",
                     query.transactionType(), transactionName, query.from(), query.to(), true);
         }
     }
@@ -203,10 +234,11 @@ class TraceDao implements TraceRepository {
     @Override
     public ErrorMessageResult readErrorMessages(String agentRollup, TraceQuery query,
             ErrorMessageFilter filter, long resolutionMillis, int limit) throws Exception {
-        List<ErrorMessagePoint> points =
-                dataSource.query(new ErrorPointQuery(query, filter, resolutionMillis));
+        String traceFrom = traceTable.from(query.from(), query.to());
+        List<ErrorMessagePoint> points = dataSource
+                .query(new ErrorPointQuery(traceFrom, query, filter, resolutionMillis));
         List<ErrorMessageCount> counts =
-                dataSource.query(new ErrorMessageCountQuery(query, filter, limit + 1));
+                dataSource.query(new ErrorMessageCountQuery(traceFrom, query, filter, limit + 1));
         // one extra record over the limit is fetched above to identify if the limit was hit
         return ImmutableErrorMessageResult.builder()
                 .addAllPoints(points)
@@ -216,13 +248,16 @@ class TraceDao implements TraceRepository {
 
     @Override
     public @Nullable HeaderPlus readHeaderPlus(String agentId, String traceId) throws Exception {
-        return dataSource.queryAtMostOne(new TraceHeaderQuery(traceId));
+        String partitionName = getTracePartitionName(traceId);
+        if (partitionName == null) {
+            return null;
+        }
+        return dataSource.queryAtMostOne(new TraceHeaderQuery(partitionName, traceId));
     }
 
     @Override
     public List<Trace.Entry> readEntries(String agentId, String traceId) throws Exception {
-        Long cappedId = dataSource
-                .queryForOptionalLong("select entries_capped_id from trace where id = ?", traceId);
+        Long cappedId = readCappedId("entries_capped_id", traceId);
         if (cappedId == null) {
             // trace must have just expired while user was viewing it, or data source is closing
             return ImmutableList.of();
@@ -233,8 +268,7 @@ class TraceDao implements TraceRepository {
     @Override
     public @Nullable Profile readMainThreadProfile(String agentId, String traceId)
             throws Exception {
-        Long cappedId = dataSource.queryForOptionalLong(
-                "select main_thread_profile_capped_id from trace where id = ?", traceId);
+        Long cappedId = readCappedId("main_thread_profile_capped_id", traceId);
         if (cappedId == null) {
             // trace must have just expired while user was viewing it, or data source is closing
             return null;
@@ -245,8 +279,7 @@ class TraceDao implements TraceRepository {
     @Override
     public @Nullable Profile readAuxThreadProfile(String agentId, String traceId)
             throws Exception {
-        Long cappedId = dataSource.queryForOptionalLong(
-                "select aux_thread_profile_capped_id from trace where id = ?", traceId);
+        Long cappedId = readCappedId("aux_thread_profile_capped_id", traceId);
         if (cappedId == null) {
             // trace must have just expired while user was viewing it, or data source is closing
             return null;
@@ -254,16 +287,45 @@ class TraceDao implements TraceRepository {
         return traceCappedDatabase.readMessage(cappedId, Profile.parser());
     }
 
+    private @Nullable Long readCappedId(@Untainted String columnName, String traceId)
+            throws SQLException {
+        String partitionName = getTracePartitionName(traceId);
+        if (partitionName == null) {
+            return null;
+        }
+        return dataSource.queryForOptionalLong("select " + columnName + " from "
+                + castUntainted(partitionName) + " where id = ?", traceId);
+    }
+
+    // returns null if the trace does not exist (e.g. it has expired)
+    private @Nullable String getTracePartitionName(String traceId) throws SQLException {
+        Long captureTime = traceCaptureTimes.getIfPresent(traceId);
+        if (captureTime != null) {
+            return traceTable.getExistingPartitionName(captureTime);
+        }
+        for (String partitionName : traceTable.getPartitionNamesNewestFirst()) {
+            captureTime = dataSource.queryForOptionalLong("select capture_time from "
+                    + castUntainted(partitionName) + " where id = ?", traceId);
+            if (captureTime != null) {
+                traceCaptureTimes.put(traceId, captureTime);
+                return partitionName;
+            }
+        }
+        return null;
+    }
+
     void deleteBefore(long captureTime) throws Exception {
         traceAttributeNameDao.deleteBefore(captureTime);
-        dataSource.deleteBefore("trace", captureTime);
-        dataSource.deleteBefore("trace_attribute", captureTime);
+        traceTable.dropBefore(captureTime);
+        traceAttributeTable.dropBefore(captureTime);
     }
 
     private Result<TracePoint> readPoints(TraceKind traceKind, TraceQuery query,
             TracePointFilter filter, int limit) throws Exception {
-        ParameterizedSql parameterizedSql =
-                new TracePointQueryBuilder(traceKind, query, filter, limit).getParameterizedSql();
+        ParameterizedSql parameterizedSql = new TracePointQueryBuilder(
+                traceTable.from(query.from(), query.to()),
+                traceAttributeTable.from(query.from(), query.to()), traceKind, query, filter,
+                limit).getParameterizedSql();
         List<TracePoint> points = dataSource.query(new TracePointQuery(parameterizedSql));
         // one extra record over the limit is fetched above to identify if the limit was hit
         return Result.from(points, limit);
@@ -306,13 +368,15 @@ class TraceDao implements TraceRepository {
 
     private class TraceMerge implements JdbcUpdate {
 
+        private final @Untainted String partitionName;
         private final String traceId;
         private final Trace.Header header;
         private final @Nullable Long entriesId;
         private final @Nullable Long mainThreadProfileId;
         private final @Nullable Long auxThreadProfileId;
 
-        private TraceMerge(Trace trace) throws IOException {
+        private TraceMerge(@Untainted String partitionName, Trace trace) throws IOException {
+            this.partitionName = partitionName;
             this.traceId = trace.getId();
             this.header = trace.getHeader();
 
@@ -339,10 +403,10 @@ class TraceDao implements TraceRepository {
 
         @Override
         public @Untainted String getSql() {
-            return "merge into trace (id, partial, slow, error, start_time, capture_time,"
-                    + " duration_nanos, transaction_type, transaction_name, headline, user,"
-                    + " error_message, header, entries_capped_id, main_thread_profile_capped_id,"
-                    + " aux_thread_profile_capped_id) key (id)"
+            return "merge into " + partitionName + " (id, partial, slow, error, start_time,"
+                    + " capture_time, duration_nanos, transaction_type, transaction_name, headline,"
+                    + " user, error_message, header, entries_capped_id,"
+                    + " main_thread_profile_capped_id, aux_thread_profile_capped_id) key (id)"
                     + " values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
         }
 
@@ -375,15 +439,17 @@ class TraceDao implements TraceRepository {
 
     private static class TraceAttributeInsert implements JdbcUpdate {
 
+        private final @Untainted String partitionName;
         private final Trace trace;
 
-        private TraceAttributeInsert(Trace trace) {
+        private TraceAttributeInsert(@Untainted String partitionName, Trace trace) {
+            this.partitionName = partitionName;
             this.trace = trace;
         }
 
         @Override
         public @Untainted String getSql() {
-            return "insert into trace_attribute (trace_id, name, value, capture_time)"
+            return "insert into " + partitionName + " (trace_id, name, value, capture_time)"
                     + " values (?, ?, ?, ?)";
         }
 
@@ -439,16 +505,19 @@ class TraceDao implements TraceRepository {
 
     private class TraceHeaderQuery implements JdbcRowQuery<HeaderPlus> {
 
+        private final String partitionName;
         private final String traceId;
 
-        private TraceHeaderQuery(String traceId) {
+        private TraceHeaderQuery(String partitionName, String traceId) {
+            this.partitionName = partitionName;
             this.traceId = traceId;
         }
 
         @Override
         public @Untainted String getSql() {
             return "select header, entries_capped_id, main_thread_profile_capped_id,"
-                    + " aux_thread_profile_capped_id from trace where id = ?";
+                    + " aux_thread_profile_capped_id from " + castUntainted(partitionName)
+                    + " where id = ?";
         }
 
         @Override
@@ -486,12 +555,14 @@ class TraceDao implements TraceRepository {
 
     private static class ErrorPointQuery implements JdbcRowQuery<ErrorMessagePoint> {
 
+        private final @Untainted String traceFrom;
         private final TraceQuery query;
         private final ErrorMessageFilter filter;
         private final long resolutionMillis;
 
-        private ErrorPointQuery(TraceQuery query, ErrorMessageFilter filter,
-                long resolutionMillis) {
+        private ErrorPointQuery(@Untainted String traceFrom, TraceQuery query,
+                ErrorMessageFilter filter, long resolutionMillis) {
+            this.traceFrom = traceFrom;
             this.query = query;
             this.filter = filter;
             this.resolutionMillis = resolutionMillis;
@@ -503,7 +574,8 @@ class TraceDao implements TraceRepository {
             String captureTimeSql = castUntainted(
                     "ceil(capture_time / " + resolutionMillis + ".0) * " + resolutionMillis);
             StringBuilder sql = new StringBuilder();
-            sql.append("select " + captureTimeSql + ", count(*) from trace where error = ?");
+            sql.append("select " + captureTimeSql + ", count(*) from " + traceFrom
+                    + " where error = ?");
             appendQueryAndFilter(sql, query, filter);
             sql.append(" group by " + captureTimeSql + " order by " + captureTimeSql);
             return castUntainted(sql.toString());
@@ -526,11 +598,14 @@ class TraceDao implements TraceRepository {
 
     private static class ErrorMessageCountQuery implements JdbcRowQuery<ErrorMessageCount> {
 
+        private final @Untainted String traceFrom;
         private final TraceQuery query;
         private final ErrorMessageFilter filter;
         private final int limit;
 
-        private ErrorMessageCountQuery(TraceQuery query, ErrorMessageFilter filter, int limit) {
+        private ErrorMessageCountQuery(@Untainted String traceFrom, TraceQuery query,
+                ErrorMessageFilter filter, int limit) {
+            this.traceFrom = traceFrom;
             this.query = query;
             this.filter = filter;
             this.limit = limit;
@@ -539,7 +614,7 @@ class TraceDao implements TraceRepository {
         @Override
         public @Untainted String getSql() {
             StringBuilder sql = new StringBuilder();
-            sql.append("select error_message, count(*) from trace where error = ?");
+            sql.append("select error_message, count(*) from " + traceFrom + " where error = ?");
             appendQueryAndFilter(sql, query, filter);
             sql.append(" group by error_message order by count(*) desc limit ?");
             return castUntainted(sql.toString());
@@ -34,13 +34,18 @@ import org.glowroot.common.util.Styles;
 
 class TracePointQueryBuilder {
 
+    private final @Untainted String traceFrom;
+    private final @Untainted String traceAttributeFrom;
     private final TraceKind traceKind;
     private final TraceQuery query;
     private final TracePointFilter filter;
     private final int limit;
 
-    TracePointQueryBuilder(TraceKind traceKind, TraceQuery query, TracePointFilter filter,
-            int limit) {
+    // traceFrom and traceAttributeFrom are table expressions aliased to trace and trace_attribute
+    TracePointQueryBuilder(@Untainted String traceFrom, @Untainted String traceAttributeFrom,
+            TraceKind traceKind, TraceQuery query, TracePointFilter filter, int limit) {
+        this.traceFrom = traceFrom;
+        this.traceAttributeFrom = traceAttributeFrom;
         this.traceKind = traceKind;
         this.query = query;
         this.filter = filter;
@@ -53,13 +58,15 @@ class TracePointQueryBuilder {
     ParameterizedSql getParameterizedSql() {
         ParameterizedSqlBuilder builder = new ParameterizedSqlBuilder();
         builder.appendText("select trace.id, trace.capture_time, trace.duration_nanos, trace.error"
-                + " from trace");
+                + " from " + traceFrom);
         ParameterizedSql criteria = getAttributeCriteria();
         if (criteria == null) {
             builder.appendText(" where");
         } else {
-            builder.appendText(", trace_attribute attr where attr.trace_id = trace.id"
-                    + " and attr.capture_time > ? and attr.capture_time <= ? and" + criteria.sql());
+            builder.appendText(", " + traceAttributeFrom
+                    + " where trace_attribute.trace_id = trace.id"
+                    + " and trace_attribute.capture_time > ?"
+                    + " and trace_attribute.capture_time <= ? and" + criteria.sql());
             builder.addArg(query.from());
             builder.addArg(query.to());
             builder.addArgs(criteria.args());
@@ -84,13 +91,14 @@ class TracePointQueryBuilder {
         List<Object> args = Lists.newArrayList();
         String attributeName = filter.attributeName();
         if (!Strings.isNullOrEmpty(attributeName)) {
-            sql += " upper(attr.name) = ? and";
+            sql += " upper(trace_attribute.name) = ? and";
             args.add(attributeName.toUpperCase(Locale.ENGLISH));
         }
         StringComparator attributeValueComparator = filter.attributeValueComparator();
         String attributeValue = filter.attributeValue();
         if (attributeValueComparator != null && !Strings.isNullOrEmpty(attributeValue)) {
-            sql += " upper(attr.value) " + attributeValueComparator.getComparator() + " ? and";
+            sql += " upper(trace_attribute.value) " + attributeValueComparator.getComparator()
+                    + " ? and";
             args.add(attributeValueComparator.formatParameter(attributeValue));
         }
         if (sql.equals("")) {
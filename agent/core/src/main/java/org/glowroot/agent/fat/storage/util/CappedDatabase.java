@@ -22,13 +22,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.util.List;
 import java.util.Map;
 
-import javax.annotation.concurrent.GuardedBy;
-
 import com.google.common.base.Charsets;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
@@ -53,23 +50,18 @@ public class CappedDatabase {
 
     private static final Logger logger = LoggerFactory.getLogger(CappedDatabase.class);
 
-    private final File file;
+    // writes and resizes are serialized through lock, reads are not (see CappedBlockInputStream)
     private final Object lock = new Object();
-    @GuardedBy("lock")
     private final CappedDatabaseOutputStream out;
     private final Thread shutdownHookThread;
-    @GuardedBy("lock")
-    private RandomAccessFile inFile;
     private volatile boolean closing = false;
 
     private final Ticker ticker;
     private final Map<String, CappedDatabaseStats> statsByType = Maps.newHashMap();
 
     public CappedDatabase(File file, int requestedSizeKb, Ticker ticker) throws IOException {
-        this.file = file;
         this.ticker = ticker;
         out = new CappedDatabaseOutputStream(file, requestedSizeKb);
-        inFile = new RandomAccessFile(file, "r");
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -140,12 +132,8 @@ public class CappedDatabase {
 
     public <T extends /*@NonNull*/ AbstractMessage> /*@Nullable*/ T readMessage(long cappedId,
             Parser<T> parser) throws IOException {
-        boolean overwritten;
-        boolean inTheFuture;
-        synchronized (lock) {
-            overwritten = out.isOverwritten(cappedId);
-            inTheFuture = cappedId >= out.getCurrIndex();
-        }
+        boolean overwritten = out.isOverwritten(cappedId);
+        boolean inTheFuture = cappedId >= out.getCurrIndex();
         if (overwritten) {
             return null;
         }
@@ -158,7 +146,7 @@ public class CappedDatabase {
             return null;
         }
         // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
+        // lots of small reads (each of which is validated) from the underlying memory mapped file
         final int bufferSize = 32768;
         InputStream input = new LZFInputStream(
                 new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
@@ -176,12 +164,8 @@ public class CappedDatabase {
 
     public <T extends /*@NonNull*/MessageLite> List<T> readMessages(long cappedId, Parser<T> parser)
             throws IOException {
-        boolean overwritten;
-        boolean inTheFuture;
-        synchronized (lock) {
-            overwritten = out.isOverwritten(cappedId);
-            inTheFuture = cappedId >= out.getCurrIndex();
-        }
+        boolean overwritten = out.isOverwritten(cappedId);
+        boolean inTheFuture = cappedId >= out.getCurrIndex();
         if (overwritten) {
             return ImmutableList.of();
         }
@@ -194,7 +178,7 @@ public class CappedDatabase {
             return ImmutableList.of();
         }
         // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
+        // lots of small reads (each of which is validated) from the underlying memory mapped file
         final int bufferSize = 32768;
         InputStream input = new LZFInputStream(
                 new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
@@ -223,15 +207,11 @@ public class CappedDatabase {
     }
 
     boolean isExpired(long cappedId) {
-        synchronized (lock) {
-            return out.isOverwritten(cappedId);
-        }
+        return out.isOverwritten(cappedId);
     }
 
     public long getSmallestNonExpiredId() {
-        synchronized (lock) {
-            return out.getSmallestNonOverwrittenId();
-        }
+        return out.getSmallestNonOverwrittenId();
     }
 
     public void resize(int newSizeKb) throws IOException {
@@ -239,9 +219,7 @@ public class CappedDatabase {
             if (closing) {
                 return;
             }
-            inFile.close();
             out.resize(newSizeKb);
-            inFile = new RandomAccessFile(file, "r");
         }
     }
 
@@ -250,7 +228,6 @@ public class CappedDatabase {
         synchronized (lock) {
             closing = true;
             out.close();
-            inFile.close();
         }
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
@@ -267,7 +244,8 @@ public class CappedDatabase {
         @Override
         public Reader openStream() throws IOException {
             // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-            // lots of small reads from the underlying RandomAccessFile
+            // lots of small reads (each of which is validated) from the underlying memory mapped
+            // file
             final int bufferSize = 32768;
             return new InputStreamReader(new LZFInputStream(
                     new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize)),
@@ -275,8 +253,12 @@ public class CappedDatabase {
         }
     }
 
+    // reads are lock-free, each read is validated after copying the bytes out of the memory mapped
+    // file, and only falls back to the lock if it races with a resize (which is rare)
     private class CappedBlockInputStream extends InputStream {
 
+        private static final int CONCURRENT_RESIZE = -2;
+
         private final long cappedId;
         private long blockLength = -1;
         private long blockIndex;
@@ -290,25 +272,48 @@ public class CappedDatabase {
             if (blockIndex == blockLength) {
                 return -1;
             }
-            synchronized (lock) {
-                if (out.isOverwritten(cappedId)) {
-                    throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
-                }
-                if (blockLength == -1) {
-                    long filePosition = out.convertToFilePosition(cappedId);
-                    inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
-                    blockLength = inFile.readLong();
+            int numRead = readLockFree(bytes, off, len);
+            if (numRead == CONCURRENT_RESIZE) {
+                // resize is performed under the lock, so this cannot race with a resize again
+                synchronized (lock) {
+                    numRead = readLockFree(bytes, off, len);
                 }
-                long filePosition = out.convertToFilePosition(
-                        cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex);
-                inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
-                long blockRemaining = blockLength - blockIndex;
-                long fileRemaining = out.getSizeKb() * 1024L - filePosition;
-                int numToRead = (int) Longs.min(len, blockRemaining, fileRemaining);
-                inFile.readFully(bytes, off, numToRead);
-                blockIndex += numToRead;
-                return numToRead;
             }
+            return numRead;
+        }
+
+        private int readLockFree(byte[] bytes, int off, int len) throws IOException {
+            long generation = out.getGeneration();
+            if (CappedDatabaseOutputStream.isResizing(generation)) {
+                return CONCURRENT_RESIZE;
+            }
+            if (out.isOverwritten(cappedId)) {
+                throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
+            }
+            long length = blockLength;
+            if (length == -1) {
+                byte[] blockHeader = new byte[CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES];
+                out.read(cappedId, blockHeader, 0, blockHeader.length);
+                length = Longs.fromByteArray(blockHeader);
+            }
+            // length can be garbage if the block was overwritten concurrently, which is checked
+            // below before anything is returned
+            int numToRead = (int) Math.max(0, Math.min(len, length - blockIndex));
+            out.read(cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex,
+                    bytes, off, numToRead);
+            // the writer advances the current index before overwriting any bytes, so checking
+            // after the copy guarantees that the copied bytes were not overwritten (see
+            // getGenerationAfterRead() for why the generation is not re-read with a plain volatile
+            // read here)
+            if (out.getGenerationAfterRead() != generation) {
+                return CONCURRENT_RESIZE;
+            }
+            if (out.isOverwritten(cappedId)) {
+                throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
+            }
+            blockLength = length;
+            blockIndex += numToRead;
+            return numToRead;
         }
 
         @Override
@@ -335,7 +340,6 @@ public class CappedDatabase {
                 closing = true;
                 synchronized (lock) {
                     out.close();
-                    inFile.close();
                 }
             } catch (IOException e) {
                 logger.warn(e.getMessage(), e);
@@ -19,72 +19,112 @@ import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.primitives.Longs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import org.glowroot.common.util.OnlyUsedByTests;
 
-// Needs to be externally synchronized around startBlock()/write()/endBlock().
+// Needs to be externally synchronized around startBlock()/write()/endBlock()/resize().
+//
+// The circular file is memory mapped so that readers can copy blocks out of it without any
+// locking. Readers validate what they copied against currIndex (which the writer advances _before_
+// writing over the bytes) and against generation (which is odd while a resize is in progress and
+// is bumped again once the new mapping is published).
+//
+// Mappings that are replaced (during resize) are unmapped once no reader is still copying out of
+// them, since accessing an unmapped buffer crashes the JVM.
 class CappedDatabaseOutputStream extends OutputStream {
 
+    private static final Logger logger = LoggerFactory.getLogger(CappedDatabaseOutputStream.class);
+
     static final int HEADER_SKIP_BYTES = 20;
     static final int BLOCK_HEADER_SKIP_BYTES = 8;
 
     private static final int HEADER_CURR_INDEX_POS = 0;
+    private static final int HEADER_SIZE_KB_POS = 8;
+    private static final int HEADER_LAST_RESIZE_BASE_INDEX_POS = 12;
+
+    // a single MappedByteBuffer is limited to Integer.MAX_VALUE bytes
+    private static final int SEGMENT_SIZE_BYTES = 1 << 30;
 
     private final File file;
+    // out and channel are only replaced during resize
     private RandomAccessFile out;
+    private FileChannel channel;
 
     // currIndex is ever-increasing even over capped boundary
     // (btw it would take writing 2.9g per second for 100 years for currIndex to hit Long.MAX_VALUE)
-    private long currIndex;
-    // lastResizeBaseIndex is the smallest currIndex saved during the last resize
-    private long lastResizeBaseIndex;
-    // sizeKb is volatile so it can be read outside of the external synchronization around
+    //
+    // currIndex is volatile so it can be read outside of the external synchronization around
     // startBlock()/write()/endBlock()
-    private volatile int sizeKb;
-    private long sizeBytes;
+    private volatile long currIndex;
+    // ring is volatile so it can be read outside of the external synchronization, it is only
+    // replaced during resize
+    private volatile Ring ring;
+    // generation is odd while a resize is in progress
+    private final AtomicLong generation = new AtomicLong();
 
     private long blockStartIndex;
-    private long blockStartPosition;
 
     CappedDatabaseOutputStream(File file, int requestedSizeKb) throws IOException {
         this.file = file;
         boolean newFile = !file.exists() || file.length() == 0;
         out = new RandomAccessFile(file, "rw");
+        channel = out.getChannel();
+        int sizeKb;
+        long lastResizeBaseIndex;
         if (newFile) {
             currIndex = 0;
             sizeKb = requestedSizeKb;
-            sizeBytes = sizeKb * 1024L;
             lastResizeBaseIndex = 0;
-            out.writeLong(currIndex);
-            out.writeInt(sizeKb);
-            out.writeLong(lastResizeBaseIndex);
         } else {
             currIndex = out.readLong();
             // have to ignore requested fixedLength for existing files, must explicitly call
             // resize() since this can be an expensive operation
             sizeKb = out.readInt();
-            sizeBytes = sizeKb * 1024L;
             lastResizeBaseIndex = out.readLong();
+            long fileLength = HEADER_SKIP_BYTES + sizeKb * 1024L;
+            if (out.length() > fileLength) {
+                // the tail of the file can be left in place if the JVM stops in the middle of
+                // resizing smaller
+                out.setLength(fileLength);
+            }
+        }
+        ring = Ring.map(channel, sizeKb, lastResizeBaseIndex);
+        if (newFile) {
+            ring.writeHeader(currIndex);
         }
     }
 
     void startBlock() {
-        long currPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
-        long remainingBytes = sizeBytes - currPosition;
+        Ring ring = this.ring;
+        long currPosition = ring.convertToPosition(currIndex);
+        long remainingBytes = ring.sizeBytes - currPosition;
         if (remainingBytes < BLOCK_HEADER_SKIP_BYTES) {
             // not enough space for contiguous block header
             currIndex += remainingBytes;
         }
         blockStartIndex = currIndex;
-        blockStartPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
         // make space for block size to be written at start position
         currIndex += BLOCK_HEADER_SKIP_BYTES;
     }
 
     long endBlock() throws IOException {
-        out.seek(HEADER_SKIP_BYTES + blockStartPosition);
-        out.writeLong(currIndex - blockStartIndex - BLOCK_HEADER_SKIP_BYTES);
-        out.getFD().sync();
+        Ring ring = this.ring;
+        ring.write(ring.convertToPosition(blockStartIndex),
+                Longs.toByteArray(currIndex - blockStartIndex - BLOCK_HEADER_SKIP_BYTES), 0,
+                BLOCK_HEADER_SKIP_BYTES);
+        ring.forceDirtySegments();
         return blockStartIndex;
     }
 
@@ -93,62 +133,102 @@ class CappedDatabaseOutputStream extends OutputStream {
     }
 
     long getSmallestNonOverwrittenId() {
+        Ring ring = this.ring;
         // need to check lastResizeBaseIndex in case it was recently resized larger, in which case
         // currIndex - sizeBytes would be less than lastResizeBaseIndex
-        return Math.max(lastResizeBaseIndex, currIndex - sizeBytes);
+        return Math.max(ring.lastResizeBaseIndex, currIndex - ring.sizeBytes);
     }
 
     long getCurrIndex() {
         return currIndex;
     }
 
-    // this is ok to read outside of external synchronization around startBlock()/write()/endBlock()
     int getSizeKb() {
-        return sizeKb;
+        return ring.sizeKb;
+    }
+
+    long getGeneration() {
+        return generation.get();
+    }
+
+    // this is used by readers to re-check the generation after copying bytes out of the mapping
+    //
+    // a volatile read does not prevent the preceding (plain) reads of the mapped bytes from being
+    // reordered after it, so this uses a read-dont-modify-write instead, which cannot be reordered
+    // with the preceding reads and so acts as the load fence needed for the validation to be sound
+    long getGenerationAfterRead() {
+        return generation.getAndAdd(0);
+    }
+
+    static boolean isResizing(long generation) {
+        return generation % 2 != 0;
     }
 
-    long convertToFilePosition(long index) {
-        return (index - lastResizeBaseIndex) % sizeBytes;
+    // this is ok to call outside of external synchronization, but the caller must validate
+    // afterwards (using isOverwritten() and getGeneration()) that the bytes copied into the array
+    // were not overwritten concurrently
+    void read(long index, byte[] bytes, int off, int len) {
+        Ring ring = this.ring;
+        if (!ring.acquireReader()) {
+            // mapping was retired by a concurrent resize, caller will see the generation change
+            return;
+        }
+        try {
+            if (index < ring.lastResizeBaseIndex) {
+                // resized concurrently, caller will see the generation change
+                return;
+            }
+            ring.read(ring.convertToPosition(index), bytes, off, len);
+        } finally {
+            ring.releaseReader();
+        }
     }
 
     // perform resize in-place to avoid using extra disk space
+    //
+    // the kept bytes (and the new header) are written to a temporary file which then replaces the
+    // capped database file, so that a crash in the middle of a resize leaves the capped database
+    // intact
     void resize(int newSizeKb) throws IOException {
         if (performEasyResize(newSizeKb)) {
             return;
         }
-        long newSizeBytes = newSizeKb * 1024L;
+        Ring ring = this.ring;
         // keep the min of the current and new capped size
-        int numKeepKb = Math.min(sizeKb, newSizeKb);
+        int numKeepKb = Math.min(ring.sizeKb, newSizeKb);
         long numKeepBytes = numKeepKb * 1024L;
         // at this point, because of the two shortcut conditionals above, currIndex must be >=
         // either the current or new capped size (numKeepBytes)
-        long startPosition = convertToFilePosition(currIndex - numKeepBytes);
-        lastResizeBaseIndex = currIndex - numKeepBytes;
+        long startPosition = ring.convertToPosition(currIndex - numKeepBytes);
+        long lastResizeBaseIndex = currIndex - numKeepBytes;
         File tmpCappedFile = new File(file.getPath() + ".resizing.tmp");
         RandomAccessFile tmpOut = new RandomAccessFile(tmpCappedFile, "rw");
-        tmpOut.writeLong(currIndex);
-        tmpOut.writeInt(newSizeKb);
-        tmpOut.writeLong(lastResizeBaseIndex);
-        long remaining = sizeBytes - startPosition;
-        out.seek(HEADER_SKIP_BYTES + startPosition);
-        if (numKeepBytes > remaining) {
-            copy(out, tmpOut, remaining);
-            out.seek(HEADER_SKIP_BYTES);
-            copy(out, tmpOut, numKeepBytes - remaining);
-        } else {
-            copy(out, tmpOut, numKeepBytes);
+        try {
+            tmpOut.writeLong(currIndex);
+            tmpOut.writeInt(newSizeKb);
+            tmpOut.writeLong(lastResizeBaseIndex);
+            copy(ring, startPosition, tmpOut, numKeepBytes, new byte[1024]);
+            tmpOut.getFD().sync();
+        } finally {
+            tmpOut.close();
         }
-        out.close();
-        tmpOut.close();
-        if (!file.delete()) {
-            throw new IOException("Unable to delete existing capped database during resize");
-        }
-        if (!tmpCappedFile.renameTo(file)) {
-            throw new IOException("Unable to rename new capped database during resize");
+        generation.incrementAndGet();
+        try {
+            // the existing file must be unmapped before it can be deleted (at least on windows)
+            ring.retire();
+            out.close();
+            if (!file.delete()) {
+                throw new IOException("Unable to delete existing capped database during resize");
+            }
+            if (!tmpCappedFile.renameTo(file)) {
+                throw new IOException("Unable to rename new capped database during resize");
+            }
+            out = new RandomAccessFile(file, "rw");
+            channel = out.getChannel();
+            this.ring = Ring.map(channel, newSizeKb, lastResizeBaseIndex);
+        } finally {
+            generation.incrementAndGet();
         }
-        sizeKb = newSizeKb;
-        sizeBytes = newSizeBytes;
-        out = new RandomAccessFile(file, "rw");
     }
 
     @Override
@@ -168,63 +248,237 @@ class CappedDatabaseOutputStream extends OutputStream {
 
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
-        if (currIndex + len - blockStartIndex > sizeBytes) {
+        Ring ring = this.ring;
+        if (currIndex + len - blockStartIndex > ring.sizeBytes) {
             throw new IOException(
                     "A single block cannot have more bytes than size of the capped database");
         }
-        long currPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
-        out.seek(HEADER_SKIP_BYTES + currPosition);
-        long remaining = sizeBytes - currPosition;
-        if (len >= remaining) {
-            // intentionally handling == case here
-            out.write(b, off, (int) remaining);
-            out.seek(HEADER_SKIP_BYTES);
-            out.write(b, (int) remaining, (int) (len - remaining));
-        } else {
-            out.write(b, off, len);
-        }
+        long currPosition = ring.convertToPosition(currIndex);
+        // advance currIndex before writing so that concurrent readers of the bytes being
+        // overwritten will see them as overwritten
         currIndex += len;
-        out.seek(HEADER_CURR_INDEX_POS);
-        out.writeLong(currIndex);
+        ring.write(currPosition, b, off, len);
+        ring.writeCurrIndex(currIndex);
     }
 
     private boolean performEasyResize(int newSizeKb) throws IOException {
-        if (newSizeKb == sizeKb) {
+        Ring ring = this.ring;
+        if (newSizeKb == ring.sizeKb) {
             return true;
         }
         long newSizeBytes = newSizeKb * 1024L;
-        if (newSizeKb < sizeKb && currIndex - lastResizeBaseIndex < newSizeBytes) {
+        if (newSizeKb < ring.sizeKb && currIndex - ring.lastResizeBaseIndex < newSizeBytes) {
             // resizing smaller and on first "loop" after a resize and haven't written up to the
             // new smaller size yet
-            out.seek(8);
-            out.writeInt(newSizeKb);
-            sizeKb = newSizeKb;
-            sizeBytes = newSizeBytes;
+            remap(newSizeKb);
             return true;
-        } else if (newSizeKb > sizeKb && currIndex - lastResizeBaseIndex < sizeBytes) {
+        } else if (newSizeKb > ring.sizeKb
+                && currIndex - ring.lastResizeBaseIndex < ring.sizeBytes) {
             // resizing larger and on first "loop" after a resize
-            out.seek(8);
-            out.writeInt(newSizeKb);
-            sizeKb = newSizeKb;
-            sizeBytes = newSizeBytes;
+            remap(newSizeKb);
             return true;
         }
         return false;
     }
 
+    private void remap(int newSizeKb) throws IOException {
+        Ring ring = this.ring;
+        generation.incrementAndGet();
+        try {
+            ring.retire();
+            if (newSizeKb < ring.sizeKb) {
+                out.setLength(HEADER_SKIP_BYTES + newSizeKb * 1024L);
+            }
+            Ring newRing = Ring.map(channel, newSizeKb, ring.lastResizeBaseIndex);
+            newRing.writeHeader(currIndex);
+            newRing.forceDirtySegments();
+            this.ring = newRing;
+        } finally {
+            generation.incrementAndGet();
+        }
+    }
+
     @OnlyUsedByTests
     void sync() throws IOException {
-        out.getFD().sync();
+        ring.forceDirtySegments();
     }
 
-    private static void copy(RandomAccessFile in, RandomAccessFile out, long numBytes)
-            throws IOException {
-        byte[] block = new byte[1024];
+    private static void copy(Ring in, long startPosition, RandomAccessFile out, long numBytes,
+            byte[] block) throws IOException {
         long total = 0;
         while (total < numBytes) {
-            int n = in.read(block, 0, (int) Math.min(1024L, numBytes - total));
+            int n = (int) Math.min(block.length, numBytes - total);
+            in.read((startPosition + total) % in.sizeBytes, block, 0, n);
             out.write(block, 0, n);
             total += n;
         }
     }
+
+    // best effort, if the buffer cannot be unmapped then it is left for garbage collection
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            // java 9+
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleanerMethod =
+                    unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafeField = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafeField.setAccessible(true);
+            invokeCleanerMethod.invoke(theUnsafeField.get(null), buffer);
+            return;
+        } catch (NoSuchMethodException e) {
+            // java 6-8, fall through
+        } catch (Exception e) {
+            logger.debug(e.getMessage(), e);
+            return;
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                Method cleanMethod = cleaner.getClass().getMethod("clean");
+                cleanMethod.setAccessible(true);
+                cleanMethod.invoke(cleaner);
+            }
+        } catch (Exception e) {
+            logger.debug(e.getMessage(), e);
+        }
+    }
+
+    // immutable apart from the mapped bytes themselves (and the dirty flags, which are only
+    // accessed by the writer)
+    private static class Ring {
+
+        private final MappedByteBuffer[] segments;
+        private final boolean[] dirtySegments;
+        private final int sizeKb;
+        private final long sizeBytes;
+        // lastResizeBaseIndex is the smallest currIndex saved during the last resize
+        private final long lastResizeBaseIndex;
+
+        // number of readers currently copying bytes out of the mapping
+        private final AtomicInteger readers = new AtomicInteger();
+        private volatile boolean retired;
+
+        private Ring(MappedByteBuffer[] segments, int sizeKb, long lastResizeBaseIndex) {
+            this.segments = segments;
+            dirtySegments = new boolean[segments.length];
+            this.sizeKb = sizeKb;
+            this.sizeBytes = sizeKb * 1024L;
+            this.lastResizeBaseIndex = lastResizeBaseIndex;
+        }
+
+        private static Ring map(FileChannel channel, int sizeKb, long lastResizeBaseIndex)
+                throws IOException {
+            long fileLength = HEADER_SKIP_BYTES + sizeKb * 1024L;
+            int numSegments = (int) ((fileLength - 1) / SEGMENT_SIZE_BYTES) + 1;
+            MappedByteBuffer[] segments = new MappedByteBuffer[numSegments];
+            for (int i = 0; i < numSegments; i++) {
+                long segmentStart = (long) i * SEGMENT_SIZE_BYTES;
+                long segmentLength = Math.min(SEGMENT_SIZE_BYTES, fileLength - segmentStart);
+                segments[i] = channel.map(MapMode.READ_WRITE, segmentStart, segmentLength);
+            }
+            return new Ring(segments, sizeKb, lastResizeBaseIndex);
+        }
+
+        // the reader count is incremented before checking retired, and retire() sets retired before
+        // checking the reader count, so either the reader sees retired or retire() waits for it
+        private boolean acquireReader() {
+            readers.incrementAndGet();
+            if (retired) {
+                readers.decrementAndGet();
+                return false;
+            }
+            return true;
+        }
+
+        private void releaseReader() {
+            readers.decrementAndGet();
+        }
+
+        // the writer must not use the ring after calling this
+        private void retire() {
+            retired = true;
+            while (readers.get() > 0) {
+                // readers only copy small chunks, so this does not wait long
+                Thread.yield();
+            }
+            for (MappedByteBuffer segment : segments) {
+                unmap(segment);
+            }
+        }
+
+        private long convertToPosition(long index) {
+            return (index - lastResizeBaseIndex) % sizeBytes;
+        }
+
+        private void writeHeader(long currIndex) {
+            // header is always entirely inside the first segment
+            segments[0].putLong(HEADER_CURR_INDEX_POS, currIndex);
+            segments[0].putInt(HEADER_SIZE_KB_POS, sizeKb);
+            segments[0].putLong(HEADER_LAST_RESIZE_BASE_INDEX_POS, lastResizeBaseIndex);
+            dirtySegments[0] = true;
+        }
+
+        private void writeCurrIndex(long currIndex) {
+            segments[0].putLong(HEADER_CURR_INDEX_POS, currIndex);
+            dirtySegments[0] = true;
+        }
+
+        private void write(long position, byte[] bytes, int off, int len) {
+            transfer(position, bytes, off, len, true);
+        }
+
+        private void read(long position, byte[] bytes, int off, int len) {
+            transfer(position, bytes, off, len, false);
+        }
+
+        // wraps around to the start of the ring when reaching the end
+        private void transfer(long position, byte[] bytes, int off, int len, boolean write) {
+            int remaining = len;
+            long currPosition = position;
+            int currOff = off;
+            while (remaining > 0) {
+                int n = (int) Math.min(remaining, sizeBytes - currPosition);
+                transferWithinRing(currPosition, bytes, currOff, n, write);
+                remaining -= n;
+                currOff += n;
+                currPosition = (currPosition + n) % sizeBytes;
+            }
+        }
+
+        // does not wrap around, but may span segments
+        private void transferWithinRing(long position, byte[] bytes, int off, int len,
+                boolean write) {
+            long filePosition = HEADER_SKIP_BYTES + position;
+            int remaining = len;
+            int currOff = off;
+            while (remaining > 0) {
+                int segmentIndex = (int) (filePosition / SEGMENT_SIZE_BYTES);
+                int segmentPosition = (int) (filePosition % SEGMENT_SIZE_BYTES);
+                // duplicate so that the position is not shared across (reader) threads
+                ByteBuffer buffer = segments[segmentIndex].duplicate();
+                buffer.position(segmentPosition);
+                int n = Math.min(remaining, buffer.remaining());
+                if (write) {
+                    buffer.put(bytes, currOff, n);
+                    dirtySegments[segmentIndex] = true;
+                } else {
+                    buffer.get(bytes, currOff, n);
+                }
+                remaining -= n;
+                currOff += n;
+                filePosition += n;
+            }
+        }
+
+        private void forceDirtySegments() {
+            for (int i = 0; i < segments.length; i++) {
+                if (dirtySegments[i]) {
+                    segments[i].force();
+                    dirtySegments[i] = false;
+                }
+            }
+        }
+    }
 }
@@ -21,11 +21,15 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
@@ -49,6 +53,7 @@ import org.glowroot.agent.fat.storage.util.Schemas.Index;
 import org.glowroot.common.util.OnlyUsedByTests;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class DataSource {
 
@@ -60,38 +65,57 @@ public class DataSource {
     private static final int QUERY_TIMEOUT_SECONDS =
             Integer.getInteger("glowroot.internal.h2.queryTimeout", 60);
 
+    private static final int READER_CONNECTIONS =
+            Math.max(Integer.getInteger("glowroot.internal.h2.readerConnections", 4), 1);
+
+    // each in-memory data source needs its own uniquely named database so that its reader and
+    // writer connections all see the same database
+    private static final AtomicInteger memDbCounter = new AtomicInteger();
+
     // null means use memDb
     private final @Nullable File dbFile;
+    private final String memDbName;
     private final Thread shutdownHookThread;
+
+    // all updates and schema changes go through the single writer connection
     private final Object lock = new Object();
     @GuardedBy("lock")
-    private Connection connection;
+    private CachedConnection writer;
+
+    // queries go through the reader connections so that the UI is not blocked behind large writes
+    // (e.g. storing aggregates or deleting old data)
+    //
+    // a reader connection is only ever used by the thread that has taken it from this queue, and
+    // all of the reader connections need to be taken (while holding readersLock) in order to close
+    // or re-open the database
+    //
+    // the reader connections must be taken prior to acquiring the lock above, since a thread that
+    // is holding a reader connection can perform updates (e.g. rolling up aggregates while
+    // iterating over the lower level rollup)
+    private final Object readersLock = new Object();
+    private final BlockingQueue<CachedConnection> readers =
+            new LinkedBlockingQueue<CachedConnection>();
+
     private volatile boolean closing = false;
 
     private final Map</*@Untainted*/String, ImmutableList<Column>> tables = Maps.newConcurrentMap();
     private final Map</*@Untainted*/String, ImmutableList<Index>> indexes = Maps.newConcurrentMap();
 
-    private final LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache =
-            CacheBuilder.newBuilder()
-                    .weakValues()
-                    .build(new CacheLoader</*@Untainted*/String, PreparedStatement>() {
-                        @Override
-                        public PreparedStatement load(@Untainted String sql) throws SQLException {
-                            return connection.prepareStatement(sql);
-                        }
-                    });
-
     // creates an in-memory database
     public DataSource() throws SQLException {
         dbFile = null;
-        connection = createConnection(null);
+        memDbName = "glowroot-" + memDbCounter.getAndIncrement();
+        writer = new CachedConnection(createConnection());
+        readers.addAll(createReaders());
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
 
     public DataSource(File dbFile) throws SQLException {
         this.dbFile = dbFile;
-        connection = createConnection(dbFile);
+        memDbName = "";
+        writer = new CachedConnection(createConnection());
+        readers.addAll(createReaders());
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -100,13 +124,21 @@ public class DataSource {
         if (dbFile == null) {
             return;
         }
-        synchronized (lock) {
-            if (closing) {
-                return;
+        synchronized (readersLock) {
+            List<CachedConnection> currReaders = takeAllReaders();
+            try {
+                synchronized (lock) {
+                    if (closing) {
+                        return;
+                    }
+                    closeAll(currReaders);
+                    execute("shutdown defrag");
+                    writer = new CachedConnection(createConnection());
+                    currReaders = createReaders();
+                }
+            } finally {
+                readers.addAll(currReaders);
             }
-            execute("shutdown defrag");
-            preparedStatementCache.invalidateAll();
-            connection = createConnection(dbFile);
         }
     }
 
@@ -114,22 +146,33 @@ public class DataSource {
         if (dbFile == null) {
             return;
         }
-        synchronized (lock) {
-            if (closing) {
-                return;
-            }
-            connection.close();
-            preparedStatementCache.invalidateAll();
-            boolean success = dbFile.delete();
-            connection = createConnection(dbFile);
-            for (Entry</*@Untainted*/String, ImmutableList<Column>> entry : tables.entrySet()) {
-                syncTable(entry.getKey(), entry.getValue());
-            }
-            for (Entry</*@Untainted*/String, ImmutableList<Index>> entry : indexes.entrySet()) {
-                syncIndexes(entry.getKey(), entry.getValue());
-            }
-            if (!success) {
-                throw new SQLException("Could not delete file: " + dbFile.getAbsolutePath());
+        synchronized (readersLock) {
+            List<CachedConnection> currReaders = takeAllReaders();
+            try {
+                synchronized (lock) {
+                    if (closing) {
+                        return;
+                    }
+                    closeAll(currReaders);
+                    writer.connection.close();
+                    boolean success = dbFile.delete();
+                    writer = new CachedConnection(createConnection());
+                    currReaders = createReaders();
+                    for (Entry</*@Untainted*/String, ImmutableList<Column>> entry : tables
+                            .entrySet()) {
+                        syncTable(entry.getKey(), entry.getValue());
+                    }
+                    for (Entry</*@Untainted*/String, ImmutableList<Index>> entry : indexes
+                            .entrySet()) {
+                        syncIndexes(entry.getKey(), entry.getValue());
+                    }
+                    if (!success) {
+                        throw new SQLException(
+                                "Could not delete file: " + dbFile.getAbsolutePath());
+                    }
+                }
+            } finally {
+                readers.addAll(currReaders);
             }
         }
     }
@@ -140,7 +183,7 @@ public class DataSource {
             if (closing) {
                 return;
             }
-            Statement statement = connection.createStatement();
+            Statement statement = writer.connection.createStatement();
             StatementCloser closer = new StatementCloser(statement);
             try {
                 statement.execute(sql);
@@ -152,6 +195,43 @@ public class DataSource {
         }
     }
 
+    // either all or none of the statements take effect
+    public void executeInTransaction(@Untainted String... sqls) throws SQLException {
+        synchronized (lock) {
+            if (closing) {
+                return;
+            }
+            Connection connection = writer.connection;
+            connection.setAutoCommit(false);
+            boolean committed = false;
+            try {
+                Statement statement = connection.createStatement();
+                StatementCloser closer = new StatementCloser(statement);
+                try {
+                    for (String sql : sqls) {
+                        debug(sql);
+                        statement.execute(sql);
+                    }
+                } catch (Throwable t) {
+                    throw closer.rethrow(t);
+                } finally {
+                    closer.close();
+                }
+                connection.commit();
+                committed = true;
+            } finally {
+                if (!committed) {
+                    connection.rollback();
+                }
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    public boolean isClosing() {
+        return closing;
+    }
+
     // warning: this method returns 0 when data source is closing
     public long queryForLong(final @Untainted String sql, Object... args) throws SQLException {
         Long value = queryForOptionalLong(sql, args);
@@ -161,11 +241,15 @@ public class DataSource {
     public @Nullable Long queryForOptionalLong(final @Untainted String sql, Object... args)
             throws SQLException {
         debug(sql, args);
-        synchronized (lock) {
+        if (closing) {
+            return null;
+        }
+        CachedConnection reader = takeReader();
+        try {
             if (closing) {
                 return null;
             }
-            return queryUnderLock(sql, args, new ResultSetExtractor</*@Nullable*/ Long>() {
+            return query(reader, sql, args, new ResultSetExtractor</*@Nullable*/ Long>() {
                 @Override
                 public @Nullable Long extractData(ResultSet resultSet) throws SQLException {
                     if (!resultSet.next()) {
@@ -179,21 +263,29 @@ public class DataSource {
                     return value;
                 }
             });
+        } finally {
+            readers.add(reader);
         }
     }
 
     public boolean queryForExists(final @Untainted String sql, Object... args) throws SQLException {
         debug(sql, args);
-        synchronized (lock) {
+        if (closing) {
+            return false;
+        }
+        CachedConnection reader = takeReader();
+        try {
             if (closing) {
                 return false;
             }
-            return queryUnderLock(sql, args, new ResultSetExtractor<Boolean>() {
+            return query(reader, sql, args, new ResultSetExtractor<Boolean>() {
                 @Override
                 public Boolean extractData(ResultSet resultSet) throws SQLException {
                     return resultSet.next();
                 }
             });
+        } finally {
+            readers.add(reader);
         }
     }
 
@@ -213,11 +305,15 @@ public class DataSource {
     }
 
     public <T> T query(JdbcQuery<T> jdbcQuery) throws Exception {
-        synchronized (lock) {
+        if (closing) {
+            return jdbcQuery.valueIfDataSourceClosing();
+        }
+        CachedConnection reader = takeReader();
+        try {
             if (closing) {
                 return jdbcQuery.valueIfDataSourceClosing();
             }
-            PreparedStatement preparedStatement = prepareStatement(jdbcQuery.getSql());
+            PreparedStatement preparedStatement = reader.prepareStatement(jdbcQuery.getSql());
             // setQueryTimeout() affects all statements of this connection (at least with h2)
             preparedStatement.setQueryTimeout(QUERY_TIMEOUT_SECONDS);
             jdbcQuery.bind(preparedStatement);
@@ -230,7 +326,10 @@ public class DataSource {
             } finally {
                 closer.close();
             }
-            // don't need to close statement since they are all cached and used under lock
+            // don't need to close statement since they are all cached and only used by the
+            // thread that has taken the reader connection
+        } finally {
+            readers.add(reader);
         }
     }
 
@@ -248,11 +347,15 @@ public class DataSource {
 
     public <T extends /*@NonNull*/ Object> List<T> query(JdbcRowQuery<T> jdbcQuery)
             throws SQLException {
-        synchronized (lock) {
+        if (closing) {
+            return ImmutableList.of();
+        }
+        CachedConnection reader = takeReader();
+        try {
             if (closing) {
                 return ImmutableList.of();
             }
-            PreparedStatement preparedStatement = prepareStatement(jdbcQuery.getSql());
+            PreparedStatement preparedStatement = reader.prepareStatement(jdbcQuery.getSql());
             // setQueryTimeout() affects all statements of this connection (at least with h2)
             preparedStatement.setQueryTimeout(QUERY_TIMEOUT_SECONDS);
             jdbcQuery.bind(preparedStatement);
@@ -269,7 +372,10 @@ public class DataSource {
             } finally {
                 closer.close();
             }
-            // don't need to close statement since they are all cached and used under lock
+            // don't need to close statement since they are all cached and only used by the
+            // thread that has taken the reader connection
+        } finally {
+            readers.add(reader);
         }
     }
 
@@ -301,7 +407,7 @@ public class DataSource {
             if (closing) {
                 return 0;
             }
-            PreparedStatement preparedStatement = prepareStatement(jdbcUpdate.getSql());
+            PreparedStatement preparedStatement = writer.prepareStatement(jdbcUpdate.getSql());
             jdbcUpdate.bind(preparedStatement);
             // setQueryTimeout() affects all statements of this connection (at least with h2)
             preparedStatement.setQueryTimeout(0);
@@ -322,7 +428,7 @@ public class DataSource {
             if (closing) {
                 return new int[0];
             }
-            PreparedStatement preparedStatement = prepareStatement(jdbcUpdate.getSql());
+            PreparedStatement preparedStatement = writer.prepareStatement(jdbcUpdate.getSql());
             jdbcUpdate.bind(preparedStatement);
             // setQueryTimeout() affects all statements of this connection (at least with h2)
             preparedStatement.setQueryTimeout(0);
@@ -331,22 +437,12 @@ public class DataSource {
         }
     }
 
-    public void deleteBefore(@Untainted String tableName, long captureTime) throws SQLException {
-        // delete 100 at a time, which is both faster than deleting all at once, and doesn't
-        // lock the single jdbc connection for one large chunk of time
-        int deleted;
-        do {
-            deleted = update("delete from " + tableName + " where capture_time < ? limit 100",
-                    captureTime);
-        } while (deleted > 0);
-    }
-
     public void syncTable(@Untainted String tableName, List<Column> columns) throws SQLException {
         synchronized (lock) {
             if (closing) {
                 return;
             }
-            Schemas.syncTable(tableName, columns, connection);
+            Schemas.syncTable(tableName, columns, writer.connection);
             tables.put(tableName, ImmutableList.copyOf(columns));
         }
     }
@@ -357,14 +453,35 @@ public class DataSource {
             if (closing) {
                 return;
             }
-            Schemas.syncIndexes(tableName, indexes, connection);
+            Schemas.syncIndexes(tableName, indexes, writer.connection);
             this.indexes.put(tableName, indexes);
         }
     }
 
     public boolean tableExists(String tableName) throws SQLException {
         synchronized (lock) {
-            return !closing && Schemas.tableExists(tableName, connection);
+            return !closing && Schemas.tableExists(tableName, writer.connection);
+        }
+    }
+
+    public List<String> getTableNames(String tableNamePrefix) throws SQLException {
+        synchronized (lock) {
+            if (closing) {
+                return ImmutableList.of();
+            }
+            return Schemas.getTableNames(tableNamePrefix, writer.connection);
+        }
+    }
+
+    public void dropTable(@Untainted String tableName) throws SQLException {
+        synchronized (lock) {
+            if (closing) {
+                return;
+            }
+            execute("drop table if exists " + tableName);
+            // so that deleteAll() does not re-create the table
+            tables.remove(tableName);
+            indexes.remove(tableName);
         }
     }
 
@@ -375,7 +492,7 @@ public class DataSource {
     // helpful for upgrading schema
     public void renameTable(@Untainted String oldTableName, @Untainted String newTableName)
             throws SQLException {
-        if (Schemas.tableExists(oldTableName, connection)) {
+        if (tableExists(oldTableName)) {
             execute("alter table " + oldTableName + " rename to " + newTableName);
         }
     }
@@ -383,7 +500,7 @@ public class DataSource {
     // helpful for upgrading schema
     public void renameColumn(@Untainted String tableName, @Untainted String oldColumnName,
             @Untainted String newColumnName) throws SQLException {
-        if (Schemas.columnExists(tableName, oldColumnName, connection)) {
+        if (columnExists(tableName, oldColumnName)) {
             execute("alter table " + tableName + " alter column " + oldColumnName + " rename to "
                     + newColumnName);
         }
@@ -396,15 +513,20 @@ public class DataSource {
                 return;
             }
             closing = true;
-            connection.close();
         }
+        closeAllConnections();
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
-    // lock must be acquired prior to calling this method
-    private <T extends /*@Nullable*/ Object> T queryUnderLock(@Untainted String sql, Object[] args,
-            ResultSetExtractor<T> rse) throws SQLException {
-        PreparedStatement preparedStatement = prepareStatement(sql);
+    private boolean columnExists(String tableName, String columnName) throws SQLException {
+        synchronized (lock) {
+            return !closing && Schemas.columnExists(tableName, columnName, writer.connection);
+        }
+    }
+
+    private static <T extends /*@Nullable*/ Object> T query(CachedConnection reader,
+            @Untainted String sql, Object[] args, ResultSetExtractor<T> rse) throws SQLException {
+        PreparedStatement preparedStatement = reader.prepareStatement(sql);
         for (int i = 0; i < args.length; i++) {
             preparedStatement.setObject(i + 1, args[i]);
         }
@@ -419,45 +541,117 @@ public class DataSource {
         } finally {
             closer.close();
         }
-        // don't need to close statement since they are all cached and used under lock
+        // don't need to close statement since they are all cached and only used by the thread
+        // that has taken the reader connection
     }
 
-    private PreparedStatement prepareStatement(@Untainted String sql) throws SQLException {
+    // fails instead of waiting indefinitely if all of the reader connections are tied up (e.g. by
+    // long running UI queries)
+    private CachedConnection takeReader() throws SQLException {
+        CachedConnection reader;
         try {
-            return preparedStatementCache.get(sql);
-        } catch (ExecutionException e) {
-            Throwable cause = e.getCause();
-            Throwables.propagateIfPossible(cause, SQLException.class);
-            // it should not really be possible to get here since the only checked exception that
-            // preparedStatementCache's CacheLoader throws is SQLException
-            logger.error(e.getMessage(), e);
+            reader = readers.poll(QUERY_TIMEOUT_SECONDS, SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(e);
+        }
+        if (reader == null) {
+            throw new SQLException("Timed out waiting " + QUERY_TIMEOUT_SECONDS
+                    + " seconds for a reader connection");
+        }
+        return reader;
+    }
+
+    // readersLock must be acquired prior to calling this method
+    private List<CachedConnection> takeAllReaders() throws SQLException {
+        // not using guava Lists.newArrayList() since this is called from the jvm shutdown hook
+        // (see PreInitializeStorageShutdownClasses)
+        List<CachedConnection> currReaders = new ArrayList<CachedConnection>();
+        try {
+            while (currReaders.size() < READER_CONNECTIONS) {
+                CachedConnection reader = readers.poll(QUERY_TIMEOUT_SECONDS, SECONDS);
+                if (reader == null) {
+                    readers.addAll(currReaders);
+                    throw new SQLException("Timed out waiting " + QUERY_TIMEOUT_SECONDS
+                            + " seconds for all reader connections");
+                }
+                currReaders.add(reader);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            readers.addAll(currReaders);
             throw new SQLException(e);
         }
+        return currReaders;
     }
 
-    private static Connection createConnection(@Nullable File dbFile) throws SQLException {
+    private void closeAllConnections() throws SQLException {
+        synchronized (readersLock) {
+            List<CachedConnection> currReaders = takeAllReaders();
+            try {
+                synchronized (lock) {
+                    closeAll(currReaders);
+                    writer.connection.close();
+                }
+            } finally {
+                // the closed reader connections are put back so that any threads that are already
+                // waiting on a reader connection do not wait forever (they check the closing flag
+                // once they obtain the reader connection)
+                readers.addAll(currReaders);
+            }
+        }
+    }
+
+    private List<CachedConnection> createReaders() throws SQLException {
+        List<CachedConnection> newReaders = Lists.newArrayList();
+        for (int i = 0; i < READER_CONNECTIONS; i++) {
+            newReaders.add(new CachedConnection(createConnection()));
+        }
+        return newReaders;
+    }
+
+    private Connection createConnection() throws SQLException {
         try {
             Class.forName("org.h2.Driver");
         } catch (ClassNotFoundException e) {
             throw new SQLException(e);
         }
+        // multi_threaded=true so that statements on the reader connections are executed
+        // concurrently with statements on the writer connection (h2 otherwise executes only one
+        // statement at a time across all connections, so a long running UI query would block
+        // inserts for as long as it is executing)
+        //
+        // mvcc=true is not used since it cannot be combined with multi_threaded=true in h2 1.3, so
+        // queries still take (short lived) shared table locks, which only block inserts into the
+        // same table, and long running UI queries (e.g. 30 day summaries) read from the coarser
+        // rollup levels, not from the rollup level 0 tables that are inserted into on each store
+        // (the coarser rollup levels are only inserted into once per rollup interval)
+        //
+        // lock_timeout is raised from the 1 second default since the writer connection waits for
+        // the shared table locks held by queries on the reader connections
+        //
+        // db_close_on_exit=false since jvm shutdown hook is handled by DataSource
+        String settings = ";compress=true;multi_threaded=true;lock_timeout="
+                + QUERY_TIMEOUT_SECONDS * 1000 + ";db_close_on_exit=false";
         if (dbFile == null) {
-            // db_close_on_exit=false since jvm shutdown hook is handled by DataSource
-            return new JdbcConnection("jdbc:h2:mem:;compress=true;db_close_on_exit=false",
-                    new Properties());
+            return new JdbcConnection("jdbc:h2:mem:" + memDbName + settings, new Properties());
         } else {
             String dbPath = dbFile.getPath();
             dbPath = dbPath.replaceFirst(".h2.db$", "");
             Properties props = new Properties();
             props.setProperty("user", "sa");
             props.setProperty("password", "");
-            // db_close_on_exit=false since jvm shutdown hook is handled by DataSource
-            String url = "jdbc:h2:" + dbPath + ";compress=true;db_close_on_exit=false;cache_size="
-                    + CACHE_SIZE;
+            String url = "jdbc:h2:" + dbPath + settings + ";cache_size=" + CACHE_SIZE;
             return new JdbcConnection(url, props);
         }
     }
 
+    private static void closeAll(List<CachedConnection> connections) throws SQLException {
+        for (CachedConnection connection : connections) {
+            connection.connection.close();
+        }
+    }
+
     private static void debug(String sql, @Nullable Object... args) {
         debug(logger, sql, args);
     }
@@ -509,6 +703,40 @@ public class DataSource {
         T extractData(ResultSet resultSet) throws Exception;
     }
 
+    // each connection has its own prepared statement cache since prepared statements cannot be
+    // shared across connections
+    private static class CachedConnection {
+
+        private final Connection connection;
+
+        private final LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache;
+
+        private CachedConnection(final Connection connection) {
+            this.connection = connection;
+            preparedStatementCache = CacheBuilder.newBuilder()
+                    .weakValues()
+                    .build(new CacheLoader</*@Untainted*/String, PreparedStatement>() {
+                        @Override
+                        public PreparedStatement load(@Untainted String sql) throws SQLException {
+                            return connection.prepareStatement(sql);
+                        }
+                    });
+        }
+
+        private PreparedStatement prepareStatement(@Untainted String sql) throws SQLException {
+            try {
+                return preparedStatementCache.get(sql);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                Throwables.propagateIfPossible(cause, SQLException.class);
+                // it should not really be possible to get here since the only checked exception
+                // that preparedStatementCache's CacheLoader throws is SQLException
+                logger.error(e.getMessage(), e);
+                throw new SQLException(e);
+            }
+        }
+    }
+
     // this replaces H2's default shutdown hook (see jdbc connection db_close_on_exit=false above)
     // in order to prevent exceptions from occurring (and getting logged) during shutdown in the
     // case that there are still traces being written
@@ -520,9 +748,7 @@ public class DataSource {
                 // waiting on the lock (once the flag is set, any threads in the backlog that
                 // haven't acquired the lock will abort quickly once they do obtain the lock)
                 closing = true;
-                synchronized (lock) {
-                    connection.close();
-                }
+                closeAllConnections();
             } catch (SQLException e) {
                 logger.warn(e.getMessage(), e);
             }
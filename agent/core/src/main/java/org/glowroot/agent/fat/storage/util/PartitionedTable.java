@@ -0,0 +1,336 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.fat.storage.util;
+
+import java.math.RoundingMode;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.math.LongMath;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.checkerframework.checker.tainting.qual.Untainted;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.fat.storage.util.Schemas.Column;
+import org.glowroot.agent.fat.storage.util.Schemas.Index;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.glowroot.agent.util.Checkers.castUntainted;
+
+// table whose rows are split by capture_time into separate partition tables, so that expired rows
+// can be removed by dropping whole partitions instead of deleting them row by row
+//
+// partition n holds capture times in ((n - 1) * partitionMillis, n * partitionMillis], which
+// matches the non-inclusive lower bound and inclusive upper bound of rollup intervals, so each
+// rollup interval falls within a single partition as long as partitionMillis is a multiple of
+// the rollup interval
+//
+// the unpartitioned table itself is kept as the schema for queries whose capture time range does
+// not overlap any partition, it is empty except while rows stored prior to partitioning are being
+// moved into partitions (in the background, and those rows are not visible to queries until moved)
+//
+// partitions are dropped some time after they are removed from the partitions map, so that queries
+// which were built using a partition name just prior to its removal do not fail
+public class PartitionedTable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PartitionedTable.class);
+
+    public static final long DEFAULT_PARTITION_MILLIS =
+            Long.getLong("glowroot.internal.h2.partitionMillis", DAYS.toMillis(1));
+
+    // this needs to be comfortably longer than the query timeout plus the time spent waiting for a
+    // reader connection
+    @VisibleForTesting
+    static final long DROP_DELAY_NANOS = MILLISECONDS.toNanos(Long.getLong(
+            "glowroot.internal.h2.partitionDropDelayMillis", MINUTES.toMillis(5)));
+
+    private static final int MIGRATION_BATCH_SIZE = 10000;
+
+    private static final Executor migrationExecutor = new Executor() {
+        private final ThreadFactory threadFactory = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Glowroot-H2-Migration-%d")
+                .build();
+        @Override
+        public void execute(Runnable command) {
+            threadFactory.newThread(command).start();
+        }
+    };
+
+    private final DataSource dataSource;
+    private final @Untainted String tableName;
+    private final ImmutableList<Column> columns;
+    private final ImmutableList<Index> indexes;
+    private final long partitionMillis;
+    private final Ticker ticker;
+
+    private final @Untainted String columnList;
+    private final Pattern partitionNamePattern;
+
+    // key is partition number
+    private final ConcurrentNavigableMap<Long, /*@Untainted*/ String> partitions =
+            new ConcurrentSkipListMap<Long, /*@Untainted*/ String>();
+
+    // partitions that have been removed from the partitions map but not dropped yet, value is the
+    // ticker time when the partition was removed (guarded by createLock)
+    private final Map</*@Untainted*/ String, Long> pendingDrops = Maps.newLinkedHashMap();
+
+    private final Object createLock = new Object();
+
+    // all index names must start with tableName + "_"
+    public PartitionedTable(DataSource dataSource, @Untainted String tableName,
+            List<Column> columns, List<Index> indexes, long partitionMillis) throws Exception {
+        this(dataSource, tableName, columns, indexes, partitionMillis, Ticker.systemTicker(),
+                migrationExecutor);
+    }
+
+    @VisibleForTesting
+    PartitionedTable(DataSource dataSource, @Untainted String tableName, List<Column> columns,
+            List<Index> indexes, long partitionMillis, Ticker ticker, Executor migrationExecutor)
+            throws Exception {
+        checkArgument(partitionMillis > 0, "partitionMillis must be positive");
+        for (Index index : indexes) {
+            checkArgument(index.name().startsWith(tableName + "_"),
+                    "Index name must start with table name: %s", index.name());
+        }
+        this.dataSource = dataSource;
+        this.tableName = tableName;
+        this.columns = ImmutableList.copyOf(columns);
+        this.indexes = ImmutableList.copyOf(indexes);
+        this.partitionMillis = partitionMillis;
+        this.ticker = ticker;
+        List<String> columnNames = Lists.newArrayList();
+        for (Column column : columns) {
+            columnNames.add(column.name());
+        }
+        columnList = castUntainted(Joiner.on(", ").join(columnNames));
+        partitionNamePattern = Pattern.compile(Pattern.quote(tableName) + "_p([0-9]+)");
+
+        dataSource.syncTable(tableName, columns);
+        // the capture_time index is only needed to migrate rows stored prior to partitioning
+        dataSource.syncIndexes(tableName, ImmutableList.<Index>of(ImmutableIndex
+                .of(tableName + "_capture_time_idx", ImmutableList.of("capture_time"))));
+        for (String existingTableName : dataSource.getTableNames(tableName + "_p")) {
+            Matcher matcher = partitionNamePattern.matcher(existingTableName);
+            if (matcher.matches()) {
+                long partition = Long.parseLong(matcher.group(1));
+                syncPartition(partition, castUntainted(existingTableName));
+            }
+        }
+        if (dataSource.queryForExists("select 1 from " + tableName + " limit 1")) {
+            migrationExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        migrateUnpartitionedRows();
+                    } catch (Throwable t) {
+                        logger.error(t.getMessage(), t);
+                    }
+                }
+            });
+        }
+    }
+
+    // returns the smallest multiple of intervalMillis that is at least the default partition size
+    public static long getPartitionMillis(long intervalMillis) {
+        return LongMath.divide(DEFAULT_PARTITION_MILLIS, intervalMillis, RoundingMode.CEILING)
+                * intervalMillis;
+    }
+
+    public long getPartitionMillis() {
+        return partitionMillis;
+    }
+
+    // creates the partition if it does not exist already
+    public @Untainted String getPartitionName(long captureTime) throws SQLException {
+        long partition = getPartition(captureTime);
+        String partitionName = partitions.get(partition);
+        if (partitionName != null) {
+            return partitionName;
+        }
+        synchronized (createLock) {
+            partitionName = partitions.get(partition);
+            if (partitionName != null) {
+                return partitionName;
+            }
+            return syncPartition(partition, toPartitionName(partition));
+        }
+    }
+
+    public boolean partitionExists(long captureTime) {
+        return partitions.containsKey(getPartition(captureTime));
+    }
+
+    // unlike getPartitionName(), this does not create the partition
+    public @Nullable @Untainted String getExistingPartitionName(long captureTime) {
+        return partitions.get(getPartition(captureTime));
+    }
+
+    public List</*@Untainted*/ String> getPartitionNames() {
+        return ImmutableList.copyOf(partitions.values());
+    }
+
+    // this is the order to search partitions for a row whose capture time is not known, since
+    // recent rows are the ones most likely to be looked up
+    public List</*@Untainted*/ String> getPartitionNamesNewestFirst() {
+        return ImmutableList.copyOf(partitions.descendingMap().values());
+    }
+
+    // returns the partition holding the latest capture times, or the (empty) unpartitioned table
+    // if there are no partitions
+    public @Untainted String getLatestPartitionName() {
+        Entry<Long, /*@Untainted*/ String> entry = partitions.lastEntry();
+        return entry == null ? tableName : entry.getValue();
+    }
+
+    // returns a table expression (aliased to the unpartitioned table name) covering at least the
+    // capture times in [from, to], callers still need to filter on capture_time
+    public @Untainted String from(long from, long to) {
+        long fromPartition = getPartition(from);
+        long toPartition = getPartition(to);
+        if (fromPartition > toPartition) {
+            return tableName;
+        }
+        return from(partitions.subMap(fromPartition, true, toPartition, true));
+    }
+
+    // removes partitions whose capture times are all less than the given capture time, so that new
+    // queries stop referencing them, and drops partitions that were removed at least
+    // DROP_DELAY_NANOS ago (this is called periodically by the reaper)
+    public void dropBefore(long captureTime) throws SQLException {
+        long currentTick = ticker.read();
+        synchronized (createLock) {
+            NavigableMap<Long, /*@Untainted*/ String> expired =
+                    partitions.headMap(getPartition(captureTime), false);
+            for (String partitionName : ImmutableList.copyOf(expired.values())) {
+                pendingDrops.put(partitionName, currentTick);
+            }
+            expired.clear();
+            Iterator<Entry</*@Untainted*/ String, Long>> i = pendingDrops.entrySet().iterator();
+            while (i.hasNext()) {
+                Entry</*@Untainted*/ String, Long> entry = i.next();
+                if (partitions.containsValue(entry.getKey())) {
+                    // partition was re-created by a (late) write after it was removed
+                    i.remove();
+                } else if (currentTick - entry.getValue() >= DROP_DELAY_NANOS) {
+                    dataSource.dropTable(entry.getKey());
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    private @Untainted String from(NavigableMap<Long, /*@Untainted*/ String> selected) {
+        if (selected.isEmpty()) {
+            return tableName;
+        }
+        if (selected.size() == 1) {
+            return selected.firstEntry().getValue() + " " + tableName;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("(");
+        boolean first = true;
+        for (String partitionName : selected.values()) {
+            if (!first) {
+                sb.append(" union all ");
+            }
+            // column list is explicit since partitions created by different versions can have
+            // their columns in different order
+            sb.append("select ");
+            sb.append(columnList);
+            sb.append(" from ");
+            sb.append(partitionName);
+            first = false;
+        }
+        sb.append(") ");
+        sb.append(tableName);
+        return castUntainted(sb.toString());
+    }
+
+    private @Untainted String syncPartition(long partition, @Untainted String partitionName)
+            throws SQLException {
+        dataSource.syncTable(partitionName, columns);
+        List<Index> partitionIndexes = Lists.newArrayList();
+        for (Index index : indexes) {
+            partitionIndexes.add(ImmutableIndex.of(
+                    partitionName + index.name().substring(tableName.length()),
+                    index.columns()));
+        }
+        dataSource.syncIndexes(partitionName, ImmutableList.copyOf(partitionIndexes));
+        partitions.put(partition, partitionName);
+        return partitionName;
+    }
+
+    // rows are moved in batches, each batch in its own transaction and within a single partition,
+    // so that the writer connection is not held for long, and so that an interrupted migration
+    // does not leave duplicate rows behind
+    private void migrateUnpartitionedRows() throws Exception {
+        logger.info("moving rows in table {} into partitions in the background, this is a one-time"
+                + " operation", tableName);
+        while (!dataSource.isClosing()) {
+            Long minCaptureTime =
+                    dataSource.queryForOptionalLong("select min(capture_time) from " + tableName);
+            if (minCaptureTime == null) {
+                logger.info("finished moving rows in table {} into partitions", tableName);
+                return;
+            }
+            long maxCaptureTime = getPartition(minCaptureTime) * partitionMillis;
+            Long batchCaptureTime = dataSource.queryForOptionalLong("select capture_time from "
+                    + tableName + " order by capture_time limit 1 offset "
+                    + (MIGRATION_BATCH_SIZE - 1));
+            if (batchCaptureTime != null) {
+                maxCaptureTime = Math.min(maxCaptureTime, batchCaptureTime);
+            }
+            String partitionName = getPartitionName(minCaptureTime);
+            dataSource.executeInTransaction(
+                    castUntainted("insert into " + partitionName + " (" + columnList + ") select "
+                            + columnList + " from " + tableName + " where capture_time <= "
+                            + maxCaptureTime),
+                    castUntainted("delete from " + tableName + " where capture_time <= "
+                            + maxCaptureTime));
+        }
+    }
+
+    private long getPartition(long captureTime) {
+        return LongMath.divide(captureTime, partitionMillis, RoundingMode.CEILING);
+    }
+
+    private @Untainted String toPartitionName(long partition) {
+        return castUntainted(tableName + "_p" + partition);
+    }
+}
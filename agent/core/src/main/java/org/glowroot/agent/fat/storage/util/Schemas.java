@@ -125,6 +125,31 @@ public class Schemas {
         }
     }
 
+    // returns lower case table names
+    static List<String> getTableNames(String tableNamePrefix, Connection connection)
+            throws SQLException {
+        logger.debug("getTableNames(): tableNamePrefix={}", tableNamePrefix);
+        String prefix = tableNamePrefix.toLowerCase(Locale.ENGLISH);
+        List<String> tableNames = Lists.newArrayList();
+        // "_" is a wildcard in the metadata table name pattern, so the prefix is checked below
+        ResultSet resultSet = getMetaDataTables(connection, tableNamePrefix + "%");
+        ResultSetCloser closer = new ResultSetCloser(resultSet);
+        try {
+            while (resultSet.next()) {
+                String tableName = checkNotNull(resultSet.getString("TABLE_NAME"))
+                        .toLowerCase(Locale.ENGLISH);
+                if (tableName.startsWith(prefix)) {
+                    tableNames.add(tableName);
+                }
+            }
+        } catch (Throwable t) {
+            throw closer.rethrow(t);
+        } finally {
+            closer.close();
+        }
+        return tableNames;
+    }
+
     private static void createTable(@Untainted String tableName, List<Column> columns,
             Connection connection) throws SQLException {
         StringBuilder sql = new StringBuilder();
@@ -38,7 +38,7 @@ import org.glowroot.common.live.ImmutableThroughputAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
-import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.model.ConcurrentLazyHistogram;
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
 import org.glowroot.common.model.MutableProfile;
 import org.glowroot.common.model.OverallErrorSummaryCollector;
@@ -70,7 +70,10 @@ class AggregateCollector {
     private final ThreadStatsCollectorImpl auxThreadStats = new ThreadStatsCollectorImpl();
     // histogram values are in nanoseconds, but with microsecond precision to reduce the number of
     // buckets (and memory) required
-    private final LazyHistogram durationNanosHistogram = new LazyHistogram();
+    //
+    // the histogram is owned by the interval collector since it is recorded directly by the
+    // transaction threads (and is shared across shards)
+    private final ConcurrentLazyHistogram durationNanosHistogram;
     // lazy instantiated to reduce memory footprint
     private @MonotonicNonNull QueryCollector queries;
     private @MonotonicNonNull ServiceCallCollector serviceCalls;
@@ -80,9 +83,11 @@ class AggregateCollector {
     private final int maxAggregateQueriesPerType;
     private final int maxAggregateServiceCallsPerType;
 
-    AggregateCollector(@Nullable String transactionName, int maxAggregateQueriesPerType,
+    AggregateCollector(@Nullable String transactionName,
+            ConcurrentLazyHistogram durationNanosHistogram, int maxAggregateQueriesPerType,
             int maxAggregateServiceCallsPerType) {
         this.transactionName = transactionName;
+        this.durationNanosHistogram = durationNanosHistogram;
         this.maxAggregateQueriesPerType = maxAggregateQueriesPerType;
         this.maxAggregateServiceCallsPerType = maxAggregateServiceCallsPerType;
     }
@@ -99,7 +104,6 @@ class AggregateCollector {
         }
         mainThreadStats.mergeThreadStats(transaction.getMainThreadStats());
         transaction.mergeAuxThreadStatsInto(auxThreadStats);
-        durationNanosHistogram.add(totalDurationNanos);
     }
 
     RootTimerCollector getMainThreadRootTimers() {
@@ -182,6 +186,47 @@ class AggregateCollector {
         return builder.build();
     }
 
+    // used to combine the per-shard aggregate collectors when aggregating with multiple processing
+    // threads (the duration histogram is not merged since it is already shared across shards)
+    void mergeInto(AggregateCollector collector) {
+        collector.totalDurationNanos += totalDurationNanos;
+        collector.transactionCount += transactionCount;
+        collector.errorCount += errorCount;
+        if (asyncTransactions) {
+            collector.asyncTransactions = true;
+        }
+        collector.mainThreadRootTimers.mergeRootTimers(mainThreadRootTimers);
+        collector.auxThreadRootTimers.mergeRootTimers(auxThreadRootTimers);
+        collector.asyncTimers.mergeRootTimers(asyncTimers);
+        collector.mainThreadStats.mergeThreadStats(mainThreadStats);
+        collector.auxThreadStats.mergeThreadStats(auxThreadStats);
+        if (queries != null) {
+            queries.mergeQueriesInto(collector.getQueryCollector());
+        }
+        if (serviceCalls != null) {
+            ServiceCallCollector serviceCallCollector = collector.getServiceCallCollector();
+            for (Aggregate.ServiceCallsByType serviceCallsByType : serviceCalls.toProto()) {
+                for (Aggregate.ServiceCall serviceCall : serviceCallsByType.getServiceCallList()) {
+                    serviceCallCollector.mergeServiceCall(serviceCallsByType.getType(),
+                            serviceCall.getText(), serviceCall.getTotalDurationNanos(),
+                            serviceCall.getExecutionCount());
+                }
+            }
+        }
+        if (mainThreadProfile != null) {
+            if (collector.mainThreadProfile == null) {
+                collector.mainThreadProfile = new MutableProfile();
+            }
+            collector.mainThreadProfile.merge(mainThreadProfile);
+        }
+        if (auxThreadProfile != null) {
+            if (collector.auxThreadProfile == null) {
+                collector.auxThreadProfile = new MutableProfile();
+            }
+            collector.auxThreadProfile.merge(auxThreadProfile);
+        }
+    }
+
     void mergeOverallSummaryInto(OverallSummaryCollector collector) {
         collector.mergeSummary(totalDurationNanos, transactionCount, 0);
     }
@@ -274,6 +319,25 @@ class AggregateCollector {
             mergeRootTimer(rootTimer, rootMutableTimers);
         }
 
+        private void mergeRootTimers(RootTimerCollectorImpl toBeMergedRootTimers) {
+            for (MutableAggregateTimer toBeMergedRootTimer : toBeMergedRootTimers.rootMutableTimers) {
+                mergeRootTimer(toBeMergedRootTimer);
+            }
+        }
+
+        private void mergeRootTimer(MutableAggregateTimer toBeMergedRootTimer) {
+            for (MutableAggregateTimer rootTimer : rootMutableTimers) {
+                if (toBeMergedRootTimer.getName().equals(rootTimer.getName())) {
+                    rootTimer.merge(toBeMergedRootTimer);
+                    return;
+                }
+            }
+            MutableAggregateTimer rootTimer = MutableAggregateTimer.createRootTimer(
+                    toBeMergedRootTimer.getName(), toBeMergedRootTimer.isExtended());
+            rootTimer.merge(toBeMergedRootTimer);
+            rootMutableTimers.add(rootTimer);
+        }
+
         private List<Aggregate.Timer> toProto() {
             List<Aggregate.Timer> rootTimers = Lists.newArrayList();
             for (MutableAggregateTimer rootMutableTimer : rootMutableTimers) {
@@ -318,6 +382,19 @@ class AggregateCollector {
             empty = false;
         }
 
+        private void mergeThreadStats(ThreadStatsCollectorImpl threadStats) {
+            if (threadStats.empty) {
+                return;
+            }
+            totalCpuNanos = NotAvailableAware.add(totalCpuNanos, threadStats.totalCpuNanos);
+            totalBlockedNanos =
+                    NotAvailableAware.add(totalBlockedNanos, threadStats.totalBlockedNanos);
+            totalWaitedNanos = NotAvailableAware.add(totalWaitedNanos, threadStats.totalWaitedNanos);
+            totalAllocatedBytes =
+                    NotAvailableAware.add(totalAllocatedBytes, threadStats.totalAllocatedBytes);
+            empty = false;
+        }
+
         private boolean isNA() {
             if (empty) {
                 return true;
@@ -19,11 +19,13 @@ import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import org.slf4j.Logger;
@@ -33,6 +35,7 @@ import org.glowroot.agent.model.Profile;
 import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
+import org.glowroot.common.model.ConcurrentLazyHistogram;
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
 import org.glowroot.common.model.OverallErrorSummaryCollector;
 import org.glowroot.common.model.OverallSummaryCollector;
@@ -54,26 +57,41 @@ public class AggregateIntervalCollector {
 
     private static final AtomicBoolean maxAggregateTransactionsWarnLogged = new AtomicBoolean();
 
+    // max number of sealed generations per shard before they are compacted
+    private static final int MAX_SEALED_GENERATIONS = 4;
+
     private final long captureTime;
     private final int maxAggregateTransactionsPerTransactionType;
     private final int maxAggregateQueriesPerType;
     private final int maxAggregateServiceCallsPerType;
     private final Clock clock;
 
-    @GuardedBy("lock")
-    private final Map<String, IntervalTypeCollector> typeCollectors = Maps.newHashMap();
+    // each aggregate processing thread adds to its own shard, so that processing threads never
+    // contend with each other, shards are combined when flushing and when reading from the UI
+    //
+    // readers swap out (seal) the generation that the processing thread is adding to, and then
+    // merge from the sealed generations without holding the shard lock, so that reading from the
+    // UI does not block the processing threads
+    private final IntervalShard[] shards;
 
-    private final Object lock = new Object();
+    // duration histograms are recorded directly by the transaction threads at transaction end (see
+    // Aggregator), and are shared across shards
+    private final ConcurrentMap<String, IntervalTypeHistograms> typeHistograms =
+            Maps.newConcurrentMap();
 
     AggregateIntervalCollector(long currentTime, long aggregateIntervalMillis,
             int maxAggregateTransactionsPerTransactionType, int maxAggregateQueriesPerType,
-            int maxAggregateServiceCallsPerType, Clock clock) {
+            int maxAggregateServiceCallsPerType, int shardCount, Clock clock) {
         captureTime = Utils.getRollupCaptureTime(currentTime, aggregateIntervalMillis);
         this.maxAggregateTransactionsPerTransactionType =
                 maxAggregateTransactionsPerTransactionType;
         this.maxAggregateQueriesPerType = maxAggregateQueriesPerType;
         this.maxAggregateServiceCallsPerType = maxAggregateServiceCallsPerType;
         this.clock = clock;
+        shards = new IntervalShard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new IntervalShard();
+        }
     }
 
     public long getCaptureTime() {
@@ -81,201 +99,321 @@ public class AggregateIntervalCollector {
     }
 
     public void add(Transaction transaction) {
-        synchronized (lock) {
+        add(transaction, 0);
+    }
+
+    void add(Transaction transaction, int shardIndex) {
+        IntervalShard shard = shards[shardIndex];
+        synchronized (shard.lock) {
             IntervalTypeCollector typeCollector =
-                    getTypeCollector(transaction.getTransactionType());
+                    shard.active.getTypeCollector(transaction.getTransactionType());
             typeCollector.add(transaction);
         }
     }
 
-    public void mergeOverallSummaryInto(OverallSummaryCollector collector, String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
+    void recordDuration(Transaction transaction) {
+        IntervalTypeHistograms histograms = getTypeHistograms(transaction.getTransactionType());
+        long durationNanos = transaction.getDurationNanos();
+        histograms.overallHistogram.add(durationNanos);
+        String transactionName = transaction.getTransactionName();
+        ConcurrentLazyHistogram transactionHistogram =
+                histograms.transactionHistograms.get(transactionName);
+        if (transactionHistogram == null) {
+            if (histograms.transactionHistograms
+                    .size() >= maxAggregateTransactionsPerTransactionType) {
+                // warning is logged when adding the transaction to the aggregate
                 return;
             }
-            typeCollector.overallAggregateCollector.mergeOverallSummaryInto(collector);
+            transactionHistogram = histograms.getTransactionHistogram(transactionName);
+        }
+        transactionHistogram.add(durationNanos);
+    }
+
+    public void mergeOverallSummaryInto(OverallSummaryCollector collector, String transactionType) {
+        for (Generation generation : getSealedGenerations()) {
+            synchronized (generation) {
+                IntervalTypeCollector typeCollector =
+                        generation.typeCollectors.get(transactionType);
+                if (typeCollector == null) {
+                    continue;
+                }
+                typeCollector.overallAggregateCollector.mergeOverallSummaryInto(collector);
+            }
         }
     }
 
     public void mergeTransactionSummariesInto(TransactionSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
-            for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
-                    .values()) {
-                aggregateCollector.mergeTransactionSummariesInto(collector);
+        for (Generation generation : getSealedGenerations()) {
+            synchronized (generation) {
+                IntervalTypeCollector typeCollector =
+                        generation.typeCollectors.get(transactionType);
+                if (typeCollector == null) {
+                    continue;
+                }
+                for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
+                        .values()) {
+                    aggregateCollector.mergeTransactionSummariesInto(collector);
+                }
             }
         }
     }
 
     public void mergeOverallErrorSummaryInto(OverallErrorSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
+        for (Generation generation : getSealedGenerations()) {
+            synchronized (generation) {
+                IntervalTypeCollector typeCollector =
+                        generation.typeCollectors.get(transactionType);
+                if (typeCollector == null) {
+                    continue;
+                }
+                typeCollector.overallAggregateCollector.mergeOverallErrorSummaryInto(collector);
             }
-            typeCollector.overallAggregateCollector.mergeOverallErrorSummaryInto(collector);
         }
     }
 
     public void mergeTransactionErrorSummariesInto(TransactionErrorSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
-            for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
-                    .values()) {
-                aggregateCollector.mergeTransactionErrorSummariesInto(collector);
+        for (Generation generation : getSealedGenerations()) {
+            synchronized (generation) {
+                IntervalTypeCollector typeCollector =
+                        generation.typeCollectors.get(transactionType);
+                if (typeCollector == null) {
+                    continue;
+                }
+                for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
+                        .values()) {
+                    aggregateCollector.mergeTransactionErrorSummariesInto(collector);
+                }
             }
         }
     }
 
     public @Nullable OverviewAggregate getOverviewAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return null;
+        long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        List<Generation> generations = getSealedGenerations();
+        if (generations.size() == 1) {
+            Generation generation = generations.get(0);
+            synchronized (generation) {
+                AggregateCollector aggregateCollector =
+                        generation.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector == null) {
+                    return null;
+                }
+                return aggregateCollector.getOverviewAggregate(liveCaptureTime);
             }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
-            return aggregateCollector.getOverviewAggregate(liveCaptureTime);
         }
+        AggregateCollector aggregateCollector =
+                getMergedAggregateCollector(generations, transactionType, transactionName);
+        if (aggregateCollector == null) {
+            return null;
+        }
+        return aggregateCollector.getOverviewAggregate(liveCaptureTime);
     }
 
     public @Nullable PercentileAggregate getPercentileAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return null;
+        long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        List<Generation> generations = getSealedGenerations();
+        if (generations.size() == 1) {
+            Generation generation = generations.get(0);
+            synchronized (generation) {
+                AggregateCollector aggregateCollector =
+                        generation.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector == null) {
+                    return null;
+                }
+                return aggregateCollector.getPercentileAggregate(liveCaptureTime);
             }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
-            return aggregateCollector.getPercentileAggregate(liveCaptureTime);
         }
+        AggregateCollector aggregateCollector =
+                getMergedAggregateCollector(generations, transactionType, transactionName);
+        if (aggregateCollector == null) {
+            return null;
+        }
+        return aggregateCollector.getPercentileAggregate(liveCaptureTime);
     }
 
     public @Nullable ThroughputAggregate getThroughputAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return null;
+        long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        List<Generation> generations = getSealedGenerations();
+        if (generations.size() == 1) {
+            Generation generation = generations.get(0);
+            synchronized (generation) {
+                AggregateCollector aggregateCollector =
+                        generation.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector == null) {
+                    return null;
+                }
+                return aggregateCollector.getThroughputAggregate(liveCaptureTime);
             }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
-            return aggregateCollector.getThroughputAggregate(liveCaptureTime);
         }
+        AggregateCollector aggregateCollector =
+                getMergedAggregateCollector(generations, transactionType, transactionName);
+        if (aggregateCollector == null) {
+            return null;
+        }
+        return aggregateCollector.getThroughputAggregate(liveCaptureTime);
     }
 
     public @Nullable String getFullQueryText(String fullQueryTextSha1) {
-        synchronized (lock) {
-            for (IntervalTypeCollector typeCollector : typeCollectors.values()) {
-                String fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
-                if (fullQueryText != null) {
-                    return fullQueryText;
+        for (Generation generation : getSealedGenerations()) {
+            synchronized (generation) {
+                for (IntervalTypeCollector typeCollector : generation.typeCollectors.values()) {
+                    String fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
+                    if (fullQueryText != null) {
+                        return fullQueryText;
+                    }
                 }
             }
-            return null;
         }
+        return null;
     }
 
     public void mergeQueriesInto(QueryCollector collector, String transactionType,
             @Nullable String transactionName) throws IOException {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
+        for (Generation generation : getSealedGenerations()) {
+            synchronized (generation) {
+                AggregateCollector aggregateCollector =
+                        generation.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector == null) {
+                    continue;
+                }
+                aggregateCollector.mergeQueriesInto(collector);
             }
-            aggregateCollector.mergeQueriesInto(collector);
         }
     }
 
     public void mergeServiceCallsInto(ServiceCallCollector collector, String transactionType,
             @Nullable String transactionName) throws IOException {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
+        for (Generation generation : getSealedGenerations()) {
+            synchronized (generation) {
+                AggregateCollector aggregateCollector =
+                        generation.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector == null) {
+                    continue;
+                }
+                aggregateCollector.mergeServiceCallsInto(collector);
             }
-            aggregateCollector.mergeServiceCallsInto(collector);
         }
     }
 
     public void mergeMainThreadProfilesInto(ProfileCollector collector, String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
+        for (Generation generation : getSealedGenerations()) {
+            synchronized (generation) {
+                AggregateCollector aggregateCollector =
+                        generation.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector == null) {
+                    continue;
+                }
+                aggregateCollector.mergeMainThreadProfilesInto(collector);
             }
-            aggregateCollector.mergeMainThreadProfilesInto(collector);
         }
     }
 
     public void mergeAuxThreadProfilesInto(ProfileCollector collector, String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
+        for (Generation generation : getSealedGenerations()) {
+            synchronized (generation) {
+                AggregateCollector aggregateCollector =
+                        generation.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector == null) {
+                    continue;
+                }
+                aggregateCollector.mergeAuxThreadProfilesInto(collector);
             }
-            aggregateCollector.mergeAuxThreadProfilesInto(collector);
         }
     }
 
     void flush(Collector collector) throws Exception {
-        synchronized (lock) {
-            List<String> sharedQueryTexts = Lists.newArrayList();
-            Map<String, Integer> sharedQueryTextIndexes = Maps.newHashMap();
-            List<AggregatesByType> aggregatesByTypeList = Lists.newArrayList();
-            ScratchBuffer scratchBuffer = new ScratchBuffer();
-            for (Entry<String, IntervalTypeCollector> e : typeCollectors.entrySet()) {
-                IntervalTypeCollector intervalTypeCollector = e.getValue();
-                AggregatesByType.Builder aggregatesByType = AggregatesByType.newBuilder()
-                        .setTransactionType(e.getKey())
-                        .setOverallAggregate(buildOverallAggregate(
-                                intervalTypeCollector.overallAggregateCollector, sharedQueryTexts,
-                                sharedQueryTextIndexes, scratchBuffer));
-                for (Entry<String, AggregateCollector> f : intervalTypeCollector.transactionAggregateCollectors
-                        .entrySet()) {
-                    aggregatesByType.addTransactionAggregate(
-                            buildTransactionAggregate(f.getKey(), f.getValue(), sharedQueryTexts,
-                                    sharedQueryTextIndexes, scratchBuffer));
+        List<Generation> generations = getSealedGenerations();
+        if (generations.size() == 1) {
+            Generation generation = generations.get(0);
+            synchronized (generation) {
+                flush(generation.typeCollectors, collector);
+            }
+        } else {
+            Generation merged = new Generation();
+            for (Generation generation : generations) {
+                synchronized (generation) {
+                    generation.mergeInto(merged);
                 }
-                aggregatesByTypeList.add(aggregatesByType.build());
             }
-            // collecting even when no aggregates since collection triggers transaction-based alerts
-            collector.collectAggregates(captureTime, aggregatesByTypeList, sharedQueryTexts);
+            flush(merged.typeCollectors, collector);
         }
     }
 
     void clear() {
-        synchronized (lock) {
-            typeCollectors.clear();
+        for (IntervalShard shard : shards) {
+            synchronized (shard.lock) {
+                shard.active = new Generation();
+                shard.sealed.clear();
+            }
+        }
+        typeHistograms.clear();
+    }
+
+    private void flush(Map<String, IntervalTypeCollector> typeCollectors, Collector collector)
+            throws Exception {
+        List<String> sharedQueryTexts = Lists.newArrayList();
+        Map<String, Integer> sharedQueryTextIndexes = Maps.newHashMap();
+        List<AggregatesByType> aggregatesByTypeList = Lists.newArrayList();
+        ScratchBuffer scratchBuffer = new ScratchBuffer();
+        for (Entry<String, IntervalTypeCollector> e : typeCollectors.entrySet()) {
+            IntervalTypeCollector intervalTypeCollector = e.getValue();
+            AggregatesByType.Builder aggregatesByType = AggregatesByType.newBuilder()
+                    .setTransactionType(e.getKey())
+                    .setOverallAggregate(buildOverallAggregate(
+                            intervalTypeCollector.overallAggregateCollector, sharedQueryTexts,
+                            sharedQueryTextIndexes, scratchBuffer));
+            for (Entry<String, AggregateCollector> f : intervalTypeCollector.transactionAggregateCollectors
+                    .entrySet()) {
+                aggregatesByType.addTransactionAggregate(
+                        buildTransactionAggregate(f.getKey(), f.getValue(), sharedQueryTexts,
+                                sharedQueryTextIndexes, scratchBuffer));
+            }
+            aggregatesByTypeList.add(aggregatesByType.build());
         }
+        // collecting even when no aggregates since collection triggers transaction-based alerts
+        collector.collectAggregates(captureTime, aggregatesByTypeList, sharedQueryTexts);
     }
 
-    private IntervalTypeCollector getTypeCollector(String transactionType) {
-        IntervalTypeCollector typeCollector;
-        typeCollector = typeCollectors.get(transactionType);
-        if (typeCollector == null) {
-            typeCollector = new IntervalTypeCollector();
-            typeCollectors.put(transactionType, typeCollector);
+    // seals the active generation of each shard, the returned generations are never added to
+    // again, so they can be read without holding up the processing threads
+    private List<Generation> getSealedGenerations() {
+        if (shards.length == 1) {
+            return shards[0].seal();
+        }
+        List<Generation> generations = Lists.newArrayList();
+        for (IntervalShard shard : shards) {
+            generations.addAll(shard.seal());
+        }
+        return generations;
+    }
+
+    private @Nullable AggregateCollector getMergedAggregateCollector(List<Generation> generations,
+            String transactionType, @Nullable String transactionName) {
+        AggregateCollector mergedAggregateCollector = null;
+        for (Generation generation : generations) {
+            synchronized (generation) {
+                AggregateCollector aggregateCollector =
+                        generation.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector == null) {
+                    continue;
+                }
+                if (mergedAggregateCollector == null) {
+                    mergedAggregateCollector = new AggregateCollector(transactionName,
+                            getDurationNanosHistogram(transactionType, transactionName),
+                            maxAggregateQueriesPerType, maxAggregateServiceCallsPerType);
+                }
+                aggregateCollector.mergeInto(mergedAggregateCollector);
+            }
         }
-        return typeCollector;
+        return mergedAggregateCollector;
     }
 
     private Aggregate buildOverallAggregate(AggregateCollector aggregateCollector,
@@ -295,27 +433,148 @@ public class AggregateIntervalCollector {
                 .build();
     }
 
-    private @Nullable AggregateCollector getAggregateCollector(String transactionType,
-            @Nullable String transactionName) {
-        IntervalTypeCollector intervalTypeCollector = typeCollectors.get(transactionType);
-        if (intervalTypeCollector == null) {
-            return null;
+    private class IntervalShard {
+
+        private final Object lock = new Object();
+
+        // only added to by the shard's processing thread, and swapped out (sealed) by readers
+        @GuardedBy("lock")
+        private Generation active = new Generation();
+
+        // generations that have been swapped out by readers, these are never added to again
+        @GuardedBy("lock")
+        private final List<Generation> sealed = Lists.newArrayList();
+
+        // the shard lock is only held long enough to swap out the active generation, all merging
+        // (including compacting the sealed generations) is done after releasing it
+        private List<Generation> seal() {
+            List<Generation> generations;
+            synchronized (lock) {
+                if (!active.typeCollectors.isEmpty()) {
+                    sealed.add(active);
+                    active = new Generation();
+                }
+                generations = ImmutableList.copyOf(sealed);
+            }
+            if (generations.size() <= MAX_SEALED_GENERATIONS) {
+                return generations;
+            }
+            // compact the sealed generations so that each UI read doesn't leave behind another
+            // generation to be merged by every subsequent read
+            Generation compacted = new Generation();
+            for (Generation generation : generations) {
+                synchronized (generation) {
+                    generation.mergeInto(compacted);
+                }
+            }
+            synchronized (lock) {
+                if (sealed.size() < generations.size()) {
+                    // concurrently compacted (or cleared) by another reader
+                    return generations;
+                }
+                List<Generation> compactedGenerations = sealed.subList(0, generations.size());
+                if (!compactedGenerations.equals(generations)) {
+                    // concurrently compacted by another reader
+                    return generations;
+                }
+                compactedGenerations.clear();
+                sealed.add(0, compacted);
+                return ImmutableList.copyOf(sealed);
+            }
+        }
+    }
+
+    // type collectors are only added to by the shard's processing thread (under the shard lock)
+    // until the generation is sealed, after which they are only read (under the generation's own
+    // lock, since reading is not thread safe either)
+    private class Generation {
+
+        private final Map<String, IntervalTypeCollector> typeCollectors = Maps.newHashMap();
+
+        private IntervalTypeCollector getTypeCollector(String transactionType) {
+            IntervalTypeCollector typeCollector;
+            typeCollector = typeCollectors.get(transactionType);
+            if (typeCollector == null) {
+                typeCollector = new IntervalTypeCollector(transactionType);
+                typeCollectors.put(transactionType, typeCollector);
+            }
+            return typeCollector;
+        }
+
+        private @Nullable AggregateCollector getAggregateCollector(String transactionType,
+                @Nullable String transactionName) {
+            IntervalTypeCollector intervalTypeCollector = typeCollectors.get(transactionType);
+            if (intervalTypeCollector == null) {
+                return null;
+            }
+            if (transactionName == null) {
+                return intervalTypeCollector.overallAggregateCollector;
+            } else {
+                return intervalTypeCollector.transactionAggregateCollectors.get(transactionName);
+            }
+        }
+
+        private void mergeInto(Generation generation) {
+            for (Entry<String, IntervalTypeCollector> entry : typeCollectors.entrySet()) {
+                entry.getValue().mergeInto(generation.getTypeCollector(entry.getKey()));
+            }
         }
+    }
+
+    private IntervalTypeHistograms getTypeHistograms(String transactionType) {
+        IntervalTypeHistograms histograms = typeHistograms.get(transactionType);
+        if (histograms == null) {
+            histograms = new IntervalTypeHistograms();
+            IntervalTypeHistograms existing =
+                    typeHistograms.putIfAbsent(transactionType, histograms);
+            if (existing != null) {
+                histograms = existing;
+            }
+        }
+        return histograms;
+    }
+
+    private ConcurrentLazyHistogram getDurationNanosHistogram(String transactionType,
+            @Nullable String transactionName) {
+        IntervalTypeHistograms histograms = getTypeHistograms(transactionType);
         if (transactionName == null) {
-            return intervalTypeCollector.overallAggregateCollector;
+            return histograms.overallHistogram;
         } else {
-            return intervalTypeCollector.transactionAggregateCollectors.get(transactionName);
+            return histograms.getTransactionHistogram(transactionName);
+        }
+    }
+
+    private static class IntervalTypeHistograms {
+
+        private final ConcurrentLazyHistogram overallHistogram = new ConcurrentLazyHistogram();
+        private final ConcurrentMap<String, ConcurrentLazyHistogram> transactionHistograms =
+                Maps.newConcurrentMap();
+
+        private ConcurrentLazyHistogram getTransactionHistogram(String transactionName) {
+            ConcurrentLazyHistogram histogram = transactionHistograms.get(transactionName);
+            if (histogram == null) {
+                histogram = new ConcurrentLazyHistogram();
+                ConcurrentLazyHistogram existing =
+                        transactionHistograms.putIfAbsent(transactionName, histogram);
+                if (existing != null) {
+                    histogram = existing;
+                }
+            }
+            return histogram;
         }
     }
 
     private class IntervalTypeCollector {
 
+        private final String transactionType;
         private final AggregateCollector overallAggregateCollector;
         private final Map<String, AggregateCollector> transactionAggregateCollectors =
                 Maps.newConcurrentMap();
 
-        private IntervalTypeCollector() {
-            overallAggregateCollector = new AggregateCollector(null, maxAggregateQueriesPerType,
+        private IntervalTypeCollector(String transactionType) {
+            this.transactionType = transactionType;
+            overallAggregateCollector = new AggregateCollector(null,
+                    getDurationNanosHistogram(transactionType, null), maxAggregateQueriesPerType,
                     maxAggregateServiceCallsPerType);
         }
 
@@ -327,6 +586,8 @@ public class AggregateIntervalCollector {
                     .size() < maxAggregateTransactionsPerTransactionType) {
                 transactionAggregateCollector =
                         new AggregateCollector(transaction.getTransactionName(),
+                                getDurationNanosHistogram(transactionType,
+                                        transaction.getTransactionName()),
                                 maxAggregateQueriesPerType, maxAggregateServiceCallsPerType);
                 transactionAggregateCollectors.put(transaction.getTransactionName(),
                         transactionAggregateCollector);
@@ -344,6 +605,28 @@ public class AggregateIntervalCollector {
             merge(transaction, transactionAggregateCollector);
         }
 
+        private void mergeInto(IntervalTypeCollector typeCollector) {
+            overallAggregateCollector.mergeInto(typeCollector.overallAggregateCollector);
+            for (Entry<String, AggregateCollector> entry : transactionAggregateCollectors
+                    .entrySet()) {
+                String transactionName = entry.getKey();
+                AggregateCollector transactionAggregateCollector =
+                        typeCollector.transactionAggregateCollectors.get(transactionName);
+                if (transactionAggregateCollector == null) {
+                    if (typeCollector.transactionAggregateCollectors
+                            .size() >= maxAggregateTransactionsPerTransactionType) {
+                        continue;
+                    }
+                    transactionAggregateCollector = new AggregateCollector(transactionName,
+                            getDurationNanosHistogram(transactionType, transactionName),
+                            maxAggregateQueriesPerType, maxAggregateServiceCallsPerType);
+                    typeCollector.transactionAggregateCollectors.put(transactionName,
+                            transactionAggregateCollector);
+                }
+                entry.getValue().mergeInto(transactionAggregateCollector);
+            }
+        }
+
         private void merge(Transaction transaction, AggregateCollector aggregateCollector) {
             aggregateCollector.add(transaction);
             aggregateCollector.getMainThreadRootTimers()
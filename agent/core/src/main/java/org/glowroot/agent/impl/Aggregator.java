@@ -16,11 +16,15 @@
 package org.glowroot.agent.impl;
 
 import java.util.List;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.annotation.Nullable;
-import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
@@ -30,23 +34,31 @@ import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.util.RateLimitedLogger;
+import org.glowroot.common.repo.Utils;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.wire.api.Collector;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class Aggregator {
 
     private static final Logger logger = LoggerFactory.getLogger(TransactionProcessor.class);
 
-    // back pressure on transaction collection
+    // back pressure on transaction collection (per processing thread)
     private static final int TRANSACTION_PENDING_LIMIT = 1000;
     // back pressure on aggregate flushing
     private static final int AGGREGATE_PENDING_LIMIT = 5;
 
-    private volatile AggregateIntervalCollector activeIntervalCollector;
+    // number of times the processing thread yields while waiting for a transaction before parking
+    private static final int SPIN_LIMIT = 100;
+
+    // interval collectors that may still be added to by at least one processing thread, keyed by
+    // capture time
+    private final ConcurrentNavigableMap<Long, AggregateIntervalCollector> activeIntervalCollectors =
+            new ConcurrentSkipListMap<Long, AggregateIntervalCollector>();
     private final List<AggregateIntervalCollector> pendingIntervalCollectors =
             Lists.newCopyOnWriteArrayList();
 
@@ -58,40 +70,40 @@ public class Aggregator {
 
     private final long aggregateIntervalMillis;
 
-    // all structural changes to the transaction queue are made under queueLock for simplicity
-    // TODO implement lock free structure
-    private final PendingTransaction head = new PendingTransaction(null);
-    // tail is non-volatile since only accessed under lock
-    private PendingTransaction tail = head;
-    private final Object queueLock = new Object();
-    @GuardedBy("queueLock")
-    private int queueLength;
+    // each processing thread has its own transaction queue and adds to its own shard of each
+    // interval collector, an interval collector is flushed once every processing thread has moved
+    // past it
+    private final TransactionProcessor[] transactionProcessors;
+
+    private final Object flushLock = new Object();
 
     private final RateLimitedLogger backPressureLogger = new RateLimitedLogger();
 
     public Aggregator(Collector collector, ConfigService configService,
-            long aggregateIntervalMillis, Clock clock) {
+            long aggregateIntervalMillis, int processingThreads, Clock clock) {
         this.collector = collector;
         this.configService = configService;
         this.clock = clock;
         this.aggregateIntervalMillis = aggregateIntervalMillis;
-        processingExecutor = Executors.newSingleThreadExecutor(
+        processingExecutor = Executors.newFixedThreadPool(processingThreads,
                 new ThreadFactoryBuilder()
                         .setDaemon(true)
-                        .setNameFormat("Glowroot-Aggregate-Processing")
+                        .setNameFormat("Glowroot-Aggregate-Processing-%d")
                         .build());
         flushingExecutor = Executors.newSingleThreadExecutor(
                 new ThreadFactoryBuilder()
                         .setDaemon(true)
                         .setNameFormat("Glowroot-Aggregate-Flushing")
                         .build());
-        activeIntervalCollector =
-                new AggregateIntervalCollector(clock.currentTimeMillis(), aggregateIntervalMillis,
-                        configService.getAdvancedConfig()
-                                .maxAggregateTransactionsPerType(),
-                        configService.getAdvancedConfig().maxAggregateQueriesPerType(),
-                        configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
-        processingExecutor.execute(new TransactionProcessor());
+        transactionProcessors = new TransactionProcessor[processingThreads];
+        AggregateIntervalCollector initialIntervalCollector =
+                getOrCreateActiveIntervalCollector(clock.currentTimeMillis());
+        for (int i = 0; i < processingThreads; i++) {
+            transactionProcessors[i] = new TransactionProcessor(i, initialIntervalCollector);
+        }
+        for (TransactionProcessor transactionProcessor : transactionProcessors) {
+            processingExecutor.execute(transactionProcessor);
+        }
     }
 
     // from is non-inclusive
@@ -108,51 +120,98 @@ public class Aggregator {
     }
 
     public void clearInMemoryAggregate() {
-        activeIntervalCollector.clear();
+        for (AggregateIntervalCollector intervalCollector : activeIntervalCollectors.values()) {
+            intervalCollector.clear();
+        }
     }
 
     long add(Transaction transaction) {
-        // this synchronized block is to ensure traces are placed into processing queue in the
-        // order of captureTime (so that queue reader can assume if captureTime indicates time to
-        // flush, then no new traces will come in with prior captureTime)
-        PendingTransaction newTail = new PendingTransaction(transaction);
-        long captureTime;
-        synchronized (queueLock) {
-            captureTime = clock.currentTimeMillis();
-            if (queueLength >= TRANSACTION_PENDING_LIMIT) {
-                backPressureLogger.warn("not aggregating a transaction because of an excessive"
-                        + " backlog of {} transactions already waiting to be aggregated",
-                        TRANSACTION_PENDING_LIMIT);
-                transaction.removeFromActiveTransactions();
-                return captureTime;
-            }
-            newTail.captureTime = captureTime;
-            tail.next = newTail;
-            tail = newTail;
-            queueLength++;
+        TransactionProcessor transactionProcessor;
+        if (transactionProcessors.length == 1) {
+            transactionProcessor = transactionProcessors[0];
+        } else {
+            // keep each request thread on the same processing thread
+            int index = (int) (Thread.currentThread().getId() % transactionProcessors.length);
+            transactionProcessor = transactionProcessors[index];
         }
-        return captureTime;
+        return transactionProcessor.add(transaction);
     }
 
     private List<AggregateIntervalCollector> getOrderedAllIntervalCollectors() {
         // grab active first then pending (and de-dup) to make sure one is not missed between states
-        AggregateIntervalCollector activeIntervalCollector = this.activeIntervalCollector;
+        List<AggregateIntervalCollector> activeIntervalCollectors =
+                ImmutableList.copyOf(this.activeIntervalCollectors.values());
         List<AggregateIntervalCollector> intervalCollectors =
                 Lists.newArrayList(pendingIntervalCollectors);
         if (intervalCollectors.isEmpty()) {
             // common case
-            return ImmutableList.of(activeIntervalCollector);
-        } else if (!intervalCollectors.contains(activeIntervalCollector)) {
-            intervalCollectors.add(activeIntervalCollector);
-            return intervalCollectors;
-        } else {
-            return intervalCollectors;
+            return activeIntervalCollectors;
+        }
+        for (AggregateIntervalCollector activeIntervalCollector : activeIntervalCollectors) {
+            if (!intervalCollectors.contains(activeIntervalCollector)) {
+                intervalCollectors.add(activeIntervalCollector);
+            }
         }
+        return intervalCollectors;
+    }
+
+    private AggregateIntervalCollector getOrCreateActiveIntervalCollector(long currentTime) {
+        long captureTime = Utils.getRollupCaptureTime(currentTime, aggregateIntervalMillis);
+        AggregateIntervalCollector intervalCollector = activeIntervalCollectors.get(captureTime);
+        if (intervalCollector != null) {
+            return intervalCollector;
+        }
+        intervalCollector = new AggregateIntervalCollector(currentTime, aggregateIntervalMillis,
+                configService.getAdvancedConfig().maxAggregateTransactionsPerType(),
+                configService.getAdvancedConfig().maxAggregateQueriesPerType(),
+                configService.getAdvancedConfig().maxAggregateServiceCallsPerType(),
+                transactionProcessors.length, clock);
+        AggregateIntervalCollector existing =
+                activeIntervalCollectors.putIfAbsent(captureTime, intervalCollector);
+        return existing == null ? intervalCollector : existing;
+    }
+
+    private void maybeFlushActiveIntervalCollectors() {
+        synchronized (flushLock) {
+            long minCaptureTime = Long.MAX_VALUE;
+            for (TransactionProcessor transactionProcessor : transactionProcessors) {
+                minCaptureTime =
+                        Math.min(minCaptureTime, transactionProcessor.intervalCaptureTime);
+            }
+            // no processing thread will add to an interval prior to its current interval
+            for (AggregateIntervalCollector intervalCollector : ImmutableList
+                    .copyOf(activeIntervalCollectors.headMap(minCaptureTime).values())) {
+                flushIntervalCollector(intervalCollector);
+                activeIntervalCollectors.remove(intervalCollector.getCaptureTime());
+            }
+        }
+    }
+
+    private void flushIntervalCollector(final AggregateIntervalCollector intervalCollector) {
+        if (pendingIntervalCollectors.size() >= AGGREGATE_PENDING_LIMIT) {
+            logger.warn("not storing an aggregate because of an excessive backlog of {}"
+                    + " aggregates already waiting to be stored", AGGREGATE_PENDING_LIMIT);
+            return;
+        }
+        pendingIntervalCollectors.add(intervalCollector);
+        // flush in separate thread to avoid pending transactions from piling up quickly
+        flushingExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    intervalCollector.flush(collector);
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                } finally {
+                    pendingIntervalCollectors.remove(intervalCollector);
+                }
+            }
+        });
     }
 
     @OnlyUsedByTests
     public void close() throws InterruptedException {
-        // shutdownNow() is needed here to send interrupt to TransactionProcessor thread
+        // shutdownNow() is needed here to send interrupt to TransactionProcessor threads
         processingExecutor.shutdownNow();
         if (!processingExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
@@ -165,6 +224,73 @@ public class Aggregator {
 
     private class TransactionProcessor implements Runnable {
 
+        private final int shardIndex;
+
+        // the transaction queue is a lock free multi-producer single-consumer linked list,
+        // producers swap themselves in as the new tail and then link the prior tail to themselves
+        //
+        // head is the most recently consumed node (or end of interval marker) and is only accessed
+        // by the processing thread
+        private PendingTransaction head = new PendingTransaction(null);
+        private final AtomicReference<PendingTransaction> tail =
+                new AtomicReference<PendingTransaction>(head);
+        // queue length is only used for back pressure, so it is ok that it is not exact
+        private final AtomicInteger queueLength = new AtomicInteger();
+
+        private volatile @Nullable Thread parkedProcessingThread;
+
+        // only accessed by the processing thread
+        private AggregateIntervalCollector intervalCollector;
+        // read by other processing threads to determine when it is safe to flush
+        private volatile long intervalCaptureTime;
+
+        private TransactionProcessor(int shardIndex, AggregateIntervalCollector intervalCollector) {
+            this.shardIndex = shardIndex;
+            this.intervalCollector = intervalCollector;
+            intervalCaptureTime = intervalCollector.getCaptureTime();
+        }
+
+        private long add(Transaction transaction) {
+            if (queueLength.get() >= TRANSACTION_PENDING_LIMIT) {
+                backPressureLogger.warn("not aggregating a transaction because of an excessive"
+                        + " backlog of {} transactions already waiting to be aggregated",
+                        TRANSACTION_PENDING_LIMIT);
+                transaction.removeFromActiveTransactions();
+                return clock.currentTimeMillis();
+            }
+            queueLength.incrementAndGet();
+            PendingTransaction newTail = new PendingTransaction(transaction);
+            long currentTime = clock.currentTimeMillis();
+            PendingTransaction priorTail;
+            long captureTime;
+            do {
+                priorTail = tail.get();
+                // capture time is never less than the prior tail's capture time, and is fixed
+                // together with the position in the queue (by the compare and set), to ensure
+                // traces are placed into processing queue in the order of captureTime (so that
+                // queue reader can assume if captureTime indicates time to flush, then no new
+                // traces will come in with prior captureTime)
+                //
+                // the prior tail's capture time is always set before it becomes the tail, so
+                // there is never any need to wait on another producer here
+                captureTime = Math.max(currentTime, priorTail.captureTime);
+                newTail.captureTime = captureTime;
+            } while (!tail.compareAndSet(priorTail, newTail));
+            try {
+                // the duration histogram is recorded here in the transaction thread, before
+                // linking in the new tail, since until the new tail is linked the processing thread
+                // cannot move past the interval (and so the interval cannot be flushed)
+                getOrCreateActiveIntervalCollector(captureTime).recordDuration(transaction);
+            } finally {
+                priorTail.next = newTail;
+            }
+            Thread processingThread = parkedProcessingThread;
+            if (processingThread != null) {
+                LockSupport.unpark(processingThread);
+            }
+            return captureTime;
+        }
+
         @Override
         public void run() {
             while (true) {
@@ -183,94 +309,88 @@ public class Aggregator {
         private void processOne() throws InterruptedException {
             PendingTransaction pendingTransaction = head.next;
             if (pendingTransaction == null) {
-                if (clock.currentTimeMillis() > activeIntervalCollector.getCaptureTime()) {
+                if (clock.currentTimeMillis() > intervalCaptureTime) {
                     maybeEndOfInterval();
                 } else {
-                    // TODO benchmark other alternatives to sleep (e.g. wait/notify)
-                    Thread.sleep(1);
+                    awaitTransaction();
                 }
                 return;
             }
+            // the consumed node becomes the new head
+            head = pendingTransaction;
+            queueLength.decrementAndGet();
             // remove transaction from list of active transactions
             // used to do this at the very end of Transaction.end(), but moved to here to remove the
             // (minor) cost from the transaction main path
             Transaction transaction = checkNotNull(pendingTransaction.transaction);
+            // clear reference so transaction can be collected while node is still the head
+            pendingTransaction.transaction = null;
             transaction.removeFromActiveTransactions();
 
-            // remove head
-            synchronized (queueLock) {
-                PendingTransaction next = pendingTransaction.next;
-                head.next = next;
-                if (next == null) {
-                    tail = head;
-                }
-                queueLength--;
+            if (pendingTransaction.captureTime > intervalCaptureTime) {
+                moveToInterval(pendingTransaction.captureTime);
             }
-            if (pendingTransaction.captureTime > activeIntervalCollector.getCaptureTime()) {
-                flushActiveIntervalCollector();
-                activeIntervalCollector = new AggregateIntervalCollector(
-                        pendingTransaction.captureTime, aggregateIntervalMillis,
-                        configService.getAdvancedConfig().maxAggregateTransactionsPerType(),
-                        configService.getAdvancedConfig().maxAggregateQueriesPerType(),
-                        configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
-            }
-            activeIntervalCollector.add(transaction);
+            intervalCollector.add(transaction, shardIndex);
         }
 
-        private void maybeEndOfInterval() {
-            long currentTime;
-            boolean safeToFlush;
-            synchronized (queueLock) {
+        private void awaitTransaction() throws InterruptedException {
+            for (int i = 0; i < SPIN_LIMIT; i++) {
                 if (head.next != null) {
-                    // something just crept into the queue, possibly still something from active
-                    // interval, it will get picked up right away and if it is in next interval it
-                    // will force active aggregate to be flushed anyways
                     return;
                 }
-                currentTime = clock.currentTimeMillis();
-                safeToFlush = currentTime > activeIntervalCollector.getCaptureTime();
+                Thread.yield();
+            }
+            parkedProcessingThread = Thread.currentThread();
+            // need to check again after publishing parkedProcessingThread, since a producer may
+            // have linked a new transaction before it could see parkedProcessingThread
+            if (head.next == null) {
+                // park until the end of the current interval at the latest, so it can be flushed
+                long parkMillis = intervalCaptureTime - clock.currentTimeMillis() + 1;
+                parkMillis = Math.max(1, Math.min(parkMillis, aggregateIntervalMillis));
+                LockSupport.parkNanos(this, MILLISECONDS.toNanos(parkMillis));
             }
-            if (safeToFlush) {
-                // safe to flush, no other pending transactions can enter queue with later time
-                // (since the check above was done under same lock used to add to queue)
-                flushActiveIntervalCollector();
-                activeIntervalCollector = new AggregateIntervalCollector(currentTime,
-                        aggregateIntervalMillis,
-                        configService.getAdvancedConfig()
-                                .maxAggregateTransactionsPerType(),
-                        configService.getAdvancedConfig().maxAggregateQueriesPerType(),
-                        configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
+            parkedProcessingThread = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
             }
         }
 
-        private void flushActiveIntervalCollector() {
-            if (pendingIntervalCollectors.size() >= AGGREGATE_PENDING_LIMIT) {
-                logger.warn("not storing an aggregate because of an excessive backlog of {}"
-                        + " aggregates already waiting to be stored", AGGREGATE_PENDING_LIMIT);
+        private void maybeEndOfInterval() {
+            long currentTime = clock.currentTimeMillis();
+            if (currentTime <= intervalCaptureTime) {
                 return;
             }
-            final AggregateIntervalCollector intervalCollector = activeIntervalCollector;
-            pendingIntervalCollectors.add(intervalCollector);
-            // flush in separate thread to avoid pending transactions from piling up quickly
-            flushingExecutor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        intervalCollector.flush(collector);
-                    } catch (Throwable t) {
-                        logger.error(t.getMessage(), t);
-                    } finally {
-                        pendingIntervalCollectors.remove(intervalCollector);
-                    }
-                }
-            });
+            // the end of interval marker is swapped in as the new tail (only if the queue is still
+            // empty), so any transaction that enters the queue afterwards will have capture time
+            // at least the current time read here (see add() above)
+            PendingTransaction marker = new PendingTransaction(null);
+            marker.captureTime = currentTime;
+            if (!tail.compareAndSet(head, marker)) {
+                // something just crept into the queue, possibly still something from current
+                // interval, it will get picked up right away and if it is in next interval it
+                // will force current interval to be flushed anyways
+                return;
+            }
+            head.next = marker;
+            head = marker;
+            // safe to move on, no other pending transactions can enter queue with later time
+            // (see above)
+            moveToInterval(currentTime);
+        }
+
+        private void moveToInterval(long currentTime) {
+            intervalCollector = getOrCreateActiveIntervalCollector(currentTime);
+            intervalCaptureTime = intervalCollector.getCaptureTime();
+            maybeFlushActiveIntervalCollectors();
         }
     }
 
     private static class PendingTransaction {
 
-        private final @Nullable Transaction transaction; // only null for head
-        private volatile long captureTime;
+        // only null for initial head, end of interval markers and after being consumed
+        private @Nullable Transaction transaction;
+        // set before the node is swapped in as the tail, and never changed after that
+        private long captureTime;
         private volatile @Nullable PendingTransaction next;
 
         private PendingTransaction(@Nullable Transaction transaction) {
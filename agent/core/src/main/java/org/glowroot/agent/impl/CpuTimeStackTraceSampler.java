@@ -0,0 +1,58 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.glowroot.agent.config.ConfigService;
+
+// only samples threads that have consumed cpu since their last sample (reading thread cpu time
+// does not require a global safepoint), so that profiles show where cpu is spent instead of being
+// dominated by idle waits
+//
+// the stack traces of the threads that did consume cpu are still captured in a single batch, since
+// calling Thread.getStackTrace() for each thread would require a global safepoint per thread
+class CpuTimeStackTraceSampler extends StackTraceSampler {
+
+    CpuTimeStackTraceSampler(ConfigService configService) {
+        super(configService);
+    }
+
+    @Override
+    void sample(List<ThreadContextImpl> threadContexts, int limit) {
+        List<ThreadContextImpl> busyThreadContexts =
+                Lists.newArrayListWithCapacity(threadContexts.size());
+        for (ThreadContextImpl threadContext : threadContexts) {
+            long cpuNanos = threadMXBean.getThreadCpuTime(threadContext.getThreadId());
+            if (cpuNanos == -1) {
+                // thread is no longer alive (or thread cpu time has been disabled)
+                continue;
+            }
+            long lastSampleCpuNanos = threadContext.getLastStackTraceSampleCpuNanos();
+            threadContext.setLastStackTraceSampleCpuNanos(cpuNanos);
+            // the first time a thread context is seen it is sampled, since it is not known how
+            // much cpu it has consumed since the thread context started
+            if (lastSampleCpuNanos == -1 || cpuNanos > lastSampleCpuNanos) {
+                busyThreadContexts.add(threadContext);
+            } else {
+                recordSkippedStackTrace();
+            }
+        }
+        captureAndMerge(busyThreadContexts, limit);
+    }
+}
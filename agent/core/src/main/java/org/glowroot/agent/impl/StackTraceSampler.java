@@ -0,0 +1,158 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.config.ConfigService;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+// the sampler backend is selected using -Dglowroot.internal.profiling.sampler:
+//
+// "wall" (the default) samples every active thread, see WallClockStackTraceSampler
+//
+// "cpu" only samples threads that have consumed cpu since their last sample, see
+// CpuTimeStackTraceSampler
+public abstract class StackTraceSampler implements StackTraceSamplerMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(StackTraceSampler.class);
+
+    // stacks deeper than this lose the frames nearest to the bottom of the stack
+    private static final int MAX_STACK_DEPTH =
+            Integer.getInteger("glowroot.internal.profiling.maxStackDepth", 512);
+
+    static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    private final ConfigService configService;
+
+    private final AtomicLong safepointCount = new AtomicLong();
+    private final AtomicLong safepointNanos = new AtomicLong();
+    private final AtomicLong capturedStackTraceCount = new AtomicLong();
+    private final AtomicLong skippedStackTraceCount = new AtomicLong();
+    private final AtomicLong overheadNanos = new AtomicLong();
+
+    StackTraceSampler(ConfigService configService) {
+        this.configService = configService;
+    }
+
+    public static StackTraceSampler create(ConfigService configService) {
+        String sampler = System.getProperty("glowroot.internal.profiling.sampler", "wall");
+        if (sampler.equals("cpu")) {
+            if (threadMXBean.isThreadCpuTimeSupported()) {
+                return new CpuTimeStackTraceSampler(configService);
+            }
+            logger.warn("cpu profiling sampler requested, but thread cpu time is not supported by"
+                    + " this jvm, falling back to wall clock profiling sampler");
+        } else if (!sampler.equals("wall")) {
+            logger.warn("unexpected profiling sampler: {}, using wall clock profiling sampler",
+                    sampler);
+        }
+        return new WallClockStackTraceSampler(configService);
+    }
+
+    public void captureStackTraces(List<ThreadContextImpl> threadContexts) {
+        long startTime = System.nanoTime();
+        List<ThreadContextImpl> activeThreadContexts =
+                Lists.newArrayListWithCapacity(threadContexts.size());
+        for (ThreadContextImpl threadContext : threadContexts) {
+            // thread contexts may have completed since they were collected (e.g. when captured in
+            // batches spread across the profiling interval)
+            if (!threadContext.isCompleted()) {
+                activeThreadContexts.add(threadContext);
+            }
+        }
+        if (activeThreadContexts.isEmpty()) {
+            return;
+        }
+        int limit = configService.getAdvancedConfig().maxStackTraceSamplesPerTransaction();
+        sample(activeThreadContexts, limit);
+        overheadNanos.getAndAdd(System.nanoTime() - startTime);
+    }
+
+    @Override
+    public long getSafepointCount() {
+        return safepointCount.get();
+    }
+
+    @Override
+    public long getSafepointTimeMillis() {
+        return NANOSECONDS.toMillis(safepointNanos.get());
+    }
+
+    @Override
+    public long getCapturedStackTraceCount() {
+        return capturedStackTraceCount.get();
+    }
+
+    @Override
+    public long getSkippedStackTraceCount() {
+        return skippedStackTraceCount.get();
+    }
+
+    @Override
+    public long getOverheadTimeMillis() {
+        return NANOSECONDS.toMillis(overheadNanos.get());
+    }
+
+    abstract void sample(List<ThreadContextImpl> threadContexts, int limit);
+
+    // captures (using a single global safepoint) and merges the stack traces of the given threads
+    void captureAndMerge(List<ThreadContextImpl> threadContexts, int limit) {
+        if (threadContexts.isEmpty()) {
+            // critical not to call ThreadMXBean.getThreadInfo() with empty id list
+            // see https://bugs.openjdk.java.net/browse/JDK-8074368
+            return;
+        }
+        long startTime = System.nanoTime();
+        @Nullable
+        ThreadInfo[] threadInfos =
+                threadMXBean.getThreadInfo(getThreadIds(threadContexts), MAX_STACK_DEPTH);
+        safepointNanos.getAndAdd(System.nanoTime() - startTime);
+        safepointCount.getAndIncrement();
+        for (int i = 0; i < threadContexts.size(); i++) {
+            ThreadContextImpl threadContext = threadContexts.get(i);
+            ThreadInfo threadInfo = threadInfos[i];
+            if (threadInfo != null) {
+                threadContext.setLastStackTraceSample(threadInfo);
+                threadContext.captureStackTrace(threadInfo, limit);
+                capturedStackTraceCount.getAndIncrement();
+            }
+        }
+    }
+
+    void recordSkippedStackTrace() {
+        skippedStackTraceCount.getAndIncrement();
+    }
+
+    static long[] getThreadIds(List<ThreadContextImpl> threadContexts) {
+        long[] threadIds = new long[threadContexts.size()];
+        for (int i = 0; i < threadContexts.size(); i++) {
+            threadIds[i] = threadContexts.get(i).getThreadId();
+        }
+        return threadIds;
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+// these are all cumulative, so are intended to be configured as counter gauges
+public interface StackTraceSamplerMXBean {
+
+    // number of calls that capture stack traces, each of which requires a global safepoint
+    long getSafepointCount();
+
+    // wall clock time spent in calls that capture stack traces (includes the safepoint)
+    long getSafepointTimeMillis();
+
+    // number of stack traces captured
+    long getCapturedStackTraceCount();
+
+    // number of samples that did not need to capture a stack trace because the thread had not run
+    // (wall clock sampler, which then re-uses the prior stack trace) or had not consumed cpu (cpu
+    // sampler, which then does not sample the thread) since its last sample
+    long getSkippedStackTraceCount();
+
+    // total wall clock time spent sampling, including merging the samples into the profiles
+    long getOverheadTimeMillis();
+}
@@ -81,6 +81,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
     private final @Nullable TraceEntryImpl parentThreadContextPriorEntry;
 
     private final TimerImpl rootTimer;
+    private final int timedTimerDepth;
     // only accessed by the thread context's thread
     private @Nullable TimerImpl currentTimer;
 
@@ -116,15 +117,22 @@ public class ThreadContextImpl implements ThreadContextPlus {
     // this is not used much, so overhead of Long seems good tradeoff for avoiding extra field
     private volatile @MonotonicNonNull Long detachedTime;
 
+    // these are only used by StackTraceSampler
+    private volatile @Nullable ThreadInfo lastStackTraceSample;
+    private volatile long lastStackTraceSampleCpuNanos = -1;
+
     ThreadContextImpl(Transaction transaction, @Nullable TraceEntryImpl parentTraceEntry,
             @Nullable TraceEntryImpl parentThreadContextPriorEntry, MessageSupplier messageSupplier,
             TimerName rootTimerName, long startTick, boolean captureThreadStats,
-            @Nullable ThreadAllocatedBytes threadAllocatedBytes, boolean auxiliary, Ticker ticker,
+            int timedTimerDepth, @Nullable ThreadAllocatedBytes threadAllocatedBytes,
+            boolean auxiliary, Ticker ticker,
             Holder</*@Nullable*/ ThreadContextImpl> threadContextHolder,
             @Nullable MessageSupplier servletMessageSupplier) {
         this.transaction = transaction;
         this.parentTraceEntry = parentTraceEntry;
-        rootTimer = TimerImpl.createRootTimer(castInitialized(this), (TimerNameImpl) rootTimerName);
+        rootTimer = TimerImpl.createRootTimer(castInitialized(this), (TimerNameImpl) rootTimerName,
+                timedTimerDepth);
+        this.timedTimerDepth = timedTimerDepth;
         rootTimer.start(startTick);
         traceEntryComponent = new TraceEntryComponent(castInitialized(this), messageSupplier,
                 rootTimer, startTick);
@@ -227,6 +235,10 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return threadStatsComponent != null;
     }
 
+    int getTimedTimerDepth() {
+        return timedTimerDepth;
+    }
+
     // only called by transaction thread
     private @Nullable QueryData getOrCreateQueryDataIfPossible(String queryType, String queryText) {
         if (headQueryData == null) {
@@ -319,6 +331,23 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return entry;
     }
 
+    @Nullable
+    ThreadInfo getLastStackTraceSample() {
+        return lastStackTraceSample;
+    }
+
+    void setLastStackTraceSample(ThreadInfo lastStackTraceSample) {
+        this.lastStackTraceSample = lastStackTraceSample;
+    }
+
+    long getLastStackTraceSampleCpuNanos() {
+        return lastStackTraceSampleCpuNanos;
+    }
+
+    void setLastStackTraceSampleCpuNanos(long lastStackTraceSampleCpuNanos) {
+        this.lastStackTraceSampleCpuNanos = lastStackTraceSampleCpuNanos;
+    }
+
     void captureStackTrace(ThreadInfo threadInfo, int limit) {
         transaction.captureStackTrace(auxiliary, threadInfo, limit);
         // memory barrier read ensures timely visibility of detach()
@@ -361,6 +390,10 @@ public class ThreadContextImpl implements ThreadContextPlus {
         transaction.memoryBarrierReadWrite();
     }
 
+    void recycleTraceEntries() {
+        traceEntryComponent.recycle();
+    }
+
     // detach is called from another thread
     void detach() {
         // this synchronization protects against clobbering valid thread context in race condition
@@ -775,7 +808,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
         if (currentTimer == null) {
             // this really shouldn't happen as current timer should be non-null unless transaction
             // has completed
-            return TimerImpl.createRootTimer(this, (TimerNameImpl) timerName);
+            return TimerImpl.createRootTimer(this, (TimerNameImpl) timerName, timedTimerDepth);
         }
         return currentTimer.startNestedTimer(timerName, startTick);
     }
@@ -54,6 +54,11 @@ import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 // the down side is that the latest updates to timers for transactions that are captured
 // in-flight (e.g. partial traces and active traces displayed in the UI) may not be visible
 //
+// for transaction types that are configured to only capture timer counters, nested timers below
+// the configured depth are not timed at all (no ticker reads and no nested timer tree), instead
+// they only increment a counter on the timer name that is shared across transactions, and their
+// time is included in the time of the nearest timed ancestor
+//
 // all timing data is in nanoseconds
 @Styles.Private
 public class TimerImpl implements Timer, CommonTimerImpl {
@@ -66,6 +71,10 @@ public class TimerImpl implements Timer, CommonTimerImpl {
     private final @Nullable TimerImpl parent;
     private final TimerNameImpl timerName;
 
+    // number of levels of nested timers under this timer that are timed, nested timers below that
+    // depth are not timed and only increment their timer name's counters-only count
+    private final int timedDepth;
+
     // nanosecond rollover (292 years) isn't a concern for total time on a single transaction
     private long totalNanos;
     private long count;
@@ -84,16 +93,20 @@ public class TimerImpl implements Timer, CommonTimerImpl {
     private @MonotonicNonNull TimerImpl headChild;
     private final @Nullable TimerImpl nextSibling;
 
-    static TimerImpl createRootTimer(ThreadContextImpl threadContext, TimerNameImpl timerName) {
-        return new TimerImpl(threadContext, null, null, timerName);
+    // timedDepth is Integer.MAX_VALUE unless the transaction only captures timer counters below
+    // some depth
+    static TimerImpl createRootTimer(ThreadContextImpl threadContext, TimerNameImpl timerName,
+            int timedDepth) {
+        return new TimerImpl(threadContext, null, null, timerName, timedDepth);
     }
 
     private TimerImpl(ThreadContextImpl threadContext, @Nullable TimerImpl parent,
-            @Nullable TimerImpl nextSibling, TimerNameImpl timerName) {
+            @Nullable TimerImpl nextSibling, TimerNameImpl timerName, int timedDepth) {
         this.timerName = timerName;
         this.parent = parent;
         this.nextSibling = nextSibling;
         this.threadContext = threadContext;
+        this.timedDepth = timedDepth;
     }
 
     // safe to be called from another thread when transaction is still active transaction
@@ -239,6 +252,9 @@ public class TimerImpl implements Timer, CommonTimerImpl {
             selfNestingLevel++;
             return this;
         }
+        if (timedDepth == 0) {
+            return startCountersOnlyTimer(timerName);
+        }
         long nestedTimerStartTick = ticker.read();
         return startNestedTimerInternal(timerName, nestedTimerStartTick);
     }
@@ -250,6 +266,9 @@ public class TimerImpl implements Timer, CommonTimerImpl {
             selfNestingLevel++;
             return this;
         }
+        if (timedDepth == 0) {
+            return startCountersOnlyTimer(timerName);
+        }
         return startNestedTimerInternal(timerName, startTick);
     }
 
@@ -291,6 +310,26 @@ public class TimerImpl implements Timer, CommonTimerImpl {
         threadContext.setCurrentTimer(parent);
     }
 
+    // the nested timer is treated the same as self nesting, so its time is included in this timer
+    //
+    // a dedicated (per timer name) timer is returned instead of this timer, so that extend() on
+    // the returned timer does not restart this timer
+    private TimerImpl startCountersOnlyTimer(TimerName timerName) {
+        if (nestedTimers == null) {
+            nestedTimers = new NestedTimerMap();
+        }
+        TimerNameImpl timerNameImpl = (TimerNameImpl) timerName;
+        TimerImpl countersOnlyTimer = nestedTimers.get(timerNameImpl);
+        if (countersOnlyTimer == null) {
+            // not linked into headChild since counters-only timers are not part of the timer tree
+            countersOnlyTimer = new CountersOnlyTimer(this, timerNameImpl);
+            nestedTimers.put(timerNameImpl, countersOnlyTimer);
+        }
+        timerNameImpl.incrementCountersOnlyCount();
+        selfNestingLevel++;
+        return countersOnlyTimer;
+    }
+
     private TimerImpl startNestedTimerInternal(TimerName timerName, long nestedTimerStartTick) {
         if (nestedTimers == null) {
             nestedTimers = new NestedTimerMap();
@@ -301,10 +340,63 @@ public class TimerImpl implements Timer, CommonTimerImpl {
             nestedTimer.start(nestedTimerStartTick);
             return nestedTimer;
         }
-        nestedTimer = new TimerImpl(threadContext, this, headChild, timerNameImpl);
+        nestedTimer =
+                new TimerImpl(threadContext, this, headChild, timerNameImpl, timedDepth - 1);
         nestedTimer.start(nestedTimerStartTick);
         nestedTimers.put(timerNameImpl, nestedTimer);
         headChild = nestedTimer;
         return nestedTimer;
     }
+
+    // stopping this timer only decrements the self nesting level of the timed ancestor, and
+    // extending it either re-enters the counters-only tier under the timed ancestor (when the timed
+    // ancestor is still the current timer), or starts an extended timer under the current timer
+    private static class CountersOnlyTimer extends TimerImpl {
+
+        private final TimerImpl timedAncestor;
+        private final TimerNameImpl countersOnlyTimerName;
+
+        private CountersOnlyTimer(TimerImpl timedAncestor, TimerNameImpl timerName) {
+            super(timedAncestor.threadContext, timedAncestor, null, timerName, 0);
+            this.timedAncestor = timedAncestor;
+            this.countersOnlyTimerName = timerName;
+        }
+
+        @Override
+        public void stop() {
+            timedAncestor.stop();
+        }
+
+        @Override
+        void end(long endTick) {
+            timedAncestor.end(endTick);
+        }
+
+        @Override
+        public Timer extend() {
+            if (timedAncestor.threadContext.getCurrentTimer() == timedAncestor) {
+                // no need to read the ticker
+                return timedAncestor.startCountersOnlyTimer(countersOnlyTimerName);
+            }
+            return extend(ticker.read());
+        }
+
+        @Override
+        TimerImpl extend(long startTick) {
+            TimerImpl currentTimer = timedAncestor.threadContext.getCurrentTimer();
+            if (currentTimer == null) {
+                logger.warn("extend() transaction currentTimer is null");
+                return this;
+            }
+            if (currentTimer == timedAncestor) {
+                return timedAncestor.startCountersOnlyTimer(countersOnlyTimerName);
+            }
+            TimerNameImpl extendedTimer = countersOnlyTimerName.extendedTimer();
+            if (extendedTimer == null) {
+                logger.warn("extend() should only be accessible to non-extended timers");
+                return this;
+            }
+            return currentTimer.startNestedTimer(extendedTimer, startTick);
+        }
+    }
 }
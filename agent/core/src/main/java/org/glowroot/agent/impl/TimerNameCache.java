@@ -15,9 +15,12 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.Map;
+
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,7 +33,9 @@ import org.glowroot.agent.plugin.api.weaving.Pointcut;
 // equality
 //
 // also used to ensure @Pointcut timer name matches the timer name passed to TransactionService
-public class TimerNameCache {
+//
+// also exposes the counters only counts of the timer names
+public class TimerNameCache implements TimerCountersMXBean {
 
     private static final Logger logger = LoggerFactory.getLogger(TimerNameCache.class);
 
@@ -66,7 +71,38 @@ public class TimerNameCache {
         return auxThreadTimerName;
     }
 
+    @Override
+    public Map<String, Long> getCountersOnlyCounts() {
+        ImmutableMap.Builder<String, Long> counts = ImmutableMap.builder();
+        for (TimerNameImpl timerName : names.asMap().values()) {
+            addCountersOnlyCount(timerName, timerName.name(), counts);
+            TimerNameImpl extendedTimerName = timerName.extendedTimer();
+            if (extendedTimerName != null) {
+                addCountersOnlyCount(extendedTimerName, timerName.name() + " (extended)",
+                        counts);
+            }
+        }
+        return counts.build();
+    }
+
+    @Override
+    public long getTotalCountersOnlyCount() {
+        long total = 0;
+        for (long count : getCountersOnlyCounts().values()) {
+            total += count;
+        }
+        return total;
+    }
+
     private TimerName getName(String name) {
         return names.getUnchecked(name);
     }
+
+    private static void addCountersOnlyCount(TimerNameImpl timerName, String name,
+            ImmutableMap.Builder<String, Long> counts) {
+        long count = timerName.getCountersOnlyCount();
+        if (count > 0) {
+            counts.put(name, count);
+        }
+    }
 }
@@ -15,8 +15,11 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.List;
+
 import javax.annotation.Nullable;
 
+import com.google.common.collect.Lists;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -44,6 +47,10 @@ class TraceEntryComponent {
 
     private TraceEntryImpl tailEntry;
 
+    // only used when trace entry recycling is enabled, see TraceEntryPool
+    private @Nullable List<TraceEntryImpl[]> chunks;
+    private int currChunkSize;
+
     TraceEntryComponent(ThreadContextImpl threadContext, MessageSupplier messageSupplier,
             TimerImpl timer, long startTick) {
         this.threadContext = threadContext;
@@ -73,8 +80,8 @@ class TraceEntryComponent {
     TraceEntryImpl pushEntry(long startTick, MessageSupplier messageSupplier, TimerImpl syncTimer,
             @Nullable AsyncTimerImpl asyncTimer, @Nullable QueryData queryData,
             long queryExecutionCount) {
-        TraceEntryImpl entry = new TraceEntryImpl(threadContext, activeEntry, messageSupplier,
-                queryData, queryExecutionCount, startTick, syncTimer, asyncTimer);
+        TraceEntryImpl entry = newEntry(messageSupplier, queryData, queryExecutionCount,
+                startTick, syncTimer, asyncTimer);
         tailEntry.setNextTraceEntry(entry);
         tailEntry = entry;
         activeEntry = entry;
@@ -101,8 +108,7 @@ class TraceEntryComponent {
 
     TraceEntryImpl addErrorEntry(long startTick, long endTick,
             @Nullable MessageSupplier messageSupplier, ErrorMessage errorMessage) {
-        TraceEntryImpl entry = new TraceEntryImpl(threadContext, activeEntry, messageSupplier, null,
-                1, startTick, null, null);
+        TraceEntryImpl entry = newEntry(messageSupplier, null, 1, startTick, null, null);
         entry.immediateEndAsErrorEntry(errorMessage, endTick);
         tailEntry.setNextTraceEntry(entry);
         tailEntry = entry;
@@ -121,6 +127,60 @@ class TraceEntryComponent {
         return rootEntry == tailEntry;
     }
 
+    // returns the (non-root) trace entries to the pool, this must only be called after the
+    // transaction has completed, it is known that it will not be stored, and it has been removed
+    // from the transaction registry
+    void recycle() {
+        if (chunks == null) {
+            return;
+        }
+        rootEntry.setNextTraceEntry(null);
+        activeEntry = rootEntry;
+        tailEntry = rootEntry;
+        int lastIndex = chunks.size() - 1;
+        for (int i = 0; i < lastIndex; i++) {
+            TraceEntryPool.releaseChunk(chunks.get(i), TraceEntryPool.CHUNK_SIZE);
+        }
+        TraceEntryPool.releaseChunk(chunks.get(lastIndex), currChunkSize);
+        chunks = null;
+        currChunkSize = 0;
+    }
+
+    private TraceEntryImpl newEntry(@Nullable MessageSupplier messageSupplier,
+            @Nullable QueryData queryData, long queryExecutionCount, long startTick,
+            @Nullable TimerImpl syncTimer, @Nullable AsyncTimerImpl asyncTimer) {
+        if (!TraceEntryPool.ENABLED) {
+            return new TraceEntryImpl(threadContext, activeEntry, messageSupplier, queryData,
+                    queryExecutionCount, startTick, syncTimer, asyncTimer);
+        }
+        return newPooledEntry(messageSupplier, queryData, queryExecutionCount, startTick,
+                syncTimer, asyncTimer);
+    }
+
+    private TraceEntryImpl newPooledEntry(@Nullable MessageSupplier messageSupplier,
+            @Nullable QueryData queryData, long queryExecutionCount, long startTick,
+            @Nullable TimerImpl syncTimer, @Nullable AsyncTimerImpl asyncTimer) {
+        if (chunks == null) {
+            chunks = Lists.newArrayList();
+            chunks.add(TraceEntryPool.acquireChunk());
+        } else if (currChunkSize == TraceEntryPool.CHUNK_SIZE) {
+            chunks.add(TraceEntryPool.acquireChunk());
+            currChunkSize = 0;
+        }
+        TraceEntryImpl[] chunk = chunks.get(chunks.size() - 1);
+        TraceEntryImpl entry = chunk[currChunkSize];
+        if (entry == null) {
+            entry = new TraceEntryImpl(threadContext, activeEntry, messageSupplier, queryData,
+                    queryExecutionCount, startTick, syncTimer, asyncTimer);
+            chunk[currChunkSize] = entry;
+        } else {
+            entry.reuse(threadContext, activeEntry, messageSupplier, queryData,
+                    queryExecutionCount, startTick, syncTimer, asyncTimer);
+        }
+        currChunkSize++;
+        return entry;
+    }
+
     private void popEntrySafe(TraceEntryImpl entry) {
         if (activeEntry != entry) {
             // somehow(?) a pop was missed (or maybe too many pops), this is just damage control
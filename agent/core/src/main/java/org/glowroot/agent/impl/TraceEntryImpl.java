@@ -22,7 +22,6 @@ import javax.annotation.Nullable;
 import com.google.common.base.Strings;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
-import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,14 +48,17 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     private static final Logger logger = LoggerFactory.getLogger(TraceEntryImpl.class);
     private static final Ticker ticker = Tickers.getTicker();
 
-    private final ThreadContextImpl threadContext;
-    private final @Nullable TraceEntryImpl parentTraceEntry;
-    private final @Nullable MessageSupplier messageSupplier;
+    // the fields below are not final since trace entries can be recycled, see TraceEntryPool
+
+    // only null after the trace entry has been returned to the pool
+    private @Nullable ThreadContextImpl threadContext;
+    private @Nullable TraceEntryImpl parentTraceEntry;
+    private @Nullable MessageSupplier messageSupplier;
 
     // volatile so it can be set from another thread (needed for async trace entries)
     private volatile @Nullable ErrorMessage errorMessage;
 
-    private final long startTick;
+    private long startTick;
 
     // these fields are not volatile, so depends on memory barrier in Transaction for visibility
     private long revisedStartTick;
@@ -68,15 +70,15 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     private @Nullable TraceEntryImpl nextTraceEntry;
 
     // only null for trace entries added using addEntryEntry()
-    private final @Nullable TimerImpl syncTimer;
-    private final @Nullable AsyncTimerImpl asyncTimer;
+    private @Nullable TimerImpl syncTimer;
+    private @Nullable AsyncTimerImpl asyncTimer;
     // not volatile, so depends on memory barrier in Transaction for visibility
     private @Nullable ImmutableList<StackTraceElement> stackTrace;
 
     // only used by transaction thread
     private long stackTraceThreshold;
     // only used by transaction thread
-    private @MonotonicNonNull TimerImpl extendedTimer;
+    private @Nullable TimerImpl extendedTimer;
 
     TraceEntryImpl(ThreadContextImpl threadContext,
             @Nullable TraceEntryImpl parentTraceEntry, @Nullable MessageSupplier messageSupplier,
@@ -96,6 +98,47 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         }
     }
 
+    // re-initializes a trace entry taken from the pool, see TraceEntryPool
+    void reuse(ThreadContextImpl threadContext, @Nullable TraceEntryImpl parentTraceEntry,
+            @Nullable MessageSupplier messageSupplier, @Nullable QueryData queryData,
+            long queryExecutionCount, long startTick, @Nullable TimerImpl syncTimer,
+            @Nullable AsyncTimerImpl asyncTimer) {
+        resetQueryEntry(queryData);
+        this.threadContext = threadContext;
+        this.parentTraceEntry = parentTraceEntry;
+        this.messageSupplier = messageSupplier;
+        this.startTick = startTick;
+        this.syncTimer = syncTimer;
+        this.asyncTimer = asyncTimer;
+        errorMessage = null;
+        revisedStartTick = startTick;
+        selfNestingLevel = 1;
+        endTick = 0;
+        initialComplete = false;
+        nextTraceEntry = null;
+        stackTrace = null;
+        stackTraceThreshold = 0;
+        extendedTimer = null;
+        if (queryData != null) {
+            queryData.start(startTick, queryExecutionCount);
+        }
+    }
+
+    // clears references so that a pooled trace entry does not retain the transaction that it was
+    // last used by
+    void clear() {
+        resetQueryEntry(null);
+        threadContext = null;
+        parentTraceEntry = null;
+        messageSupplier = null;
+        errorMessage = null;
+        nextTraceEntry = null;
+        syncTimer = null;
+        asyncTimer = null;
+        stackTrace = null;
+        extendedTimer = null;
+    }
+
     @Override
     public @Nullable MessageSupplier getMessageSupplier() {
         return messageSupplier;
@@ -286,7 +329,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     }
 
     ThreadContextImpl getThreadContext() {
-        return threadContext;
+        return checkNotNull(threadContext);
     }
 
     @Nullable
@@ -299,7 +342,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         return nextTraceEntry;
     }
 
-    void setNextTraceEntry(TraceEntryImpl nextTraceEntry) {
+    void setNextTraceEntry(@Nullable TraceEntryImpl nextTraceEntry) {
         this.nextTraceEntry = nextTraceEntry;
     }
 
@@ -327,7 +370,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
 
     private void endWithErrorInternal(@Nullable String message, @Nullable Throwable t) {
         ErrorMessage errorMessage = ErrorMessage.from(message, t,
-                threadContext.getTransaction().getThrowableFrameLimitCounter());
+                getThreadContext().getTransaction().getThrowableFrameLimitCounter());
         endInternal(ticker.read(), errorMessage);
         // it is not helpful to capture stack trace at end of async trace entry since it is
         // ended by a different thread (and by not capturing, it reduces thread safety needs)
@@ -355,10 +398,10 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         this.errorMessage = errorMessage;
         this.endTick = endTick;
         if (isAsync()) {
-            threadContext.getTransaction().memoryBarrierWrite();
+            getThreadContext().getTransaction().memoryBarrierWrite();
         } else {
             selfNestingLevel--;
-            threadContext.popEntry(this, endTick);
+            getThreadContext().popEntry(this, endTick);
         }
         initialComplete = true;
     }
@@ -382,7 +425,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         checkNotNull(syncTimer);
         syncTimer.stop();
         selfNestingLevel--;
-        threadContext.popNonRootEntry(this);
+        getThreadContext().popNonRootEntry(this);
     }
 
     @Override
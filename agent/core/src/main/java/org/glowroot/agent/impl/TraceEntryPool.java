@@ -0,0 +1,61 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// bounded pool of trace entry chunks, only used when trace entry recycling is enabled via
+// -Dglowroot.internal.recycleTraceEntries=true
+//
+// this reduces allocation (and promotion) for transactions with large numbers of trace entries
+// (e.g. batch jobs issuing tens of thousands of jdbc calls) that end up not being stored
+//
+// it is opt-in because trace entries are handed out to plugins (as TraceEntry / QueryEntry), so a
+// plugin that holds on to a trace entry past the end of its transaction (e.g. navigating a jdbc
+// result set after the transaction has ended) would write into whatever transaction the trace
+// entry has since been recycled into
+class TraceEntryPool {
+
+    static final boolean ENABLED = Boolean.getBoolean("glowroot.internal.recycleTraceEntries");
+
+    static final int CHUNK_SIZE = 256;
+
+    private static final int MAX_CHUNKS =
+            Integer.getInteger("glowroot.internal.recycleTraceEntries.maxChunks", 256);
+
+    private static final BlockingQueue<TraceEntryImpl[]> chunks =
+            new ArrayBlockingQueue<TraceEntryImpl[]>(MAX_CHUNKS);
+
+    private TraceEntryPool() {}
+
+    // slots in the returned chunk are either null or hold cleared trace entries
+    static TraceEntryImpl[] acquireChunk() {
+        TraceEntryImpl[] chunk = chunks.poll();
+        if (chunk == null) {
+            chunk = new TraceEntryImpl[CHUNK_SIZE];
+        }
+        return chunk;
+    }
+
+    static void releaseChunk(TraceEntryImpl[] chunk, int size) {
+        for (int i = 0; i < size; i++) {
+            chunk[i].clear();
+        }
+        // if the pool is full, the chunk is left for garbage collection
+        chunks.offer(chunk);
+    }
+}
@@ -24,6 +24,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
@@ -92,6 +93,9 @@ public class Transaction {
 
     private static final Random random = new Random();
 
+    private static final AtomicIntegerFieldUpdater<Transaction> recycleCountdownUpdater =
+            AtomicIntegerFieldUpdater.newUpdater(Transaction.class, "recycleCountdown");
+
     private volatile @Nullable String traceId;
 
     private final long startTime;
@@ -177,6 +181,16 @@ public class Transaction {
     private volatile boolean completed;
     private volatile long endTick;
 
+    // trace entries are only recycled once it is known that the transaction will not be stored
+    // and once the transaction has been removed from the transaction registry (whichever happens
+    // last), since until then the trace entries can still be read via the transaction registry
+    private volatile int recycleCountdown = 2;
+    // readers of trace entries hold this lock so that the trace entries are not recycled while
+    // being read by a thread that got the transaction from the registry just prior to removal
+    private final Object recycleLock = new Object();
+    @GuardedBy("recycleLock")
+    private boolean traceEntriesRecycled;
+
     private final Ticker ticker;
 
     private final UserProfileScheduler userProfileScheduler;
@@ -185,7 +199,7 @@ public class Transaction {
 
     Transaction(long startTime, long startTick, String transactionType, String transactionName,
             MessageSupplier messageSupplier, TimerName timerName, boolean captureThreadStats,
-            int maxTraceEntriesPerTransaction, int maxAggregateQueriesPerType,
+            int timedTimerDepth, int maxTraceEntriesPerTransaction, int maxAggregateQueriesPerType,
             int maxAggregateServiceCallsPerType,
             @Nullable ThreadAllocatedBytes threadAllocatedBytes,
             CompletionCallback completionCallback, Ticker ticker,
@@ -206,8 +220,8 @@ public class Transaction {
         this.transactionService = transactionService;
         this.configService = configService;
         mainThreadContext = new ThreadContextImpl(castInitialized(this), null, null,
-                messageSupplier, timerName, startTick, captureThreadStats, threadAllocatedBytes,
-                false, ticker, threadContextHolder, null);
+                messageSupplier, timerName, startTick, captureThreadStats, timedTimerDepth,
+                threadAllocatedBytes, false, ticker, threadContextHolder, null);
     }
 
     long getStartTime() {
@@ -402,6 +416,15 @@ public class Transaction {
     }
 
     public List<Trace.Entry> getEntriesProtobuf(long captureTick) {
+        synchronized (recycleLock) {
+            if (traceEntriesRecycled) {
+                return ImmutableList.of();
+            }
+            return getEntriesProtobufInternal(captureTick);
+        }
+    }
+
+    private List<Trace.Entry> getEntriesProtobufInternal(long captureTick) {
         memoryBarrierRead();
         ListMultimap<TraceEntryImpl, ThreadContextImpl> priorEntryChildThreadContextMap =
                 buildPriorEntryChildThreadContextMap();
@@ -588,6 +611,7 @@ public class Transaction {
 
     void removeFromActiveTransactions() {
         checkNotNull(transactionEntry).remove();
+        countDownToRecycle();
     }
 
     @Nullable
@@ -603,8 +627,9 @@ public class Transaction {
         }
         ThreadContextImpl auxThreadContext = new ThreadContextImpl(this, parentTraceEntry,
                 parentThreadContextPriorEntry, AuxThreadRootMessageSupplier.INSTANCE, auxTimerName,
-                startTick, mainThreadContext.getCaptureThreadStats(), threadAllocatedBytes, true,
-                ticker, threadContextHolder, servletMessageSupplier);
+                startTick, mainThreadContext.getCaptureThreadStats(),
+                mainThreadContext.getTimedTimerDepth(), threadAllocatedBytes, true, ticker,
+                threadContextHolder, servletMessageSupplier);
         synchronized (mainThreadContext) {
             if (auxThreadContexts == null) {
                 auxThreadContexts = Lists.newArrayList();
@@ -713,7 +738,41 @@ public class Transaction {
         completionCallback.completed(this);
     }
 
-    // called by the transaction thread
+    // this needs to be called inside the transaction thread, and only once it is known that the
+    // transaction will not be stored
+    void markTraceEntriesRecyclable() {
+        countDownToRecycle();
+    }
+
+    private void countDownToRecycle() {
+        if (TraceEntryPool.ENABLED && recycleCountdownUpdater.decrementAndGet(this) == 0) {
+            recycleTraceEntries();
+        }
+    }
+
+    // called by either the transaction thread or the aggregate processing thread
+    private void recycleTraceEntries() {
+        if (async || partiallyStored) {
+            return;
+        }
+        // aux thread contexts reference trace entries of the main thread context as their parent,
+        // and async trace entries can still be ended by other threads
+        synchronized (mainThreadContext) {
+            if (auxThreadContexts != null) {
+                return;
+            }
+        }
+        synchronized (asyncTimerLock) {
+            if (asyncTimers != null) {
+                return;
+            }
+        }
+        synchronized (recycleLock) {
+            traceEntriesRecycled = true;
+            mainThreadContext.recycleTraceEntries();
+        }
+    }
+
     void onCompleteWillStoreTrace(long captureTime) {
         this.captureTime = captureTime;
     }
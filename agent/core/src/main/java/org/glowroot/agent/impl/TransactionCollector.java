@@ -115,6 +115,7 @@ public class TransactionCollector {
         long captureTime = aggregator.add(transaction);
         final boolean slow = shouldStoreSlow(transaction);
         if (!slow && !shouldStoreError(transaction)) {
+            transaction.markTraceEntriesRecyclable();
             return;
         }
         // limit doesn't apply to transactions that were already (partially) stored to make sure
@@ -122,6 +123,7 @@ public class TransactionCollector {
         if (pendingTransactions.size() >= PENDING_LIMIT && !transaction.isPartiallyStored()) {
             backPressureLogger.warn("not storing a trace because of an excessive backlog of {}"
                     + " traces already waiting to be stored", PENDING_LIMIT);
+            transaction.markTraceEntriesRecyclable();
             return;
         }
         pendingTransactions.add(transaction);
@@ -18,11 +18,13 @@ package org.glowroot.agent.impl;
 import javax.annotation.Nullable;
 
 import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.config.AdvancedConfig;
 import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.config.TransactionConfig;
 import org.glowroot.agent.impl.Transaction.CompletionCallback;
 import org.glowroot.agent.impl.TransactionCollection.TransactionEntry;
 import org.glowroot.agent.plugin.api.MessageSupplier;
@@ -39,6 +41,10 @@ public class TransactionServiceImpl implements ConfigListener {
 
     private static final Logger logger = LoggerFactory.getLogger(TransactionServiceImpl.class);
 
+    // applies the timer counters only tier to all transaction types, used by benchmarks
+    private static final @Nullable Integer FORCE_TIMER_COUNTERS_ONLY_DEPTH =
+            Integer.getInteger("glowroot.internal.forceTimerCountersOnlyDepth");
+
     private final TransactionRegistry transactionRegistry;
     private final TransactionCollector transactionCollector;
     private final ConfigService configService;
@@ -54,6 +60,9 @@ public class TransactionServiceImpl implements ConfigListener {
     // cache for fast read access
     // visibility is provided by memoryBarrier below
     private boolean captureThreadStats;
+    private ImmutableSet<String> timerCountersOnlyTransactionTypes = ImmutableSet.of();
+    private boolean timerCountersOnlyAllTransactionTypes;
+    private int timerCountersOnlyDepth;
     private int maxAggregateQueriesPerType;
     private int maxAggregateServiceCallsPerType;
     private int maxTraceEntriesPerTransaction;
@@ -115,9 +124,14 @@ public class TransactionServiceImpl implements ConfigListener {
             MessageSupplier messageSupplier, TimerName timerName,
             Holder</*@Nullable*/ ThreadContextImpl> threadContextHolder) {
         long startTick = ticker.read();
+        // the capture tier is determined by the initial transaction type, and is not affected by
+        // later calls to setTransactionType()
+        int timedTimerDepth = timerCountersOnlyAllTransactionTypes
+                || timerCountersOnlyTransactionTypes.contains(transactionType)
+                        ? timerCountersOnlyDepth : Integer.MAX_VALUE;
         Transaction transaction = new Transaction(clock.currentTimeMillis(), startTick,
                 transactionType, transactionName, messageSupplier, timerName, captureThreadStats,
-                maxTraceEntriesPerTransaction, maxAggregateQueriesPerType,
+                timedTimerDepth, maxTraceEntriesPerTransaction, maxAggregateQueriesPerType,
                 maxAggregateServiceCallsPerType, threadAllocatedBytes,
                 transactionCompletionCallback, ticker, transactionRegistry, this, configService,
                 userProfileScheduler, threadContextHolder);
@@ -142,7 +156,16 @@ public class TransactionServiceImpl implements ConfigListener {
     @Override
     public void onChange() {
         AdvancedConfig advancedConfig = configService.getAdvancedConfig();
-        captureThreadStats = configService.getTransactionConfig().captureThreadStats();
+        TransactionConfig transactionConfig = configService.getTransactionConfig();
+        captureThreadStats = transactionConfig.captureThreadStats();
+        timerCountersOnlyTransactionTypes =
+                ImmutableSet.copyOf(transactionConfig.timerCountersOnlyTransactionTypes());
+        if (FORCE_TIMER_COUNTERS_ONLY_DEPTH == null) {
+            timerCountersOnlyDepth = Math.max(transactionConfig.timerCountersOnlyDepth(), 0);
+        } else {
+            timerCountersOnlyAllTransactionTypes = true;
+            timerCountersOnlyDepth = Math.max(FORCE_TIMER_COUNTERS_ONLY_DEPTH, 0);
+        }
         maxAggregateQueriesPerType = advancedConfig.maxAggregateQueriesPerType();
         maxAggregateServiceCallsPerType = advancedConfig.maxAggregateServiceCallsPerType();
         maxTraceEntriesPerTransaction = advancedConfig.maxTraceEntriesPerTransaction();
@@ -15,15 +15,11 @@
  */
 package org.glowroot.agent.impl;
 
-import java.lang.management.ManagementFactory;
-import java.lang.management.ThreadInfo;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 
-import javax.annotation.Nullable;
-
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
@@ -44,12 +40,14 @@ public class UserProfileScheduler {
 
     private final ScheduledExecutorService backgroundExecutor;
     private final ConfigService configService;
+    private final StackTraceSampler stackTraceSampler;
     private final Random random;
 
     public UserProfileScheduler(ScheduledExecutorService backgroundExecutor,
-            ConfigService configService, Random random) {
+            ConfigService configService, StackTraceSampler stackTraceSampler, Random random) {
         this.backgroundExecutor = backgroundExecutor;
         this.configService = configService;
+        this.stackTraceSampler = stackTraceSampler;
         this.random = random;
     }
 
@@ -78,30 +76,6 @@ public class UserProfileScheduler {
         transaction.setUserProfileRunnable(userProfileRunnable);
     }
 
-    public static void captureStackTraces(List<ThreadContextImpl> threadContexts,
-            ConfigService configService) {
-        if (threadContexts.isEmpty()) {
-            // critical not to call ThreadMXBean.getThreadInfo() with empty id list
-            // see https://bugs.openjdk.java.net/browse/JDK-8074368
-            return;
-        }
-        long[] threadIds = new long[threadContexts.size()];
-        for (int i = 0; i < threadContexts.size(); i++) {
-            threadIds[i] = threadContexts.get(i).getThreadId();
-        }
-        @Nullable
-        ThreadInfo[] threadInfos =
-                ManagementFactory.getThreadMXBean().getThreadInfo(threadIds, Integer.MAX_VALUE);
-        int limit = configService.getAdvancedConfig().maxStackTraceSamplesPerTransaction();
-        for (int i = 0; i < threadContexts.size(); i++) {
-            ThreadContextImpl threadContext = threadContexts.get(i);
-            ThreadInfo threadInfo = threadInfos[i];
-            if (threadInfo != null) {
-                threadContext.captureStackTrace(threadInfo, limit);
-            }
-        }
-    }
-
     @VisibleForTesting
     class UserProfileRunnable implements Runnable, Cancellable {
 
@@ -164,7 +138,7 @@ public class UserProfileScheduler {
                 activeThreadContexts.add(mainThreadContext);
             }
             activeThreadContexts.addAll(transaction.getActiveAuxThreadContexts());
-            captureStackTraces(activeThreadContexts, configService);
+            stackTraceSampler.captureStackTraces(activeThreadContexts);
         }
     }
 }
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.lang.management.ThreadInfo;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+
+import org.glowroot.agent.config.ConfigService;
+
+// samples every active thread, in two passes
+//
+// the first pass calls ThreadMXBean.getThreadInfo() with maxDepth 0, which does not walk the stacks
+// and so does not require a global safepoint, and is used to find threads that have not run since
+// their last sample (still blocked / waiting / parked, and have not blocked or waited again in
+// between, which is detected using the blocked and waited counts), whose last stack trace is then
+// re-used
+//
+// the second pass captures stack traces for the remaining threads
+class WallClockStackTraceSampler extends StackTraceSampler {
+
+    WallClockStackTraceSampler(ConfigService configService) {
+        super(configService);
+    }
+
+    @Override
+    void sample(List<ThreadContextImpl> threadContexts, int limit) {
+        @Nullable
+        ThreadInfo[] threadStates = threadMXBean.getThreadInfo(getThreadIds(threadContexts), 0);
+        List<ThreadContextImpl> changedThreadContexts =
+                Lists.newArrayListWithCapacity(threadContexts.size());
+        for (int i = 0; i < threadContexts.size(); i++) {
+            ThreadContextImpl threadContext = threadContexts.get(i);
+            ThreadInfo threadState = threadStates[i];
+            if (threadState == null) {
+                // thread is no longer alive
+                continue;
+            }
+            ThreadInfo lastStackTraceSample = threadContext.getLastStackTraceSample();
+            if (lastStackTraceSample != null && isUnchanged(lastStackTraceSample, threadState)) {
+                threadContext.captureStackTrace(lastStackTraceSample, limit);
+                recordSkippedStackTrace();
+            } else {
+                changedThreadContexts.add(threadContext);
+            }
+        }
+        captureAndMerge(changedThreadContexts, limit);
+    }
+
+    private static boolean isUnchanged(ThreadInfo lastStackTraceSample, ThreadInfo threadState) {
+        Thread.State state = threadState.getThreadState();
+        if (state != Thread.State.BLOCKED && state != Thread.State.WAITING
+                && state != Thread.State.TIMED_WAITING) {
+            // a runnable thread may have moved on even if it is still in the same method
+            return false;
+        }
+        // the blocked count is incremented every time the thread blocks, and the waited count is
+        // incremented every time the thread waits, parks or sleeps, so if neither has changed then
+        // the thread is still in the same blocked / waiting call as in the last sample
+        return state == lastStackTraceSample.getThreadState()
+                && threadState.getBlockedCount() == lastStackTraceSample.getBlockedCount()
+                && threadState.getWaitedCount() == lastStackTraceSample.getWaitedCount()
+                && Objects.equal(threadState.getLockName(), lastStackTraceSample.getLockName());
+    }
+}
@@ -43,6 +43,7 @@ import org.glowroot.agent.impl.ConfigServiceImpl;
 import org.glowroot.agent.impl.GlowrootServiceImpl;
 import org.glowroot.agent.impl.ServiceRegistryImpl;
 import org.glowroot.agent.impl.ServiceRegistryImpl.ConfigServiceFactory;
+import org.glowroot.agent.impl.StackTraceSampler;
 import org.glowroot.agent.impl.TimerNameCache;
 import org.glowroot.agent.impl.TransactionCollector;
 import org.glowroot.agent.impl.TransactionRegistry;
@@ -60,6 +61,7 @@ import org.glowroot.agent.weaving.AdviceCache;
 import org.glowroot.agent.weaving.AnalyzedWorld;
 import org.glowroot.agent.weaving.IsolatedWeavingClassLoader;
 import org.glowroot.agent.weaving.Weaver;
+import org.glowroot.agent.weaving.WeavingCache;
 import org.glowroot.agent.weaving.WeavingClassFileTransformer;
 import org.glowroot.common.live.LiveAggregateRepository;
 import org.glowroot.common.live.LiveJvmService;
@@ -83,6 +85,13 @@ public class AgentModule {
     private static final long ROLLUP_0_INTERVAL_MILLIS =
             Long.getLong("glowroot.internal.rollup.0.intervalMillis", 60 * 1000);
 
+    // number of threads (and interval collector shards) used to aggregate transactions, default is
+    // at least 2 (even on a single processor) so that one processing thread falling behind (e.g.
+    // while it waits on a lock held by an interval flush) does not hold up all transaction threads
+    private static final int AGGREGATE_PROCESSING_THREADS =
+            Math.max(Integer.getInteger("glowroot.internal.aggregate.processingThreads",
+                    Math.max(Math.min(Runtime.getRuntime().availableProcessors(), 4), 2)), 1);
+
     @OnlyUsedByTests
     public static final ThreadLocal</*@Nullable*/ IsolatedWeavingClassLoader> isolatedWeavingClassLoader =
             new ThreadLocal</*@Nullable*/ IsolatedWeavingClassLoader>();
@@ -91,6 +100,7 @@ public class AgentModule {
     private final AnalyzedWorld analyzedWorld;
     private final TransactionRegistry transactionRegistry;
     private final AdviceCache adviceCache;
+    private final @Nullable WeavingCache weavingCache;
 
     private final TransactionCollector transactionCollector;
     private final Aggregator aggregator;
@@ -113,7 +123,8 @@ public class AgentModule {
     public AgentModule(Clock clock, @Nullable Ticker nullableTicker, final PluginCache pluginCache,
             final ConfigService configService,
             Supplier<ScheduledExecutorService> backgroundExecutorSupplier, Collector collector,
-            @Nullable Instrumentation instrumentation, File baseDir) throws Exception {
+            @Nullable Instrumentation instrumentation, File baseDir, String glowrootVersion)
+            throws Exception {
 
         Ticker ticker = nullableTicker == null ? Tickers.getTicker() : nullableTicker;
         this.configService = configService;
@@ -130,9 +141,10 @@ public class AgentModule {
                 adviceCache.getShimTypes(), adviceCache.getMixinTypes());
         final TimerNameCache timerNameCache = new TimerNameCache();
 
+        weavingCache = WeavingCache.create(baseDir, glowrootVersion);
         Weaver weaver = new Weaver(adviceCache.getAdvisorsSupplier(), adviceCache.getShimTypes(),
                 adviceCache.getMixinTypes(), analyzedWorld, transactionRegistry, timerNameCache,
-                configService);
+                configService, weavingCache);
 
         if (instrumentation == null) {
             // instrumentation is null when debugging with LocalContainer
@@ -156,15 +168,17 @@ public class AgentModule {
         // now that instrumentation is set up, it is safe to create scheduled executor
         ScheduledExecutorService backgroundExecutor = backgroundExecutorSupplier.get();
 
-        aggregator = new Aggregator(collector, configService, ROLLUP_0_INTERVAL_MILLIS, clock);
+        aggregator = new Aggregator(collector, configService, ROLLUP_0_INTERVAL_MILLIS,
+                AGGREGATE_PROCESSING_THREADS, clock);
         transactionCollector =
                 new TransactionCollector(configService, collector, aggregator, clock, ticker);
 
         OptionalService<ThreadAllocatedBytes> threadAllocatedBytes = ThreadAllocatedBytes.create();
 
         Random random = new Random();
-        UserProfileScheduler userProfileScheduler =
-                new UserProfileScheduler(backgroundExecutor, configService, random);
+        StackTraceSampler stackTraceSampler = StackTraceSampler.create(configService);
+        UserProfileScheduler userProfileScheduler = new UserProfileScheduler(backgroundExecutor,
+                configService, stackTraceSampler, random);
         GlowrootService glowrootService = new GlowrootServiceImpl(transactionRegistry);
         TransactionServiceImpl.create(transactionRegistry, transactionCollector, configService,
                 timerNameCache, threadAllocatedBytes.getService(), userProfileScheduler, ticker,
@@ -193,6 +207,10 @@ public class AgentModule {
                         "org.glowroot:type=FileSystem,name=" + name);
             }
         }
+        lazyPlatformMBeanServer.lazyRegisterMBean(stackTraceSampler,
+                "org.glowroot:type=StackTraceSampler");
+        lazyPlatformMBeanServer.lazyRegisterMBean(timerNameCache,
+                "org.glowroot:type=TimerCounters");
         gaugeCollector = new GaugeCollector(configService, collector, lazyPlatformMBeanServer,
                 clock, ticker);
         // using fixed rate to keep gauge collections close to on the second mark
@@ -201,7 +219,8 @@ public class AgentModule {
                 - (clock.currentTimeMillis() % gaugeCollectionIntervalMillis);
         gaugeCollector.scheduleWithFixedDelay(initialDelay, gaugeCollectionIntervalMillis,
                 MILLISECONDS);
-        stackTraceCollector = new StackTraceCollector(transactionRegistry, configService, random);
+        stackTraceCollector = new StackTraceCollector(transactionRegistry, configService,
+                stackTraceSampler, random);
 
         immedateTraceStoreWatcher = new ImmediateTraceStoreWatcher(backgroundExecutor,
                 transactionRegistry, transactionCollector, configService, ticker);
@@ -311,5 +330,8 @@ public class AgentModule {
         gaugeCollector.close();
         stackTraceCollector.close();
         lazyPlatformMBeanServer.close();
+        if (weavingCache != null) {
+            weavingCache.close();
+        }
     }
 }
@@ -23,11 +23,20 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.management.Attribute;
+import javax.management.AttributeList;
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
 import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
 import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.NotificationListener;
 import javax.management.ObjectName;
 import javax.management.openmbean.CompositeData;
 
@@ -56,12 +65,16 @@ import org.glowroot.common.util.Styles;
 import org.glowroot.wire.api.Collector;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 class GaugeCollector extends ScheduledRunnable {
 
     private static final Logger logger = LoggerFactory.getLogger(GaugeCollector.class);
 
+    private static final String COLLECTION_TIME_GAUGE_NAME =
+            "org.glowroot:type=GaugeCollector:CollectionTime";
+
     private final ConfigService configService;
     private final Collector collector;
     private final LazyPlatformMBeanServer lazyPlatformMBeanServer;
@@ -81,6 +94,26 @@ class GaugeCollector extends ScheduledRunnable {
     // priorRawCounterValues (except can't initialize here outside of the dedicated thread)
     private @MonotonicNonNull Map<String, RawCounterValue> priorRawCounterValues;
 
+    // resolving an object name pattern queries every registered mbean, which is expensive on app
+    // servers with thousands of mbeans, so resolved patterns are cached until the next mbean
+    // registration or unregistration
+    //
+    // the cache is only used once the registration listener has been successfully added, and is
+    // only accessed from the dedicated gauge collection thread
+    private volatile boolean mbeanRegistrationListenerAdded;
+    private final MBeanRegistrationListener mbeanRegistrationListener =
+            new MBeanRegistrationListener();
+    // the mbean server that the registration listener was added to, so that it can be removed on
+    // close, guarded by mbeanRegistrationListener since the mbean server may be initialized
+    // concurrently with close
+    @GuardedBy("mbeanRegistrationListener")
+    private @Nullable MBeanServer mbeanRegistrationListenerServer;
+    @GuardedBy("mbeanRegistrationListener")
+    private boolean closed;
+    private final AtomicInteger mbeanRegistrationCount = new AtomicInteger();
+    private final Map<ObjectName, Set<ObjectName>> resolvedPatterns = Maps.newHashMap();
+    private int resolvedPatternsRegistrationCount;
+
     GaugeCollector(ConfigService configService, Collector collector,
             LazyPlatformMBeanServer lazyPlatformMBeanServer, Clock clock, Ticker ticker) {
         this.configService = configService;
@@ -112,12 +145,26 @@ class GaugeCollector extends ScheduledRunnable {
                 } catch (Exception e) {
                     logger.debug(e.getMessage(), e);
                 }
+                synchronized (mbeanRegistrationListener) {
+                    if (closed) {
+                        return;
+                    }
+                    try {
+                        mbeanServer.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME,
+                                mbeanRegistrationListener, null, null);
+                        mbeanRegistrationListenerServer = mbeanServer;
+                        mbeanRegistrationListenerAdded = true;
+                    } catch (Exception e) {
+                        logger.debug(e.getMessage(), e);
+                    }
+                }
             }
         });
     }
 
     @Override
     protected void runInternal() throws Exception {
+        long startTick = ticker.read();
         final List<GaugeValue> gaugeValues = Lists.newArrayList();
         if (priorRawCounterValues == null) {
             // wait to now to initialize priorGaugeValues inside of the dedicated thread
@@ -126,6 +173,14 @@ class GaugeCollector extends ScheduledRunnable {
         for (GaugeConfig gaugeConfig : configService.getGaugeConfigs()) {
             gaugeValues.addAll(collectGaugeValues(gaugeConfig));
         }
+        // collection time is reported as its own gauge so that collection cycles overrunning the
+        // gauge collection interval are visible
+        gaugeValues.add(GaugeValue.newBuilder()
+                .setGaugeName(COLLECTION_TIME_GAUGE_NAME)
+                .setCaptureTime(clock.currentTimeMillis())
+                .setValue(NANOSECONDS.toMicros(ticker.read() - startTick) / 1000.0)
+                .setWeight(1)
+                .build());
         flushingExecutor.execute(new Runnable() {
             @Override
             public void run() {
@@ -152,6 +207,19 @@ class GaugeCollector extends ScheduledRunnable {
         if (!flushingExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
+        synchronized (mbeanRegistrationListener) {
+            closed = true;
+            MBeanServer mbeanServer = mbeanRegistrationListenerServer;
+            if (mbeanServer != null) {
+                try {
+                    mbeanServer.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME,
+                            mbeanRegistrationListener);
+                } catch (Exception e) {
+                    logger.debug(e.getMessage(), e);
+                }
+                mbeanRegistrationListenerServer = null;
+            }
+        }
     }
 
     @VisibleForTesting
@@ -169,7 +237,7 @@ class GaugeCollector extends ScheduledRunnable {
         if (!objectName.isPattern()) {
             return collectGaugeValues(objectName, gaugeConfig.mbeanAttributes(), mbeanObjectName);
         }
-        Set<ObjectName> matchingObjectNames = lazyPlatformMBeanServer.queryNames(objectName, null);
+        Set<ObjectName> matchingObjectNames = resolvePattern(objectName);
         if (matchingObjectNames.isEmpty()) {
             logFirstTimeMBeanNotMatchedOrFound(mbeanObjectName);
             return ImmutableList.of();
@@ -183,9 +251,34 @@ class GaugeCollector extends ScheduledRunnable {
         return gaugeValues;
     }
 
+    private Set<ObjectName> resolvePattern(ObjectName objectName) throws InterruptedException {
+        if (!mbeanRegistrationListenerAdded) {
+            return lazyPlatformMBeanServer.queryNames(objectName, null);
+        }
+        int registrationCount = mbeanRegistrationCount.get();
+        if (registrationCount != resolvedPatternsRegistrationCount) {
+            resolvedPatterns.clear();
+            resolvedPatternsRegistrationCount = registrationCount;
+        }
+        Set<ObjectName> matchingObjectNames = resolvedPatterns.get(objectName);
+        if (matchingObjectNames == null) {
+            matchingObjectNames = lazyPlatformMBeanServer.queryNames(objectName, null);
+            resolvedPatterns.put(objectName, matchingObjectNames);
+        }
+        return matchingObjectNames;
+    }
+
     @RequiresNonNull("priorRawCounterValues")
     private List<GaugeValue> collectGaugeValues(ObjectName objectName,
             List<ImmutableMBeanAttribute> mbeanAttributes, String mbeanObjectName) {
+        Map<String, /*@Nullable*/ Object> attributeValues;
+        try {
+            attributeValues = getAttributeValues(objectName, mbeanAttributes);
+        } catch (InstanceNotFoundException e) {
+            logger.debug(e.getMessage(), e);
+            logFirstTimeMBeanNotMatchedOrFound(mbeanObjectName);
+            return ImmutableList.of();
+        }
         long captureTime = clock.currentTimeMillis();
         List<GaugeValue> gaugeValues = Lists.newArrayList();
         for (MBeanAttribute mbeanAttribute : mbeanAttributes) {
@@ -194,7 +287,7 @@ class GaugeCollector extends ScheduledRunnable {
             try {
                 if (mbeanAttributeName.contains(".")) {
                     String[] path = mbeanAttributeName.split("\\.");
-                    attributeValue = lazyPlatformMBeanServer.getAttribute(objectName, path[0]);
+                    attributeValue = getAttributeValue(objectName, path[0], attributeValues);
                     CompositeData compositeData = (CompositeData) attributeValue;
                     if (compositeData == null) {
                         // this is valid, e.g. attribute LastGcInfo on mbean
@@ -205,7 +298,7 @@ class GaugeCollector extends ScheduledRunnable {
                     attributeValue = compositeData.get(path[1]);
                 } else {
                     attributeValue =
-                            lazyPlatformMBeanServer.getAttribute(objectName, mbeanAttributeName);
+                            getAttributeValue(objectName, mbeanAttributeName, attributeValues);
                 }
             } catch (InstanceNotFoundException e) {
                 logger.debug(e.getMessage(), e);
@@ -273,6 +366,46 @@ class GaugeCollector extends ScheduledRunnable {
         return gaugeValues;
     }
 
+    // reads all of the attributes needed from the mbean using a single getAttributes() call
+    //
+    // attributes that could not be read are not in the returned map (getAttributes() does not
+    // report why an attribute could not be read), and are read again individually by
+    // getAttributeValue() in order to report the error
+    private Map<String, /*@Nullable*/ Object> getAttributeValues(ObjectName objectName,
+            List<ImmutableMBeanAttribute> mbeanAttributes) throws InstanceNotFoundException {
+        Set<String> attributeNames = Sets.newLinkedHashSet();
+        for (MBeanAttribute mbeanAttribute : mbeanAttributes) {
+            String mbeanAttributeName = mbeanAttribute.name();
+            int index = mbeanAttributeName.indexOf('.');
+            attributeNames.add(
+                    index == -1 ? mbeanAttributeName : mbeanAttributeName.substring(0, index));
+        }
+        Map<String, /*@Nullable*/ Object> attributeValues = Maps.newHashMap();
+        AttributeList attributeList;
+        try {
+            attributeList = lazyPlatformMBeanServer.getAttributes(objectName,
+                    attributeNames.toArray(new String[attributeNames.size()]));
+        } catch (InstanceNotFoundException e) {
+            throw e;
+        } catch (Exception e) {
+            // fall back to reading the attributes individually
+            logger.debug(e.getMessage(), e);
+            return attributeValues;
+        }
+        for (Attribute attribute : attributeList.asList()) {
+            attributeValues.put(attribute.getName(), attribute.getValue());
+        }
+        return attributeValues;
+    }
+
+    private @Nullable Object getAttributeValue(ObjectName objectName, String attributeName,
+            Map<String, /*@Nullable*/ Object> attributeValues) throws Exception {
+        if (attributeValues.containsKey(attributeName)) {
+            return attributeValues.get(attributeName);
+        }
+        return lazyPlatformMBeanServer.getAttribute(objectName, attributeName);
+    }
+
     // relatively common, so nice message
     private void logFirstTimeMBeanNotMatchedOrFound(String mbeanObjectName) {
         int delaySeconds = configService.getAdvancedConfig().mbeanGaugeNotFoundDelaySeconds();
@@ -322,6 +455,15 @@ class GaugeCollector extends ScheduledRunnable {
         }
     }
 
+    private class MBeanRegistrationListener implements NotificationListener {
+        @Override
+        public void handleNotification(Notification notification, @Nullable Object handback) {
+            if (notification instanceof MBeanServerNotification) {
+                mbeanRegistrationCount.getAndIncrement();
+            }
+        }
+    }
+
     @Value.Immutable
     @Styles.AllParameters
     interface RawCounterValue {
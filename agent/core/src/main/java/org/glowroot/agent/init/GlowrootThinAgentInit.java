@@ -84,7 +84,8 @@ public class GlowrootThinAgentInit implements GlowrootAgentInit {
                 createBackgroundExecutorSupplier();
 
         final AgentModule agentModule = new AgentModule(clock, ticker, pluginCache, configService,
-                backgroundExecutorSupplier, collectorProxy, instrumentation, baseDir);
+                backgroundExecutorSupplier, collectorProxy, instrumentation, baseDir,
+                glowrootVersion);
 
         final ScheduledExecutorService backgroundExecutor = backgroundExecutorSupplier.get();
 
@@ -96,7 +97,7 @@ public class GlowrootThinAgentInit implements GlowrootAgentInit {
             public @Nullable Void call() throws Exception {
                 Collector collector;
                 if (customCollector == null) {
-                    serverCollector = new ServerCollectorImpl(properties, collectorHost,
+                    serverCollector = new ServerCollectorImpl(baseDir, properties, collectorHost,
                             agentModule.getLiveJvmService(), agentModule.getLiveWeavingService(),
                             agentModule.getLiveTraceRepository(), agentConfigUpdater);
                     collector = serverCollector;
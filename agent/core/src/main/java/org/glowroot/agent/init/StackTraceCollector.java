@@ -25,10 +25,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.impl.StackTraceSampler;
 import org.glowroot.agent.impl.ThreadContextImpl;
 import org.glowroot.agent.impl.Transaction;
 import org.glowroot.agent.impl.TransactionRegistry;
-import org.glowroot.agent.impl.UserProfileScheduler;
 import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.common.util.OnlyUsedByTests;
 
@@ -38,17 +38,25 @@ class StackTraceCollector {
 
     private static final Logger logger = LoggerFactory.getLogger(StackTraceCollector.class);
 
+    // when there are more active threads than this, the threads are split into batches which are
+    // spread across the remainder of the profiling interval, so that each global safepoint (needed
+    // to capture the stack traces) is kept short
+    private static final int MAX_THREADS_PER_BATCH =
+            Integer.getInteger("glowroot.internal.profiling.maxThreadsPerBatch", 50);
+
     private final TransactionRegistry transactionRegistry;
     private final ConfigService configService;
+    private final StackTraceSampler stackTraceSampler;
     private final Random random;
 
     private final InternalRunnable runnable;
     private final Thread processingThread;
 
     StackTraceCollector(TransactionRegistry transactionRegistry, final ConfigService configService,
-            Random random) {
+            StackTraceSampler stackTraceSampler, Random random) {
         this.transactionRegistry = transactionRegistry;
         this.configService = configService;
+        this.stackTraceSampler = stackTraceSampler;
         this.random = random;
 
         runnable = new InternalRunnable();
@@ -117,15 +125,28 @@ class StackTraceCollector {
                     continue;
                 }
                 remainingInInterval = intervalMillis - randomDelayFromIntervalStart;
+                long startTime = System.currentTimeMillis();
                 try {
-                    runInternal();
+                    runInternal(remainingInInterval);
+                } catch (InterruptedException e) {
+                    logger.debug(e.getMessage(), e);
+                    // only terminate if closing
+                    if (closing.get()) {
+                        return;
+                    }
+                    // re-start loop
+                    remainingInInterval = 0;
+                    continue;
                 } catch (Throwable t) {
                     logger.error(t.getMessage(), t);
                 }
+                // subtract time spent between batches
+                remainingInInterval = Math.max(remainingInInterval
+                        - (System.currentTimeMillis() - startTime), 0);
             }
         }
 
-        private void runInternal() {
+        private void runInternal(long remainingInInterval) throws InterruptedException {
             List<Transaction> transactions =
                     ImmutableList.copyOf(transactionRegistry.getTransactions());
             if (transactions.isEmpty()) {
@@ -141,7 +162,15 @@ class StackTraceCollector {
                 }
                 activeThreadContexts.addAll(transaction.getActiveAuxThreadContexts());
             }
-            UserProfileScheduler.captureStackTraces(activeThreadContexts, configService);
+            List<List<ThreadContextImpl>> batches =
+                    Lists.partition(activeThreadContexts, MAX_THREADS_PER_BATCH);
+            long delayBetweenBatches = remainingInInterval / batches.size();
+            for (int i = 0; i < batches.size(); i++) {
+                if (i > 0) {
+                    Thread.sleep(delayBetweenBatches);
+                }
+                stackTraceSampler.captureStackTraces(batches.get(i));
+            }
         }
     }
 }
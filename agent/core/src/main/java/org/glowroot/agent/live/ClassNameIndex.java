@@ -0,0 +1,273 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.live;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+// sorted index of class names supporting case-insensitive prefix matching against the start of
+// any segment of the class name (where segments start at the beginning of the class name and
+// after each '.' and '$'), and camel case matching (e.g. "HSR" matches "HttpServletRequest")
+//
+// this class is not thread safe, access must be synchronized by the caller
+class ClassNameIndex {
+
+    // entries are (class name, segment start offset) pairs stored in parallel arrays, sorted by
+    // the case-insensitive suffix of the class name starting at the offset
+    //
+    // using parallel arrays instead of an entry object per segment to conserve memory since there
+    // are typically several hundred thousand entries
+    private String[] names = new String[0];
+    private int[] offsets = new int[0];
+    private int size;
+
+    // additions and removals are batched and merged into the sorted arrays on the next query
+    private final Set<String> pendingAdditions = Sets.newHashSet();
+    private final Set<String> pendingRemovals = Sets.newHashSet();
+
+    // the class name must not already be in the index
+    void add(String className) {
+        if (!pendingRemovals.remove(className)) {
+            pendingAdditions.add(className);
+        }
+    }
+
+    // the class name must be in the index
+    void remove(String className) {
+        if (!pendingAdditions.remove(className)) {
+            pendingRemovals.add(className);
+        }
+    }
+
+    ImmutableList<String> getMatchingClassNames(String partialClassName, int limit) {
+        merge();
+        String partialClassNameUpper = toUpperCase(partialClassName);
+        Set<String> matchingClassNames = Sets.newLinkedHashSet();
+        // full matches (where the entire suffix matches) sort before partial matches
+        int i = lowerBound(partialClassNameUpper);
+        while (i < size && matchingClassNames.size() < limit
+                && startsWith(names[i], offsets[i], partialClassNameUpper)) {
+            matchingClassNames.add(names[i++]);
+        }
+        if (matchingClassNames.size() < limit) {
+            List<String> humps = getCamelCaseHumps(partialClassName);
+            if (humps.size() > 1) {
+                addCamelCaseMatches(humps, matchingClassNames, limit);
+            }
+        }
+        return ImmutableList.copyOf(matchingClassNames);
+    }
+
+    private void addCamelCaseMatches(List<String> humps, Set<String> matchingClassNames,
+            int limit) {
+        String firstHumpUpper = toUpperCase(humps.get(0));
+        int i = lowerBound(firstHumpUpper);
+        while (i < size && matchingClassNames.size() < limit
+                && startsWith(names[i], offsets[i], firstHumpUpper)) {
+            if (isCamelCaseMatch(names[i], offsets[i], humps)) {
+                matchingClassNames.add(names[i]);
+            }
+            i++;
+        }
+    }
+
+    private void merge() {
+        if (pendingAdditions.isEmpty() && pendingRemovals.isEmpty()) {
+            return;
+        }
+        List<Entry> additions = Lists.newArrayList();
+        for (String className : pendingAdditions) {
+            additions.add(new Entry(className, 0));
+            for (int i = 0; i < className.length() - 1; i++) {
+                char c = className.charAt(i);
+                if (c == '.' || c == '$') {
+                    additions.add(new Entry(className, i + 1));
+                }
+            }
+        }
+        Entry[] sortedAdditions = additions.toArray(new Entry[additions.size()]);
+        Arrays.sort(sortedAdditions, EntryComparator.INSTANCE);
+        String[] newNames = new String[size + sortedAdditions.length];
+        int[] newOffsets = new int[size + sortedAdditions.length];
+        int newSize = 0;
+        int i = 0;
+        int j = 0;
+        while (i < size || j < sortedAdditions.length) {
+            if (i < size && pendingRemovals.contains(names[i])) {
+                i++;
+                continue;
+            }
+            if (j == sortedAdditions.length || i < size && compare(names[i], offsets[i],
+                    sortedAdditions[j].name, sortedAdditions[j].offset) <= 0) {
+                newNames[newSize] = names[i];
+                newOffsets[newSize++] = offsets[i++];
+            } else {
+                newNames[newSize] = sortedAdditions[j].name;
+                newOffsets[newSize++] = sortedAdditions[j++].offset;
+            }
+        }
+        names = newNames;
+        offsets = newOffsets;
+        size = newSize;
+        pendingAdditions.clear();
+        pendingRemovals.clear();
+    }
+
+    // returns the index of the first entry whose suffix is greater than or equal to the prefix
+    private int lowerBound(String prefixUpper) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareSuffix(names[mid], offsets[mid], prefixUpper) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int compare(String name1, int offset1, String name2, int offset2) {
+        int length1 = name1.length() - offset1;
+        int length2 = name2.length() - offset2;
+        int length = Math.min(length1, length2);
+        for (int i = 0; i < length; i++) {
+            char c1 = Character.toUpperCase(name1.charAt(offset1 + i));
+            char c2 = Character.toUpperCase(name2.charAt(offset2 + i));
+            if (c1 != c2) {
+                return c1 - c2;
+            }
+        }
+        if (length1 != length2) {
+            return length1 - length2;
+        }
+        // same suffix, so order by class name, e.g. so that full matches are returned in
+        // alphabetical order
+        int result = String.CASE_INSENSITIVE_ORDER.compare(name1, name2);
+        if (result != 0) {
+            return result;
+        }
+        return name1.compareTo(name2);
+    }
+
+    private static int compareSuffix(String name, int offset, String upper) {
+        int suffixLength = name.length() - offset;
+        int length = Math.min(suffixLength, upper.length());
+        for (int i = 0; i < length; i++) {
+            char c = Character.toUpperCase(name.charAt(offset + i));
+            char u = upper.charAt(i);
+            if (c != u) {
+                return c - u;
+            }
+        }
+        return suffixLength - upper.length();
+    }
+
+    private static boolean startsWith(String name, int offset, String prefixUpper) {
+        if (name.length() - offset < prefixUpper.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefixUpper.length(); i++) {
+            if (Character.toUpperCase(name.charAt(offset + i)) != prefixUpper.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the first hump has already been matched at the offset
+    private static boolean isCamelCaseMatch(String name, int offset, List<String> humps) {
+        int end = name.indexOf('.', offset);
+        if (end == -1) {
+            end = name.length();
+        }
+        int index = offset + humps.get(0).length();
+        for (int i = 1; i < humps.size(); i++) {
+            String hump = humps.get(i);
+            int found = -1;
+            for (int j = index; j + hump.length() <= end; j++) {
+                boolean humpStart =
+                        Character.isUpperCase(name.charAt(j)) || name.charAt(j - 1) == '$';
+                if (humpStart && name.regionMatches(true, j, hump, 0, hump.length())) {
+                    found = j;
+                    break;
+                }
+            }
+            if (found == -1) {
+                return false;
+            }
+            index = found + hump.length();
+        }
+        return true;
+    }
+
+    // e.g. "HttpSR" returns [Http, S, R]
+    private static List<String> getCamelCaseHumps(String partialClassName) {
+        if (partialClassName.indexOf('.') != -1 || partialClassName.indexOf('$') != -1) {
+            return ImmutableList.of();
+        }
+        List<String> humps = Lists.newArrayList();
+        int start = 0;
+        for (int i = 1; i < partialClassName.length(); i++) {
+            if (Character.isUpperCase(partialClassName.charAt(i))) {
+                humps.add(partialClassName.substring(start, i));
+                start = i;
+            }
+        }
+        if (start < partialClassName.length()) {
+            humps.add(partialClassName.substring(start));
+        }
+        return humps;
+    }
+
+    // upper casing char by char (as opposed to String.toUpperCase()) so that the length does not
+    // change, and so that it is consistent with the comparisons above
+    private static String toUpperCase(String str) {
+        char[] chars = new char[str.length()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toUpperCase(str.charAt(i));
+        }
+        return new String(chars);
+    }
+
+    private static class Entry {
+
+        private final String name;
+        private final int offset;
+
+        private Entry(String name, int offset) {
+            this.name = name;
+            this.offset = offset;
+        }
+    }
+
+    private static class EntryComparator implements Comparator<Entry> {
+
+        private static final EntryComparator INSTANCE = new EntryComparator();
+
+        @Override
+        public int compare(Entry left, Entry right) {
+            return ClassNameIndex.compare(left.name, left.offset, right.name, right.offset);
+        }
+    }
+}
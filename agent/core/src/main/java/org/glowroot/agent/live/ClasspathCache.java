@@ -27,12 +27,12 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLClassLoader;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
 import java.util.jar.Manifest;
@@ -42,16 +42,12 @@ import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.base.Splitter;
 import com.google.common.base.StandardSystemProperty;
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMultimap;
-import com.google.common.collect.Iterables;
-import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
-import com.google.common.collect.Ordering;
 import com.google.common.collect.Sets;
-import com.google.common.collect.TreeMultimap;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Closer;
 import com.google.common.io.Resources;
@@ -71,22 +67,46 @@ import static org.objectweb.asm.Opcodes.ACC_NATIVE;
 import static org.objectweb.asm.Opcodes.ACC_SYNTHETIC;
 import static org.objectweb.asm.Opcodes.ASM5;
 
-// TODO remove items from classpathLocations and classNameLocations when class loaders are no longer
-// present, e.g. in wildfly after undeploying an application
 class ClasspathCache {
 
     private static final Logger logger = LoggerFactory.getLogger(ClasspathCache.class);
 
+    // classpath locations are re-scanned at most this often while typing in the instrumentation
+    // UI, since this requires checking the file system for each url of each class loader
+    // (newly loaded classes are still picked up in between, see updateLoadedClassNames())
+    private static final long LOCATION_SCAN_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
     private final AnalyzedWorld analyzedWorld;
     private final @Nullable Instrumentation instrumentation;
 
     @GuardedBy("this")
     private final Set<Location> classpathLocations = Sets.newHashSet();
 
-    // using ImmutableMultimap because it is very space efficient
-    // this is not updated often so trading space efficiency for copying the entire map on update
+    // locations referenced from the Class-Path manifest attribute of jar files in
+    // classpathLocations
+    @GuardedBy("this")
+    private final Multimap<Location, Location> manifestClassPathLocations = HashMultimap.create();
+
+    // a class name can be present in more than one location, e.g. the same library jar deployed
+    // in multiple web applications
+    //
+    // using ArrayListMultimap with one expected value per key to conserve memory
+    @GuardedBy("this")
+    private final Multimap<String, Location> classNameLocations =
+            ArrayListMultimap.create(1024, 1);
+
+    // loaded classes are also included, e.g. for groovy classes
+    @GuardedBy("this")
+    private final Set<String> loadedClassNames = Sets.newHashSet();
     @GuardedBy("this")
-    private ImmutableMultimap<String, Location> classNameLocations = ImmutableMultimap.of();
+    private boolean loadedClassNamesInitialized;
+
+    // contains all class names from both classNameLocations and loadedClassNames
+    @GuardedBy("this")
+    private final ClassNameIndex classNameIndex = new ClassNameIndex();
+
+    @GuardedBy("this")
+    private long lastLocationScanNanos;
 
     ClasspathCache(AnalyzedWorld analyzedWorld, @Nullable Instrumentation instrumentation) {
         this.analyzedWorld = analyzedWorld;
@@ -96,41 +116,13 @@ class ClasspathCache {
     // using synchronization instead of concurrent structures in this cache to conserve memory
     synchronized ImmutableList<String> getMatchingClassNames(String partialClassName, int limit) {
         // update cache before proceeding
-        updateCache();
-        PartialClassNameMatcher matcher = new PartialClassNameMatcher(partialClassName);
-        Set<String> fullMatchingClassNames = Sets.newLinkedHashSet();
-        Set<String> matchingClassNames = Sets.newLinkedHashSet();
-        // also check loaded classes, e.g. for groovy classes
-        Iterator<String> i = classNameLocations.keySet().iterator();
-        if (instrumentation != null) {
-            List<String> loadedClassNames = Lists.newArrayList();
-            for (Class<?> clazz : instrumentation.getAllLoadedClasses()) {
-                if (!clazz.getName().startsWith("[")) {
-                    loadedClassNames.add(clazz.getName());
-                }
-            }
-            i = Iterators.concat(i, loadedClassNames.iterator());
-        }
-        while (i.hasNext()) {
-            String className = i.next();
-            String classNameUpper = className.toUpperCase(Locale.ENGLISH);
-            boolean potentialFullMatch = matcher.isPotentialFullMatch(classNameUpper);
-            if (matchingClassNames.size() == limit && !potentialFullMatch) {
-                // once limit reached, only consider full matches
-                continue;
-            }
-            if (fullMatchingClassNames.size() == limit) {
-                break;
-            }
-            if (matcher.isPotentialMatch(classNameUpper)) {
-                if (potentialFullMatch) {
-                    fullMatchingClassNames.add(className);
-                } else {
-                    matchingClassNames.add(className);
-                }
-            }
+        if (lastLocationScanNanos == 0
+                || System.nanoTime() - lastLocationScanNanos >= LOCATION_SCAN_INTERVAL_NANOS) {
+            updateCache();
+        } else {
+            updateLoadedClassNames(false);
         }
-        return combineClassNamesWithLimit(fullMatchingClassNames, matchingClassNames, limit);
+        return classNameIndex.getMatchingClassNames(partialClassName, limit);
     }
 
     // using synchronization over concurrent structures in this cache to conserve memory
@@ -138,8 +130,9 @@ class ClasspathCache {
         // update cache before proceeding
         updateCache();
         Set<UiAnalyzedMethod> analyzedMethods = Sets.newHashSet();
-        Collection<Location> locations = classNameLocations.get(className);
-        for (Location location : locations) {
+        // reading from all locations (and merging), since the same class name in different
+        // locations can be different versions of the class with different methods
+        for (Location location : classNameLocations.get(className)) {
             try {
                 analyzedMethods.addAll(getAnalyzedMethods(location, className));
             } catch (IOException e) {
@@ -159,61 +152,135 @@ class ClasspathCache {
 
     // using synchronization over concurrent structures in this cache to conserve memory
     synchronized void updateCache() {
-        Multimap<String, Location> newClassNameLocations = HashMultimap.create();
+        Set<Location> currentLocations = Sets.newLinkedHashSet();
         for (ClassLoader loader : getKnownClassLoaders()) {
-            updateCache(loader, newClassNameLocations);
+            addLocations(loader, currentLocations);
+        }
+        addLocations(StandardSystemProperty.JAVA_CLASS_PATH.value(), currentLocations);
+        addLocations(System.getProperty("sun.boot.class.path"), currentLocations);
+        for (Location location : currentLocations) {
+            if (!classpathLocations.contains(location)) {
+                Multimap<String, Location> newClassNameLocations = HashMultimap.create();
+                loadClassNames(location, newClassNameLocations);
+                addClassNames(location, newClassNameLocations);
+                classpathLocations.add(location);
+            }
+        }
+        // locations are no longer present when their class loaders have been collected, e.g. in
+        // wildfly after undeploying an application
+        List<Location> removedLocations =
+                ImmutableList.copyOf(Sets.difference(classpathLocations, currentLocations));
+        if (!removedLocations.isEmpty()) {
+            removeClassNames(removedLocations);
+        }
+        // re-sync loaded class names too since there is no notification when classes are
+        // unloaded
+        updateLoadedClassNames(!removedLocations.isEmpty());
+        lastLocationScanNanos = System.nanoTime();
+    }
+
+    @GuardedBy("this")
+    private void updateLoadedClassNames(boolean forceResync) {
+        if (instrumentation == null) {
+            return;
+        }
+        // class names are tracked as they are passed to the class file transformer, so that
+        // Instrumentation.getAllLoadedClasses() (which is very slow when there are many loaded
+        // classes) is only needed initially, and when the tracking overflows
+        List<String> addedClassNames = analyzedWorld.pollAddedClassNames();
+        if (addedClassNames == null || !loadedClassNamesInitialized || forceResync) {
+            Set<String> currentLoadedClassNames = Sets.newHashSet();
+            for (Class<?> clazz : instrumentation.getAllLoadedClasses()) {
+                if (!clazz.getName().startsWith("[")) {
+                    currentLoadedClassNames.add(clazz.getName());
+                }
+            }
+            for (String className : ImmutableList.copyOf(
+                    Sets.difference(loadedClassNames, currentLoadedClassNames))) {
+                loadedClassNames.remove(className);
+                if (!classNameLocations.containsKey(className)) {
+                    classNameIndex.remove(className);
+                }
+            }
+            for (String className : currentLoadedClassNames) {
+                addLoadedClassName(className);
+            }
+            loadedClassNamesInitialized = true;
+        } else {
+            for (String className : addedClassNames) {
+                addLoadedClassName(className);
+            }
         }
-        updateCacheWithClasspathClasses(newClassNameLocations);
-        updateCacheWithBootstrapClasses(newClassNameLocations);
-        if (!newClassNameLocations.isEmpty()) {
-            Multimap<String, Location> newMap =
-                    TreeMultimap.create(String.CASE_INSENSITIVE_ORDER, Ordering.allEqual());
-            newMap.putAll(classNameLocations);
-            newMap.putAll(newClassNameLocations);
-            classNameLocations = ImmutableMultimap.copyOf(newMap);
+    }
+
+    @GuardedBy("this")
+    private void addLoadedClassName(String className) {
+        if (loadedClassNames.add(className) && !classNameLocations.containsKey(className)) {
+            classNameIndex.add(className);
         }
     }
 
-    private ImmutableList<String> combineClassNamesWithLimit(Set<String> fullMatchingClassNames,
-            Set<String> matchingClassNames, int limit) {
-        if (fullMatchingClassNames.size() < limit) {
-            int space = limit - fullMatchingClassNames.size();
-            int numToAdd = Math.min(space, matchingClassNames.size());
-            fullMatchingClassNames
-                    .addAll(ImmutableList.copyOf(Iterables.limit(matchingClassNames, numToAdd)));
+    @GuardedBy("this")
+    private void addClassNames(Location location,
+            Multimap<String, Location> newClassNameLocations) {
+        for (Entry<String, Location> entry : newClassNameLocations.entries()) {
+            String className = entry.getKey();
+            Location classNameLocation = entry.getValue();
+            if (!classNameLocation.equals(location)) {
+                manifestClassPathLocations.put(location, classNameLocation);
+            }
+            if (classNameLocations.containsEntry(className, classNameLocation)) {
+                // e.g. location is referenced from more than one Class-Path manifest attribute
+                continue;
+            }
+            if (!classNameLocations.containsKey(className)
+                    && !loadedClassNames.contains(className)) {
+                classNameIndex.add(className);
+            }
+            classNameLocations.put(className, classNameLocation);
         }
-        return ImmutableList.copyOf(fullMatchingClassNames);
     }
 
     @GuardedBy("this")
-    private void updateCacheWithClasspathClasses(Multimap<String, Location> newClassNameLocations) {
-        String javaClassPath = StandardSystemProperty.JAVA_CLASS_PATH.value();
-        if (javaClassPath == null) {
+    private void removeClassNames(List<Location> locations) {
+        Set<Location> removedLocations = Sets.newHashSet();
+        for (Location location : locations) {
+            classpathLocations.remove(location);
+            removedLocations.add(location);
+            removedLocations.addAll(manifestClassPathLocations.removeAll(location));
+        }
+        // these are still referenced from other locations
+        removedLocations.removeAll(classpathLocations);
+        removedLocations.removeAll(manifestClassPathLocations.values());
+        if (removedLocations.isEmpty()) {
             return;
         }
-        for (String path : Splitter.on(File.pathSeparatorChar).split(javaClassPath)) {
-            File file = new File(path);
-            Location location = getLocationFromFile(file);
-            if (location != null && !classpathLocations.contains(location)) {
-                loadClassNames(location, newClassNameLocations);
-                classpathLocations.add(location);
+        Set<String> removedClassNames = Sets.newHashSet();
+        Iterator<Entry<String, Location>> i = classNameLocations.entries().iterator();
+        while (i.hasNext()) {
+            Entry<String, Location> entry = i.next();
+            if (removedLocations.contains(entry.getValue())) {
+                i.remove();
+                removedClassNames.add(entry.getKey());
+            }
+        }
+        for (String className : removedClassNames) {
+            if (!classNameLocations.containsKey(className)
+                    && !loadedClassNames.contains(className)) {
+                classNameIndex.remove(className);
             }
         }
     }
 
-    // TODO refactor this and above method which are nearly identical
-    @GuardedBy("this")
-    private void updateCacheWithBootstrapClasses(Multimap<String, Location> newClassNameLocations) {
-        String bootClassPath = System.getProperty("sun.boot.class.path");
-        if (bootClassPath == null) {
+    private static void addLocations(@Nullable String classPath, Set<Location> locations) {
+        if (classPath == null) {
             return;
         }
-        for (String path : Splitter.on(File.pathSeparatorChar).split(bootClassPath)) {
+        for (String path : Splitter.on(File.pathSeparatorChar).split(classPath)) {
             File file = new File(path);
             Location location = getLocationFromFile(file);
-            if (location != null && !classpathLocations.contains(location)) {
-                loadClassNames(location, newClassNameLocations);
-                classpathLocations.add(location);
+            if (location != null) {
+                locations.add(location);
             }
         }
     }
@@ -257,22 +324,13 @@ class ClasspathCache {
         return analyzedMethods;
     }
 
-    @GuardedBy("this")
-    private void updateCache(ClassLoader loader, Multimap<String, Location> newClassNameLocations) {
-        List<URL> urls = getURLs(loader);
-        List<Location> locations = Lists.newArrayList();
-        for (URL url : urls) {
+    private void addLocations(ClassLoader loader, Set<Location> locations) {
+        for (URL url : getURLs(loader)) {
             Location location = tryToGetFileFromURL(url, loader);
             if (location != null) {
                 locations.add(location);
             }
         }
-        for (Location location : locations) {
-            if (!classpathLocations.contains(location)) {
-                loadClassNames(location, newClassNameLocations);
-                classpathLocations.add(location);
-            }
-        }
     }
 
     private @Nullable Location tryToGetFileFromURL(URL url, ClassLoader loader) {
@@ -482,31 +540,6 @@ class ClasspathCache {
         ImmutableList<String> exceptions();
     }
 
-    private static class PartialClassNameMatcher {
-
-        private final String partialClassNameUpper;
-        private final String prefixedPartialClassNameUpper1;
-        private final String prefixedPartialClassNameUpper2;
-
-        private PartialClassNameMatcher(String partialClassName) {
-            partialClassNameUpper = partialClassName.toUpperCase(Locale.ENGLISH);
-            prefixedPartialClassNameUpper1 = '.' + partialClassNameUpper;
-            prefixedPartialClassNameUpper2 = '$' + partialClassNameUpper;
-        }
-
-        private boolean isPotentialFullMatch(String classNameUpper) {
-            return classNameUpper.equals(partialClassNameUpper)
-                    || classNameUpper.endsWith(prefixedPartialClassNameUpper1)
-                    || classNameUpper.endsWith(prefixedPartialClassNameUpper2);
-        }
-
-        private boolean isPotentialMatch(String classNameUpper) {
-            return classNameUpper.startsWith(partialClassNameUpper)
-                    || classNameUpper.contains(prefixedPartialClassNameUpper1)
-                    || classNameUpper.contains(prefixedPartialClassNameUpper2);
-        }
-    }
-
     private static class AnalyzingClassVisitor extends ClassVisitor {
 
         private final List<UiAnalyzedMethod> analyzedMethods = Lists.newArrayList();
@@ -59,6 +59,27 @@ public class MutableAggregateTimer {
         timer.mergeChildTimersInto2(childTimers);
     }
 
+    public void merge(MutableAggregateTimer timer) {
+        count += timer.count;
+        totalDurationNanos += timer.totalDurationNanos;
+        for (MutableAggregateTimer toBeMergedChildTimer : timer.childTimers) {
+            MutableAggregateTimer matchingChildTimer = null;
+            for (MutableAggregateTimer childTimer : childTimers) {
+                if (toBeMergedChildTimer.name.equals(childTimer.name)) {
+                    matchingChildTimer = childTimer;
+                    break;
+                }
+            }
+            if (matchingChildTimer == null) {
+                matchingChildTimer = new MutableAggregateTimer(toBeMergedChildTimer.name,
+                        toBeMergedChildTimer.extended, 0, 0,
+                        new ArrayList<MutableAggregateTimer>());
+                childTimers.add(matchingChildTimer);
+            }
+            matchingChildTimer.merge(toBeMergedChildTimer);
+        }
+    }
+
     public Aggregate.Timer toProto() {
         Aggregate.Timer.Builder builder = Aggregate.Timer.newBuilder()
                 .setName(name)
@@ -121,6 +121,17 @@ public class QueryCollector {
         }
     }
 
+    public void mergeQueriesInto(QueryCollector collector) {
+        for (Entry<String, Map<String, MutableQuery>> outerEntry : queries.entrySet()) {
+            for (Entry<String, MutableQuery> entry : outerEntry.getValue().entrySet()) {
+                MutableQuery query = entry.getValue();
+                collector.mergeQuery(outerEntry.getKey(), entry.getKey(),
+                        query.getTotalDurationNanos(), query.getExecutionCount(),
+                        query.hasTotalRows(), query.getTotalRows());
+            }
+        }
+    }
+
     public @Nullable String getFullQueryText(String fullQueryTextSha1) {
         for (Entry<String, Map<String, MutableQuery>> entry : queries.entrySet()) {
             for (String fullQueryText : entry.getValue().keySet()) {
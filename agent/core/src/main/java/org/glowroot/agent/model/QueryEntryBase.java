@@ -24,7 +24,8 @@ import org.glowroot.agent.plugin.api.QueryEntry;
 // addresses that must be navigated)
 public abstract class QueryEntryBase implements QueryEntry {
 
-    private final @Nullable QueryData queryData;
+    // not final, since trace entries can be recycled (see TraceEntryPool)
+    private @Nullable QueryData queryData;
 
     // row numbers start at 1
     private long currRow = -1;
@@ -35,6 +36,12 @@ public abstract class QueryEntryBase implements QueryEntry {
         this.queryData = queryData;
     }
 
+    protected void resetQueryEntry(@Nullable QueryData queryData) {
+        this.queryData = queryData;
+        currRow = -1;
+        maxRow = 0;
+    }
+
     public void extendQueryData(long startTick) {
         if (queryData != null) {
             queryData.extend(startTick);
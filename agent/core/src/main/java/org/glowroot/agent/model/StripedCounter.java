@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.Nullable;
+
+// counter that is incremented concurrently by many transaction threads and read infrequently
+//
+// this is a poor man's LongAdder (which is not available in java 6), stripes are picked by thread
+// id instead of by contention, and each stripe is padded to its own cache line to avoid false
+// sharing between threads incrementing different stripes
+//
+// the stripes are lazy initialized to save memory in the common case where the counter is never
+// incremented
+public class StripedCounter {
+
+    private static final int STRIPES = getStripes();
+
+    // 8 longs per stripe so that each stripe occupies a separate 64 byte cache line
+    private static final int PADDING = 8;
+
+    private volatile @Nullable AtomicLongArray stripes;
+
+    public void increment() {
+        AtomicLongArray stripes = this.stripes;
+        if (stripes == null) {
+            stripes = initStripes();
+        }
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        stripes.incrementAndGet(stripe * PADDING);
+    }
+
+    public long sum() {
+        AtomicLongArray stripes = this.stripes;
+        if (stripes == null) {
+            return 0;
+        }
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += stripes.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    private synchronized AtomicLongArray initStripes() {
+        AtomicLongArray stripes = this.stripes;
+        if (stripes == null) {
+            stripes = new AtomicLongArray(STRIPES * PADDING);
+            this.stripes = stripes;
+        }
+        return stripes;
+    }
+
+    // power of 2 (so that the stripe can be picked by masking) of at least the number of
+    // processors, but capped to bound the memory per counter
+    private static int getStripes() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int stripes = 1;
+        while (stripes < processors && stripes < 64) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+}
@@ -31,6 +31,10 @@ public abstract class TimerNameImpl implements TimerName {
 
     private static final AtomicInteger nextSpecialHashCode = new AtomicInteger();
 
+    // nested timers of transactions in the counters only tier are not timed, and instead only
+    // increment this counter (shared across all transactions)
+    private final StripedCounter countersOnlyCount = new StripedCounter();
+
     @VisibleForTesting
     public abstract String name();
 
@@ -48,4 +52,12 @@ public abstract class TimerNameImpl implements TimerName {
     public int specialHashCode() {
         return nextSpecialHashCode.getAndIncrement();
     }
+
+    public void incrementCountersOnlyCount() {
+        countersOnlyCount.increment();
+    }
+
+    public long getCountersOnlyCount() {
+        return countersOnlyCount.sum();
+    }
 }
@@ -0,0 +1,431 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.server;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.grpc.Status;
+import io.grpc.stub.CallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.util.RateLimitedLogger;
+import org.glowroot.common.util.OnlyUsedByTests;
+import org.glowroot.wire.api.model.CollectorServiceGrpc.CollectorServiceStub;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectFrame;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectFrameAck;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogEvent;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// long-lived stream used to send traces, gauge values and log events to the server, coalesced into
+// size and time bounded frames instead of one rpc per trace / gauge collection / log event
+//
+// frames are retained until acked by the server, and are re-sent on a new stream if the stream
+// fails, and since the server only requests more frames from the stream as it stores prior frames,
+// a slow server pushes back on the agent through grpc flow control (frames wait here until the
+// stream is ready)
+//
+// frames are spilled to disk (and replayed from there) instead of being retained here once
+// MAX_PENDING_FRAMES is reached, while the connection to the server is down, and while there is a
+// spill backlog (so that they are sent after the backlog), and are only dropped if they cannot be
+// spilled
+//
+// falls back to unary rpcs if the server does not implement the stream (older glowroot server)
+class CollectStream {
+
+    private static final Logger logger = LoggerFactory.getLogger(CollectStream.class);
+
+    private static final int MAX_FRAME_BYTES =
+            Integer.getInteger("glowroot.internal.collector.maxFrameBytes", 1024 * 1024);
+
+    private static final int MAX_FRAME_DELAY_MILLIS =
+            Integer.getInteger("glowroot.internal.collector.maxFrameDelayMillis", 1000);
+
+    // max frames retained in memory
+    private static final int MAX_PENDING_FRAMES =
+            Integer.getInteger("glowroot.internal.collector.maxPendingFrames", 100);
+
+    private static final int MAX_RECONNECT_DELAY_SECONDS = 60;
+
+    private final String agentId;
+    private final CollectorServiceStub collectorServiceStub;
+    private final ServerConnection serverConnection;
+    private final SpillQueue spillQueue;
+    private final AtomicBoolean inConnectionFailure;
+    private final UnaryCollector unaryCollector;
+
+    private final ScheduledExecutorService scheduledExecutor;
+
+    private final Random random = new Random();
+
+    private final RateLimitedLogger backPressureLogger = new RateLimitedLogger();
+    private final RateLimitedLogger connectionErrorLogger = new RateLimitedLogger();
+
+    private final Object lock = new Object();
+
+    @GuardedBy("lock")
+    private @Nullable CollectFrame.Builder currFrame;
+    @GuardedBy("lock")
+    private int currFrameBytes;
+    @GuardedBy("lock")
+    private long nextFrameId;
+
+    @GuardedBy("lock")
+    private final Deque<CollectFrame> unsentFrames = new ArrayDeque<CollectFrame>();
+    // insertion order is frame id order, which is needed when re-sending after stream failure
+    @GuardedBy("lock")
+    private final Map<Long, CollectFrame> unackedFrames = Maps.newLinkedHashMap();
+
+    @GuardedBy("lock")
+    private @Nullable StreamObserver<CollectFrame> requestObserver;
+    @GuardedBy("lock")
+    private @Nullable AckObserver ackObserver;
+    @GuardedBy("lock")
+    private boolean reconnectScheduled;
+    @GuardedBy("lock")
+    private long nextReconnectDelaySeconds = 1;
+    @GuardedBy("lock")
+    private boolean unimplemented;
+
+    private volatile boolean closed;
+
+    CollectStream(String agentId, CollectorServiceStub collectorServiceStub,
+            ServerConnection serverConnection, SpillQueue spillQueue,
+            AtomicBoolean inConnectionFailure, UnaryCollector unaryCollector) {
+        this.agentId = agentId;
+        this.collectorServiceStub = collectorServiceStub;
+        this.serverConnection = serverConnection;
+        this.spillQueue = spillQueue;
+        this.inConnectionFailure = inConnectionFailure;
+        this.unaryCollector = unaryCollector;
+        scheduledExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("Glowroot-Collect-Stream")
+                        .build());
+        // this seals partially filled frames once they reach the max delay, and also checks if the
+        // stream has become ready again (grpc-java 0.15 does not support registering an onReady
+        // handler for client calls made through the generated stubs)
+        scheduledExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    synchronized (lock) {
+                        sealCurrFrame();
+                        drain();
+                    }
+                } catch (Throwable t) {
+                    logError(t);
+                }
+            }
+        }, MAX_FRAME_DELAY_MILLIS, MAX_FRAME_DELAY_MILLIS, MILLISECONDS);
+    }
+
+    void addTrace(Trace trace) {
+        if (closed) {
+            return;
+        }
+        boolean sendUnary;
+        synchronized (lock) {
+            sendUnary = unimplemented;
+            if (!sendUnary) {
+                currFrame().addTrace(trace);
+                addedToCurrFrame(trace.getSerializedSize());
+            }
+        }
+        if (sendUnary) {
+            unaryCollector.collectTrace(trace);
+        }
+    }
+
+    void addGaugeValues(List<GaugeValue> gaugeValues) {
+        if (closed) {
+            return;
+        }
+        boolean sendUnary;
+        synchronized (lock) {
+            sendUnary = unimplemented;
+            if (!sendUnary) {
+                int bytes = 0;
+                for (GaugeValue gaugeValue : gaugeValues) {
+                    bytes += gaugeValue.getSerializedSize();
+                }
+                currFrame().addAllGaugeValue(gaugeValues);
+                addedToCurrFrame(bytes);
+            }
+        }
+        if (sendUnary) {
+            unaryCollector.collectGaugeValues(gaugeValues);
+        }
+    }
+
+    void addLogEvent(LogEvent logEvent) {
+        if (closed) {
+            return;
+        }
+        boolean sendUnary;
+        synchronized (lock) {
+            sendUnary = unimplemented;
+            if (!sendUnary) {
+                currFrame().addLogEvent(logEvent);
+                addedToCurrFrame(logEvent.getSerializedSize());
+            }
+        }
+        if (sendUnary) {
+            unaryCollector.log(logEvent);
+        }
+    }
+
+    @OnlyUsedByTests
+    void close() throws InterruptedException {
+        closed = true;
+        scheduledExecutor.shutdown();
+        if (!scheduledExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
+        synchronized (lock) {
+            if (requestObserver != null) {
+                requestObserver.onCompleted();
+                requestObserver = null;
+            }
+        }
+    }
+
+    @GuardedBy("lock")
+    private boolean isBackedUp() {
+        return unsentFrames.size() + unackedFrames.size() >= MAX_PENDING_FRAMES;
+    }
+
+    @GuardedBy("lock")
+    private CollectFrame.Builder currFrame() {
+        if (currFrame == null) {
+            currFrame = CollectFrame.newBuilder()
+                    .setAgentId(agentId);
+        }
+        return currFrame;
+    }
+
+    @GuardedBy("lock")
+    private void addedToCurrFrame(int bytes) {
+        currFrameBytes += bytes;
+        if (currFrameBytes >= MAX_FRAME_BYTES) {
+            sealCurrFrame();
+            drain();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void sealCurrFrame() {
+        if (currFrame == null) {
+            return;
+        }
+        CollectFrame frame = currFrame.setFrameId(nextFrameId++).build();
+        currFrame = null;
+        currFrameBytes = 0;
+        queueFrame(frame);
+    }
+
+    @GuardedBy("lock")
+    private void queueFrame(CollectFrame frame) {
+        if (inConnectionFailure.get() || isBackedUp() || spillQueue.hasBacklog()) {
+            if (spillQueue.spill(frame)) {
+                return;
+            }
+            if (isBackedUp()) {
+                logBackPressure();
+                return;
+            }
+        }
+        unsentFrames.add(frame);
+    }
+
+    @GuardedBy("lock")
+    private void drain() {
+        if (unsentFrames.isEmpty() || unimplemented) {
+            return;
+        }
+        if (requestObserver == null) {
+            if (reconnectScheduled) {
+                return;
+            }
+            ackObserver = new AckObserver();
+            requestObserver = collectorServiceStub.collect(ackObserver);
+        }
+        while (!unsentFrames.isEmpty() && isReady(requestObserver)) {
+            CollectFrame frame = unsentFrames.removeFirst();
+            unackedFrames.put(frame.getFrameId(), frame);
+            requestObserver.onNext(frame);
+        }
+    }
+
+    // called when the stream fails, returns the frames that need to be sent using unary rpcs if
+    // the server does not implement the stream
+    @GuardedBy("lock")
+    private List<CollectFrame> streamFailed(Throwable t) {
+        requestObserver = null;
+        ackObserver = null;
+        // frames that were sent but not acked are re-sent ahead of frames that were never sent
+        List<CollectFrame> frames = Lists.newArrayList(unackedFrames.values());
+        frames.addAll(unsentFrames);
+        unackedFrames.clear();
+        unsentFrames.clear();
+        if (Status.fromThrowable(t).getCode() == Status.Code.UNIMPLEMENTED) {
+            unimplemented = true;
+            sealCurrFrame();
+            frames.addAll(unsentFrames);
+            unsentFrames.clear();
+            return frames;
+        }
+        for (CollectFrame frame : frames) {
+            queueFrame(frame);
+        }
+        reconnectScheduled = true;
+        scheduledExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    synchronized (lock) {
+                        reconnectScheduled = false;
+                        drain();
+                    }
+                } catch (Throwable t) {
+                    logError(t);
+                }
+            }
+        }, nextReconnectDelaySeconds, SECONDS);
+        // reconnect delay doubles on average each time, randomized +/- 50%
+        double randomizedDoubling = 1.5 + random.nextDouble();
+        nextReconnectDelaySeconds = Math.min(
+                (long) (nextReconnectDelaySeconds * randomizedDoubling),
+                MAX_RECONNECT_DELAY_SECONDS);
+        return ImmutableList.of();
+    }
+
+    private void sendUnary(List<CollectFrame> frames) {
+        for (CollectFrame frame : frames) {
+            for (Trace trace : frame.getTraceList()) {
+                unaryCollector.collectTrace(trace);
+            }
+            if (frame.getGaugeValueCount() > 0) {
+                unaryCollector.collectGaugeValues(frame.getGaugeValueList());
+            }
+            for (LogEvent logEvent : frame.getLogEventList()) {
+                unaryCollector.log(logEvent);
+            }
+        }
+    }
+
+    private void logBackPressure() {
+        serverConnection.suppressLogCollector(new Runnable() {
+            @Override
+            public void run() {
+                backPressureLogger.warn("not sending data to server because of an excessive"
+                        + " backlog of {} frames waiting to be sent or acked, and the data could"
+                        + " not be spilled to disk", MAX_PENDING_FRAMES);
+            }
+        });
+    }
+
+    private void logError(final Throwable t) {
+        serverConnection.suppressLogCollector(new Runnable() {
+            @Override
+            public void run() {
+                logger.error(t.getMessage(), t);
+            }
+        });
+    }
+
+    private static boolean isReady(StreamObserver<CollectFrame> requestObserver) {
+        return !(requestObserver instanceof CallStreamObserver)
+                || ((CallStreamObserver<?>) requestObserver).isReady();
+    }
+
+    interface UnaryCollector {
+        void collectTrace(Trace trace);
+        void collectGaugeValues(List<GaugeValue> gaugeValues);
+        void log(LogEvent logEvent);
+    }
+
+    private class AckObserver implements StreamObserver<CollectFrameAck> {
+
+        @Override
+        public void onNext(CollectFrameAck ack) {
+            synchronized (lock) {
+                if (ackObserver != this) {
+                    // ack from a prior stream
+                    return;
+                }
+                unackedFrames.remove(ack.getFrameId());
+                nextReconnectDelaySeconds = 1;
+                drain();
+            }
+        }
+
+        @Override
+        public void onError(final Throwable t) {
+            if (closed) {
+                return;
+            }
+            List<CollectFrame> unaryFrames;
+            synchronized (lock) {
+                if (ackObserver != this) {
+                    return;
+                }
+                unaryFrames = streamFailed(t);
+            }
+            serverConnection.suppressLogCollector(new Runnable() {
+                @Override
+                public void run() {
+                    logger.debug(t.getMessage(), t);
+                }
+            });
+            if (unaryFrames.isEmpty()) {
+                if (!inConnectionFailure.get()) {
+                    connectionErrorLogger.warn("error sending data to server: {}", t.getMessage(),
+                            t);
+                }
+            } else {
+                sendUnary(unaryFrames);
+            }
+        }
+
+        @Override
+        public void onCompleted() {
+            // the server only completes the stream when it is shutting down
+            onError(Status.UNAVAILABLE.withDescription("Stream completed by server")
+                    .asRuntimeException());
+        }
+    }
+}
@@ -60,9 +60,12 @@ public class ServerCollectorImpl implements Collector {
     private final String agentId;
     private final ServerConnection serverConnection;
     private final CollectorServiceStub collectorServiceStub;
+    private final SpillQueue spillQueue;
+    private final CollectStream collectStream;
     private final DownstreamServiceObserver downstreamServiceObserver;
 
-    public ServerCollectorImpl(Map<String, String> properties, @Nullable String collectorHost,
+    public ServerCollectorImpl(File glowrootBaseDir, Map<String, String> properties,
+            @Nullable String collectorHost,
             LiveJvmService liveJvmService, LiveWeavingService liveWeavingService,
             LiveTraceRepository liveTraceRepository, AgentConfigUpdater agentConfigUpdater)
             throws Exception {
@@ -88,6 +91,25 @@ public class ServerCollectorImpl implements Collector {
         serverConnection = new ServerConnection(collectorHost, collectorPort, inConnectionFailure);
         collectorServiceStub = CollectorServiceGrpc.newStub(serverConnection.getChannel())
                 .withCompression("gzip");
+        spillQueue = new SpillQueue(new File(glowrootBaseDir, "spill"),
+                CollectorServiceGrpc.newFutureStub(serverConnection.getChannel())
+                        .withCompression("gzip"),
+                serverConnection, inConnectionFailure);
+        collectStream = new CollectStream(agentId, collectorServiceStub, serverConnection,
+                spillQueue, inConnectionFailure, new CollectStream.UnaryCollector() {
+                    @Override
+                    public void collectTrace(Trace trace) {
+                        sendTrace(trace);
+                    }
+                    @Override
+                    public void collectGaugeValues(List<GaugeValue> gaugeValues) {
+                        sendGaugeValues(gaugeValues);
+                    }
+                    @Override
+                    public void log(LogEvent logEvent) {
+                        sendLogEvent(logEvent);
+                    }
+                });
         downstreamServiceObserver = new DownstreamServiceObserver(serverConnection,
                 agentConfigUpdater, liveJvmService, liveWeavingService, liveTraceRepository,
                 agentId, inConnectionFailure);
@@ -129,16 +151,57 @@ public class ServerCollectorImpl implements Collector {
                 .addAllAggregatesByType(aggregatesByType)
                 .addAllSharedQueryText(sharedQueryTexts)
                 .build();
+        if (spillQueue.hasBacklog()) {
+            spillQueue.spill(aggregateMessage);
+            return;
+        }
         serverConnection.callWithAFewRetries(new GrpcCall<EmptyMessage>() {
             @Override
             public void call(StreamObserver<EmptyMessage> responseObserver) {
                 collectorServiceStub.collectAggregates(aggregateMessage, responseObserver);
             }
+            @Override
+            void doWithFailure() {
+                // aggregates are not dropped
+                spillQueue.spill(aggregateMessage);
+            }
         });
     }
 
     @Override
     public void collectGaugeValues(List<GaugeValue> gaugeValues) {
+        collectStream.addGaugeValues(gaugeValues);
+    }
+
+    @Override
+    public void collectTrace(Trace trace) {
+        collectStream.addTrace(trace);
+    }
+
+    @Override
+    public void log(LogEvent logEvent) {
+        if (serverConnection.suppressLogCollector()) {
+            return;
+        }
+        collectStream.addLogEvent(logEvent);
+    }
+
+    @OnlyUsedByTests
+    public void close() throws Exception {
+        collectStream.close();
+        spillQueue.close();
+        downstreamServiceObserver.close();
+        serverConnection.close();
+    }
+
+    @OnlyUsedByTests
+    public void awaitClose() throws InterruptedException {
+        serverConnection.awaitClose();
+    }
+
+    // unary rpcs are only used if the server does not implement the collect stream
+
+    private void sendGaugeValues(List<GaugeValue> gaugeValues) {
         final GaugeValueMessage gaugeValueMessage = GaugeValueMessage.newBuilder()
                 .setAgentId(agentId)
                 .addAllGaugeValues(gaugeValues)
@@ -151,8 +214,7 @@ public class ServerCollectorImpl implements Collector {
         });
     }
 
-    @Override
-    public void collectTrace(Trace trace) {
+    private void sendTrace(Trace trace) {
         final TraceMessage traceMessage = TraceMessage.newBuilder()
                 .setAgentId(agentId)
                 .setTrace(trace)
@@ -165,11 +227,7 @@ public class ServerCollectorImpl implements Collector {
         });
     }
 
-    @Override
-    public void log(LogEvent logEvent) {
-        if (serverConnection.suppressLogCollector()) {
-            return;
-        }
+    private void sendLogEvent(LogEvent logEvent) {
         final LogMessage logMessage = LogMessage.newBuilder()
                 .setAgentId(agentId)
                 .setLogEvent(logEvent)
@@ -181,15 +239,4 @@ public class ServerCollectorImpl implements Collector {
             }
         });
     }
-
-    @OnlyUsedByTests
-    public void close() throws InterruptedException {
-        downstreamServiceObserver.close();
-        serverConnection.close();
-    }
-
-    @OnlyUsedByTests
-    public void awaitClose() throws InterruptedException {
-        serverConnection.awaitClose();
-    }
 }
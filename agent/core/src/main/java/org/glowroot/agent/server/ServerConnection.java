@@ -106,12 +106,14 @@ class ServerConnection {
             return;
         }
         if (inConnectionFailure.get()) {
+            call.doWithFailure();
             return;
         }
         synchronized (backPressureLogger) {
             if (pendingRequestCount >= PENDING_LIMIT) {
                 backPressureLogger.warn("not sending data to server because of an excessive backlog"
                         + " of {} requests in progress", PENDING_LIMIT);
+                call.doWithFailure();
                 return;
             }
             pendingRequestCount++;
@@ -173,6 +175,8 @@ class ServerConnection {
     static abstract class GrpcCall<T extends /*@NonNull*/ Object> {
         abstract void call(StreamObserver<T> responseObserver);
         void doWithResponse(@SuppressWarnings("unused") T response) {}
+        // called (only by callWithAFewRetries) when the call is given up on
+        void doWithFailure() {}
     }
 
     private class RetryingStreamObserver<T extends /*@NonNull*/ Object>
@@ -203,6 +207,13 @@ class ServerConnection {
                 return;
             }
             if (inConnectionFailure.get()) {
+                if (maxTotalInSeconds != -1) {
+                    // this is a callWithAFewRetries() call
+                    synchronized (backPressureLogger) {
+                        pendingRequestCount--;
+                    }
+                    grpcCall.doWithFailure();
+                }
                 return;
             }
             suppressLogCollector(new Runnable() {
@@ -216,6 +227,7 @@ class ServerConnection {
                 synchronized (backPressureLogger) {
                     pendingRequestCount--;
                 }
+                grpcCall.doWithFailure();
                 return;
             }
             // TODO revisit retry/backoff after next grpc version
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// append-only journal of records, split across segment files which are deleted once all of their
+// records have been removed
+//
+// each record is framed as [payload length][crc32 of type and payload][type][payload] so that a
+// record torn by a crash (or otherwise corrupted) is detected when the journal is re-opened, in
+// which case the remainder of that segment is skipped
+//
+// records are only read from disk one at a time as they are replayed, so heap usage does not grow
+// with the size of the journal
+//
+// the read position within the oldest segment is not persisted, so after jvm restart some records
+// may be replayed a second time (which is fine since the server handles re-delivery)
+//
+// the last tenth of the max size can only be used by reserved records (aggregates), so that other
+// data filling up the journal does not cause them to be dropped, but no record of any type is
+// appended beyond the max size
+class SpillJournal {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpillJournal.class);
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final int HEADER_SIZE = 9;
+
+    private final File dir;
+    private final long maxBytes;
+    private final long unreservedMaxBytes;
+    private final int segmentBytes;
+
+    @GuardedBy("this")
+    private final Deque<File> segments = new ArrayDeque<File>();
+    @GuardedBy("this")
+    private long nextSegmentNumber;
+    // only written under the lock, but read without it (see hasRoom())
+    private volatile long totalBytes;
+
+    // only written under the lock, but read without it so that callers that hold their own locks
+    // are not blocked behind disk io
+    private volatile boolean empty;
+
+    // the write channel is for the last segment in segments
+    @GuardedBy("this")
+    private @Nullable FileChannel writeChannel;
+    @GuardedBy("this")
+    private long writePosition;
+
+    // the read channel is for the first segment in segments
+    @GuardedBy("this")
+    private @Nullable FileChannel readChannel;
+    @GuardedBy("this")
+    private long readPosition;
+
+    SpillJournal(File dir, long maxBytes, int segmentBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        unreservedMaxBytes = maxBytes - maxBytes / 10;
+        this.segmentBytes = segmentBytes;
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory: " + dir.getAbsolutePath());
+        }
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Could not list directory: " + dir.getAbsolutePath());
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            long segmentNumber;
+            try {
+                segmentNumber = Long.parseLong(
+                        name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                logger.debug(e.getMessage(), e);
+                continue;
+            }
+            segments.add(file);
+            totalBytes += file.length();
+            nextSegmentNumber = Math.max(nextSegmentNumber, segmentNumber + 1);
+        }
+        // existing segments are never appended to, since the last one may end with a torn record
+        updateEmpty();
+    }
+
+    // returns false if the record was not appended because the journal is full
+    synchronized boolean append(byte type, byte[] payload, boolean reserved) throws IOException {
+        int recordSize = HEADER_SIZE + payload.length;
+        if (!hasRoom(recordSize, reserved)) {
+            return false;
+        }
+        if (writeChannel == null
+                || writePosition > 0 && writePosition + recordSize > segmentBytes) {
+            rollSegment();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(payload.length);
+        header.putInt((int) crc.getValue());
+        header.put(type);
+        header.flip();
+        FileChannel writeChannel = this.writeChannel;
+        writeChannel.position(writePosition);
+        writeFully(writeChannel, new ByteBuffer[] {header, ByteBuffer.wrap(payload)});
+        writePosition += recordSize;
+        totalBytes += recordSize;
+        updateEmpty();
+        return true;
+    }
+
+    // this is only a hint when called without holding the lock, since records may be appended or
+    // removed concurrently
+    boolean hasRoom(long bytes, boolean reserved) {
+        return totalBytes + bytes <= (reserved ? maxBytes : unreservedMaxBytes);
+    }
+
+    static int getRecordSize(byte[] payload) {
+        return HEADER_SIZE + payload.length;
+    }
+
+    boolean isEmpty() {
+        return empty;
+    }
+
+    long getTotalBytes() {
+        return totalBytes;
+    }
+
+    // returns the oldest record without removing it, or null if the journal is empty
+    synchronized @Nullable Record peek() throws IOException {
+        while (!segments.isEmpty()) {
+            File segment = segments.getFirst();
+            boolean writeSegment = segments.size() == 1 && writeChannel != null;
+            long segmentSize = writeSegment ? writePosition : segment.length();
+            if (readPosition + HEADER_SIZE <= segmentSize) {
+                FileChannel readChannel = getReadChannel(segment);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                readFully(readChannel, header, readPosition);
+                header.flip();
+                int length = header.getInt();
+                int checksum = header.getInt();
+                byte type = header.get();
+                if (length >= 0 && readPosition + HEADER_SIZE + length <= segmentSize) {
+                    byte[] payload = new byte[length];
+                    readFully(readChannel, ByteBuffer.wrap(payload), readPosition + HEADER_SIZE);
+                    CRC32 crc = new CRC32();
+                    crc.update(type);
+                    crc.update(payload);
+                    if ((int) crc.getValue() == checksum) {
+                        updateEmpty();
+                        return new Record(type, payload);
+                    }
+                }
+                logger.warn("skipping remainder of corrupt spill segment: {}",
+                        segment.getAbsolutePath());
+            } else if (writeSegment) {
+                updateEmpty();
+                return null;
+            }
+            if (writeSegment) {
+                // the write segment itself is corrupt, start a new one so it can be deleted
+                rollSegment();
+            }
+            deleteFirstSegment();
+        }
+        updateEmpty();
+        return null;
+    }
+
+    // removes the record most recently returned by peek()
+    synchronized void remove(Record record) throws IOException {
+        int recordSize = HEADER_SIZE + record.payload.length;
+        readPosition += recordSize;
+        totalBytes -= recordSize;
+        boolean writeSegment = segments.size() == 1 && writeChannel != null;
+        if (!writeSegment && readPosition >= segments.getFirst().length()) {
+            deleteFirstSegment();
+        }
+        updateEmpty();
+    }
+
+    synchronized void close() throws IOException {
+        if (readChannel != null) {
+            readChannel.close();
+            readChannel = null;
+        }
+        if (writeChannel != null) {
+            writeChannel.close();
+            writeChannel = null;
+        }
+    }
+
+    @GuardedBy("this")
+    private void updateEmpty() {
+        empty = segments.isEmpty() || segments.size() == 1 && writeChannel != null
+                && readPosition == writePosition;
+    }
+
+    @GuardedBy("this")
+    private void rollSegment() throws IOException {
+        if (writeChannel != null) {
+            writeChannel.close();
+        }
+        File segment = new File(dir, String.format("%016d%s", nextSegmentNumber++,
+                SEGMENT_SUFFIX));
+        writeChannel = new RandomAccessFile(segment, "rw").getChannel();
+        writePosition = 0;
+        segments.add(segment);
+    }
+
+    @GuardedBy("this")
+    private FileChannel getReadChannel(File segment) throws IOException {
+        if (readChannel == null) {
+            readChannel = new RandomAccessFile(segment, "r").getChannel();
+        }
+        return readChannel;
+    }
+
+    @GuardedBy("this")
+    private void deleteFirstSegment() throws IOException {
+        File segment = segments.removeFirst();
+        if (readChannel != null) {
+            readChannel.close();
+            readChannel = null;
+        }
+        totalBytes -= segment.length() - readPosition;
+        readPosition = 0;
+        if (!segment.delete()) {
+            logger.warn("could not delete spill segment: {}", segment.getAbsolutePath());
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer[] buffers) throws IOException {
+        while (buffers[buffers.length - 1].hasRemaining()) {
+            channel.write(buffers);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        long pos = position;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, pos);
+            if (n == -1) {
+                throw new IOException("Unexpected end of spill segment");
+            }
+            pos += n;
+        }
+    }
+
+    static class Record {
+
+        private final byte type;
+        private final byte[] payload;
+
+        private Record(byte type, byte[] payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+
+        byte type() {
+            return type;
+        }
+
+        byte[] payload() {
+            return payload;
+        }
+    }
+}
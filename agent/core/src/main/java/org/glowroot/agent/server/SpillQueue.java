@@ -0,0 +1,406 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.InvalidProtocolBufferException;
+import io.grpc.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.server.SpillJournal.Record;
+import org.glowroot.agent.util.RateLimitedLogger;
+import org.glowroot.common.util.OnlyUsedByTests;
+import org.glowroot.wire.api.model.CollectorServiceGrpc.CollectorServiceFutureStub;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectFrame;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogEvent;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceMessage;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// data that cannot be sent to the server (server unreachable, or excessive backlog) is spilled to
+// a journal under the agent base dir instead of being retained in heap or dropped, and is replayed
+// in order by a dedicated thread once the server is reachable again
+//
+// spilled data is written to the journal by a dedicated thread, so that callers (which may be
+// holding their own locks) are not blocked on disk io
+//
+// part of the journal is reserved for aggregates (they are only collected once a minute), while
+// other data is dropped once the rest of the journal is full
+//
+// a spilled record that keeps failing to replay (e.g. because the server rejects it) is skipped
+// after MAX_REPLAY_ATTEMPTS, or immediately if the server reports that it is not retryable, so
+// that it does not block the records behind it forever
+class SpillQueue {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpillQueue.class);
+
+    private static final long MAX_BYTES =
+            Long.getLong("glowroot.internal.collector.spillMaxMb", 100) * 1024 * 1024;
+
+    private static final int SEGMENT_BYTES = 8 * 1024 * 1024;
+
+    private static final byte AGGREGATE_MESSAGE = 1;
+    private static final byte COLLECT_FRAME = 2;
+
+    // max bytes waiting to be written to the journal
+    private static final int MAX_PENDING_BYTES = SEGMENT_BYTES;
+
+    private static final int MAX_REPLAY_DELAY_SECONDS = 60;
+
+    private static final int MAX_REPLAY_ATTEMPTS =
+            Integer.getInteger("glowroot.internal.collector.spillMaxReplayAttempts", 5);
+
+    private static final Set<Status.Code> NON_RETRYABLE_CODES =
+            Sets.immutableEnumSet(Status.Code.INVALID_ARGUMENT, Status.Code.FAILED_PRECONDITION,
+                    Status.Code.OUT_OF_RANGE, Status.Code.UNIMPLEMENTED);
+
+    // these are not specific to the record being replayed, so are not counted as replay attempts
+    private static final Set<Status.Code> TRANSIENT_CODES =
+            Sets.immutableEnumSet(Status.Code.UNAVAILABLE, Status.Code.DEADLINE_EXCEEDED,
+                    Status.Code.RESOURCE_EXHAUSTED, Status.Code.CANCELLED);
+
+    private final @Nullable SpillJournal journal;
+    private final CollectorServiceFutureStub collectorServiceFutureStub;
+    private final ServerConnection serverConnection;
+    private final AtomicBoolean inConnectionFailure;
+
+    private final ExecutorService writeExecutor;
+    private final ExecutorService replayExecutor;
+
+    private final RateLimitedLogger fullLogger = new RateLimitedLogger();
+
+    private final Object lock = new Object();
+
+    @GuardedBy("lock")
+    private boolean replayPending;
+
+    // records waiting to be written to the journal, in spill order
+    @GuardedBy("lock")
+    private final Deque<PendingRecord> pendingRecords = new ArrayDeque<PendingRecord>();
+    @GuardedBy("lock")
+    private long pendingBytes;
+
+    private volatile boolean closed;
+
+    SpillQueue(File dir, CollectorServiceFutureStub collectorServiceFutureStub,
+            ServerConnection serverConnection, AtomicBoolean inConnectionFailure) {
+        SpillJournal journal;
+        try {
+            journal = new SpillJournal(dir, MAX_BYTES, SEGMENT_BYTES);
+        } catch (IOException e) {
+            logger.warn("could not open spill journal, data that cannot be sent to the server will"
+                    + " be dropped: {}", e.getMessage(), e);
+            journal = null;
+        }
+        this.journal = journal;
+        this.collectorServiceFutureStub = collectorServiceFutureStub;
+        this.serverConnection = serverConnection;
+        this.inConnectionFailure = inConnectionFailure;
+        writeExecutor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("Glowroot-Spill-Writer")
+                        .build());
+        writeExecutor.execute(new Writer());
+        replayExecutor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("Glowroot-Spill-Replay")
+                        .build());
+        replayExecutor.execute(new Replayer());
+    }
+
+    // while there is a backlog, new data is spilled too so that it is sent after the backlog
+    //
+    // this does not block on disk io, since it is called while holding the collect stream lock
+    boolean hasBacklog() {
+        if (journal == null) {
+            return false;
+        }
+        synchronized (lock) {
+            if (!pendingRecords.isEmpty()) {
+                return true;
+            }
+        }
+        return !journal.isEmpty();
+    }
+
+    boolean spill(AggregateMessage aggregateMessage) {
+        return append(AGGREGATE_MESSAGE, aggregateMessage.toByteArray(), true);
+    }
+
+    boolean spill(CollectFrame frame) {
+        return append(COLLECT_FRAME, frame.toByteArray(), false);
+    }
+
+    @OnlyUsedByTests
+    void close() throws Exception {
+        closed = true;
+        // shutdownNow() is needed here to send interrupt to writer and replay threads
+        writeExecutor.shutdownNow();
+        replayExecutor.shutdownNow();
+        if (!writeExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
+        if (!replayExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    // the record is only queued here, and written to the journal by the writer thread
+    private boolean append(byte type, byte[] payload, boolean reserved) {
+        if (journal == null) {
+            return false;
+        }
+        int recordSize = SpillJournal.getRecordSize(payload);
+        synchronized (lock) {
+            if (pendingBytes + recordSize <= MAX_PENDING_BYTES
+                    && journal.hasRoom(pendingBytes + recordSize, reserved)) {
+                pendingRecords.add(new PendingRecord(type, payload, reserved));
+                pendingBytes += recordSize;
+                lock.notifyAll();
+                return true;
+            }
+        }
+        logFull();
+        return false;
+    }
+
+    private void logFull() {
+        serverConnection.suppressLogCollector(new Runnable() {
+            @Override
+            public void run() {
+                fullLogger.warn("not spilling data because the spill journal has reached its"
+                        + " max size of {} MB", MAX_BYTES / (1024 * 1024));
+            }
+        });
+    }
+
+    private void replay(Record record) throws Exception {
+        List<ListenableFuture<?>> futures = Lists.newArrayList();
+        if (record.type() == AGGREGATE_MESSAGE) {
+            futures.add(collectorServiceFutureStub
+                    .collectAggregates(AggregateMessage.parseFrom(record.payload())));
+        } else if (record.type() == COLLECT_FRAME) {
+            CollectFrame frame = CollectFrame.parseFrom(record.payload());
+            String agentId = frame.getAgentId();
+            for (Trace trace : frame.getTraceList()) {
+                futures.add(collectorServiceFutureStub.collectTrace(TraceMessage.newBuilder()
+                        .setAgentId(agentId)
+                        .setTrace(trace)
+                        .build()));
+            }
+            if (frame.getGaugeValueCount() > 0) {
+                futures.add(collectorServiceFutureStub.collectGaugeValues(
+                        GaugeValueMessage.newBuilder()
+                                .setAgentId(agentId)
+                                .addAllGaugeValues(frame.getGaugeValueList())
+                                .build()));
+            }
+            for (LogEvent logEvent : frame.getLogEventList()) {
+                futures.add(collectorServiceFutureStub.log(LogMessage.newBuilder()
+                        .setAgentId(agentId)
+                        .setLogEvent(logEvent)
+                        .build()));
+            }
+        } else {
+            logger.warn("skipping spilled record of unexpected type: {}", record.type());
+            return;
+        }
+        Futures.allAsList(futures).get(MAX_REPLAY_DELAY_SECONDS, SECONDS);
+    }
+
+    private class Writer implements Runnable {
+
+        @Override
+        public void run() {
+            SpillJournal journal = SpillQueue.this.journal;
+            if (journal == null) {
+                return;
+            }
+            while (!closed) {
+                PendingRecord record;
+                try {
+                    record = waitForPendingRecord();
+                } catch (InterruptedException e) {
+                    if (closed) {
+                        return;
+                    }
+                    continue;
+                }
+                boolean appended;
+                try {
+                    appended = journal.append(record.type, record.payload, record.reserved);
+                } catch (final IOException e) {
+                    serverConnection.suppressLogCollector(new Runnable() {
+                        @Override
+                        public void run() {
+                            logger.error(e.getMessage(), e);
+                        }
+                    });
+                    appended = false;
+                }
+                if (!appended) {
+                    logFull();
+                }
+                synchronized (lock) {
+                    // only removed once written, so that hasBacklog() stays true in between
+                    pendingRecords.removeFirst();
+                    pendingBytes -= SpillJournal.getRecordSize(record.payload);
+                    replayPending = true;
+                    lock.notifyAll();
+                }
+            }
+        }
+
+        private PendingRecord waitForPendingRecord() throws InterruptedException {
+            synchronized (lock) {
+                while (pendingRecords.isEmpty()) {
+                    lock.wait();
+                }
+                return pendingRecords.getFirst();
+            }
+        }
+    }
+
+    private class Replayer implements Runnable {
+
+        private long nextDelaySeconds = 1;
+
+        // consecutive failed attempts to replay the record at the head of the journal
+        private int failedAttempts;
+
+        @Override
+        public void run() {
+            SpillJournal journal = SpillQueue.this.journal;
+            if (journal == null) {
+                return;
+            }
+            while (!closed) {
+                try {
+                    Record record = null;
+                    if (!inConnectionFailure.get()) {
+                        record = journal.peek();
+                    }
+                    if (record == null) {
+                        waitForSpill();
+                        continue;
+                    }
+                    try {
+                        replay(record);
+                    } catch (InvalidProtocolBufferException e) {
+                        logger.warn("skipping spilled record that could not be parsed: {}",
+                                e.getMessage(), e);
+                    } catch (ExecutionException e) {
+                        if (!shouldSkip(e)) {
+                            throw e;
+                        }
+                    }
+                    journal.remove(record);
+                    failedAttempts = 0;
+                    nextDelaySeconds = 1;
+                } catch (InterruptedException e) {
+                    if (closed) {
+                        return;
+                    }
+                } catch (final Throwable t) {
+                    serverConnection.suppressLogCollector(new Runnable() {
+                        @Override
+                        public void run() {
+                            logger.debug(t.getMessage(), t);
+                        }
+                    });
+                    try {
+                        SECONDS.sleep(nextDelaySeconds);
+                    } catch (InterruptedException e) {
+                        if (closed) {
+                            return;
+                        }
+                    }
+                    nextDelaySeconds = Math.min(nextDelaySeconds * 2, MAX_REPLAY_DELAY_SECONDS);
+                }
+            }
+        }
+
+        private boolean shouldSkip(final ExecutionException e) {
+            Status.Code code = Status.fromThrowable(e).getCode();
+            if (TRANSIENT_CODES.contains(code)) {
+                return false;
+            }
+            if (!NON_RETRYABLE_CODES.contains(code) && ++failedAttempts < MAX_REPLAY_ATTEMPTS) {
+                return false;
+            }
+            serverConnection.suppressLogCollector(new Runnable() {
+                @Override
+                public void run() {
+                    logger.warn("skipping spilled record that the server failed to accept after"
+                            + " {} attempt(s): {}", Math.max(failedAttempts, 1),
+                            e.getMessage(), e);
+                }
+            });
+            return true;
+        }
+
+        private void waitForSpill() throws InterruptedException {
+            synchronized (lock) {
+                if (!replayPending) {
+                    // also wakes up periodically to check if connection has been re-established
+                    lock.wait(SECONDS.toMillis(1));
+                }
+                replayPending = false;
+            }
+        }
+    }
+
+    private static class PendingRecord {
+
+        private final byte type;
+        private final byte[] payload;
+        private final boolean reserved;
+
+        private PendingRecord(byte type, byte[] payload, boolean reserved) {
+            this.type = type;
+            this.payload = payload;
+            this.reserved = reserved;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.util;
+
+import javax.annotation.Nullable;
+
+// micro-optimized open addressing map (linear probing with cached hash codes) for the maps that
+// are hit on every timer start and on every query execution
+//
+// get() does not allocate, and entries are never removed
+public abstract class OpenAddressingMap<K extends /*@NonNull*/ Object,
+        V extends /*@NonNull*/ Object> {
+
+    // capacity must always be a power of 2, see comments in get() and put()
+    private int capacity = 8;
+    // keys and values are interleaved in the same array for locality
+    private @Nullable Object[] table = new Object[capacity << 1];
+    private int[] hashes = new int[capacity];
+
+    private int size = 0;
+    // load factor is kept at 0.5 to keep probe sequences short
+    private int threshold = 4;
+
+    protected abstract int hash(K key);
+
+    protected abstract boolean keyEquals(K key, Object existingKey);
+
+    @SuppressWarnings("unchecked")
+    public @Nullable V get(K key) {
+        int hash = spread(hash(key));
+        @Nullable
+        Object[] table = this.table;
+        int[] hashes = this.hashes;
+        // this mask requires capacity to be a power of 2
+        int mask = capacity - 1;
+        int index = hash & mask;
+        while (true) {
+            Object existingKey = table[index << 1];
+            if (existingKey == null) {
+                return null;
+            }
+            if (hashes[index] == hash && keyEquals(key, existingKey)) {
+                return (V) table[(index << 1) + 1];
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    // IMPORTANT put assumes get was already called and key is not present in this map
+    public void put(K key, V value) {
+        if (size++ >= threshold) {
+            rehash();
+        }
+        putWithoutRehashCheck(key, spread(hash(key)), value);
+    }
+
+    private void putWithoutRehashCheck(Object key, int hash, @Nullable Object value) {
+        // this mask requires capacity to be a power of 2
+        int mask = capacity - 1;
+        int index = hash & mask;
+        while (table[index << 1] != null) {
+            index = (index + 1) & mask;
+        }
+        table[index << 1] = key;
+        table[(index << 1) + 1] = value;
+        hashes[index] = hash;
+    }
+
+    private void rehash() {
+        @Nullable
+        Object[] existingTable = table;
+        int[] existingHashes = hashes;
+        capacity <<= 1;
+        threshold <<= 1;
+        table = new Object[capacity << 1];
+        hashes = new int[capacity];
+        for (int i = 0; i < existingHashes.length; i++) {
+            Object key = existingTable[i << 1];
+            if (key != null) {
+                putWithoutRehashCheck(key, existingHashes[i], existingTable[(i << 1) + 1]);
+            }
+        }
+    }
+
+    // same as java.util.HashMap, spreads higher bits downward since the table index only uses the
+    // lower bits
+    private static int spread(int hashCode) {
+        return hashCode ^ (hashCode >>> 16);
+    }
+}
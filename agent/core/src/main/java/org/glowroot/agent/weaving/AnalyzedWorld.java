@@ -17,16 +17,23 @@ package org.glowroot.agent.weaving;
 
 import java.io.IOException;
 import java.lang.annotation.Annotation;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.security.CodeSource;
+import java.security.MessageDigest;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 
@@ -52,13 +59,25 @@ public class AnalyzedWorld {
 
     private static final Logger logger = LoggerFactory.getLogger(AnalyzedWorld.class);
 
+    // matches the default concurrency level of ConcurrentHashMap
+    private static final int WORLD_STRIPES = 16;
+
+    private static final int MAX_ADDED_CLASS_NAMES = 100000;
+
     private static final Method findLoadedClassMethod;
 
+    // cloned for each digest since MessageDigest is not thread safe, and getting a new instance
+    // from inside ClassFileTransformer.transform() can trigger security provider class loading
+    private static final MessageDigest messageDigestPrototype;
+
     static {
         try {
             findLoadedClassMethod = ClassLoader.class.getDeclaredMethod("findLoadedClass",
                     new Class[] {String.class});
             findLoadedClassMethod.setAccessible(true);
+            messageDigestPrototype = MessageDigest.getInstance("SHA-1");
+            // fail fast here instead of inside ClassFileTransformer.transform()
+            messageDigestPrototype.clone();
         } catch (Exception e) {
             // unrecoverable error
             throw new AssertionError(e);
@@ -73,8 +92,10 @@ public class AnalyzedWorld {
     // not using the much more convenient (and concurrent) guava CacheBuilder since it uses many
     // additional classes that must then be pre-initialized since this is called from inside
     // ClassFileTransformer.transform() (see PreInitializeClasses)
-    private final Map<ClassLoader, ConcurrentMap<String, AnalyzedClass>> world = Collections
-            .synchronizedMap(new WeakHashMap<ClassLoader, ConcurrentMap<String, AnalyzedClass>>());
+    //
+    // the class loaders are spread over multiple (separately synchronized) stripes so that
+    // parallel class loading threads do not all contend on the same lock during weaving
+    private final ImmutableList<Map<ClassLoader, ConcurrentMap<String, AnalyzedClass>>> world;
 
     // the analyzed classes for the bootstrap class loader (null) have to be stored separately since
     // LoadingCache doesn't accept null keys, and using an Optional<ClassLoader> for the key makes
@@ -85,6 +106,24 @@ public class AnalyzedWorld {
     private final ConcurrentMap<String, AnalyzedClass> bootstrapLoaderWorld =
             new ConcurrentHashMap<String, AnalyzedClass>();
 
+    // analyzed classes shared across class loaders, keyed by digest of the class bytes, so that
+    // e.g. the same library jar deployed in many web applications only needs to be analyzed once
+    //
+    // values are weak so that the analyzed classes are only retained while they are still
+    // referenced from (at least) one of the class loader maps above
+    private final ConcurrentMap<ByteBuffer, SharedAnalyzedClass> sharedAnalyzedClasses =
+            new ConcurrentHashMap<ByteBuffer, SharedAnalyzedClass>();
+    private final ReferenceQueue<AnalyzedClass> sharedAnalyzedClassQueue =
+            new ReferenceQueue<AnalyzedClass>();
+
+    // names of classes added since the last call to pollAddedClassNames(), which are only tracked
+    // once the first call has been made (e.g. once the instrumentation UI has been used)
+    private volatile boolean trackAddedClassNames;
+    private final ConcurrentLinkedQueue<String> addedClassNames =
+            new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger addedClassNameCount = new AtomicInteger();
+    private volatile boolean addedClassNamesOverflow;
+
     private final Supplier<List<Advice>> advisors;
     private final ImmutableList<ShimType> shimTypes;
     private final ImmutableList<MixinType> mixinTypes;
@@ -94,6 +133,13 @@ public class AnalyzedWorld {
         this.advisors = advisors;
         this.shimTypes = ImmutableList.copyOf(shimTypes);
         this.mixinTypes = ImmutableList.copyOf(mixinTypes);
+        ImmutableList.Builder<Map<ClassLoader, ConcurrentMap<String, AnalyzedClass>>> world =
+                ImmutableList.builder();
+        for (int i = 0; i < WORLD_STRIPES; i++) {
+            world.add(Collections.synchronizedMap(
+                    new WeakHashMap<ClassLoader, ConcurrentMap<String, AnalyzedClass>>()));
+        }
+        this.world = world.build();
     }
 
     public List<Class<?>> getClassesWithReweavableAdvice(boolean remove) {
@@ -117,14 +163,47 @@ public class AnalyzedWorld {
     }
 
     public ImmutableList<ClassLoader> getClassLoaders() {
-        synchronized (world) {
-            return ImmutableList.copyOf(world.keySet());
+        ImmutableList.Builder<ClassLoader> loaders = ImmutableList.builder();
+        for (Map<ClassLoader, ConcurrentMap<String, AnalyzedClass>> worldStripe : world) {
+            synchronized (worldStripe) {
+                loaders.addAll(worldStripe.keySet());
+            }
+        }
+        return loaders.build();
+    }
+
+    // returns null on the first call (which starts the tracking), and when too many classes were
+    // added since the last call, in which case the caller needs to get the names from
+    // Instrumentation.getAllLoadedClasses() instead
+    public @Nullable List<String> pollAddedClassNames() {
+        if (!trackAddedClassNames) {
+            trackAddedClassNames = true;
+            return null;
         }
+        // reset overflow before draining so that overflow during draining is not lost
+        boolean overflow = addedClassNamesOverflow;
+        addedClassNamesOverflow = false;
+        List<String> classNames = Lists.newArrayList();
+        String className;
+        while ((className = addedClassNames.poll()) != null) {
+            classNames.add(className);
+        }
+        addedClassNameCount.addAndGet(-classNames.size());
+        return overflow ? null : classNames;
     }
 
     void add(AnalyzedClass analyzedClass, @Nullable ClassLoader loader) {
         ConcurrentMap<String, AnalyzedClass> loaderAnalyzedClasses = getAnalyzedClasses(loader);
         loaderAnalyzedClasses.put(analyzedClass.name(), analyzedClass);
+        if (trackAddedClassNames) {
+            // bounded in case the class names are not polled for a long time
+            if (addedClassNameCount.incrementAndGet() > MAX_ADDED_CLASS_NAMES) {
+                addedClassNameCount.decrementAndGet();
+                addedClassNamesOverflow = true;
+            } else {
+                addedClassNames.add(analyzedClass.name());
+            }
+        }
     }
 
     // it's ok if there are duplicates in the returned list (e.g. an interface that appears twice
@@ -321,17 +400,76 @@ public class AnalyzedWorld {
                 bytes = Resources.toByteArray(url);
             }
         }
-        List<Advice> advisors =
-                mergeInstrumentAnnotations(this.advisors.get(), bytes, loader, className);
+        List<Advice> baseAdvisors = this.advisors.get();
+        List<Advice> advisors = mergeInstrumentAnnotations(baseAdvisors, bytes, loader, className);
+        ClassReader cr = new ClassReader(bytes);
+        ByteBuffer digest = null;
+        List<AnalyzedClass> superAnalyzedClasses = null;
+        // classes with @Instrument annotations are not shared since their advisors are generated
+        if (advisors == baseAdvisors) {
+            digest = getDigest(bytes);
+            superAnalyzedClasses = getSuperAnalyzedClasses(cr, loader);
+            AnalyzedClass sharedAnalyzedClass =
+                    getSharedAnalyzedClass(digest, advisors, superAnalyzedClasses);
+            if (sharedAnalyzedClass != null) {
+                return sharedAnalyzedClass;
+            }
+        }
         ThinClassVisitor accv = new ThinClassVisitor();
-        new ClassReader(bytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
+        cr.accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
         ClassAnalyzer classAnalyzer = new ClassAnalyzer(accv.getThinClass(), advisors, shimTypes,
                 mixinTypes, loader, this, null, bytes);
-        if (classAnalyzer.isShortCircuitBeforeAnalyzeMethods()) {
-            return classAnalyzer.getAnalyzedClass();
+        if (!classAnalyzer.isShortCircuitBeforeAnalyzeMethods()) {
+            classAnalyzer.analyzeMethods();
+        }
+        AnalyzedClass analyzedClass = classAnalyzer.getAnalyzedClass();
+        if (digest != null && superAnalyzedClasses != null) {
+            putSharedAnalyzedClass(digest, advisors, superAnalyzedClasses, analyzedClass);
+        }
+        return analyzedClass;
+    }
+
+    // the analyzed class also depends on the analyzed classes of its super types, which are
+    // resolved separately in each class loader and so need to be part of the sharing criteria
+    private List<AnalyzedClass> getSuperAnalyzedClasses(ClassReader cr,
+            @Nullable ClassLoader loader) {
+        if (Modifier.isInterface(cr.getAccess())) {
+            // ClassAnalyzer does not look at the super types of interfaces
+            return ImmutableList.of();
+        }
+        ParseContext parseContext =
+                ImmutableParseContext.of(ClassNames.fromInternalName(cr.getClassName()), null);
+        List<AnalyzedClass> superAnalyzedClasses = Lists.newArrayList();
+        superAnalyzedClasses.addAll(getAnalyzedHierarchy(
+                ClassNames.fromInternalName(cr.getSuperName()), loader, parseContext));
+        for (String interfaceName : cr.getInterfaces()) {
+            superAnalyzedClasses.addAll(getAnalyzedHierarchy(
+                    ClassNames.fromInternalName(interfaceName), loader, parseContext));
+        }
+        return superAnalyzedClasses;
+    }
+
+    private @Nullable AnalyzedClass getSharedAnalyzedClass(ByteBuffer digest,
+            List<Advice> advisors, List<AnalyzedClass> superAnalyzedClasses) {
+        SharedAnalyzedClass sharedAnalyzedClass = sharedAnalyzedClasses.get(digest);
+        if (sharedAnalyzedClass == null
+                || !sharedAnalyzedClass.isFor(advisors, superAnalyzedClasses)) {
+            return null;
         }
-        classAnalyzer.analyzeMethods();
-        return classAnalyzer.getAnalyzedClass();
+        // null if it has just been garbage collected
+        return sharedAnalyzedClass.get();
+    }
+
+    private void putSharedAnalyzedClass(ByteBuffer digest, List<Advice> advisors,
+            List<AnalyzedClass> superAnalyzedClasses, AnalyzedClass analyzedClass) {
+        SharedAnalyzedClass ref;
+        while ((ref = (SharedAnalyzedClass) sharedAnalyzedClassQueue.poll()) != null) {
+            sharedAnalyzedClasses.remove(ref.digest, ref);
+        }
+        // last one wins if the same class bytes have different super types in different class
+        // loaders, which is rare
+        sharedAnalyzedClasses.put(digest, new SharedAnalyzedClass(digest, advisors,
+                superAnalyzedClasses, analyzedClass, sharedAnalyzedClassQueue));
     }
 
     private @Nullable AnalyzedClass tryToReuseFromParentLoader(String className,
@@ -397,12 +535,14 @@ public class AnalyzedWorld {
         if (loader == null) {
             return bootstrapLoaderWorld;
         } else {
+            Map<ClassLoader, ConcurrentMap<String, AnalyzedClass>> worldStripe =
+                    world.get((System.identityHashCode(loader) & 0x7FFFFFFF) % WORLD_STRIPES);
             // this synchronization is for atomicity of get/put
-            synchronized (world) {
-                ConcurrentMap<String, AnalyzedClass> map = world.get(loader);
+            synchronized (worldStripe) {
+                ConcurrentMap<String, AnalyzedClass> map = worldStripe.get(loader);
                 if (map == null) {
                     map = new ConcurrentHashMap<String, AnalyzedClass>();
-                    world.put(loader, map);
+                    worldStripe.put(loader, map);
                 }
                 return map;
             }
@@ -410,9 +550,25 @@ public class AnalyzedWorld {
     }
 
     private ImmutableList<ConcurrentMap<String, AnalyzedClass>> getWorldValues() {
-        synchronized (world) {
-            return ImmutableList.copyOf(world.values());
+        ImmutableList.Builder<ConcurrentMap<String, AnalyzedClass>> values =
+                ImmutableList.builder();
+        for (Map<ClassLoader, ConcurrentMap<String, AnalyzedClass>> worldStripe : world) {
+            synchronized (worldStripe) {
+                values.addAll(worldStripe.values());
+            }
+        }
+        return values.build();
+    }
+
+    private static ByteBuffer getDigest(byte[] bytes) {
+        MessageDigest md;
+        try {
+            md = (MessageDigest) messageDigestPrototype.clone();
+        } catch (CloneNotSupportedException e) {
+            // not possible since clone() was checked in the static initializer
+            throw new IllegalStateException(e);
         }
+        return ByteBuffer.wrap(md.digest(bytes));
     }
 
     // now that the type has been loaded anyways, build the analyzed class via reflection
@@ -539,6 +695,41 @@ public class AnalyzedWorld {
         return matchingAdvisors;
     }
 
+    private static class SharedAnalyzedClass extends WeakReference<AnalyzedClass> {
+
+        private final ByteBuffer digest;
+        private final List<Advice> advisors;
+        private final ImmutableList<AnalyzedClass> superAnalyzedClasses;
+
+        private SharedAnalyzedClass(ByteBuffer digest, List<Advice> advisors,
+                List<AnalyzedClass> superAnalyzedClasses, AnalyzedClass analyzedClass,
+                ReferenceQueue<AnalyzedClass> queue) {
+            super(analyzedClass, queue);
+            this.digest = digest;
+            this.advisors = advisors;
+            this.superAnalyzedClasses = ImmutableList.copyOf(superAnalyzedClasses);
+        }
+
+        private boolean isFor(List<Advice> advisors, List<AnalyzedClass> superAnalyzedClasses) {
+            // advisors list instance only changes when instrumentation config is changed
+            if (this.advisors != advisors
+                    || this.superAnalyzedClasses.size() != superAnalyzedClasses.size()) {
+                return false;
+            }
+            for (int i = 0; i < superAnalyzedClasses.size(); i++) {
+                AnalyzedClass superAnalyzedClass = this.superAnalyzedClasses.get(i);
+                // identity check first since super types are frequently shared instances
+                // themselves, but super types that were woven (as opposed to only analyzed) are
+                // separate (equal) instances in each class loader
+                if (superAnalyzedClass != superAnalyzedClasses.get(i)
+                        && !superAnalyzedClass.equals(superAnalyzedClasses.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
     @Value.Immutable
     @Styles.AllParameters
     abstract static class ParseContext {
@@ -246,11 +246,13 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.impl.NestedTimerMap");
         types.add("org.glowroot.agent.impl.ThreadContextImpl");
         types.add("org.glowroot.agent.impl.TimerImpl");
+        types.add("org.glowroot.agent.impl.TimerImpl$CountersOnlyTimer");
         types.add("org.glowroot.agent.impl.TransactionRegistry");
         types.add("org.glowroot.agent.impl.TransactionRegistry$TransactionRegistryHolder");
         types.add("org.glowroot.agent.impl.TransactionServiceImpl");
         types.add("org.glowroot.agent.impl.TransactionServiceImpl$TransactionServiceHolder");
         types.add("org.glowroot.agent.model.CommonTimerImpl");
+        types.add("org.glowroot.agent.model.StripedCounter");
         types.add("org.glowroot.agent.model.ThreadContextPlus");
         types.add("org.glowroot.agent.model.TimerNameImpl");
         types.add("org.glowroot.agent.plugin.api.MessageSupplier");
@@ -280,6 +282,7 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.plugin.api.weaving.OnThrow");
         types.add("org.glowroot.agent.plugin.api.weaving.Pointcut");
         types.add("org.glowroot.agent.plugin.api.weaving.Shim");
+        types.add("org.glowroot.agent.util.OpenAddressingMap");
         types.add("org.glowroot.agent.util.Tickers");
         types.add("org.glowroot.agent.util.Tickers$DummyTicker");
         types.add("org.glowroot.agent.weaving.Advice");
@@ -296,6 +299,7 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.AnalyzedMethod");
         types.add("org.glowroot.agent.weaving.AnalyzedWorld");
         types.add("org.glowroot.agent.weaving.AnalyzedWorld$ParseContext");
+        types.add("org.glowroot.agent.weaving.AnalyzedWorld$SharedAnalyzedClass");
         types.add("org.glowroot.agent.weaving.BootstrapMetaHolders");
         types.add("org.glowroot.agent.weaving.BootstrapMetaHolders$ClassMetaHolder");
         types.add("org.glowroot.agent.weaving.BootstrapMetaHolders$MethodMetaHolder");
@@ -350,12 +354,16 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.Weaver");
         types.add("org.glowroot.agent.weaving.Weaver$ComputeFramesClassWriter");
         types.add("org.glowroot.agent.weaving.Weaver$JSRInlinerClassVisitor");
+        types.add("org.glowroot.agent.weaving.WeavingCache");
+        types.add("org.glowroot.agent.weaving.WeavingCache$AdvisorsFingerprint");
+        types.add("org.glowroot.agent.weaving.WeavingCache$WovenEntry");
         types.add("org.glowroot.agent.weaving.WeavingClassFileTransformer");
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor");
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor$InitMixins");
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor$MethodMetaGroup");
         types.add("org.glowroot.agent.weaving.WeavingMethodVisitor");
         types.add("org.glowroot.agent.weaving.WeavingMethodVisitor$CatchHandler");
+        types.add("org.glowroot.agent.weaving.WeavingPreFilter");
         types.add("org.glowroot.common.util.Patterns");
         types.add("org.glowroot.wire.api.model.AgentConfigOuterClass$AgentConfig"
                 + "$InstrumentationConfig$CaptureKind");
@@ -28,6 +28,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.StandardSystemProperty;
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.io.Files;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
@@ -49,7 +50,10 @@ import org.glowroot.agent.plugin.api.TimerName;
 import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.agent.plugin.api.weaving.Pointcut;
 import org.glowroot.agent.weaving.AnalyzedWorld.ParseContext;
+import org.glowroot.agent.weaving.ThinClassVisitor.ThinClass;
+import org.glowroot.agent.weaving.WeavingCache.WovenEntry;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static org.objectweb.asm.Opcodes.ASM5;
 
 public class Weaver {
@@ -59,24 +63,32 @@ public class Weaver {
     // useful for debugging java.lang.VerifyErrors
     private static final boolean VERIFY_WEAVING = Boolean.getBoolean("glowroot.weaving.verify");
 
+    // used as the baseline in WeavingBenchmark.executeWithoutPreFilter()
+    private static final boolean DISABLE_PRE_FILTER =
+            Boolean.getBoolean("glowroot.internal.weaving.disablePreFilter");
+
     private final Supplier<List<Advice>> advisors;
     private final ImmutableList<ShimType> shimTypes;
     private final ImmutableList<MixinType> mixinTypes;
     private final AnalyzedWorld analyzedWorld;
     private final TransactionRegistry transactionRegistry;
+    private final @Nullable WeavingCache weavingCache;
     private final TimerName timerName;
 
     private volatile boolean enabled;
 
+    private volatile @Nullable WeavingPreFilter preFilter;
+
     public Weaver(Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
             List<MixinType> mixinTypes, AnalyzedWorld analyzedWorld,
             TransactionRegistry transactionRegistry, TimerNameCache timerNameCache,
-            final ConfigService configService) {
+            final ConfigService configService, @Nullable WeavingCache weavingCache) {
         this.advisors = advisors;
         this.shimTypes = ImmutableList.copyOf(shimTypes);
         this.mixinTypes = ImmutableList.copyOf(mixinTypes);
         this.analyzedWorld = analyzedWorld;
         this.transactionRegistry = transactionRegistry;
+        this.weavingCache = weavingCache;
         configService.addConfigListener(new ConfigListener() {
             @Override
             public void onChange() {
@@ -120,12 +132,42 @@ public class Weaver {
 
     private byte/*@Nullable*/[] weaveUnderTimer(byte[] classBytes, String className,
             @Nullable CodeSource codeSource, @Nullable ClassLoader loader) {
-        List<Advice> advisors = analyzedWorld.mergeInstrumentAnnotations(this.advisors.get(),
-                classBytes, loader, className);
+        List<Advice> baseAdvisors = this.advisors.get();
+        List<Advice> advisors = analyzedWorld.mergeInstrumentAnnotations(baseAdvisors, classBytes,
+                loader, className);
+        boolean felix = className.equals("org/apache/felix/framework/BundleWiringImpl");
+        if (!DISABLE_PRE_FILTER && !felix && advisors == baseAdvisors) {
+            ThinClass unmatchedHeader = getPreFilter(advisors).getUnmatchedHeader(classBytes);
+            if (unmatchedHeader != null) {
+                // the class header is all that is needed to check the rest of the type hierarchy
+                ClassAnalyzer classAnalyzer = new ClassAnalyzer(unmatchedHeader, advisors,
+                        shimTypes, mixinTypes, loader, analyzedWorld, codeSource, classBytes);
+                if (classAnalyzer.isShortCircuitBeforeAnalyzeMethods()) {
+                    analyzedWorld.add(classAnalyzer.getAnalyzedClass(), loader);
+                    return null;
+                }
+            }
+        }
+        byte[] noMatchKey = null;
+        // classes with @Instrument annotations are not cached since their advisors are generated
+        if (weavingCache != null && !felix && advisors == baseAdvisors) {
+            noMatchKey = weavingCache.getNoMatchKey(classBytes, loader, codeSource, advisors);
+            ThinClass cachedThinClass = weavingCache.getNoMatch(noMatchKey);
+            if (cachedThinClass != null) {
+                // the class header is all that is needed to re-check the short circuit against
+                // the current type hierarchy, which may have changed since the entry was cached
+                ClassAnalyzer classAnalyzer = new ClassAnalyzer(cachedThinClass, advisors,
+                        shimTypes, mixinTypes, loader, analyzedWorld, codeSource, classBytes);
+                if (classAnalyzer.isShortCircuitBeforeAnalyzeMethods()) {
+                    analyzedWorld.add(classAnalyzer.getAnalyzedClass(), loader);
+                    return null;
+                }
+            }
+        }
         ThinClassVisitor accv = new ThinClassVisitor();
         new ClassReader(classBytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
         byte[] maybeFelixBytes = null;
-        if (className.equals("org/apache/felix/framework/BundleWiringImpl")) {
+        if (felix) {
             ClassWriter cw = new ComputeFramesClassWriter(ClassWriter.COMPUTE_FRAMES, analyzedWorld,
                     loader, codeSource, className);
             ClassVisitor cv = new FelixOsgiHackClassVisitor(cw);
@@ -137,6 +179,9 @@ public class Weaver {
                 mixinTypes, loader, analyzedWorld, codeSource, classBytes);
         if (classAnalyzer.isShortCircuitBeforeAnalyzeMethods()) {
             analyzedWorld.add(classAnalyzer.getAnalyzedClass(), loader);
+            if (noMatchKey != null) {
+                checkNotNull(weavingCache).putNoMatch(noMatchKey, accv.getThinClass());
+            }
             return maybeFelixBytes;
         }
         classAnalyzer.analyzeMethods();
@@ -144,6 +189,22 @@ public class Weaver {
             analyzedWorld.add(classAnalyzer.getAnalyzedClass(), loader);
             return maybeFelixBytes;
         }
+        byte[] wovenKey = null;
+        // weaving with class or method metas is not cached since it defines meta holder classes
+        // (with names that are unique only to this jvm run) as a side effect
+        if (weavingCache != null && !felix && !hasMetaHolder(classAnalyzer)) {
+            wovenKey = weavingCache.getWovenKey(classBytes, loader, codeSource, classAnalyzer);
+            WovenEntry wovenEntry = weavingCache.getWoven(wovenKey);
+            if (wovenEntry != null && isStillValid(wovenEntry, loader, codeSource, className)) {
+                byte[] wovenBytes = wovenEntry.getWovenBytes();
+                if (VERIFY_WEAVING) {
+                    verify(wovenBytes, loader, classBytes, className);
+                }
+                // same as what WeavingClassVisitor.visitEnd() does
+                analyzedWorld.add(classAnalyzer.getAnalyzedClass(), loader);
+                return wovenBytes;
+            }
+        }
         // from http://www.oracle.com/technetwork/java/javase/compatibility-417013.html:
         //
         // "Classfiles with version number 51 are exclusively verified using the type-checking
@@ -156,8 +217,8 @@ public class Weaver {
         // stackmap information to be consistent with the bytecode in order to pass
         // verification."
         //
-        ClassWriter cw = new ComputeFramesClassWriter(ClassWriter.COMPUTE_FRAMES, analyzedWorld,
-                loader, codeSource, className);
+        ComputeFramesClassWriter cw = new ComputeFramesClassWriter(ClassWriter.COMPUTE_FRAMES,
+                analyzedWorld, loader, codeSource, className);
         WeavingClassVisitor cv =
                 new WeavingClassVisitor(cw, loader, classAnalyzer.getAnalyzedClass(),
                         classAnalyzer.getMethodsThatOnlyNowFulfillAdvice(),
@@ -181,9 +242,62 @@ public class Weaver {
         if (VERIFY_WEAVING) {
             verify(transformedBytes, loader, classBytes, className);
         }
+        if (wovenKey != null) {
+            checkNotNull(weavingCache).putWoven(wovenKey, transformedBytes,
+                    cw.getCommonSuperClassLookups());
+        }
         return transformedBytes;
     }
 
+    // the stack frames in the cached woven bytes depend on the type hierarchy of other types,
+    // which may have changed since the entry was cached
+    private boolean isStillValid(WovenEntry wovenEntry, @Nullable ClassLoader loader,
+            @Nullable CodeSource codeSource, String className) {
+        ComputeFramesClassWriter cw =
+                new ComputeFramesClassWriter(0, analyzedWorld, loader, codeSource, className);
+        List<String> lookups = wovenEntry.getCommonSuperClassLookups();
+        for (int i = 0; i + 2 < lookups.size(); i += 3) {
+            if (!cw.getCommonSuperClass(lookups.get(i), lookups.get(i + 1))
+                    .equals(lookups.get(i + 2))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private WeavingPreFilter getPreFilter(List<Advice> advisors) {
+        WeavingPreFilter preFilter = this.preFilter;
+        // advisors list instance only changes when instrumentation config is changed (reweaving)
+        if (preFilter == null || !preFilter.isFor(advisors)) {
+            preFilter = WeavingPreFilter.create(advisors, shimTypes, mixinTypes);
+            this.preFilter = preFilter;
+        }
+        return preFilter;
+    }
+
+    private static boolean hasMetaHolder(ClassAnalyzer classAnalyzer) {
+        for (List<Advice> advisors : classAnalyzer.getMethodAdvisors().values()) {
+            if (hasMetaHolder(advisors)) {
+                return true;
+            }
+        }
+        for (AnalyzedMethod analyzedMethod : classAnalyzer.getMethodsThatOnlyNowFulfillAdvice()) {
+            if (hasMetaHolder(analyzedMethod.advisors())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasMetaHolder(List<Advice> advisors) {
+        for (Advice advice : advisors) {
+            if (!advice.classMetaTypes().isEmpty() || !advice.methodMetaTypes().isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private static void verify(byte[] transformedBytes, @Nullable ClassLoader loader,
             byte[] originalBytes, String className) {
         String originalBytesVerifyError = verify(originalBytes, loader);
@@ -257,6 +371,9 @@ public class Weaver {
         private final @Nullable ClassLoader loader;
         private final ParseContext parseContext;
 
+        // flattened (type1, type2, common super class) triples, see WeavingCache.WovenEntry
+        private final List<String> commonSuperClassLookups = Lists.newArrayList();
+
         public ComputeFramesClassWriter(int flags, AnalyzedWorld analyzedWorld,
                 @Nullable ClassLoader loader, @Nullable CodeSource codeSource, String className) {
             super(flags);
@@ -271,12 +388,21 @@ public class Weaver {
             if (type1.equals("java/lang/Object") || type2.equals("java/lang/Object")) {
                 return "java/lang/Object";
             }
+            String commonSuperClass;
             try {
-                return getCommonSuperClassInternal(type1, type2);
+                commonSuperClass = getCommonSuperClassInternal(type1, type2);
             } catch (IOException e) {
                 logger.error(e.getMessage(), e);
-                return "java/lang/Object";
+                commonSuperClass = "java/lang/Object";
             }
+            commonSuperClassLookups.add(type1);
+            commonSuperClassLookups.add(type2);
+            commonSuperClassLookups.add(commonSuperClass);
+            return commonSuperClass;
+        }
+
+        List<String> getCommonSuperClassLookups() {
+            return commonSuperClassLookups;
         }
 
         private String getCommonSuperClassInternal(String type1, String type2) throws IOException {
@@ -0,0 +1,520 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.weaving.ThinClassVisitor.ThinClass;
+
+// persistent cache of weaving results, so that the same classes don't need to be re-analyzed and
+// re-woven on every jvm start
+//
+// entries are keyed by a digest of the class bytes together with everything else that the result
+// depends on, so entries never need to be invalidated, stale entries just stop being hit (and are
+// dropped on the next jvm start after the file fills up)
+//
+// the agent version is part of the file header, since the weaving output for the same inputs can
+// change between agent versions, and the whole file is dropped when it doesn't match
+//
+// the file is memory mapped and validated on load, entries written during this jvm run are
+// appended to the end of the file and are only visible starting with the next jvm run
+public class WeavingCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(WeavingCache.class);
+
+    private static final long MAX_BYTES =
+            Long.getLong("glowroot.internal.weavingCache.maxBytes", 64 * 1024 * 1024);
+
+    // useful for measuring startup with a cold cache (see WeavingBenchmark)
+    private static final boolean RESET = Boolean.getBoolean("glowroot.internal.weavingCache.reset");
+
+    private static final int MAGIC = 0x474c5743; // "GLWC"
+    private static final int VERSION = 2;
+
+    private static final int DIGEST_SIZE = 20;
+    // digest + kind + payload length
+    private static final int ENTRY_HEADER_SIZE = DIGEST_SIZE + 5;
+    // crc32 of entry header + payload
+    private static final int ENTRY_TRAILER_SIZE = 4;
+
+    private static final byte NO_MATCH = 1;
+    private static final byte WOVEN = 2;
+
+    private final long maxBytes;
+
+    private final byte[] agentVersion;
+    private final int headerSize;
+
+    // cloned for each digest since MessageDigest is not thread safe, and getting a new instance
+    // from inside ClassFileTransformer.transform() can trigger security provider class loading
+    private final MessageDigest messageDigestPrototype;
+
+    // key is entry digest, value is position of entry kind in mappedBuffer
+    private final Map<ByteBuffer, Integer> index;
+    private final @Nullable ByteBuffer mappedBuffer;
+
+    private final Object writeLock = new Object();
+    @GuardedBy("writeLock")
+    private @Nullable RandomAccessFile out;
+    @GuardedBy("writeLock")
+    private long length;
+
+    private volatile @Nullable AdvisorsFingerprint advisorsFingerprint;
+
+    @VisibleForTesting
+    WeavingCache(File file, String agentVersion, long maxBytes, boolean reset) throws Exception {
+        this.maxBytes = maxBytes;
+        this.agentVersion = agentVersion.getBytes(Charsets.UTF_8);
+        headerSize = 12 + this.agentVersion.length;
+        messageDigestPrototype = MessageDigest.getInstance("SHA-1");
+        // fail fast here instead of inside ClassFileTransformer.transform()
+        messageDigestPrototype.clone();
+        File parentDir = file.getParentFile();
+        if (parentDir != null && !parentDir.exists() && !parentDir.mkdirs()) {
+            throw new IOException("Could not create directory: " + parentDir.getAbsolutePath());
+        }
+        // append() invalidates the header once the file is full, so this is just a backstop
+        if (reset || file.length() >= Math.min(maxBytes, Integer.MAX_VALUE)) {
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Could not delete file: " + file.getAbsolutePath());
+            }
+        }
+        index = new HashMap<ByteBuffer, Integer>();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        boolean success = false;
+        try {
+            if (hasValidHeader(raf)) {
+                mappedBuffer = raf.getChannel().map(MapMode.READ_ONLY, 0, raf.length());
+                length = loadIndex(mappedBuffer, headerSize, index);
+            } else {
+                mappedBuffer = null;
+                raf.setLength(0);
+                raf.writeInt(MAGIC);
+                raf.writeInt(VERSION);
+                raf.writeInt(this.agentVersion.length);
+                raf.write(this.agentVersion);
+                length = headerSize;
+            }
+            out = raf;
+            if (length < raf.length()) {
+                logger.debug("dropping corrupt tail of weaving cache {} at position {}",
+                        file.getAbsolutePath(), length);
+                truncateCorruptTail(raf);
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                raf.close();
+            }
+        }
+    }
+
+    public static @Nullable WeavingCache create(File baseDir, String agentVersion) {
+        if (MAX_BYTES <= 0) {
+            return null;
+        }
+        File file = new File(new File(baseDir, "tmp"), "weaving-cache.bin");
+        try {
+            return new WeavingCache(file, agentVersion, MAX_BYTES, RESET);
+        } catch (Exception e) {
+            logger.warn("unable to open weaving cache {}: {}", file.getAbsolutePath(),
+                    e.getMessage());
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    // the advisors are part of the key, but the type hierarchy is not (it would need to be analyzed
+    // in order to compute the key), so callers must still re-check the returned class header
+    // against the current type hierarchy
+    byte[] getNoMatchKey(byte[] classBytes, @Nullable ClassLoader loader,
+            @Nullable CodeSource codeSource, List<Advice> advisors) {
+        MessageDigest md = newMessageDigest();
+        md.update(NO_MATCH);
+        md.update(getAdvisorsFingerprint(advisors));
+        updateLoaderIdentity(md, loader, codeSource);
+        md.update(classBytes);
+        return md.digest();
+    }
+
+    // the analysis (which already takes into account the advisors and the type hierarchy) covers
+    // everything the woven bytes depend on, other than the class bytes, the class loader, and the
+    // common super class lookups made while computing stack frames (see WovenEntry)
+    byte[] getWovenKey(byte[] classBytes, @Nullable ClassLoader loader,
+            @Nullable CodeSource codeSource, ClassAnalyzer classAnalyzer) {
+        MessageDigest md = newMessageDigest();
+        md.update(WOVEN);
+        updateLoaderIdentity(md, loader, codeSource);
+        update(md, classAnalyzer.getAnalyzedClass().toString());
+        // method advisors is a hash map, so sorting for a stable digest
+        for (Entry<String, List<Advice>> entry : new TreeMap<String, List<Advice>>(
+                classAnalyzer.getMethodAdvisors()).entrySet()) {
+            update(md, entry.getKey());
+            update(md, entry.getValue().toString());
+        }
+        update(md, classAnalyzer.getMethodsThatOnlyNowFulfillAdvice().toString());
+        md.update(classBytes);
+        return md.digest();
+    }
+
+    // returns the class header (without any methods) that was cached for the key
+    @Nullable
+    ThinClass getNoMatch(byte[] key) {
+        ByteBuffer payload = getPayload(key, NO_MATCH);
+        if (payload == null) {
+            return null;
+        }
+        ImmutableThinClass.Builder builder = ImmutableThinClass.builder()
+                .access(payload.getInt())
+                .name(readString(payload));
+        if (payload.get() != 0) {
+            builder.superName(readString(payload));
+        }
+        int interfaceCount = payload.getInt();
+        for (int i = 0; i < interfaceCount; i++) {
+            builder.addInterfaces(readString(payload));
+        }
+        int annotationCount = payload.getInt();
+        for (int i = 0; i < annotationCount; i++) {
+            builder.addAnnotations(readString(payload));
+        }
+        return builder.build();
+    }
+
+    void putNoMatch(byte[] key, ThinClass thinClass) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(baos);
+        try {
+            payload.writeInt(thinClass.access());
+            writeString(payload, thinClass.name());
+            String superName = thinClass.superName();
+            if (superName == null) {
+                payload.writeByte(0);
+            } else {
+                payload.writeByte(1);
+                writeString(payload, superName);
+            }
+            payload.writeInt(thinClass.interfaces().size());
+            for (String interfaceName : thinClass.interfaces()) {
+                writeString(payload, interfaceName);
+            }
+            payload.writeInt(thinClass.annotations().size());
+            for (String annotation : thinClass.annotations()) {
+                writeString(payload, annotation);
+            }
+        } catch (IOException e) {
+            // not possible since writing to byte array
+            throw new IllegalStateException(e);
+        }
+        append(key, NO_MATCH, baos.toByteArray());
+    }
+
+    @Nullable
+    WovenEntry getWoven(byte[] key) {
+        ByteBuffer payload = getPayload(key, WOVEN);
+        if (payload == null) {
+            return null;
+        }
+        int lookupCount = payload.getInt();
+        List<String> commonSuperClassLookups = new ArrayList<String>(lookupCount);
+        for (int i = 0; i < lookupCount; i++) {
+            commonSuperClassLookups.add(readString(payload));
+        }
+        byte[] wovenBytes = new byte[payload.remaining()];
+        payload.get(wovenBytes);
+        return new WovenEntry(wovenBytes, commonSuperClassLookups);
+    }
+
+    // commonSuperClassLookups is flattened (type1, type2, common super class) triples
+    void putWoven(byte[] key, byte[] wovenBytes, List<String> commonSuperClassLookups) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(baos);
+        try {
+            payload.writeInt(commonSuperClassLookups.size());
+            for (String value : commonSuperClassLookups) {
+                writeString(payload, value);
+            }
+            payload.write(wovenBytes);
+        } catch (IOException e) {
+            // not possible since writing to byte array
+            throw new IllegalStateException(e);
+        }
+        append(key, WOVEN, baos.toByteArray());
+    }
+
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+        }
+    }
+
+    private @Nullable ByteBuffer getPayload(byte[] key, byte kind) {
+        if (mappedBuffer == null) {
+            return null;
+        }
+        Integer position = index.get(ByteBuffer.wrap(key));
+        if (position == null) {
+            return null;
+        }
+        // duplicate since position and limit are not thread safe
+        ByteBuffer buffer = mappedBuffer.duplicate();
+        if (buffer.get(position) != kind) {
+            // kind is part of the digest, so this is not expected
+            return null;
+        }
+        int payloadLength = buffer.getInt(position + 1);
+        buffer.limit(position + 5 + payloadLength);
+        buffer.position(position + 5);
+        return buffer;
+    }
+
+    private void append(byte[] key, byte kind, byte[] payload) {
+        ByteBuffer entry =
+                ByteBuffer.allocate(ENTRY_HEADER_SIZE + payload.length + ENTRY_TRAILER_SIZE);
+        entry.put(key);
+        entry.put(kind);
+        entry.putInt(payload.length);
+        entry.put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(entry.array(), 0, entry.position());
+        entry.putInt((int) crc.getValue());
+        synchronized (writeLock) {
+            if (out == null) {
+                return;
+            }
+            if (entry.capacity() > maxBytes / 4) {
+                // not worth dropping the whole file on the next jvm start just for this entry
+                return;
+            }
+            if (length + entry.capacity() > maxBytes) {
+                logger.debug("weaving cache has reached its maximum size of {} bytes, it will be"
+                        + " reset on the next jvm start", maxBytes);
+                invalidateHeader();
+                closeQuietly();
+                return;
+            }
+            try {
+                out.seek(length);
+                out.write(entry.array());
+                length += entry.capacity();
+            } catch (IOException e) {
+                logger.warn("unable to write to weaving cache: {}", e.getMessage());
+                logger.debug(e.getMessage(), e);
+                closeQuietly();
+            }
+        }
+    }
+
+    // the file is mapped read only, and truncating it fails on windows while mapped, so instead
+    // the header is invalidated which causes the file to be reset on the next jvm start (entries
+    // already in the file are still read during this jvm run)
+    @GuardedBy("writeLock")
+    private void invalidateHeader() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.seek(0);
+            out.writeInt(0);
+        } catch (IOException e) {
+            logger.debug(e.getMessage(), e);
+        }
+    }
+
+    private void truncateCorruptTail(RandomAccessFile raf) {
+        synchronized (writeLock) {
+            try {
+                raf.setLength(length);
+            } catch (IOException e) {
+                // this fails on windows since the file is mapped, in which case the cache is still
+                // read but nothing is appended to it during this jvm run
+                logger.debug(e.getMessage(), e);
+                closeQuietly();
+            }
+        }
+    }
+
+    @GuardedBy("writeLock")
+    private void closeQuietly() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            logger.debug(e.getMessage(), e);
+        }
+        out = null;
+    }
+
+    private byte[] getAdvisorsFingerprint(List<Advice> advisors) {
+        AdvisorsFingerprint advisorsFingerprint = this.advisorsFingerprint;
+        // advisors list instance only changes when instrumentation config is changed (reweaving)
+        if (advisorsFingerprint == null || advisorsFingerprint.advisors != advisors) {
+            MessageDigest md = newMessageDigest();
+            update(md, advisors.toString());
+            advisorsFingerprint = new AdvisorsFingerprint(advisors, md.digest());
+            this.advisorsFingerprint = advisorsFingerprint;
+        }
+        return advisorsFingerprint.digest;
+    }
+
+    private MessageDigest newMessageDigest() {
+        try {
+            return (MessageDigest) messageDigestPrototype.clone();
+        } catch (CloneNotSupportedException e) {
+            // not possible since clone() was checked in the constructor
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private boolean hasValidHeader(RandomAccessFile raf) throws IOException {
+        if (raf.length() < headerSize) {
+            return false;
+        }
+        raf.seek(0);
+        if (raf.readInt() != MAGIC || raf.readInt() != VERSION
+                || raf.readInt() != agentVersion.length) {
+            return false;
+        }
+        byte[] bytes = new byte[agentVersion.length];
+        raf.readFully(bytes);
+        return Arrays.equals(bytes, agentVersion);
+    }
+
+    // returns the length of the valid portion of the file
+    private static int loadIndex(ByteBuffer mappedBuffer, int headerSize,
+            Map<ByteBuffer, Integer> index) {
+        ByteBuffer buffer = mappedBuffer.duplicate();
+        CRC32 crc = new CRC32();
+        byte[] entryBytes = new byte[0];
+        int position = headerSize;
+        int limit = buffer.limit();
+        while (limit - position >= ENTRY_HEADER_SIZE + ENTRY_TRAILER_SIZE) {
+            int payloadLength = buffer.getInt(position + DIGEST_SIZE + 1);
+            if (payloadLength < 0 || payloadLength > limit - position - ENTRY_HEADER_SIZE
+                    - ENTRY_TRAILER_SIZE) {
+                break;
+            }
+            int crcPosition = position + ENTRY_HEADER_SIZE + payloadLength;
+            int entryLength = crcPosition - position;
+            if (entryBytes.length < entryLength) {
+                entryBytes = new byte[entryLength];
+            }
+            buffer.position(position);
+            buffer.get(entryBytes, 0, entryLength);
+            crc.reset();
+            crc.update(entryBytes, 0, entryLength);
+            if (buffer.getInt(crcPosition) != (int) crc.getValue()) {
+                break;
+            }
+            byte[] key = new byte[DIGEST_SIZE];
+            System.arraycopy(entryBytes, 0, key, 0, DIGEST_SIZE);
+            index.put(ByteBuffer.wrap(key), position + DIGEST_SIZE);
+            position = crcPosition + ENTRY_TRAILER_SIZE;
+        }
+        return position;
+    }
+
+    private static void updateLoaderIdentity(MessageDigest md, @Nullable ClassLoader loader,
+            @Nullable CodeSource codeSource) {
+        update(md, loader == null ? "" : loader.getClass().getName());
+        URL location = codeSource == null ? null : codeSource.getLocation();
+        update(md, location == null ? "" : location.toExternalForm());
+    }
+
+    private static void update(MessageDigest md, String value) {
+        byte[] bytes = value.getBytes(Charsets.UTF_8);
+        md.update((byte) (bytes.length >>> 24));
+        md.update((byte) (bytes.length >>> 16));
+        md.update((byte) (bytes.length >>> 8));
+        md.update((byte) bytes.length);
+        md.update(bytes);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    // the woven bytes also depend on the type hierarchy of any other types that are merged while
+    // computing stack frames, so those lookups are recorded along with the woven bytes and the
+    // caller must re-check them against the current type hierarchy before using the woven bytes
+    static class WovenEntry {
+
+        private final byte[] wovenBytes;
+        private final List<String> commonSuperClassLookups;
+
+        private WovenEntry(byte[] wovenBytes, List<String> commonSuperClassLookups) {
+            this.wovenBytes = wovenBytes;
+            this.commonSuperClassLookups = commonSuperClassLookups;
+        }
+
+        byte[] getWovenBytes() {
+            return wovenBytes;
+        }
+
+        List<String> getCommonSuperClassLookups() {
+            return commonSuperClassLookups;
+        }
+    }
+
+    private static class AdvisorsFingerprint {
+
+        private final List<Advice> advisors;
+        private final byte[] digest;
+
+        private AdvisorsFingerprint(List<Advice> advisors, byte[] digest) {
+            this.advisors = advisors;
+            this.digest = digest;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import org.glowroot.agent.weaving.ThinClassVisitor.ThinClass;
+
+// index over the class names and annotations that advisors, shims and mixins can match, used to
+// skip the full class parse for classes that cannot match any advice
+//
+// see WeavingBenchmark.executeWithoutPreFilter() for comparing against the full class parse
+//
+// the raw constant pool is scanned instead, since any annotation on the class or on its methods
+// must be referenced from the constant pool, and the class header (which is all that is needed to
+// check the rest of the type hierarchy) follows right after the constant pool
+class WeavingPreFilter {
+
+    private final List<Advice> advisors;
+
+    // internal names
+    private final ImmutableSet<String> classNames;
+    // matched against class names (not internal names)
+    private final ImmutableList<Pattern> classNamePatterns;
+
+    // e.g. Ljavax/ws/rs/Path;
+    private final ImmutableSet<String> annotationDescs;
+    private final ImmutableSet<Integer> annotationDescLengths;
+    // matched against annotation class names
+    private final ImmutableList<Pattern> annotationPatterns;
+
+    private WeavingPreFilter(List<Advice> advisors, Set<String> classNames,
+            List<Pattern> classNamePatterns, Set<String> annotationDescs,
+            List<Pattern> annotationPatterns) {
+        this.advisors = advisors;
+        this.classNames = ImmutableSet.copyOf(classNames);
+        this.classNamePatterns = ImmutableList.copyOf(classNamePatterns);
+        this.annotationDescs = ImmutableSet.copyOf(annotationDescs);
+        Set<Integer> annotationDescLengths = new HashSet<Integer>();
+        for (String annotationDesc : annotationDescs) {
+            annotationDescLengths.add(annotationDesc.length());
+        }
+        this.annotationDescLengths = ImmutableSet.copyOf(annotationDescLengths);
+        this.annotationPatterns = ImmutableList.copyOf(annotationPatterns);
+    }
+
+    static WeavingPreFilter create(List<Advice> advisors, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes) {
+        Set<String> classNames = new HashSet<String>();
+        List<Pattern> classNamePatterns = Lists.newArrayList();
+        Set<String> annotationDescs = new HashSet<String>();
+        List<Pattern> annotationPatterns = Lists.newArrayList();
+        for (Advice advice : advisors) {
+            addClassName(advice.pointcutClassName(), advice.pointcutClassNamePattern(), classNames,
+                    classNamePatterns);
+            addClassName(advice.pointcutMethodDeclaringClassName(),
+                    advice.pointcutMethodDeclaringClassNamePattern(), classNames,
+                    classNamePatterns);
+            addAnnotation(advice.pointcut().classAnnotation(),
+                    advice.pointcutClassNameAnnotationPattern(), annotationDescs,
+                    annotationPatterns);
+            addAnnotation(advice.pointcut().methodAnnotation(),
+                    advice.pointcutMethodAnnotationPattern(), annotationDescs, annotationPatterns);
+        }
+        for (ShimType shimType : shimTypes) {
+            addClassName(shimType.target(), shimType.targetPattern(), classNames,
+                    classNamePatterns);
+        }
+        for (MixinType mixinType : mixinTypes) {
+            for (String target : mixinType.targets()) {
+                addClassName(target, null, classNames, classNamePatterns);
+            }
+        }
+        return new WeavingPreFilter(advisors, classNames, classNamePatterns, annotationDescs,
+                annotationPatterns);
+    }
+
+    boolean isFor(List<Advice> advisors) {
+        return this.advisors == advisors;
+    }
+
+    // returns the class header (with no annotations or methods) if neither the class name, its
+    // direct super types, nor any annotation referenced from the class can be matched, otherwise
+    // returns null
+    //
+    // callers still need to check the rest of the type hierarchy (e.g. using ClassAnalyzer)
+    @Nullable
+    ThinClass getUnmatchedHeader(byte[] classBytes) {
+        if (classBytes.length < 10 || readInt(classBytes, 0) != 0xCAFEBABE) {
+            return null;
+        }
+        int constantPoolCount = readUnsignedShort(classBytes, 8);
+        // index of the utf8 name referenced by each class constant
+        int[] classNameIndexes = new int[constantPoolCount];
+        int[] utf8Offsets = new int[constantPoolCount];
+        int offset = 10;
+        for (int i = 1; i < constantPoolCount; i++) {
+            // every constant is at least 3 bytes
+            if (offset + 3 > classBytes.length) {
+                return null;
+            }
+            int tag = classBytes[offset];
+            switch (tag) {
+                case 1: // utf8
+                    utf8Offsets[i] = offset + 1;
+                    int length = readUnsignedShort(classBytes, offset + 1);
+                    if (offset + 3 + length > classBytes.length
+                            || isAnnotationMatch(classBytes, offset + 3, length)) {
+                        return null;
+                    }
+                    offset += 3 + length;
+                    break;
+                case 7: // class
+                    classNameIndexes[i] = readUnsignedShort(classBytes, offset + 1);
+                    offset += 3;
+                    break;
+                case 8: // string
+                case 16: // method type
+                case 19: // module
+                case 20: // package
+                    offset += 3;
+                    break;
+                case 15: // method handle
+                    offset += 4;
+                    break;
+                case 3: // integer
+                case 4: // float
+                case 9: // field ref
+                case 10: // method ref
+                case 11: // interface method ref
+                case 12: // name and type
+                case 17: // dynamic
+                case 18: // invoke dynamic
+                    offset += 5;
+                    break;
+                case 5: // long
+                case 6: // double
+                    offset += 9;
+                    // 8-byte constants take up two entries in the constant pool
+                    i++;
+                    break;
+                default:
+                    // unexpected class file format, leave it to the full parse
+                    return null;
+            }
+        }
+        if (offset + 8 > classBytes.length) {
+            return null;
+        }
+        ImmutableThinClass.Builder builder = ImmutableThinClass.builder();
+        builder.access(readUnsignedShort(classBytes, offset));
+        String name = readClassName(classBytes, readUnsignedShort(classBytes, offset + 2),
+                classNameIndexes, utf8Offsets);
+        if (name == null || isClassNameMatch(name)) {
+            return null;
+        }
+        builder.name(name);
+        int superIndex = readUnsignedShort(classBytes, offset + 4);
+        if (superIndex != 0) {
+            String superName = readClassName(classBytes, superIndex, classNameIndexes, utf8Offsets);
+            if (superName == null || isClassNameMatch(superName)) {
+                return null;
+            }
+            builder.superName(superName);
+        }
+        int interfaceCount = readUnsignedShort(classBytes, offset + 6);
+        offset += 8;
+        if (offset + 2 * interfaceCount > classBytes.length) {
+            return null;
+        }
+        for (int i = 0; i < interfaceCount; i++) {
+            String interfaceName = readClassName(classBytes,
+                    readUnsignedShort(classBytes, offset + 2 * i), classNameIndexes, utf8Offsets);
+            if (interfaceName == null || isClassNameMatch(interfaceName)) {
+                return null;
+            }
+            builder.addInterfaces(interfaceName);
+        }
+        return builder.build();
+    }
+
+    private boolean isAnnotationMatch(byte[] classBytes, int offset, int length) {
+        if (length < 3 || classBytes[offset] != 'L' || classBytes[offset + length - 1] != ';') {
+            return false;
+        }
+        if (annotationPatterns.isEmpty() && !annotationDescLengths.contains(length)) {
+            // no annotation descriptor of this length can match, so no need to decode the utf8
+            // string
+            return false;
+        }
+        String desc = readUtf8(classBytes, offset, length);
+        if (annotationDescs.contains(desc)) {
+            return true;
+        }
+        if (!annotationPatterns.isEmpty()) {
+            String annotationClassName = desc.substring(1, desc.length() - 1).replace('/', '.');
+            for (Pattern annotationPattern : annotationPatterns) {
+                if (annotationPattern.matcher(annotationClassName).matches()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean isClassNameMatch(String internalName) {
+        if (classNames.contains(internalName)) {
+            return true;
+        }
+        if (!classNamePatterns.isEmpty()) {
+            String className = ClassNames.fromInternalName(internalName);
+            for (Pattern classNamePattern : classNamePatterns) {
+                if (classNamePattern.matcher(className).matches()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void addClassName(String className, @Nullable Pattern classNamePattern,
+            Set<String> classNames, List<Pattern> classNamePatterns) {
+        if (classNamePattern != null) {
+            classNamePatterns.add(classNamePattern);
+        } else if (!className.isEmpty()) {
+            classNames.add(ClassNames.toInternalName(className));
+        }
+    }
+
+    private static void addAnnotation(String annotation, @Nullable Pattern annotationPattern,
+            Set<String> annotationDescs, List<Pattern> annotationPatterns) {
+        if (annotationPattern != null) {
+            annotationPatterns.add(annotationPattern);
+        } else if (!annotation.isEmpty()) {
+            annotationDescs.add("L" + ClassNames.toInternalName(annotation) + ";");
+        }
+    }
+
+    private static @Nullable String readClassName(byte[] classBytes, int classIndex,
+            int[] classNameIndexes, int[] utf8Offsets) {
+        if (classIndex <= 0 || classIndex >= classNameIndexes.length) {
+            return null;
+        }
+        int utf8Index = classNameIndexes[classIndex];
+        if (utf8Index <= 0 || utf8Index >= utf8Offsets.length || utf8Offsets[utf8Index] == 0) {
+            return null;
+        }
+        int offset = utf8Offsets[utf8Index];
+        return readUtf8(classBytes, offset + 2, readUnsignedShort(classBytes, offset));
+    }
+
+    // decodes "modified utf8" as used in class files
+    private static String readUtf8(byte[] classBytes, int offset, int length) {
+        char[] chars = new char[length];
+        int charCount = 0;
+        int index = offset;
+        int endIndex = offset + length;
+        while (index < endIndex) {
+            int b = classBytes[index++] & 0xFF;
+            if (b < 0x80) {
+                chars[charCount++] = (char) b;
+            } else if (b < 0xE0) {
+                chars[charCount++] = (char) (((b & 0x1F) << 6) + (classBytes[index++] & 0x3F));
+            } else {
+                chars[charCount++] = (char) (((b & 0x0F) << 12)
+                        + ((classBytes[index++] & 0x3F) << 6) + (classBytes[index++] & 0x3F));
+            }
+        }
+        return new String(chars, 0, charCount);
+    }
+
+    private static int readUnsignedShort(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+}
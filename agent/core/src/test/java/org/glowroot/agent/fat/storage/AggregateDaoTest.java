@@ -16,7 +16,15 @@
 package org.glowroot.agent.fat.storage;
 
 import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
@@ -27,6 +35,7 @@ import org.junit.Test;
 
 import org.glowroot.agent.fat.storage.util.CappedDatabase;
 import org.glowroot.agent.fat.storage.util.DataSource;
+import org.glowroot.agent.fat.storage.util.DataSource.JdbcQuery;
 import org.glowroot.common.live.ImmutableOverallQuery;
 import org.glowroot.common.live.ImmutableTransactionQuery;
 import org.glowroot.common.live.LiveAggregateRepository.OverallQuery;
@@ -46,6 +55,7 @@ import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.AggregateOuterClass.AggregatesByType;
 import org.glowroot.wire.api.model.AggregateOuterClass.TransactionAggregate;
 
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -57,6 +67,10 @@ public class AggregateDaoTest {
 
     private static final String AGENT_ID = "";
 
+    // used by the await_stores_completed alias
+    private static volatile CountDownLatch slowQueryStarted;
+    private static volatile CountDownLatch storesCompleted;
+
     private DataSource dataSource;
     private File cappedFile;
     private CappedDatabase cappedDatabase;
@@ -131,6 +145,99 @@ public class AggregateDaoTest {
         assertThat(queryResult.records().get(2).transactionCount()).isEqualTo(2);
     }
 
+    @Test
+    public void shouldReadTransactionsWhileStoring() throws Exception {
+        // given
+        populateAggregates();
+        final TransactionQuery query = ImmutableTransactionQuery.builder()
+                .transactionType("a type")
+                .from(0)
+                .to(100000)
+                .rollupLevel(0)
+                .build();
+        final OverallQuery query2 = ImmutableOverallQuery.builder()
+                .transactionType("a type")
+                .from(0)
+                .to(100000)
+                .rollupLevel(0)
+                .build();
+        final AtomicBoolean storing = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+        List<Future<Integer>> futures = Lists.newArrayList();
+        for (int i = 0; i < 4; i++) {
+            futures.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    int queryCount = 0;
+                    do {
+                        List<OverviewAggregate> overallAggregates =
+                                aggregateDao.readOverviewAggregates(AGENT_ID, query);
+                        TransactionSummaryCollector collector = new TransactionSummaryCollector();
+                        aggregateDao.mergeTransactionSummariesInto(AGENT_ID, query2,
+                                SummarySortOrder.TOTAL_TIME, 10, collector);
+                        assertThat(overallAggregates.size()).isGreaterThanOrEqualTo(2);
+                        assertThat(collector.getResult(SummarySortOrder.TOTAL_TIME, 10).records())
+                                .hasSize(3);
+                        queryCount++;
+                    } while (storing.get());
+                    return queryCount;
+                }
+            }));
+        }
+        // a long running query, which is still executing (inside h2) until all of the stores below
+        // have completed, and returns false if they don't complete while it is executing
+        slowQueryStarted = new CountDownLatch(1);
+        storesCompleted = new CountDownLatch(1);
+        dataSource.execute("create alias await_stores_completed for \""
+                + AggregateDaoTest.class.getName() + ".awaitStoresCompleted\"");
+        Future<Boolean> slowQueryFuture = executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return dataSource.query(new JdbcQuery<Boolean>() {
+                    @Override
+                    public String getSql() {
+                        return "select await_stores_completed()";
+                    }
+                    @Override
+                    public void bind(PreparedStatement preparedStatement) {}
+                    @Override
+                    public Boolean processResultSet(ResultSet resultSet) throws Exception {
+                        assertThat(resultSet.next()).isTrue();
+                        return resultSet.getBoolean(1);
+                    }
+                    @Override
+                    public Boolean valueIfDataSourceClosing() {
+                        return false;
+                    }
+                });
+            }
+        });
+        assertThat(slowQueryStarted.await(30, SECONDS)).isTrue();
+        // when
+        for (int i = 3; i <= 100; i++) {
+            aggregateDao.store(AGENT_ID, i * 10000, ImmutableList.of(getAggregatesByType()),
+                    ImmutableList.<String>of());
+        }
+        // then
+        assertThat(slowQueryFuture.isDone()).isFalse();
+        storesCompleted.countDown();
+        storing.set(false);
+        assertThat(slowQueryFuture.get()).isTrue();
+        for (Future<Integer> future : futures) {
+            assertThat(future.get()).isGreaterThan(0);
+        }
+        executor.shutdown();
+        List<OverviewAggregate> overallAggregates =
+                aggregateDao.readOverviewAggregates(AGENT_ID, query);
+        assertThat(overallAggregates).hasSize(10);
+    }
+
+    // called from inside h2 via the await_stores_completed alias
+    public static boolean awaitStoresCompleted() throws InterruptedException {
+        slowQueryStarted.countDown();
+        return storesCompleted.await(30, SECONDS);
+    }
+
     // also used by TransactionCommonServiceTest
     public void populateAggregates() throws Exception {
         Aggregate overallAggregate = Aggregate.newBuilder()
@@ -217,6 +324,24 @@ public class AggregateDaoTest {
         return aggregateDao;
     }
 
+    private static AggregatesByType getAggregatesByType() {
+        return AggregatesByType.newBuilder()
+                .setTransactionType("a type")
+                .setOverallAggregate(Aggregate.newBuilder()
+                        .setTotalDurationNanos(1000000)
+                        .setErrorCount(0)
+                        .setTransactionCount(10)
+                        .setDurationNanosHistogram(getFakeHistogram()))
+                .addTransactionAggregate(TransactionAggregate.newBuilder()
+                        .setTransactionName("one")
+                        .setAggregate(Aggregate.newBuilder()
+                                .setTotalDurationNanos(100000)
+                                .setErrorCount(0)
+                                .setTransactionCount(1)
+                                .setDurationNanosHistogram(getFakeHistogram())))
+                .build();
+    }
+
     private static Aggregate.Histogram getFakeHistogram() {
         return Aggregate.Histogram.newBuilder()
                 .addOrderedRawValue(123)
@@ -33,6 +33,7 @@ import org.glowroot.common.repo.ImmutableTraceQuery;
 import org.glowroot.common.repo.TraceRepository.TraceQuery;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
+import static java.util.concurrent.TimeUnit.DAYS;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 
@@ -268,13 +269,29 @@ public class TraceDaoTest {
         assertThat(queryResult.records()).isEmpty();
     }
 
+    @Test
+    public void shouldReadTraceStoredPriorToRestart() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace();
+        traceDao.store(AGENT_ID, trace);
+        // when
+        // new instance does not have the trace's capture time cached, so it has to search the
+        // partitions for the trace
+        traceDao = new TraceDao(dataSource, cappedDatabase, mock(TransactionTypeDao.class));
+        // then
+        Trace.Header header = traceDao.readHeaderPlus(AGENT_ID, trace.getId()).header();
+        assertThat(header.getCaptureTime()).isEqualTo(trace.getHeader().getCaptureTime());
+        assertThat(header.getHeadline()).isEqualTo("test headline");
+    }
+
     @Test
     public void shouldDeletedTrace() throws Exception {
         // given
         Trace trace = TraceTestData.createTrace();
         traceDao.store(AGENT_ID, trace);
         // when
-        traceDao.deleteBefore(100);
+        // retention drops whole partitions, so this needs to be past the end of the partition
+        traceDao.deleteBefore(DAYS.toMillis(1) + 100);
         // then
         assertThat(traceDao.readHeaderPlus(AGENT_ID, trace.getId())).isNull();
     }
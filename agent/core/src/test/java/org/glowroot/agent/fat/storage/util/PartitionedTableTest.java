@@ -0,0 +1,162 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.fat.storage.util;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.fat.storage.util.Schemas.Column;
+import org.glowroot.agent.fat.storage.util.Schemas.ColumnType;
+import org.glowroot.agent.fat.storage.util.Schemas.Index;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PartitionedTableTest {
+
+    private static final ImmutableList<Column> columns = ImmutableList.<Column>of(
+            ImmutableColumn.of("name", ColumnType.VARCHAR),
+            ImmutableColumn.of("capture_time", ColumnType.BIGINT));
+
+    private static final ImmutableList<Index> indexes = ImmutableList.<Index>of(
+            ImmutableIndex.of("tab_idx", ImmutableList.of("capture_time", "name")));
+
+    private DataSource dataSource;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        dataSource = new DataSource();
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        dataSource.close();
+    }
+
+    @Test
+    public void shouldRouteByCaptureTime() throws Exception {
+        // given
+        PartitionedTable table = new PartitionedTable(dataSource, "tab", columns, indexes, 100);
+        // when
+        insert(table, "a", 100);
+        insert(table, "b", 101);
+        insert(table, "c", 250);
+        // then
+        assertThat(table.getPartitionNames()).containsExactly("tab_p1", "tab_p2", "tab_p3");
+        assertThat(count("select count(*) from tab_p1")).isEqualTo(1);
+        assertThat(count("select count(*) from tab_p2")).isEqualTo(1);
+        assertThat(count("select count(*) from tab_p3")).isEqualTo(1);
+        assertThat(count("select count(*) from tab")).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldQueryAcrossPartitions() throws Exception {
+        // given
+        PartitionedTable table = new PartitionedTable(dataSource, "tab", columns, indexes, 100);
+        insert(table, "a", 50);
+        insert(table, "b", 150);
+        insert(table, "c", 250);
+        // when
+        long withinOne = count("select count(*) from " + table.from(101, 200)
+                + " where capture_time >= 101 and capture_time <= 200");
+        long acrossTwo = count("select count(*) from " + table.from(1, 200)
+                + " where capture_time >= 1 and capture_time <= 200");
+        long all = count("select count(*) from " + table.from(1, 300));
+        long none = count("select count(*) from " + table.from(1000, 2000));
+        // then
+        assertThat(withinOne).isEqualTo(1);
+        assertThat(acrossTwo).isEqualTo(2);
+        assertThat(all).isEqualTo(3);
+        assertThat(none).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldDropExpiredPartitions() throws Exception {
+        // given
+        FakeTicker ticker = new FakeTicker();
+        PartitionedTable table = new PartitionedTable(dataSource, "tab", columns, indexes, 100,
+                ticker, MoreExecutors.directExecutor());
+        insert(table, "a", 50);
+        insert(table, "b", 150);
+        String sql = "select count(*) from " + table.from(1, 200);
+        // when
+        table.dropBefore(150);
+        // then
+        assertThat(table.getPartitionNames()).containsExactly("tab_p2");
+        assertThat(count("select count(*) from " + table.from(1, 200))).isEqualTo(1);
+        // query built prior to dropBefore() still works
+        assertThat(count(sql)).isEqualTo(2);
+
+        // when
+        ticker.nanos += PartitionedTable.DROP_DELAY_NANOS;
+        table.dropBefore(150);
+        // then
+        assertThat(dataSource.tableExists("tab_p1")).isFalse();
+        assertThat(dataSource.tableExists("tab_p2")).isTrue();
+    }
+
+    @Test
+    public void shouldFindExistingPartitions() throws Exception {
+        // given
+        PartitionedTable table = new PartitionedTable(dataSource, "tab", columns, indexes, 100);
+        insert(table, "a", 50);
+        insert(table, "b", 150);
+        // when
+        table = new PartitionedTable(dataSource, "tab", columns, indexes, 100);
+        // then
+        assertThat(table.getPartitionNames()).containsExactly("tab_p1", "tab_p2");
+        assertThat(table.getLatestPartitionName()).isEqualTo("tab_p2");
+    }
+
+    @Test
+    public void shouldMoveUnpartitionedRows() throws Exception {
+        // given
+        dataSource.syncTable("tab", columns);
+        dataSource.update("insert into tab (name, capture_time) values (?, ?)", "a", 50);
+        dataSource.update("insert into tab (name, capture_time) values (?, ?)", "b", 150);
+        dataSource.update("insert into tab (name, capture_time) values (?, ?)", "c", 200);
+        // when
+        PartitionedTable table = new PartitionedTable(dataSource, "tab", columns, indexes, 100,
+                Ticker.systemTicker(), MoreExecutors.directExecutor());
+        // then
+        assertThat(table.getPartitionNames()).containsExactly("tab_p1", "tab_p2");
+        assertThat(count("select count(*) from tab_p1")).isEqualTo(1);
+        assertThat(count("select count(*) from tab_p2")).isEqualTo(2);
+        assertThat(count("select count(*) from tab")).isEqualTo(0);
+    }
+
+    private void insert(PartitionedTable table, String name, long captureTime) throws Exception {
+        dataSource.update("insert into " + table.getPartitionName(captureTime)
+                + " (name, capture_time) values (?, ?)", name, captureTime);
+    }
+
+    private long count(String sql) throws Exception {
+        return dataSource.queryForLong(sql);
+    }
+
+    private static class FakeTicker extends Ticker {
+
+        private long nanos;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+    }
+}
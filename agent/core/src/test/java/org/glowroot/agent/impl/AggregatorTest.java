@@ -17,6 +17,7 @@ package org.glowroot.agent.impl;
 
 import java.io.File;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.Test;
 
@@ -41,20 +42,29 @@ public class AggregatorTest {
 
     @Test
     public void shouldFlushWithTrace() throws InterruptedException {
+        shouldFlushWithTrace(1);
+    }
+
+    @Test
+    public void shouldFlushWithTraceUsingMultipleProcessingThreads() throws InterruptedException {
+        shouldFlushWithTrace(4);
+    }
+
+    private static void shouldFlushWithTrace(int processingThreads) throws InterruptedException {
         // given
         MockCollector aggregateCollector = new MockCollector();
         ConfigService configService = mock(ConfigService.class);
         when(configService.getAdvancedConfig())
                 .thenReturn(ImmutableAdvancedConfig.builder().build());
-        Aggregator aggregator =
-                new Aggregator(aggregateCollector, configService, 1000, Clock.systemClock());
+        Aggregator aggregator = new Aggregator(aggregateCollector, configService, 1000,
+                processingThreads, Clock.systemClock());
 
         // when
         int count = 0;
-        long firstCaptureTime = aggregator.add(buildTransaction());
+        long firstCaptureTime = addFromNewThread(aggregator, buildTransaction());
         long aggregateCaptureTime = (long) Math.ceil(firstCaptureTime / 1000.0) * 1000;
         while (true) {
-            long captureTime = aggregator.add(buildTransaction());
+            long captureTime = addFromNewThread(aggregator, buildTransaction());
             count++;
             if (captureTime > aggregateCaptureTime) {
                 break;
@@ -73,6 +83,21 @@ public class AggregatorTest {
         aggregator.close();
     }
 
+    // adding from different threads spreads the transactions across the processing threads
+    private static long addFromNewThread(final Aggregator aggregator,
+            final Transaction transaction) throws InterruptedException {
+        final AtomicLong captureTime = new AtomicLong();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                captureTime.set(aggregator.add(transaction));
+            }
+        });
+        thread.start();
+        thread.join();
+        return captureTime.get();
+    }
+
     private static Transaction buildTransaction() {
         Transaction transaction = mock(Transaction.class);
         TimerImpl mainThreadRootTimer = mock(TimerImpl.class);
@@ -48,7 +48,8 @@ public class ThreadContextImplTest {
         @SuppressWarnings("unchecked")
         Holder<ThreadContextImpl> threadContextHolder = mock(Holder.class);
         threadContext = new ThreadContextImpl(transaction, null, null, messageSupplier,
-                rootTimerName, 0, false, null, false, ticker, threadContextHolder, null);
+                rootTimerName, 0, false, Integer.MAX_VALUE, null, false, ticker,
+                threadContextHolder, null);
     }
 
     @Test
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import org.junit.Test;
+
+import org.glowroot.agent.model.ImmutableTimerNameImpl;
+import org.glowroot.agent.model.TimerNameImpl;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TimerImplTest {
+
+    @Test
+    public void shouldOnlyCountTimersBelowTimedDepth() {
+        // given
+        TimerNameImpl timerName1 = ImmutableTimerNameImpl.of("one", false);
+        TimerNameImpl timerName2 = ImmutableTimerNameImpl.of("two", false);
+        TimerImpl rootTimer = TimerImpl.createRootTimer(mock(ThreadContextImpl.class),
+                ImmutableTimerNameImpl.of("root", false), 1);
+        rootTimer.start(0);
+        // when
+        TimerImpl timer1 = rootTimer.startNestedTimer(timerName1);
+        TimerImpl timer2 = timer1.startNestedTimer(timerName2);
+        timer2.stop();
+        timer2 = timer1.startNestedTimer(timerName2);
+        timer2.stop();
+        timer1.stop();
+        // then
+        assertThat(timer1).isNotSameAs(rootTimer);
+        assertThat(timer2).isNotSameAs(timer1);
+        assertThat(timer1.getCount()).isEqualTo(1);
+        assertThat(timerName1.getCountersOnlyCount()).isEqualTo(0);
+        assertThat(timerName2.getCountersOnlyCount()).isEqualTo(2);
+        Trace.Timer rootTimerProto = rootTimer.toProto();
+        assertThat(rootTimerProto.getChildTimerCount()).isEqualTo(1);
+        assertThat(rootTimerProto.getChildTimer(0).getChildTimerCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldNotRestartTimedAncestorWhenExtendingCountersOnlyTimer() {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        TimerNameImpl timerName1 = ImmutableTimerNameImpl.of("one", false);
+        TimerNameImpl timerName2 = ImmutableTimerNameImpl.of("two", false);
+        TimerImpl rootTimer = TimerImpl.createRootTimer(threadContext,
+                ImmutableTimerNameImpl.of("root", false), 1);
+        rootTimer.start(0);
+        TimerImpl timer1 = rootTimer.startNestedTimer(timerName1, 1);
+        TimerImpl timer2 = timer1.startNestedTimer(timerName2, 2);
+        timer2.end(3);
+        timer1.end(4);
+        when(threadContext.getCurrentTimer()).thenReturn(rootTimer);
+        // when
+        TimerImpl extendedTimer = timer2.extend(5);
+        extendedTimer.end(7);
+        // then
+        assertThat(timer1.getCount()).isEqualTo(1);
+        assertThat(timer1.getTotalNanos()).isEqualTo(3);
+        assertThat(extendedTimer).isNotSameAs(timer1);
+        assertThat(extendedTimer.isExtended()).isTrue();
+        assertThat(extendedTimer.getTotalNanos()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldTimeAllTimersByDefault() {
+        // given
+        TimerNameImpl timerName1 = ImmutableTimerNameImpl.of("one", false);
+        TimerNameImpl timerName2 = ImmutableTimerNameImpl.of("two", false);
+        TimerImpl rootTimer = TimerImpl.createRootTimer(mock(ThreadContextImpl.class),
+                ImmutableTimerNameImpl.of("root", false), Integer.MAX_VALUE);
+        rootTimer.start(0);
+        // when
+        TimerImpl timer1 = rootTimer.startNestedTimer(timerName1);
+        TimerImpl timer2 = timer1.startNestedTimer(timerName2);
+        timer2.stop();
+        timer1.stop();
+        // then
+        assertThat(timer2).isNotSameAs(timer1);
+        assertThat(timer2.getCount()).isEqualTo(1);
+        assertThat(timerName2.getCountersOnlyCount()).isEqualTo(0);
+    }
+}
@@ -19,15 +19,26 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.List;
 
+import javax.management.Attribute;
+import javax.management.AttributeList;
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
 import javax.management.MalformedObjectNameException;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
 import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
 
 import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.slf4j.Logger;
 
 import org.glowroot.agent.config.AdvancedConfig;
@@ -37,6 +48,7 @@ import org.glowroot.agent.config.ImmutableAdvancedConfig;
 import org.glowroot.agent.config.ImmutableGaugeConfig;
 import org.glowroot.agent.config.ImmutableMBeanAttribute;
 import org.glowroot.agent.util.LazyPlatformMBeanServer;
+import org.glowroot.agent.util.LazyPlatformMBeanServer.InitListener;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.Collector;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
@@ -46,6 +58,7 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -106,7 +119,7 @@ public class GaugeCollectorTest {
                 .addMbeanAttributes(ImmutableMBeanAttribute.of("ddd", false))
                 .build();
         when(clock.currentTimeMillis()).thenReturn(59999L);
-        when(lazyPlatformMBeanServer.getAttribute(any(ObjectName.class), anyString()))
+        when(lazyPlatformMBeanServer.getAttributes(any(ObjectName.class), any(String[].class)))
                 .thenThrow(InstanceNotFoundException.class);
         // when
         List<GaugeValue> gaugeValues = gaugeCollector.collectGaugeValues(gaugeConfig);
@@ -125,7 +138,7 @@ public class GaugeCollectorTest {
                 .addMbeanAttributes(ImmutableMBeanAttribute.of("ddd", false))
                 .build();
         when(clock.currentTimeMillis()).thenReturn(60000L);
-        when(lazyPlatformMBeanServer.getAttribute(any(ObjectName.class), anyString()))
+        when(lazyPlatformMBeanServer.getAttributes(any(ObjectName.class), any(String[].class)))
                 .thenThrow(InstanceNotFoundException.class);
         // when
         List<GaugeValue> gaugeValues = gaugeCollector.collectGaugeValues(gaugeConfig);
@@ -145,7 +158,7 @@ public class GaugeCollectorTest {
                 .addMbeanAttributes(ImmutableMBeanAttribute.of("ddd", false))
                 .build();
         when(clock.currentTimeMillis()).thenReturn(0L).thenReturn(30000L).thenReturn(60000L);
-        when(lazyPlatformMBeanServer.getAttribute(any(ObjectName.class), anyString()))
+        when(lazyPlatformMBeanServer.getAttributes(any(ObjectName.class), any(String[].class)))
                 .thenThrow(InstanceNotFoundException.class);
         // when
         gaugeCollector.collectGaugeValues(gaugeConfig);
@@ -170,6 +183,8 @@ public class GaugeCollectorTest {
                 .addMbeanAttributes(ImmutableMBeanAttribute.of("ccc", false))
                 .addMbeanAttributes(ImmutableMBeanAttribute.of("ddd", false))
                 .build();
+        when(lazyPlatformMBeanServer.getAttributes(any(ObjectName.class), any(String[].class)))
+                .thenReturn(new AttributeList());
         when(lazyPlatformMBeanServer.getAttribute(any(ObjectName.class), anyString()))
                 .thenThrow(AttributeNotFoundException.class);
         // when
@@ -192,6 +207,8 @@ public class GaugeCollectorTest {
                 .addMbeanAttributes(ImmutableMBeanAttribute.of("ccc", false))
                 .addMbeanAttributes(ImmutableMBeanAttribute.of("ddd", false))
                 .build();
+        when(lazyPlatformMBeanServer.getAttributes(any(ObjectName.class), any(String[].class)))
+                .thenReturn(new AttributeList());
         when(lazyPlatformMBeanServer.getAttribute(any(ObjectName.class), anyString()))
                 .thenThrow(new RuntimeException("A msg"));
         // when
@@ -216,8 +233,9 @@ public class GaugeCollectorTest {
                 .addMbeanAttributes(ImmutableMBeanAttribute.of("ccc", false))
                 .addMbeanAttributes(ImmutableMBeanAttribute.of("ddd", false))
                 .build();
-        when(lazyPlatformMBeanServer.getAttribute(any(ObjectName.class), anyString()))
-                .thenReturn("not a number");
+        when(lazyPlatformMBeanServer.getAttributes(any(ObjectName.class), any(String[].class)))
+                .thenReturn(new AttributeList(ImmutableList.of(new Attribute("ccc", "not a number"),
+                        new Attribute("ddd", "not a number"))));
         // when
         gaugeCollector.collectGaugeValues(gaugeConfig);
         gaugeCollector.collectGaugeValues(gaugeConfig);
@@ -239,8 +257,9 @@ public class GaugeCollectorTest {
                 .addMbeanAttributes(ImmutableMBeanAttribute.of("ccc", false))
                 .addMbeanAttributes(ImmutableMBeanAttribute.of("ddd", false))
                 .build();
-        when(lazyPlatformMBeanServer.getAttribute(any(ObjectName.class), anyString()))
-                .thenReturn(new Object());
+        when(lazyPlatformMBeanServer.getAttributes(any(ObjectName.class), any(String[].class)))
+                .thenReturn(new AttributeList(ImmutableList.of(new Attribute("ccc", new Object()),
+                        new Attribute("ddd", new Object()))));
         // when
         gaugeCollector.collectGaugeValues(gaugeConfig);
         gaugeCollector.collectGaugeValues(gaugeConfig);
@@ -254,6 +273,87 @@ public class GaugeCollectorTest {
                 "MBean attribute value is not a number or string");
     }
 
+    @Test
+    public void shouldReadAttributesInBulk() throws Exception {
+        // given
+        GaugeConfig gaugeConfig = ImmutableGaugeConfig.builder()
+                .mbeanObjectName("xyz:aaa=bbb")
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ccc", false))
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ddd.eee", false))
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ddd.fff", false))
+                .build();
+        CompositeData compositeData = mock(CompositeData.class);
+        when(compositeData.get("eee")).thenReturn(2);
+        when(compositeData.get("fff")).thenReturn(3);
+        when(lazyPlatformMBeanServer.getAttributes(new ObjectName("xyz:aaa=bbb"),
+                new String[] {"ccc", "ddd"})).thenReturn(new AttributeList(
+                        ImmutableList.of(new Attribute("ccc", 1), new Attribute("ddd",
+                                compositeData))));
+        // when
+        List<GaugeValue> gaugeValues = gaugeCollector.collectGaugeValues(gaugeConfig);
+        // then
+        assertThat(gaugeValues).hasSize(3);
+        assertThat(gaugeValues.get(0).getGaugeName()).isEqualTo("xyz:aaa=bbb:ccc");
+        assertThat(gaugeValues.get(0).getValue()).isEqualTo(1);
+        assertThat(gaugeValues.get(1).getGaugeName()).isEqualTo("xyz:aaa=bbb:ddd.eee");
+        assertThat(gaugeValues.get(1).getValue()).isEqualTo(2);
+        assertThat(gaugeValues.get(2).getGaugeName()).isEqualTo("xyz:aaa=bbb:ddd.fff");
+        assertThat(gaugeValues.get(2).getValue()).isEqualTo(3);
+        verify(lazyPlatformMBeanServer, never()).getAttribute(any(ObjectName.class),
+                anyString());
+    }
+
+    @Test
+    public void shouldCacheResolvedPatternUntilMBeanRegistration() throws Exception {
+        // given
+        ArgumentCaptor<InitListener> initListenerCaptor =
+                ArgumentCaptor.forClass(InitListener.class);
+        verify(lazyPlatformMBeanServer).addInitListener(initListenerCaptor.capture());
+        MBeanServer mbeanServer = mock(MBeanServer.class);
+        initListenerCaptor.getValue().postInit(mbeanServer);
+        ArgumentCaptor<NotificationListener> notificationListenerCaptor =
+                ArgumentCaptor.forClass(NotificationListener.class);
+        verify(mbeanServer).addNotificationListener(eq(MBeanServerDelegate.DELEGATE_NAME),
+                notificationListenerCaptor.capture(), any(NotificationFilter.class), any());
+        GaugeConfig gaugeConfig = ImmutableGaugeConfig.builder()
+                .mbeanObjectName("xyz:aaa=*")
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ccc", false))
+                .build();
+        ObjectName pattern = new ObjectName("xyz:aaa=*");
+        when(lazyPlatformMBeanServer.queryNames(pattern, null))
+                .thenReturn(ImmutableSet.of(new ObjectName("xyz:aaa=bbb")));
+        when(lazyPlatformMBeanServer.getAttributes(any(ObjectName.class), any(String[].class)))
+                .thenReturn(new AttributeList(ImmutableList.of(new Attribute("ccc", 1))));
+        // when
+        gaugeCollector.collectGaugeValues(gaugeConfig);
+        gaugeCollector.collectGaugeValues(gaugeConfig);
+        notificationListenerCaptor.getValue().handleNotification(new MBeanServerNotification(
+                MBeanServerNotification.REGISTRATION_NOTIFICATION,
+                MBeanServerDelegate.DELEGATE_NAME, 1, new ObjectName("xyz:aaa=ccc")), null);
+        gaugeCollector.collectGaugeValues(gaugeConfig);
+        // then
+        verify(lazyPlatformMBeanServer, times(2)).queryNames(pattern, null);
+    }
+
+    @Test
+    public void shouldRemoveMBeanRegistrationListenerOnClose() throws Exception {
+        // given
+        ArgumentCaptor<InitListener> initListenerCaptor =
+                ArgumentCaptor.forClass(InitListener.class);
+        verify(lazyPlatformMBeanServer).addInitListener(initListenerCaptor.capture());
+        MBeanServer mbeanServer = mock(MBeanServer.class);
+        initListenerCaptor.getValue().postInit(mbeanServer);
+        ArgumentCaptor<NotificationListener> notificationListenerCaptor =
+                ArgumentCaptor.forClass(NotificationListener.class);
+        verify(mbeanServer).addNotificationListener(eq(MBeanServerDelegate.DELEGATE_NAME),
+                notificationListenerCaptor.capture(), any(NotificationFilter.class), any());
+        // when
+        gaugeCollector.close();
+        // then
+        verify(mbeanServer).removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME,
+                notificationListenerCaptor.getValue());
+    }
+
     private static void setLogger(Class<?> clazz, Logger logger) throws Exception {
         Field loggerField = clazz.getDeclaredField("logger");
         loggerField.setAccessible(true);
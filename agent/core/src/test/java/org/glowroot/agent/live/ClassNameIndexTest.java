@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.live;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ClassNameIndexTest {
+
+    private ClassNameIndex classNameIndex;
+
+    @Before
+    public void beforeEachTest() {
+        classNameIndex = new ClassNameIndex();
+        classNameIndex.add("javax.servlet.http.HttpServletRequest");
+        classNameIndex.add("javax.servlet.http.HttpServletRequestWrapper");
+        classNameIndex.add("javax.servlet.http.HttpServletResponse");
+        classNameIndex.add("javax.servlet.ServletRequest");
+        classNameIndex.add("org.example.Outer$Request");
+    }
+
+    @Test
+    public void shouldMatchPrefixOfAnySegment() {
+        // when
+        List<String> classNames = classNameIndex.getMatchingClassNames("servletreq", 10);
+        // then
+        assertThat(classNames).containsExactly("javax.servlet.ServletRequest");
+    }
+
+    @Test
+    public void shouldMatchInnerClass() {
+        // when
+        List<String> classNames = classNameIndex.getMatchingClassNames("request", 10);
+        // then
+        assertThat(classNames).containsExactly("org.example.Outer$Request");
+    }
+
+    @Test
+    public void shouldMatchFullClassName() {
+        // when
+        List<String> classNames =
+                classNameIndex.getMatchingClassNames("javax.servlet.http.HttpServletRequest", 10);
+        // then
+        assertThat(classNames).containsExactly("javax.servlet.http.HttpServletRequest",
+                "javax.servlet.http.HttpServletRequestWrapper");
+    }
+
+    @Test
+    public void shouldRespectLimit() {
+        // when
+        List<String> classNames = classNameIndex.getMatchingClassNames("HttpServletRe", 2);
+        // then
+        assertThat(classNames).containsExactly("javax.servlet.http.HttpServletRequest",
+                "javax.servlet.http.HttpServletRequestWrapper");
+    }
+
+    @Test
+    public void shouldMatchCamelCase() {
+        // when
+        List<String> classNames = classNameIndex.getMatchingClassNames("HSRes", 10);
+        // then
+        assertThat(classNames).containsExactly("javax.servlet.http.HttpServletResponse");
+    }
+
+    @Test
+    public void shouldRemove() {
+        // given
+        classNameIndex.getMatchingClassNames("", 10);
+        // when
+        classNameIndex.remove("javax.servlet.http.HttpServletRequest");
+        classNameIndex.add("javax.servlet.http.HttpSession");
+        List<String> classNames = classNameIndex.getMatchingClassNames("http", 10);
+        // then
+        assertThat(classNames).containsExactly("javax.servlet.http.HttpServletRequestWrapper",
+                "javax.servlet.http.HttpServletResponse", "javax.servlet.http.HttpSession");
+    }
+
+    @Test
+    public void shouldReAddAfterRemove() {
+        // given
+        classNameIndex.getMatchingClassNames("", 10);
+        // when
+        classNameIndex.remove("javax.servlet.ServletRequest");
+        classNameIndex.add("javax.servlet.ServletRequest");
+        List<String> classNames = classNameIndex.getMatchingClassNames("ServletRequest", 10);
+        // then
+        assertThat(classNames).containsExactly("javax.servlet.ServletRequest");
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.server;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Strings;
+import io.grpc.BindableService;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.junit.After;
+import org.junit.Test;
+
+import org.glowroot.agent.server.CollectStream.UnaryCollector;
+import org.glowroot.wire.api.model.CollectorServiceGrpc;
+import org.glowroot.wire.api.model.CollectorServiceGrpc.CollectorServiceImplBase;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectFrame;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectFrameAck;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+public class CollectStreamTest {
+
+    private Server server;
+    private ManagedChannel channel;
+    private CollectStream collectStream;
+
+    @After
+    public void afterEachTest() throws Exception {
+        collectStream.close();
+        channel.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void shouldSealFrameOnceFullOrOnceMaxDelayIsReached() throws Exception {
+        // given
+        TestCollectorService collectorService = new TestCollectorService(false);
+        collectStream = createCollectStream(collectorService, mock(UnaryCollector.class));
+        // when
+        // this trace alone exceeds the default max frame bytes, so it is sealed immediately
+        collectStream.addTrace(Trace.newBuilder()
+                .setId("1")
+                .setHeader(Trace.Header.newBuilder()
+                        .setHeadline(Strings.repeat("x", 1024 * 1024)))
+                .build());
+        // and this trace is sealed once the default max frame delay is reached
+        collectStream.addTrace(Trace.newBuilder().setId("2").build());
+        // then
+        CollectFrame frame1 = collectorService.receivedFrames.poll(10, SECONDS);
+        CollectFrame frame2 = collectorService.receivedFrames.poll(10, SECONDS);
+        assertThat(frame1.getTraceCount()).isEqualTo(1);
+        assertThat(frame1.getTrace(0).getId()).isEqualTo("1");
+        assertThat(frame2.getTraceCount()).isEqualTo(1);
+        assertThat(frame2.getTrace(0).getId()).isEqualTo("2");
+        assertThat(frame2.getFrameId()).isEqualTo(frame1.getFrameId() + 1);
+    }
+
+    @Test
+    public void shouldResendUnackedFrameOnNewStream() throws Exception {
+        // given
+        TestCollectorService collectorService = new TestCollectorService(true);
+        collectStream = createCollectStream(collectorService, mock(UnaryCollector.class));
+        // when
+        collectStream.addTrace(Trace.newBuilder().setId("1").build());
+        // then
+        CollectFrame frame = collectorService.receivedFrames.poll(10, SECONDS);
+        CollectFrame resentFrame = collectorService.receivedFrames.poll(10, SECONDS);
+        assertThat(resentFrame.getFrameId()).isEqualTo(frame.getFrameId());
+        assertThat(resentFrame.getTraceCount()).isEqualTo(1);
+        assertThat(resentFrame.getTrace(0).getId()).isEqualTo("1");
+        assertThat(collectorService.streamCount.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldFallBackToUnaryRpcsWhenServerDoesNotImplementStream() throws Exception {
+        // given
+        UnaryCollector unaryCollector = mock(UnaryCollector.class);
+        collectStream = createCollectStream(new CollectorServiceImplBase() {}, unaryCollector);
+        Trace trace1 = Trace.newBuilder().setId("1").build();
+        Trace trace2 = Trace.newBuilder().setId("2").build();
+        // when
+        collectStream.addTrace(trace1);
+        verify(unaryCollector, timeout(10000)).collectTrace(trace1);
+        collectStream.addTrace(trace2);
+        // then
+        // once the stream is known to be unimplemented, data is sent using unary rpcs right away
+        verify(unaryCollector).collectTrace(trace2);
+    }
+
+    private CollectStream createCollectStream(BindableService collectorService,
+            UnaryCollector unaryCollector) throws Exception {
+        // unique name since the prior test's server may still be shutting down
+        String name = "collect-stream-test-" + System.nanoTime();
+        server = InProcessServerBuilder.forName(name)
+                .addService(collectorService)
+                .directExecutor()
+                .build()
+                .start();
+        // not using direct executor for the channel, since CollectStream expects stream callbacks
+        // on grpc threads (not on the thread that is sending the frame)
+        channel = InProcessChannelBuilder.forName(name).build();
+        return new CollectStream("", CollectorServiceGrpc.newStub(channel),
+                mock(ServerConnection.class), mock(SpillQueue.class), new AtomicBoolean(),
+                unaryCollector);
+    }
+
+    private static class TestCollectorService extends CollectorServiceImplBase {
+
+        private final boolean failFirstStream;
+
+        private final BlockingQueue<CollectFrame> receivedFrames =
+                new LinkedBlockingQueue<CollectFrame>();
+        private final AtomicInteger streamCount = new AtomicInteger();
+
+        private TestCollectorService(boolean failFirstStream) {
+            this.failFirstStream = failFirstStream;
+        }
+
+        @Override
+        public StreamObserver<CollectFrame> collect(
+                final StreamObserver<CollectFrameAck> responseObserver) {
+            final boolean fail = streamCount.getAndIncrement() == 0 && failFirstStream;
+            return new StreamObserver<CollectFrame>() {
+                @Override
+                public void onNext(CollectFrame frame) {
+                    receivedFrames.add(frame);
+                    if (fail) {
+                        // fail the stream without acking the frame
+                        responseObserver.onError(Status.UNAVAILABLE.asRuntimeException());
+                    } else {
+                        responseObserver.onNext(CollectFrameAck.newBuilder()
+                                .setFrameId(frame.getFrameId())
+                                .build());
+                    }
+                }
+                @Override
+                public void onError(Throwable t) {}
+                @Override
+                public void onCompleted() {
+                    responseObserver.onCompleted();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.server.SpillJournal.Record;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpillJournalTest {
+
+    private File dir;
+
+    @Before
+    public void beforeEachTest() {
+        dir = Files.createTempDir();
+    }
+
+    @After
+    public void afterEachTest() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void shouldReadInOrderAcrossSegmentsAndDeleteReadSegments() throws IOException {
+        // given
+        SpillJournal journal = new SpillJournal(dir, 1024 * 1024, 100);
+        // when
+        for (int i = 0; i < 10; i++) {
+            journal.append((byte) 1, new byte[] {(byte) i, 1, 2, 3, 4, 5, 6, 7, 8, 9}, false);
+        }
+        // then
+        assertThat(dir.listFiles()).hasSize(2);
+        for (int i = 0; i < 10; i++) {
+            Record record = journal.peek();
+            assertThat(record.type()).isEqualTo((byte) 1);
+            assertThat(record.payload()[0]).isEqualTo((byte) i);
+            journal.remove(record);
+        }
+        assertThat(journal.peek()).isNull();
+        assertThat(journal.isEmpty()).isTrue();
+        assertThat(journal.getTotalBytes()).isZero();
+        assertThat(dir.listFiles()).hasSize(1);
+        journal.close();
+    }
+
+    @Test
+    public void shouldNotAppendWhenFull() throws IOException {
+        // given
+        SpillJournal journal = new SpillJournal(dir, 40, 1024);
+        // when
+        boolean appended1 = journal.append((byte) 1, new byte[10], false);
+        boolean appended2 = journal.append((byte) 1, new byte[10], false);
+        boolean appended3 = journal.append((byte) 2, new byte[10], true);
+        boolean appended4 = journal.append((byte) 2, new byte[10], true);
+        // then
+        assertThat(appended1).isTrue();
+        // only reserved records can use the last tenth of the max size
+        assertThat(appended2).isFalse();
+        assertThat(appended3).isTrue();
+        assertThat(appended4).isFalse();
+        assertThat(journal.getTotalBytes()).isEqualTo(38);
+        journal.close();
+    }
+
+    @Test
+    public void shouldResumeAfterReopenAndSkipTornRecord() throws IOException {
+        // given
+        SpillJournal journal = new SpillJournal(dir, 1024 * 1024, 1024);
+        journal.append((byte) 1, new byte[] {1}, false);
+        journal.append((byte) 1, new byte[] {2}, false);
+        journal.close();
+        File segment = dir.listFiles()[0];
+        RandomAccessFile out = new RandomAccessFile(segment, "rw");
+        // simulate record torn by a crash
+        out.setLength(segment.length() - 1);
+        out.close();
+        // when
+        journal = new SpillJournal(dir, 1024 * 1024, 1024);
+        journal.append((byte) 1, new byte[] {3}, false);
+        // then
+        Record record = journal.peek();
+        assertThat(record.payload()).containsExactly((byte) 1);
+        journal.remove(record);
+        record = journal.peek();
+        assertThat(record.payload()).containsExactly((byte) 3);
+        journal.remove(record);
+        assertThat(journal.peek()).isNull();
+        assertThat(journal.getTotalBytes()).isZero();
+        journal.close();
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import org.glowroot.agent.weaving.SomeAspect.BasicAdvice;
+import org.glowroot.agent.weaving.targets.BasicMisc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AnalyzedWorldTest {
+
+    @Test
+    public void shouldShareAnalyzedClassAcrossClassLoaders() throws Exception {
+        // given
+        AnalyzedWorld analyzedWorld = newAnalyzedWorld();
+        URLClassLoader loader1 = newIsolatedLoader();
+        URLClassLoader loader2 = newIsolatedLoader();
+        // when
+        AnalyzedClass analyzedClass1 =
+                analyzedWorld.getAnalyzedClass(BasicMisc.class.getName(), loader1);
+        AnalyzedClass analyzedClass2 =
+                analyzedWorld.getAnalyzedClass(BasicMisc.class.getName(), loader2);
+        // then
+        assertThat(analyzedClass1.analyzedMethods()).isNotEmpty();
+        assertThat(analyzedClass2).isSameAs(analyzedClass1);
+        assertThat(analyzedWorld.getClassLoaders()).contains(loader1, loader2);
+    }
+
+    @Test
+    public void shouldNotShareAnalyzedClassWithDifferentSuperTypes() throws Exception {
+        // given
+        AnalyzedWorld analyzedWorld = newAnalyzedWorld();
+        URLClassLoader loader1 = newIsolatedLoader();
+        URLClassLoader loader2 = newIsolatedLoader();
+        AnalyzedClass analyzedClass1 =
+                analyzedWorld.getAnalyzedClass(BasicMisc.class.getName(), loader1);
+        // simulate a different version of one of the super types in the second class loader
+        String superName = analyzedClass1.superName();
+        assertThat(superName).isNotNull();
+        analyzedWorld.add(ImmutableAnalyzedClass.builder()
+                .modifiers(1)
+                .name(superName)
+                .superName("java.lang.Object")
+                .build(), loader2);
+        // when
+        AnalyzedClass analyzedClass2 =
+                analyzedWorld.getAnalyzedClass(BasicMisc.class.getName(), loader2);
+        // then
+        assertThat(analyzedClass2).isNotSameAs(analyzedClass1);
+    }
+
+    private static AnalyzedWorld newAnalyzedWorld() {
+        List<Advice> advisors = ImmutableList.of(new AdviceBuilder(BasicAdvice.class).build());
+        return new AnalyzedWorld(Suppliers.ofInstance(advisors), ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of());
+    }
+
+    // loads the test classes without delegating to the application class loader
+    private static URLClassLoader newIsolatedLoader() {
+        URL location = BasicMisc.class.getProtectionDomain().getCodeSource().getLocation();
+        return new URLClassLoader(new URL[] {location}, null);
+    }
+}
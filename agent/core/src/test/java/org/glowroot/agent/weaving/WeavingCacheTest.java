@@ -0,0 +1,206 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.weaving.ThinClassVisitor.ThinClass;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WeavingCacheTest {
+
+    private static final List<Advice> advisors = ImmutableList.of();
+    private static final List<String> noLookups = ImmutableList.of();
+
+    private File file;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        file = File.createTempFile("glowroot-test-", ".bin");
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        file.delete();
+    }
+
+    @Test
+    public void shouldReadEntriesOnNextStart() throws Exception {
+        // given
+        WeavingCache weavingCache = new WeavingCache(file, "1.0", Long.MAX_VALUE, false);
+        byte[] noMatchKey = weavingCache.getNoMatchKey(new byte[] {1, 2, 3}, null, null, advisors);
+        byte[] wovenKey = weavingCache.getNoMatchKey(new byte[] {1, 2, 4}, null, null, advisors);
+        weavingCache.putNoMatch(noMatchKey, newThinClass());
+        weavingCache.putWoven(wovenKey, new byte[] {5, 6, 7}, noLookups);
+        // entries written during this jvm run are not visible until the next one
+        assertThat(weavingCache.getNoMatch(noMatchKey)).isNull();
+        weavingCache.close();
+        // when
+        weavingCache = new WeavingCache(file, "1.0", Long.MAX_VALUE, false);
+        // then
+        assertThat(weavingCache.getNoMatch(noMatchKey)).isEqualTo(newThinClass());
+        assertThat(weavingCache.getWoven(wovenKey).getWovenBytes()).containsExactly(5, 6, 7);
+        assertThat(weavingCache.getNoMatch(wovenKey)).isNull();
+        weavingCache.close();
+    }
+
+    @Test
+    public void shouldDropCorruptTail() throws Exception {
+        // given
+        WeavingCache weavingCache = new WeavingCache(file, "1.0", Long.MAX_VALUE, false);
+        byte[] key1 = weavingCache.getNoMatchKey(new byte[] {1}, null, null, advisors);
+        byte[] key2 = weavingCache.getNoMatchKey(new byte[] {2}, null, null, advisors);
+        weavingCache.putWoven(key1, new byte[] {1}, noLookups);
+        weavingCache.putWoven(key2, new byte[] {2}, noLookups);
+        weavingCache.close();
+        // simulate jvm being killed in the middle of writing the last entry
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 1);
+        raf.close();
+        // when
+        weavingCache = new WeavingCache(file, "1.0", Long.MAX_VALUE, false);
+        // then
+        assertThat(weavingCache.getWoven(key1).getWovenBytes()).containsExactly(1);
+        assertThat(weavingCache.getWoven(key2)).isNull();
+        weavingCache.close();
+    }
+
+    @Test
+    public void shouldIgnoreInvalidFile() throws Exception {
+        // given
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.writeInt(0);
+        raf.writeInt(0);
+        raf.writeInt(0);
+        raf.close();
+        // when
+        WeavingCache weavingCache = new WeavingCache(file, "1.0", Long.MAX_VALUE, false);
+        byte[] key = weavingCache.getNoMatchKey(new byte[] {1}, null, null, advisors);
+        weavingCache.putWoven(key, new byte[] {1}, noLookups);
+        weavingCache.close();
+        weavingCache = new WeavingCache(file, "1.0", Long.MAX_VALUE, false);
+        // then
+        assertThat(weavingCache.getWoven(key).getWovenBytes()).containsExactly(1);
+        weavingCache.close();
+    }
+
+    @Test
+    public void shouldReset() throws Exception {
+        // given
+        WeavingCache weavingCache = new WeavingCache(file, "1.0", Long.MAX_VALUE, false);
+        byte[] key = weavingCache.getNoMatchKey(new byte[] {1}, null, null, advisors);
+        weavingCache.putWoven(key, new byte[] {1}, noLookups);
+        weavingCache.close();
+        // when
+        weavingCache = new WeavingCache(file, "1.0", Long.MAX_VALUE, true);
+        // then
+        assertThat(weavingCache.getWoven(key)).isNull();
+        weavingCache.close();
+    }
+
+    @Test
+    public void shouldResetOnNextStartOnceFull() throws Exception {
+        // given
+        WeavingCache weavingCache = new WeavingCache(file, "1.0", 256, false);
+        byte[] key1 = weavingCache.getNoMatchKey(new byte[] {1}, null, null, advisors);
+        byte[] key2 = weavingCache.getNoMatchKey(new byte[] {2}, null, null, advisors);
+        byte[] key3 = weavingCache.getNoMatchKey(new byte[] {3}, null, null, advisors);
+        weavingCache.putWoven(key1, new byte[30], noLookups);
+        weavingCache.putWoven(key2, new byte[30], noLookups);
+        weavingCache.close();
+        weavingCache = new WeavingCache(file, "1.0", 256, false);
+        assertThat(weavingCache.getWoven(key1).getWovenBytes()).hasSize(30);
+        assertThat(weavingCache.getWoven(key2).getWovenBytes()).hasSize(30);
+        // when
+        weavingCache.putWoven(key3, new byte[30], noLookups);
+        weavingCache.putWoven(key3, new byte[30], noLookups);
+        // entries already in the file are still read during the jvm run where it fills up
+        assertThat(weavingCache.getWoven(key1).getWovenBytes()).hasSize(30);
+        weavingCache.close();
+        // then
+        weavingCache = new WeavingCache(file, "1.0", 256, false);
+        assertThat(weavingCache.getWoven(key1)).isNull();
+        assertThat(weavingCache.getWoven(key3)).isNull();
+        weavingCache.putWoven(key3, new byte[30], noLookups);
+        weavingCache.close();
+        weavingCache = new WeavingCache(file, "1.0", 256, false);
+        assertThat(weavingCache.getWoven(key3).getWovenBytes()).hasSize(30);
+        weavingCache.close();
+    }
+
+    @Test
+    public void shouldResetOnAgentVersionChange() throws Exception {
+        // given
+        WeavingCache weavingCache = new WeavingCache(file, "1.0", Long.MAX_VALUE, false);
+        byte[] key = weavingCache.getNoMatchKey(new byte[] {1}, null, null, advisors);
+        weavingCache.putWoven(key, new byte[] {1}, noLookups);
+        weavingCache.close();
+        // when
+        weavingCache = new WeavingCache(file, "1.1", Long.MAX_VALUE, false);
+        // then
+        assertThat(weavingCache.getWoven(key)).isNull();
+        weavingCache.close();
+    }
+
+    @Test
+    public void shouldReadCommonSuperClassLookups() throws Exception {
+        // given
+        WeavingCache weavingCache = new WeavingCache(file, "1.0", Long.MAX_VALUE, false);
+        byte[] key = weavingCache.getNoMatchKey(new byte[] {1}, null, null, advisors);
+        weavingCache.putWoven(key, new byte[] {1},
+                ImmutableList.of("org/example/A", "org/example/B", "org/example/C"));
+        weavingCache.close();
+        // when
+        weavingCache = new WeavingCache(file, "1.0", Long.MAX_VALUE, false);
+        // then
+        assertThat(weavingCache.getWoven(key).getCommonSuperClassLookups())
+                .containsExactly("org/example/A", "org/example/B", "org/example/C");
+        assertThat(weavingCache.getWoven(key).getWovenBytes()).containsExactly(1);
+        weavingCache.close();
+    }
+
+    @Test
+    public void shouldIncludeAdvisorsInKey() throws Exception {
+        // given
+        WeavingCache weavingCache = new WeavingCache(file, "1.0", Long.MAX_VALUE, false);
+        List<Advice> otherAdvisors =
+                ImmutableList.of(new AdviceBuilder(SomeAspect.BasicAdvice.class).build());
+        // when
+        byte[] key = weavingCache.getNoMatchKey(new byte[] {1}, null, null, advisors);
+        byte[] otherKey = weavingCache.getNoMatchKey(new byte[] {1}, null, null, otherAdvisors);
+        // then
+        assertThat(key).isNotEqualTo(otherKey);
+        weavingCache.close();
+    }
+
+    private static ThinClass newThinClass() {
+        return ImmutableThinClass.builder()
+                .access(1)
+                .name("org/example/Abc")
+                .superName("java/lang/Object")
+                .addInterfaces("java/io/Serializable")
+                .addAnnotations("Lorg/example/Xyz;")
+                .build();
+    }
+}
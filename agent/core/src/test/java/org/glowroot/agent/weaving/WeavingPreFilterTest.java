@@ -0,0 +1,113 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Resources;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+
+import org.glowroot.agent.weaving.SomeAspect.BasicAdvice;
+import org.glowroot.agent.weaving.SomeAspect.BasicAnnotationBasedAdvice;
+import org.glowroot.agent.weaving.ThinClassVisitor.ThinClass;
+import org.glowroot.agent.weaving.targets.BasicMisc;
+import org.glowroot.agent.weaving.targets.Misc;
+import org.glowroot.agent.weaving.targets.PrimitiveMisc;
+import org.glowroot.agent.weaving.targets.SubException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WeavingPreFilterTest {
+
+    @Test
+    public void shouldReturnHeaderForUnmatchedClass() throws Exception {
+        // given
+        WeavingPreFilter preFilter = newPreFilter(new AdviceBuilder(BasicAdvice.class).build());
+        byte[] classBytes = getClassBytes(SubException.class);
+        // when
+        ThinClass header = preFilter.getUnmatchedHeader(classBytes);
+        // then
+        ThinClassVisitor cv = new ThinClassVisitor();
+        new ClassReader(classBytes).accept(cv, ClassReader.SKIP_CODE);
+        ThinClass thinClass = cv.getThinClass();
+        assertThat(header).isNotNull();
+        assertThat(header.access()).isEqualTo(thinClass.access());
+        assertThat(header.name()).isEqualTo(thinClass.name());
+        assertThat(header.superName()).isEqualTo(thinClass.superName());
+        assertThat(header.interfaces()).isEqualTo(thinClass.interfaces());
+    }
+
+    @Test
+    public void shouldNotReturnHeaderForMatchedClassName() throws Exception {
+        // given
+        WeavingPreFilter preFilter = newPreFilter(new AdviceBuilder(BasicAdvice.class).build());
+        // when
+        ThinClass header = preFilter.getUnmatchedHeader(getClassBytes(Misc.class));
+        // then
+        assertThat(header).isNull();
+    }
+
+    @Test
+    public void shouldNotReturnHeaderForMatchedInterfaceName() throws Exception {
+        // given
+        WeavingPreFilter preFilter = newPreFilter(new AdviceBuilder(BasicAdvice.class).build());
+        // when
+        ThinClass header = preFilter.getUnmatchedHeader(getClassBytes(PrimitiveMisc.class));
+        // then
+        assertThat(header).isNull();
+    }
+
+    @Test
+    public void shouldNotReturnHeaderForMatchedAnnotation() throws Exception {
+        // given
+        WeavingPreFilter preFilter =
+                newPreFilter(new AdviceBuilder(BasicAnnotationBasedAdvice.class).build());
+        // when
+        ThinClass header = preFilter.getUnmatchedHeader(getClassBytes(BasicMisc.class));
+        ThinClass otherHeader = preFilter.getUnmatchedHeader(getClassBytes(SubException.class));
+        // then
+        assertThat(header).isNull();
+        assertThat(otherHeader).isNotNull();
+    }
+
+    @Test
+    public void shouldNotReturnHeaderForInvalidClassBytes() throws Exception {
+        // given
+        WeavingPreFilter preFilter = newPreFilter(new AdviceBuilder(BasicAdvice.class).build());
+        byte[] classBytes = getClassBytes(SubException.class);
+        byte[] truncatedClassBytes = new byte[20];
+        System.arraycopy(classBytes, 0, truncatedClassBytes, 0, truncatedClassBytes.length);
+        // when
+        ThinClass header = preFilter.getUnmatchedHeader(new byte[] {1, 2, 3});
+        ThinClass truncatedHeader = preFilter.getUnmatchedHeader(truncatedClassBytes);
+        // then
+        assertThat(header).isNull();
+        assertThat(truncatedHeader).isNull();
+    }
+
+    private static WeavingPreFilter newPreFilter(Advice advice) {
+        List<Advice> advisors = ImmutableList.of(advice);
+        return WeavingPreFilter.create(advisors, ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of());
+    }
+
+    private static byte[] getClassBytes(Class<?> clazz) throws Exception {
+        String resourceName = "/" + clazz.getName().replace('.', '/') + ".class";
+        return Resources.toByteArray(WeavingPreFilterTest.class.getResource(resourceName));
+    }
+}
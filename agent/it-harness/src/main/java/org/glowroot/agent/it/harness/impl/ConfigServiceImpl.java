@@ -185,6 +185,7 @@ class ConfigServiceImpl implements ConfigService {
                 .setProfilingIntervalMillis(of(1000))
                 .setSlowThresholdMillis(of(0))
                 .setCaptureThreadStats(true)
+                .setTimerCountersOnlyDepth(of(1))
                 .build();
     }
 
@@ -38,8 +38,11 @@ import org.glowroot.wire.api.Collector;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.CollectorServiceGrpc.CollectorServiceImplBase;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectFrame;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectFrameAck;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.EmptyMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogEvent;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.InitMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.InitResponse;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogMessage;
@@ -50,6 +53,7 @@ import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ClientResponse;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ClientResponse.MessageCase;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ReweaveRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ServerRequest;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
@@ -198,6 +202,41 @@ class GrpcServerWrapper {
             responseObserver.onNext(EmptyMessage.getDefaultInstance());
             responseObserver.onCompleted();
         }
+
+        @Override
+        public StreamObserver<CollectFrame> collect(
+                final StreamObserver<CollectFrameAck> responseObserver) {
+            return new StreamObserver<CollectFrame>() {
+                @Override
+                public void onNext(CollectFrame frame) {
+                    try {
+                        for (Trace trace : frame.getTraceList()) {
+                            collector.collectTrace(trace);
+                        }
+                        if (frame.getGaugeValueCount() > 0) {
+                            collector.collectGaugeValues(frame.getGaugeValueList());
+                        }
+                        for (LogEvent logEvent : frame.getLogEventList()) {
+                            collector.log(logEvent);
+                        }
+                    } catch (Throwable t) {
+                        responseObserver.onError(t);
+                        return;
+                    }
+                    responseObserver.onNext(CollectFrameAck.newBuilder()
+                            .setFrameId(frame.getFrameId())
+                            .build());
+                }
+                @Override
+                public void onError(Throwable t) {
+                    logger.debug(t.getMessage(), t);
+                }
+                @Override
+                public void onCompleted() {
+                    responseObserver.onCompleted();
+                }
+            };
+        }
     }
 
     private static class DownstreamServiceImpl extends DownstreamServiceImplBase {
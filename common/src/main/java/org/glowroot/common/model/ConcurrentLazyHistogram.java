@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// thread safe variant of LazyHistogram
+//
+// recording threads add values to one of several small striped buffers (picked by thread id), and
+// only take the lock on the underlying histogram once per full buffer, so concurrent recording
+// threads rarely contend
+public class ConcurrentLazyHistogram {
+
+    // must be power of 2
+    private static final int STRIPES = 8;
+    private static final int STRIPE_BUFFER_SIZE = 64;
+
+    @GuardedBy("histogram")
+    private final LazyHistogram histogram = new LazyHistogram();
+
+    // stripes are lazy instantiated to reduce memory footprint
+    private final AtomicReferenceArray<Stripe> stripes = new AtomicReferenceArray<Stripe>(STRIPES);
+
+    public void add(long value) {
+        Stripe stripe = getStripe();
+        synchronized (stripe) {
+            stripe.values[stripe.size++] = value;
+            if (stripe.size == STRIPE_BUFFER_SIZE) {
+                synchronized (histogram) {
+                    for (int i = 0; i < stripe.size; i++) {
+                        histogram.add(stripe.values[i]);
+                    }
+                }
+                stripe.size = 0;
+            }
+        }
+    }
+
+    // values that are recorded concurrently with taking the snapshot may not be included in the
+    // snapshot, but values that were recorded before taking the snapshot are always included
+    public LazyHistogram snapshot() {
+        LazyHistogram snapshot = new LazyHistogram();
+        snapshot(0, snapshot);
+        return snapshot;
+    }
+
+    public Aggregate.Histogram toProto(ScratchBuffer scratchBuffer) {
+        return snapshot().toProto(scratchBuffer);
+    }
+
+    // the stripe locks are all held (always acquired in stripe order, and always before the
+    // histogram lock) while reading the histogram, otherwise a stripe could flush its buffered
+    // values into the histogram after the histogram was read but before the stripe was read, and
+    // those values would be missing from the snapshot
+    private void snapshot(int fromIndex, LazyHistogram snapshot) {
+        for (int i = fromIndex; i < STRIPES; i++) {
+            Stripe stripe = stripes.get(i);
+            if (stripe == null) {
+                continue;
+            }
+            synchronized (stripe) {
+                for (int j = 0; j < stripe.size; j++) {
+                    snapshot.add(stripe.values[j]);
+                }
+                snapshot(i + 1, snapshot);
+            }
+            return;
+        }
+        synchronized (histogram) {
+            snapshot.merge(histogram);
+        }
+    }
+
+    private Stripe getStripe() {
+        int index = (int) (Thread.currentThread().getId() & (STRIPES - 1));
+        Stripe stripe = stripes.get(index);
+        if (stripe == null) {
+            stripe = new Stripe();
+            if (!stripes.compareAndSet(index, null, stripe)) {
+                stripe = stripes.get(index);
+            }
+        }
+        return stripe;
+    }
+
+    private static class Stripe {
+
+        private final long[] values = new long[STRIPE_BUFFER_SIZE];
+        private int size;
+    }
+}
@@ -93,14 +93,15 @@ public class LazyHistogram {
     }
 
     public void merge(LazyHistogram toBeMergedHistogram) {
-        if (histogram == null) {
-            convertValuesToHistogram();
-        }
         if (toBeMergedHistogram.histogram == null) {
+            // add() only converts to histogram if needed
             for (int i = 0; i < toBeMergedHistogram.size; i++) {
-                histogram.recordValue(toBeMergedHistogram.values[i]);
+                add(toBeMergedHistogram.values[i]);
             }
         } else {
+            if (histogram == null) {
+                convertValuesToHistogram();
+            }
             histogram.add(toBeMergedHistogram.histogram);
         }
     }
@@ -123,6 +124,11 @@ public class LazyHistogram {
         return histogram.getValueAtPercentile(percentile);
     }
 
+    @VisibleForTesting
+    long getValueCount() {
+        return histogram == null ? size : histogram.getTotalCount();
+    }
+
     @VisibleForTesting
     public void add(long value) {
         ensureCapacity(size + 1);
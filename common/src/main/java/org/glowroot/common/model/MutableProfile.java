@@ -16,62 +16,168 @@
 package org.glowroot.common.model;
 
 import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 
 import javax.annotation.Nullable;
 
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.base.Strings;
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
-import com.google.common.collect.PeekingIterator;
-import com.google.common.collect.Queues;
 import com.google.common.io.CharStreams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.common.util.ObjectMappers;
-import org.glowroot.common.util.Traverser;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 
+// the profile tree is stored in parallel primitive arrays indexed by node id (instead of a tree of
+// node objects), stack frames are interned once per profile (so each node only holds a frame id),
+// and child nodes are found through a single hash table keyed on (parent node, frame, leaf thread
+// state) instead of by scanning the child list
+//
+// nodes that are removed by filter() or truncateBranches() are only unlinked from their parent, so
+// those methods are intended to be called once the profile is done being merged into
 public class MutableProfile {
 
     private static final Logger logger = LoggerFactory.getLogger(MutableProfile.class);
     private static final ObjectMapper mapper = ObjectMappers.create();
 
-    // TODO use primitive maps, e.g. from GS collections
-    private final Map<String, Integer> packageNameIndexes = Maps.newHashMap();
-    private final Map<String, Integer> classNameIndexes = Maps.newHashMap();
-    private final Map<String, Integer> methodNameIndexes = Maps.newHashMap();
-    private final Map<String, Integer> fileNameIndexes = Maps.newHashMap();
+    private static final Profile.LeafThreadState[] LEAF_THREAD_STATES =
+            Profile.LeafThreadState.values();
+
+    private static final byte NO_LEAF_THREAD_STATE = (byte) Profile.LeafThreadState.NONE.ordinal();
+
+    // node 0 is a synthetic node whose children are the root nodes of the profile
+    private static final int SYNTHETIC_ROOT_NODE = 0;
+    private static final int NO_NODE = -1;
+
+    private static final int INITIAL_CAPACITY = 16;
 
     private final List<String> packageNames = Lists.newArrayList();
     private final List<String> classNames = Lists.newArrayList();
     private final List<String> methodNames = Lists.newArrayList();
     private final List<String> fileNames = Lists.newArrayList();
 
-    private final List<ProfileNode> rootNodes = Lists.newArrayList();
+    private final ObjectIntMap<String> packageNameIndexes = new ObjectIntMap<String>();
+    private final ObjectIntMap<String> classNameIndexes = new ObjectIntMap<String>();
+    private final ObjectIntMap<String> methodNameIndexes = new ObjectIntMap<String>();
+    private final ObjectIntMap<String> fileNameIndexes = new ObjectIntMap<String>();
+
+    // stack trace elements are mapped directly to frame ids so that the class name only needs to be
+    // split into package name and class name the first time it is seen
+    private final ObjectIntMap<StackTraceElement> stackTraceElementFrames =
+            new ObjectIntMap<StackTraceElement>();
+
+    private int frameCount;
+    private int[] framePackageNameIndexes = new int[INITIAL_CAPACITY];
+    private int[] frameClassNameIndexes = new int[INITIAL_CAPACITY];
+    private int[] frameMethodNameIndexes = new int[INITIAL_CAPACITY];
+    private int[] frameFileNameIndexes = new int[INITIAL_CAPACITY];
+    private int[] frameLineNumbers = new int[INITIAL_CAPACITY];
+    // open addressing (linear probing) table of frame id + 1, where 0 marks an empty slot
+    private int[] frameTable = new int[INITIAL_CAPACITY << 1];
+
+    // these are only used for filtering and for writing json
+    private @Nullable String[] frameTexts;
+    private @Nullable String[] frameTextUppers;
+
+    private int nodeCount = 1;
+    private int[] nodeFrames = new int[INITIAL_CAPACITY];
+    private byte[] nodeLeafThreadStates = new byte[INITIAL_CAPACITY];
+    private long[] nodeSampleCounts = new long[INITIAL_CAPACITY];
+    private long[] nodeEllipsedSampleCounts = new long[INITIAL_CAPACITY];
+    private int[] nodeParents = new int[INITIAL_CAPACITY];
+    private int[] nodeFirstChilds = new int[INITIAL_CAPACITY];
+    private int[] nodeLastChilds = new int[INITIAL_CAPACITY];
+    private int[] nodeNextSiblings = new int[INITIAL_CAPACITY];
+    // open addressing (linear probing) table of node id keyed on (parent node, frame, leaf thread
+    // state), where 0 marks an empty slot (which works since the synthetic root node is never a
+    // child node)
+    private int[] childTable = new int[INITIAL_CAPACITY << 1];
+    // set when nodes are removed, in which case the child table is rebuilt before the next merge
+    private boolean childTableStale;
+
+    // only used for filtering
+    private @Nullable boolean[] nodeMatched;
 
     // retain original sample count for in case of filtered profile
     private long unfilteredSampleCount = -1;
 
-    // this method is not used that often (only for traces with > 20 stack trace samples) so ok
-    // that it does not have most optimal implementation (converts unnecessarily to profile tree)
+    public MutableProfile() {
+        nodeParents[SYNTHETIC_ROOT_NODE] = NO_NODE;
+        nodeFirstChilds[SYNTHETIC_ROOT_NODE] = NO_NODE;
+        nodeLastChilds[SYNTHETIC_ROOT_NODE] = NO_NODE;
+        nodeNextSiblings[SYNTHETIC_ROOT_NODE] = NO_NODE;
+    }
+
     public void merge(MutableProfile profile) {
-        merge(profile.toProto());
+        prepareForMerge();
+        int[] frameMapping = new int[profile.frameCount];
+        for (int i = 0; i < profile.frameCount; i++) {
+            frameMapping[i] = getFrame(
+                    getNameIndex(profile.packageNames.get(profile.framePackageNameIndexes[i]),
+                            packageNameIndexes, packageNames),
+                    getNameIndex(profile.classNames.get(profile.frameClassNameIndexes[i]),
+                            classNameIndexes, classNames),
+                    getNameIndex(profile.methodNames.get(profile.frameMethodNameIndexes[i]),
+                            methodNameIndexes, methodNames),
+                    getNameIndex(profile.fileNames.get(profile.frameFileNameIndexes[i]),
+                            fileNameIndexes, fileNames),
+                    profile.frameLineNumbers[i]);
+        }
+        // breadth first so that each node is merged after its parent, and so that the order of
+        // sibling nodes is retained
+        int[] nodeMapping = new int[profile.nodeCount];
+        int[] queue = new int[profile.nodeCount];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = SYNTHETIC_ROOT_NODE;
+        nodeMapping[SYNTHETIC_ROOT_NODE] = SYNTHETIC_ROOT_NODE;
+        while (head < tail) {
+            int parentNode = queue[head++];
+            int parent = nodeMapping[parentNode];
+            int childNode = profile.nodeFirstChilds[parentNode];
+            while (childNode != NO_NODE) {
+                int node = getOrAddChild(parent, frameMapping[profile.nodeFrames[childNode]],
+                        profile.nodeLeafThreadStates[childNode]);
+                nodeSampleCounts[node] += profile.nodeSampleCounts[childNode];
+                nodeMapping[childNode] = node;
+                queue[tail++] = childNode;
+                childNode = profile.nodeNextSiblings[childNode];
+            }
+        }
     }
 
     public void merge(Profile profile) {
-        Merger merger = new Merger(profile);
-        merger.merge(profile.getNodeList(), rootNodes);
+        prepareForMerge();
+        int[] packageNameIndexMapping = makeIndexMapping(profile.getPackageNameList(),
+                packageNameIndexes, packageNames);
+        int[] classNameIndexMapping =
+                makeIndexMapping(profile.getClassNameList(), classNameIndexes, classNames);
+        int[] methodNameIndexMapping =
+                makeIndexMapping(profile.getMethodNameList(), methodNameIndexes, methodNames);
+        int[] fileNameIndexMapping =
+                makeIndexMapping(profile.getFileNameList(), fileNameIndexes, fileNames);
+        // nodes are flattened in depth first order, so the parent of a node at depth d is the
+        // most recent node at depth d - 1
+        int[] nodesByDepth = new int[INITIAL_CAPACITY];
+        for (Profile.ProfileNode flatNode : profile.getNodeList()) {
+            int depth = flatNode.getDepth();
+            int parent = depth == 0 ? SYNTHETIC_ROOT_NODE : nodesByDepth[depth - 1];
+            int frame = getFrame(packageNameIndexMapping[flatNode.getPackageNameIndex()],
+                    classNameIndexMapping[flatNode.getClassNameIndex()],
+                    methodNameIndexMapping[flatNode.getMethodNameIndex()],
+                    fileNameIndexMapping[flatNode.getFileNameIndex()], flatNode.getLineNumber());
+            int node = getOrAddChild(parent, frame,
+                    (byte) flatNode.getLeafThreadState().ordinal());
+            nodeSampleCounts[node] += flatNode.getSampleCount();
+            if (depth == nodesByDepth.length) {
+                nodesByDepth = Arrays.copyOf(nodesByDepth, depth << 1);
+            }
+            nodesByDepth[depth] = node;
+        }
     }
 
     public void merge(List<StackTraceElement> stackTraceElements, Thread.State threadState) {
@@ -83,108 +189,75 @@ public class MutableProfile {
                 return;
             }
         }
-        PeekingIterator<StackTraceElement> i =
-                Iterators.peekingIterator(Lists.reverse(stackTraceElements).iterator());
-        ProfileNode lastMatchedNode = null;
-        List<ProfileNode> mergeIntoNodes = rootNodes;
-
+        prepareForMerge();
+        int parent = SYNTHETIC_ROOT_NODE;
         boolean lookingForMatch = true;
-        while (i.hasNext()) {
-            StackTraceElement stackTraceElement = i.next();
-            String fullClassName = stackTraceElement.getClassName();
-            int index = fullClassName.lastIndexOf('.');
-            String packageName;
-            String className;
-            if (index == -1) {
-                packageName = "";
-                className = fullClassName;
-            } else {
-                packageName = fullClassName.substring(0, index);
-                className = fullClassName.substring(index + 1);
-            }
-            int packageNameIndex = getNameIndex(packageName, packageNameIndexes, packageNames);
-            int classNameIndex = getNameIndex(className, classNameIndexes, classNames);
-            int methodNameIndex =
-                    getNameIndex(Strings.nullToEmpty(stackTraceElement.getMethodName()),
-                            methodNameIndexes, methodNames);
-            int fileNameIndex = getNameIndex(Strings.nullToEmpty(stackTraceElement.getFileName()),
-                    fileNameIndexes, fileNames);
-            int lineNumber = stackTraceElement.getLineNumber();
-            Profile.LeafThreadState leafThreadState =
-                    i.hasNext() ? Profile.LeafThreadState.NONE : getThreadState(threadState);
-
-            ProfileNode node = null;
+        for (int i = stackTraceElements.size() - 1; i >= 0; i--) {
+            int frame = getFrame(stackTraceElements.get(i));
+            byte leafThreadState = i == 0 ? (byte) getThreadState(threadState).ordinal()
+                    : NO_LEAF_THREAD_STATE;
+            int node = NO_NODE;
             if (lookingForMatch) {
-                for (ProfileNode childNode : mergeIntoNodes) {
-                    if (isMatch(childNode, packageNameIndex, classNameIndex, methodNameIndex,
-                            fileNameIndex, lineNumber, leafThreadState)) {
-                        node = childNode;
-                        break;
-                    }
-                }
+                node = findChild(parent, frame, leafThreadState);
             }
-            if (node == null) {
+            if (node == NO_NODE) {
+                // no need to look for matches below a new node
                 lookingForMatch = false;
-                node = new ProfileNode(packageNameIndex, classNameIndex, methodNameIndex,
-                        fileNameIndex, lineNumber, leafThreadState);
-                mergeIntoNodes.add(node);
+                node = addChild(parent, frame, leafThreadState);
             }
-            node.sampleCount++;
-            lastMatchedNode = node;
-            mergeIntoNodes = lastMatchedNode.childNodes;
+            nodeSampleCounts[node]++;
+            parent = node;
         }
     }
 
     public void filter(List<String> includes, List<String> excludes) {
         unfilteredSampleCount = getSampleCount();
+        nodeMatched = new boolean[nodeCount];
         for (String include : includes) {
-            for (Iterator<ProfileNode> i = rootNodes.iterator(); i.hasNext();) {
-                ProfileNode rootNode = i.next();
-                new ProfileFilterer(rootNode, include, false).traverse();
-                if (rootNode.matched) {
-                    new ProfileResetMatches(rootNode).traverse();
-                } else {
-                    i.remove();
-                }
-            }
+            filter(include, false);
         }
         for (String exclude : excludes) {
-            for (Iterator<ProfileNode> i = rootNodes.iterator(); i.hasNext();) {
-                ProfileNode rootNode = i.next();
-                new ProfileFilterer(rootNode, exclude, true).traverse();
-                if (rootNode.matched) {
-                    i.remove();
-                }
-            }
+            filter(exclude, true);
         }
+        nodeMatched = null;
     }
 
     public void truncateBranches(int minSamples) {
-        Deque<ProfileNode> toBeVisited = new ArrayDeque<ProfileNode>();
-        for (ProfileNode rootNode : rootNodes) {
-            toBeVisited.add(rootNode);
-        }
-        ProfileNode node;
-        while ((node = toBeVisited.poll()) != null) {
-            for (Iterator<ProfileNode> i = node.childNodes.iterator(); i.hasNext();) {
-                ProfileNode childNode = i.next();
-                if (childNode.sampleCount < minSamples) {
-                    i.remove();
+        int[] queue = new int[nodeCount];
+        int head = 0;
+        int tail = 0;
+        int rootNode = nodeFirstChilds[SYNTHETIC_ROOT_NODE];
+        while (rootNode != NO_NODE) {
+            queue[tail++] = rootNode;
+            rootNode = nodeNextSiblings[rootNode];
+        }
+        while (head < tail) {
+            int node = queue[head++];
+            int prevChildNode = NO_NODE;
+            int childNode = nodeFirstChilds[node];
+            while (childNode != NO_NODE) {
+                int nextChildNode = nodeNextSiblings[childNode];
+                if (nodeSampleCounts[childNode] < minSamples) {
+                    removeChild(node, prevChildNode, childNode);
                     // TODO capture sampleCount per timerName of non-ellipsed structure
                     // and use this in UI dropdown filter of timer names
                     // (currently sampleCount per timerName of ellipsed structure is used)
-                    node.ellipsedSampleCount += childNode.sampleCount;
+                    nodeEllipsedSampleCounts[node] += nodeSampleCounts[childNode];
                 } else {
-                    toBeVisited.add(childNode);
+                    queue[tail++] = childNode;
+                    prevChildNode = childNode;
                 }
+                childNode = nextChildNode;
             }
         }
     }
 
     public long getSampleCount() {
         long sampleCount = 0;
-        for (ProfileNode rootNode : rootNodes) {
-            sampleCount += rootNode.sampleCount;
+        int rootNode = nodeFirstChilds[SYNTHETIC_ROOT_NODE];
+        while (rootNode != NO_NODE) {
+            sampleCount += nodeSampleCounts[rootNode];
+            rootNode = nodeNextSiblings[rootNode];
         }
         return sampleCount;
     }
@@ -198,17 +271,28 @@ public class MutableProfile {
     }
 
     public Profile toProto() {
-        List<Profile.ProfileNode> nodes = Lists.newArrayList();
-        for (ProfileNode rootNode : rootNodes) {
-            new ProfileNodeCollector(rootNode, nodes).traverse();
-        }
-        return Profile.newBuilder()
+        final Profile.Builder builder = Profile.newBuilder()
                 .addAllPackageName(packageNames)
                 .addAllClassName(classNames)
                 .addAllMethodName(methodNames)
-                .addAllFileName(fileNames)
-                .addAllNode(nodes)
-                .build();
+                .addAllFileName(fileNames);
+        new NodeTraverser<RuntimeException>() {
+            @Override
+            boolean visit(int node, int depth) {
+                int frame = nodeFrames[node];
+                builder.addNodeBuilder()
+                        .setDepth(depth)
+                        .setPackageNameIndex(framePackageNameIndexes[frame])
+                        .setClassNameIndex(frameClassNameIndexes[frame])
+                        .setMethodNameIndex(frameMethodNameIndexes[frame])
+                        .setFileNameIndex(frameFileNameIndexes[frame])
+                        .setLineNumber(frameLineNumbers[frame])
+                        .setLeafThreadState(LEAF_THREAD_STATES[nodeLeafThreadStates[node]])
+                        .setSampleCount(nodeSampleCounts[node]);
+                return true;
+            }
+        }.traverseRootNodes();
+        return builder.build();
     }
 
     public String toJson() throws IOException {
@@ -219,428 +303,533 @@ public class MutableProfile {
         return sb.toString();
     }
 
-    public void writeJson(JsonGenerator jg) throws IOException {
+    public void writeJson(final JsonGenerator jg) throws IOException {
         jg.writeStartObject();
         jg.writeNumberField("unfilteredSampleCount", getUnfilteredSampleCount());
         jg.writeArrayFieldStart("rootNodes");
-        for (ProfileNode rootNode : rootNodes) {
-            new ProfileWriter(rootNode, jg).traverse();
-        }
+        new NodeTraverser<IOException>() {
+            @Override
+            boolean visit(int node, int depth) throws IOException {
+                jg.writeStartObject();
+                jg.writeStringField("stackTraceElement", getFrameText(nodeFrames[node]));
+                byte leafThreadState = nodeLeafThreadStates[node];
+                if (leafThreadState != NO_LEAF_THREAD_STATE) {
+                    jg.writeStringField("leafThreadState",
+                            LEAF_THREAD_STATES[leafThreadState].name());
+                }
+                jg.writeNumberField("sampleCount", nodeSampleCounts[node]);
+                long ellipsedSampleCount = nodeEllipsedSampleCounts[node];
+                if (ellipsedSampleCount > 0) {
+                    jg.writeNumberField("ellipsedSampleCount", ellipsedSampleCount);
+                }
+                if (nodeFirstChilds[node] != NO_NODE) {
+                    jg.writeArrayFieldStart("childNodes");
+                }
+                return true;
+            }
+            @Override
+            void revisitAfterChildren(int node) throws IOException {
+                if (nodeFirstChilds[node] != NO_NODE) {
+                    jg.writeEndArray();
+                }
+                jg.writeEndObject();
+            }
+        }.traverseRootNodes();
         jg.writeEndArray();
         jg.writeEndObject();
     }
 
     public String toFlameGraphJson() throws IOException {
         StringBuilder sb = new StringBuilder();
-        JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
+        final JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
         jg.writeStartObject();
         jg.writeNumberField("totalSampleCount", getSampleCount());
         jg.writeArrayFieldStart("rootNodes");
-        int height = 0;
-        for (ProfileNode rootNode : rootNodes) {
-            if (rootNode.sampleCount > rootNode.ellipsedSampleCount) {
-                FlameGraphWriter flameGraphWriter = new FlameGraphWriter(rootNode, jg);
-                flameGraphWriter.traverse();
-                height = Math.max(height, flameGraphWriter.height);
+        final int[] height = new int[1];
+        NodeTraverser<IOException> flameGraphWriter = new NodeTraverser<IOException>() {
+            @Override
+            boolean visit(int node, int depth) throws IOException {
+                height[0] = Math.max(height[0], depth + 1);
+                jg.writeStartObject();
+                jg.writeStringField("name", getFrameText(nodeFrames[node]));
+                jg.writeNumberField("value", nodeSampleCounts[node]);
+                if (nodeFirstChilds[node] != NO_NODE) {
+                    jg.writeArrayFieldStart("children");
+                }
+                return true;
+            }
+            @Override
+            void revisitAfterChildren(int node) throws IOException {
+                if (nodeFirstChilds[node] != NO_NODE) {
+                    jg.writeEndArray();
+                }
+                jg.writeEndObject();
+            }
+        };
+        int rootNode = nodeFirstChilds[SYNTHETIC_ROOT_NODE];
+        while (rootNode != NO_NODE) {
+            if (nodeSampleCounts[rootNode] > nodeEllipsedSampleCounts[rootNode]) {
+                flameGraphWriter.traverse(rootNode);
             }
+            rootNode = nodeNextSiblings[rootNode];
         }
         jg.writeEndArray();
-        jg.writeNumberField("height", height);
+        jg.writeNumberField("height", height[0]);
         jg.writeEndObject();
         jg.close();
         return sb.toString();
     }
 
-    private static int getNameIndex(String name, Map<String, Integer> nameIndexes,
-            List<String> names) {
-        Integer index = nameIndexes.get(name);
-        if (index == null) {
-            index = names.size();
-            names.add(name);
-            nameIndexes.put(name, index);
+    private void filter(String filterText, final boolean exclusion) {
+        final boolean[] nodeMatched = this.nodeMatched;
+        if (nodeMatched == null) {
+            throw new IllegalStateException("Node matched array not initialized");
+        }
+        final String filterTextUpper = filterText.toUpperCase(Locale.ENGLISH);
+        NodeTraverser<RuntimeException> filterer = new NodeTraverser<RuntimeException>() {
+            @Override
+            boolean visit(int node, int depth) {
+                if (isMatch(node, filterTextUpper)) {
+                    nodeMatched[node] = true;
+                    // no need to visit children
+                    return false;
+                }
+                return true;
+            }
+            @Override
+            void revisitAfterChildren(int node) {
+                if (nodeMatched[node]) {
+                    // if exclusion then node will be removed by parent
+                    // if not exclusion then keep node and all children
+                    return;
+                }
+                if (nodeFirstChilds[node] == NO_NODE) {
+                    return;
+                }
+                if (exclusion ? hasOnlyMatchedChildren(node, nodeMatched)
+                        : hasNoMatchedChildren(node, nodeMatched)) {
+                    // node will be removed by parent
+                    if (exclusion) {
+                        nodeMatched[node] = true;
+                    }
+                    return;
+                }
+                if (!exclusion) {
+                    nodeMatched[node] = true;
+                }
+                // node is a partial match, need to filter it out
+                long filteredSampleCount = 0;
+                int prevChildNode = NO_NODE;
+                int childNode = nodeFirstChilds[node];
+                while (childNode != NO_NODE) {
+                    int nextChildNode = nodeNextSiblings[childNode];
+                    if (exclusion == !nodeMatched[childNode]) {
+                        filteredSampleCount += nodeSampleCounts[childNode];
+                        prevChildNode = childNode;
+                    } else {
+                        removeChild(node, prevChildNode, childNode);
+                    }
+                    childNode = nextChildNode;
+                }
+                nodeSampleCounts[node] = filteredSampleCount;
+            }
+        };
+        int prevRootNode = NO_NODE;
+        int rootNode = nodeFirstChilds[SYNTHETIC_ROOT_NODE];
+        while (rootNode != NO_NODE) {
+            int nextRootNode = nodeNextSiblings[rootNode];
+            filterer.traverse(rootNode);
+            if (nodeMatched[rootNode] == exclusion) {
+                removeChild(SYNTHETIC_ROOT_NODE, prevRootNode, rootNode);
+            } else {
+                prevRootNode = rootNode;
+            }
+            rootNode = nextRootNode;
         }
-        return index;
+        Arrays.fill(nodeMatched, false);
     }
 
-    private static Profile.LeafThreadState getThreadState(@Nullable Thread.State state) {
-        if (state == null) {
-            return Profile.LeafThreadState.NONE;
-        }
-        switch (state) {
-            case NEW:
-                return Profile.LeafThreadState.NEW;
-            case RUNNABLE:
-                return Profile.LeafThreadState.RUNNABLE;
-            case BLOCKED:
-                return Profile.LeafThreadState.BLOCKED;
-            case WAITING:
-                return Profile.LeafThreadState.WAITING;
-            case TIMED_WAITING:
-                return Profile.LeafThreadState.TIMED_WAITING;
-            case TERMINATED:
-                return Profile.LeafThreadState.TERMINATED;
-            default:
-                logger.warn("unexpected thread state: {}", state);
-                return Profile.LeafThreadState.NONE;
+    private boolean isMatch(int node, String filterTextUpper) {
+        if (getFrameTextUpper(nodeFrames[node]).contains(filterTextUpper)) {
+            return true;
         }
+        String leafThreadStateUpper =
+                LEAF_THREAD_STATES[nodeLeafThreadStates[node]].name().toUpperCase(Locale.ENGLISH);
+        return leafThreadStateUpper.contains(filterTextUpper);
     }
 
-    private static boolean isMatch(ProfileNode profileNode, int packageNameIndex,
-            int classNameIndex, int methodNameIndex, int fileNameIndex, int lineNumber,
-            Profile.LeafThreadState leafThreadState) {
-        // checking line number first since most likely to be different
-        return lineNumber == profileNode.lineNumber
-                && fileNameIndex == profileNode.fileNameIndex
-                && leafThreadState == profileNode.leafThreadState
-                && methodNameIndex == profileNode.methodNameIndex
-                && classNameIndex == profileNode.classNameIndex
-                && packageNameIndex == profileNode.packageNameIndex;
+    private boolean hasOnlyMatchedChildren(int node, boolean[] nodeMatched) {
+        int childNode = nodeFirstChilds[node];
+        while (childNode != NO_NODE) {
+            if (!nodeMatched[childNode]) {
+                return false;
+            }
+            childNode = nodeNextSiblings[childNode];
+        }
+        return true;
     }
 
-    private static int[] makeIndexMapping(List<String> toBeMergedNames,
-            Map<String, Integer> existingIndexes, List<String> existingNames) {
-        int[] indexMapping = new int[toBeMergedNames.size()];
-        for (int i = 0; i < toBeMergedNames.size(); i++) {
-            String toBeMergedName = toBeMergedNames.get(i);
-            Integer existingIndex = existingIndexes.get(toBeMergedName);
-            if (existingIndex == null) {
-                int newIndex = existingNames.size();
-                existingNames.add(toBeMergedName);
-                existingIndexes.put(toBeMergedName, newIndex);
-                indexMapping[i] = newIndex;
-            } else {
-                indexMapping[i] = existingIndex;
+    private boolean hasNoMatchedChildren(int node, boolean[] nodeMatched) {
+        int childNode = nodeFirstChilds[node];
+        while (childNode != NO_NODE) {
+            if (nodeMatched[childNode]) {
+                return false;
             }
+            childNode = nodeNextSiblings[childNode];
         }
-        return indexMapping;
+        return true;
     }
 
-    private class ProfileNode {
-
-        private final int packageNameIndex;
-        private final int classNameIndex;
-        private final int methodNameIndex;
-        private final int fileNameIndex;
-        private final int lineNumber;
-        private final Profile.LeafThreadState leafThreadState;
-
-        private long sampleCount;
-
-        private List<ProfileNode> childNodes = Lists.newArrayListWithCapacity(2);
-
-        // these fields are only used for filtering
-        private @Nullable String text;
-        private @Nullable String textUpper;
-        private boolean matched;
-        private long ellipsedSampleCount;
-
-        private ProfileNode(int packageNameIndex, int classNameIndex, int methodNameIndex,
-                int fileNameIndex, int lineNumber, Profile.LeafThreadState leafThreadState) {
-            this.packageNameIndex = packageNameIndex;
-            this.classNameIndex = classNameIndex;
-            this.methodNameIndex = methodNameIndex;
-            this.fileNameIndex = fileNameIndex;
-            this.lineNumber = lineNumber;
-            this.leafThreadState = leafThreadState;
-        }
+    private int getFrame(StackTraceElement stackTraceElement) {
+        int frame = stackTraceElementFrames.get(stackTraceElement);
+        if (frame != -1) {
+            return frame;
+        }
+        String fullClassName = stackTraceElement.getClassName();
+        int index = fullClassName.lastIndexOf('.');
+        String packageName;
+        String className;
+        if (index == -1) {
+            packageName = "";
+            className = fullClassName;
+        } else {
+            packageName = fullClassName.substring(0, index);
+            className = fullClassName.substring(index + 1);
+        }
+        String methodName = stackTraceElement.getMethodName();
+        String fileName = stackTraceElement.getFileName();
+        frame = getFrame(getNameIndex(packageName, packageNameIndexes, packageNames),
+                getNameIndex(className, classNameIndexes, classNames),
+                getNameIndex(methodName == null ? "" : methodName, methodNameIndexes,
+                        methodNames),
+                getNameIndex(fileName == null ? "" : fileName, fileNameIndexes, fileNames),
+                stackTraceElement.getLineNumber());
+        stackTraceElementFrames.put(stackTraceElement, frame);
+        return frame;
+    }
 
-        private String getText() {
-            if (text == null) {
-                String packageName = packageNames.get(packageNameIndex);
-                String className = classNames.get(classNameIndex);
-                String fullClassName;
-                if (packageName.isEmpty()) {
-                    fullClassName = className;
-                } else {
-                    fullClassName = packageName + '.' + className;
-                }
-                text = new StackTraceElement(fullClassName, methodNames.get(methodNameIndex),
-                        fileNames.get(fileNameIndex), lineNumber).toString();
+    private int getFrame(int packageNameIndex, int classNameIndex, int methodNameIndex,
+            int fileNameIndex, int lineNumber) {
+        int hash = hash(hash(hash(hash(packageNameIndex, classNameIndex), methodNameIndex),
+                fileNameIndex), lineNumber);
+        int mask = frameTable.length - 1;
+        int index = spread(hash) & mask;
+        int entry;
+        while ((entry = frameTable[index]) != 0) {
+            int frame = entry - 1;
+            // checking line number first since most likely to be different
+            if (frameLineNumbers[frame] == lineNumber
+                    && frameMethodNameIndexes[frame] == methodNameIndex
+                    && frameClassNameIndexes[frame] == classNameIndex
+                    && framePackageNameIndexes[frame] == packageNameIndex
+                    && frameFileNameIndexes[frame] == fileNameIndex) {
+                return frame;
             }
-            return text;
-        }
+            index = (index + 1) & mask;
+        }
+        int frame = frameCount++;
+        if (frame == frameLineNumbers.length) {
+            int newCapacity = frame << 1;
+            framePackageNameIndexes = Arrays.copyOf(framePackageNameIndexes, newCapacity);
+            frameClassNameIndexes = Arrays.copyOf(frameClassNameIndexes, newCapacity);
+            frameMethodNameIndexes = Arrays.copyOf(frameMethodNameIndexes, newCapacity);
+            frameFileNameIndexes = Arrays.copyOf(frameFileNameIndexes, newCapacity);
+            frameLineNumbers = Arrays.copyOf(frameLineNumbers, newCapacity);
+        }
+        framePackageNameIndexes[frame] = packageNameIndex;
+        frameClassNameIndexes[frame] = classNameIndex;
+        frameMethodNameIndexes[frame] = methodNameIndex;
+        frameFileNameIndexes[frame] = fileNameIndex;
+        frameLineNumbers[frame] = lineNumber;
+        frameTable[index] = frame + 1;
+        // load factor is kept at 0.5
+        if (frameCount << 1 > frameTable.length) {
+            rehashFrameTable();
+        }
+        return frame;
+    }
 
-        private String getTextUpper() {
-            if (textUpper == null) {
-                textUpper = getText().toUpperCase(Locale.ENGLISH);
+    private void rehashFrameTable() {
+        int[] frameTable = new int[this.frameTable.length << 1];
+        int mask = frameTable.length - 1;
+        for (int frame = 0; frame < frameCount; frame++) {
+            int hash = hash(hash(hash(hash(framePackageNameIndexes[frame],
+                    frameClassNameIndexes[frame]), frameMethodNameIndexes[frame]),
+                    frameFileNameIndexes[frame]), frameLineNumbers[frame]);
+            int index = spread(hash) & mask;
+            while (frameTable[index] != 0) {
+                index = (index + 1) & mask;
             }
-            return textUpper;
+            frameTable[index] = frame + 1;
         }
+        this.frameTable = frameTable;
     }
 
-    private class Merger {
-
-        private final int[] packageNameIndexMapping;
-        private final int[] classNameIndexMapping;
-        private final int[] methodNameIndexMapping;
-        private final int[] fileNameIndexMapping;
-
-        private final Deque<List<ProfileNode>> destinationStack = Queues.newArrayDeque();
-
-        private Merger(Profile toBeMergedProfile) {
-            packageNameIndexMapping = makeIndexMapping(toBeMergedProfile.getPackageNameList(),
-                    packageNameIndexes, packageNames);
-            classNameIndexMapping = makeIndexMapping(toBeMergedProfile.getClassNameList(),
-                    classNameIndexes, classNames);
-            methodNameIndexMapping = makeIndexMapping(toBeMergedProfile.getMethodNameList(),
-                    methodNameIndexes, methodNames);
-            fileNameIndexMapping = makeIndexMapping(toBeMergedProfile.getFileNameList(),
-                    fileNameIndexes, fileNames);
-        }
-
-        private void merge(List<Profile.ProfileNode> flatNodes,
-                List<ProfileNode> destinationRootNodes) {
-            destinationStack.push(destinationRootNodes);
-            PeekingIterator<Profile.ProfileNode> i =
-                    Iterators.peekingIterator(flatNodes.iterator());
-            while (i.hasNext()) {
-                Profile.ProfileNode flatNode = i.next();
-                int destinationDepth = destinationStack.size() - 1;
-                for (int j = 0; j < destinationDepth - flatNode.getDepth(); j++) {
-                    // TODO optimize: faster way to pop multiple elements at once
-                    destinationStack.pop();
-                }
-                ProfileNode destinationNode = mergeOne(flatNode, destinationStack.getFirst());
-                if (i.hasNext() && i.peek().getDepth() > flatNode.getDepth()) {
-                    destinationStack.push(destinationNode.childNodes);
-                }
+    private String getFrameText(int frame) {
+        String[] frameTexts = this.frameTexts;
+        if (frameTexts == null || frameTexts.length < frameCount) {
+            frameTexts = frameTexts == null ? new String[frameCount]
+                    : Arrays.copyOf(frameTexts, frameCount);
+            this.frameTexts = frameTexts;
+        }
+        String text = frameTexts[frame];
+        if (text == null) {
+            String packageName = packageNames.get(framePackageNameIndexes[frame]);
+            String className = classNames.get(frameClassNameIndexes[frame]);
+            String fullClassName;
+            if (packageName.isEmpty()) {
+                fullClassName = className;
+            } else {
+                fullClassName = packageName + '.' + className;
             }
+            text = new StackTraceElement(fullClassName,
+                    methodNames.get(frameMethodNameIndexes[frame]),
+                    fileNames.get(frameFileNameIndexes[frame]), frameLineNumbers[frame])
+                            .toString();
+            frameTexts[frame] = text;
         }
+        return text;
+    }
 
-        private ProfileNode mergeOne(Profile.ProfileNode toBeMergedNode,
-                List<ProfileNode> destinationNodes) {
-            int toBeMergedPackageNameIndex =
-                    packageNameIndexMapping[toBeMergedNode.getPackageNameIndex()];
-            int toBeMergedClassNameIndex =
-                    classNameIndexMapping[toBeMergedNode.getClassNameIndex()];
-            int toBeMergedMethodNameIndex =
-                    methodNameIndexMapping[toBeMergedNode.getMethodNameIndex()];
-            int toBeMergedFileNameIndex = fileNameIndexMapping[toBeMergedNode.getFileNameIndex()];
-            int toBeMergedLineNumber = toBeMergedNode.getLineNumber();
-            Profile.LeafThreadState toBeMergedLeafThreadState = toBeMergedNode.getLeafThreadState();
-            for (ProfileNode destinationNode : destinationNodes) {
-                if (isMatch(destinationNode, toBeMergedPackageNameIndex, toBeMergedClassNameIndex,
-                        toBeMergedMethodNameIndex, toBeMergedFileNameIndex, toBeMergedLineNumber,
-                        toBeMergedLeafThreadState)) {
-                    merge(toBeMergedNode, destinationNode);
-                    return destinationNode;
-                }
-            }
-            // no match found
-            ProfileNode destinationNode = new ProfileNode(toBeMergedPackageNameIndex,
-                    toBeMergedClassNameIndex, toBeMergedMethodNameIndex, toBeMergedFileNameIndex,
-                    toBeMergedLineNumber, toBeMergedLeafThreadState);
-            destinationNodes.add(destinationNode);
-            merge(toBeMergedNode, destinationNode);
-            return destinationNode;
+    private String getFrameTextUpper(int frame) {
+        String[] frameTextUppers = this.frameTextUppers;
+        if (frameTextUppers == null || frameTextUppers.length < frameCount) {
+            frameTextUppers = frameTextUppers == null ? new String[frameCount]
+                    : Arrays.copyOf(frameTextUppers, frameCount);
+            this.frameTextUppers = frameTextUppers;
         }
-
-        private void merge(Profile.ProfileNode toBeMergedNode, ProfileNode destinationNode) {
-            destinationNode.sampleCount += toBeMergedNode.getSampleCount();
+        String textUpper = frameTextUppers[frame];
+        if (textUpper == null) {
+            textUpper = getFrameText(frame).toUpperCase(Locale.ENGLISH);
+            frameTextUppers[frame] = textUpper;
         }
+        return textUpper;
     }
 
-    // using Traverser to avoid StackOverflowError caused by a recursive algorithm
-    private static class ProfileNodeCollector extends Traverser<ProfileNode, RuntimeException> {
-
-        private final List<Profile.ProfileNode> nodes;
-
-        public ProfileNodeCollector(ProfileNode rootNode, List<Profile.ProfileNode> nodes) {
-            super(rootNode);
-            this.nodes = nodes;
-        }
-
-        @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) {
-            nodes.add(Profile.ProfileNode.newBuilder()
-                    .setDepth(depth)
-                    .setPackageNameIndex(node.packageNameIndex)
-                    .setClassNameIndex(node.classNameIndex)
-                    .setMethodNameIndex(node.methodNameIndex)
-                    .setFileNameIndex(node.fileNameIndex)
-                    .setLineNumber(node.lineNumber)
-                    .setLeafThreadState(node.leafThreadState)
-                    .setSampleCount(node.sampleCount)
-                    .build());
-            return node.childNodes;
+    private void prepareForMerge() {
+        if (childTableStale) {
+            rebuildChildTable();
+            childTableStale = false;
         }
     }
 
-    private static class ProfileFilterer extends Traverser<ProfileNode, RuntimeException> {
-
-        private final String filterTextUpper;
-        private final boolean exclusion;
-
-        private ProfileFilterer(ProfileNode rootNode, String filterText, boolean exclusion) {
-            super(rootNode);
-            this.filterTextUpper = filterText.toUpperCase(Locale.ENGLISH);
-            this.exclusion = exclusion;
+    private int getOrAddChild(int parent, int frame, byte leafThreadState) {
+        int node = findChild(parent, frame, leafThreadState);
+        if (node == NO_NODE) {
+            node = addChild(parent, frame, leafThreadState);
         }
+        return node;
+    }
 
-        @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) {
-            if (isMatch(node)) {
-                node.matched = true;
-                // no need to visit children
-                return ImmutableList.of();
+    private int findChild(int parent, int frame, byte leafThreadState) {
+        int mask = childTable.length - 1;
+        int index = spread(hash(hash(parent, frame), leafThreadState)) & mask;
+        int node;
+        while ((node = childTable[index]) != 0) {
+            if (nodeFrames[node] == frame && nodeParents[node] == parent
+                    && nodeLeafThreadStates[node] == leafThreadState) {
+                return node;
             }
-            return node.childNodes;
+            index = (index + 1) & mask;
         }
+        return NO_NODE;
+    }
 
-        @Override
-        public void revisitAfterChildren(ProfileNode node) {
-            if (node.matched) {
-                // if exclusion then node will be removed by parent
-                // if not exclusion then keep node and all children
-                return;
-            }
-            if (node.childNodes.isEmpty()) {
-                return;
-            }
-            if (removeNode(node)) {
-                // node will be removed by parent
-                if (exclusion) {
-                    node.matched = true;
-                }
-                return;
-            }
-            if (!exclusion) {
-                node.matched = true;
-            }
-            // node is a partial match, need to filter it out
-            long filteredSampleCount = 0;
-            for (Iterator<ProfileNode> i = node.childNodes.iterator(); i.hasNext();) {
-                ProfileNode childNode = i.next();
-                if (exclusion == !childNode.matched) {
-                    filteredSampleCount += childNode.sampleCount;
-                } else {
-                    i.remove();
-                }
-            }
-            node.sampleCount = filteredSampleCount;
+    // IMPORTANT addChild assumes findChild was already called and child is not present
+    private int addChild(int parent, int frame, byte leafThreadState) {
+        int node = nodeCount++;
+        if (node == nodeFrames.length) {
+            growNodes(node << 1);
+        }
+        nodeFrames[node] = frame;
+        nodeLeafThreadStates[node] = leafThreadState;
+        nodeParents[node] = parent;
+        nodeFirstChilds[node] = NO_NODE;
+        nodeLastChilds[node] = NO_NODE;
+        nodeNextSiblings[node] = NO_NODE;
+        int lastChild = nodeLastChilds[parent];
+        if (lastChild == NO_NODE) {
+            nodeFirstChilds[parent] = node;
+        } else {
+            nodeNextSiblings[lastChild] = node;
         }
-
-        private boolean isMatch(ProfileNode node) {
-            String textUpper = node.getTextUpper();
-            if (textUpper.contains(filterTextUpper)) {
-                return true;
-            }
-            Profile.LeafThreadState leafThreadState = node.leafThreadState;
-            if (leafThreadState != null) {
-                String leafThreadStateUpper = leafThreadState.name().toUpperCase(Locale.ENGLISH);
-                if (leafThreadStateUpper.contains(filterTextUpper)) {
-                    return true;
-                }
-            }
-            return false;
+        nodeLastChilds[parent] = node;
+        // load factor is kept at 0.5
+        if (nodeCount << 1 > childTable.length) {
+            childTable = new int[childTable.length << 1];
+            rebuildChildTable();
+        } else {
+            putChild(node);
         }
+        return node;
+    }
 
-        private boolean removeNode(ProfileNode node) {
-            if (exclusion) {
-                return hasOnlyMatchedChildren(node);
-            } else {
-                return hasNoMatchedChildren(node);
-            }
-        }
+    private void growNodes(int newCapacity) {
+        nodeFrames = Arrays.copyOf(nodeFrames, newCapacity);
+        nodeLeafThreadStates = Arrays.copyOf(nodeLeafThreadStates, newCapacity);
+        nodeSampleCounts = Arrays.copyOf(nodeSampleCounts, newCapacity);
+        nodeEllipsedSampleCounts = Arrays.copyOf(nodeEllipsedSampleCounts, newCapacity);
+        nodeParents = Arrays.copyOf(nodeParents, newCapacity);
+        nodeFirstChilds = Arrays.copyOf(nodeFirstChilds, newCapacity);
+        nodeLastChilds = Arrays.copyOf(nodeLastChilds, newCapacity);
+        nodeNextSiblings = Arrays.copyOf(nodeNextSiblings, newCapacity);
+    }
 
-        private boolean hasOnlyMatchedChildren(ProfileNode node) {
-            for (ProfileNode childNode : node.childNodes) {
-                if (!childNode.matched) {
-                    return false;
-                }
-            }
-            return true;
+    private void putChild(int node) {
+        int mask = childTable.length - 1;
+        int index = spread(hash(hash(nodeParents[node], nodeFrames[node]),
+                nodeLeafThreadStates[node])) & mask;
+        while (childTable[index] != 0) {
+            index = (index + 1) & mask;
         }
+        childTable[index] = node;
+    }
 
-        private boolean hasNoMatchedChildren(ProfileNode node) {
-            for (ProfileNode childNode : node.childNodes) {
-                if (childNode.matched) {
-                    return false;
+    // only nodes that are still reachable are added, so that removed nodes are not merged into
+    private void rebuildChildTable() {
+        Arrays.fill(childTable, 0);
+        int[] stack = new int[INITIAL_CAPACITY];
+        int size = 0;
+        stack[size++] = SYNTHETIC_ROOT_NODE;
+        while (size > 0) {
+            int node = stack[--size];
+            int childNode = nodeFirstChilds[node];
+            while (childNode != NO_NODE) {
+                putChild(childNode);
+                if (size == stack.length) {
+                    stack = Arrays.copyOf(stack, size << 1);
                 }
+                stack[size++] = childNode;
+                childNode = nodeNextSiblings[childNode];
             }
-            return true;
         }
     }
 
-    private static class ProfileResetMatches extends Traverser<ProfileNode, RuntimeException> {
-
-        private ProfileResetMatches(ProfileNode rootNode) {
-            super(rootNode);
+    private void removeChild(int parent, int prevChildNode, int childNode) {
+        int nextChildNode = nodeNextSiblings[childNode];
+        if (prevChildNode == NO_NODE) {
+            nodeFirstChilds[parent] = nextChildNode;
+        } else {
+            nodeNextSiblings[prevChildNode] = nextChildNode;
         }
-
-        @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) {
-            node.matched = false;
-            return node.childNodes;
+        if (nodeLastChilds[parent] == childNode) {
+            nodeLastChilds[parent] = prevChildNode;
         }
+        childTableStale = true;
     }
 
-    private class ProfileWriter extends Traverser<ProfileNode, IOException> {
-
-        private final JsonGenerator jg;
-
-        private ProfileWriter(ProfileNode rootNode, JsonGenerator jg) throws IOException {
-            super(rootNode);
-            this.jg = jg;
+    private static int getNameIndex(String name, ObjectIntMap<String> nameIndexes,
+            List<String> names) {
+        int index = nameIndexes.get(name);
+        if (index == -1) {
+            index = names.size();
+            names.add(name);
+            nameIndexes.put(name, index);
         }
+        return index;
+    }
 
-        @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) throws IOException {
-            jg.writeStartObject();
-            jg.writeStringField("stackTraceElement", node.getText());
-            Profile.LeafThreadState leafThreadState = node.leafThreadState;
-            if (leafThreadState != Profile.LeafThreadState.NONE) {
-                jg.writeStringField("leafThreadState", leafThreadState.name());
-            }
-            jg.writeNumberField("sampleCount", node.sampleCount);
-            long ellipsedSampleCount = node.ellipsedSampleCount;
-            if (ellipsedSampleCount > 0) {
-                jg.writeNumberField("ellipsedSampleCount", ellipsedSampleCount);
-            }
-            List<ProfileNode> childNodes = node.childNodes;
-            if (!childNodes.isEmpty()) {
-                jg.writeArrayFieldStart("childNodes");
-            }
-            return childNodes;
+    private static int[] makeIndexMapping(List<String> toBeMergedNames,
+            ObjectIntMap<String> existingIndexes, List<String> existingNames) {
+        int[] indexMapping = new int[toBeMergedNames.size()];
+        for (int i = 0; i < toBeMergedNames.size(); i++) {
+            indexMapping[i] = getNameIndex(toBeMergedNames.get(i), existingIndexes, existingNames);
         }
+        return indexMapping;
+    }
 
-        @Override
-        public void revisitAfterChildren(ProfileNode node) throws IOException {
-            if (!node.childNodes.isEmpty()) {
-                jg.writeEndArray();
-            }
-            jg.writeEndObject();
+    private static Profile.LeafThreadState getThreadState(@Nullable Thread.State state) {
+        if (state == null) {
+            return Profile.LeafThreadState.NONE;
         }
+        switch (state) {
+            case NEW:
+                return Profile.LeafThreadState.NEW;
+            case RUNNABLE:
+                return Profile.LeafThreadState.RUNNABLE;
+            case BLOCKED:
+                return Profile.LeafThreadState.BLOCKED;
+            case WAITING:
+                return Profile.LeafThreadState.WAITING;
+            case TIMED_WAITING:
+                return Profile.LeafThreadState.TIMED_WAITING;
+            case TERMINATED:
+                return Profile.LeafThreadState.TERMINATED;
+            default:
+                logger.warn("unexpected thread state: {}", state);
+                return Profile.LeafThreadState.NONE;
+        }
+    }
+
+    private static int hash(int hash, int value) {
+        return 31 * hash + value;
     }
 
-    private class FlameGraphWriter extends Traverser<ProfileNode, IOException> {
+    // the hashes are built from small integers, so need to be mixed before the table index is taken
+    // from the lower bits
+    private static int spread(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
 
-        private final JsonGenerator jg;
-        private int height;
+    // iterative (using an explicit stack instead of recursion) to avoid StackOverflowError on deep
+    // profiles, similar to org.glowroot.common.util.Traverser
+    private abstract class NodeTraverser<E extends Exception> {
 
-        private FlameGraphWriter(ProfileNode rootNode, JsonGenerator jg) throws IOException {
-            super(rootNode);
-            this.jg = jg;
-        }
+        // returns false if the children of the node should not be visited
+        abstract boolean visit(int node, int depth) throws E;
+
+        void revisitAfterChildren(@SuppressWarnings("unused") int node) throws E {}
 
-        @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) throws IOException {
-            height = Math.max(height, depth + 1);
-            jg.writeStartObject();
-            jg.writeStringField("name", node.getText());
-            jg.writeNumberField("value", node.sampleCount);
-            if (!node.childNodes.isEmpty()) {
-                jg.writeArrayFieldStart("children");
+        void traverseRootNodes() throws E {
+            int rootNode = nodeFirstChilds[SYNTHETIC_ROOT_NODE];
+            while (rootNode != NO_NODE) {
+                traverse(rootNode);
+                rootNode = nodeNextSiblings[rootNode];
             }
-            return node.childNodes;
         }
 
-        @Override
-        public void revisitAfterChildren(ProfileNode node) throws IOException {
-            if (!node.childNodes.isEmpty()) {
-                jg.writeEndArray();
+        // nodes are pushed as node id, and are pushed again as (-node id - 1) to mark that their
+        // children have been pushed and so they need to be revisited once popped again
+        void traverse(int rootNode) throws E {
+            int[] stack = new int[INITIAL_CAPACITY];
+            int size = 0;
+            stack[size++] = rootNode;
+            int depth = 0;
+            while (size > 0) {
+                int node = stack[--size];
+                if (node < 0) {
+                    revisitAfterChildren(-node - 1);
+                    depth--;
+                    continue;
+                }
+                boolean visitChildren = visit(node, depth);
+                int childNode = nodeFirstChilds[node];
+                if (!visitChildren || childNode == NO_NODE) {
+                    // optimization for no children
+                    revisitAfterChildren(node);
+                    continue;
+                }
+                if (size == stack.length) {
+                    stack = Arrays.copyOf(stack, size << 1);
+                }
+                stack[size++] = -node - 1;
+                // children are pushed in reverse order so that they are popped in order
+                int start = size;
+                while (childNode != NO_NODE) {
+                    if (size == stack.length) {
+                        stack = Arrays.copyOf(stack, size << 1);
+                    }
+                    stack[size++] = childNode;
+                    childNode = nodeNextSiblings[childNode];
+                }
+                for (int i = start, j = size - 1; i < j; i++, j--) {
+                    int temp = stack[i];
+                    stack[i] = stack[j];
+                    stack[j] = temp;
+                }
+                depth++;
             }
-            jg.writeEndObject();
         }
     }
 }
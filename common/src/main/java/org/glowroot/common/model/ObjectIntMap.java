@@ -0,0 +1,86 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import javax.annotation.Nullable;
+
+// open addressing (linear probing) map from object to non-negative int, to avoid boxing on the hot
+// path of profile merging
+//
+// entries are never removed
+class ObjectIntMap<K extends /*@NonNull*/ Object> {
+
+    private @Nullable Object[] keys = new Object[16];
+    private int[] values = new int[16];
+
+    private int size;
+
+    // returns -1 if the key is not present
+    int get(K key) {
+        @Nullable
+        Object[] keys = this.keys;
+        // this mask requires capacity to be a power of 2
+        int mask = keys.length - 1;
+        int index = spread(key.hashCode()) & mask;
+        Object existingKey;
+        while ((existingKey = keys[index]) != null) {
+            if (existingKey.equals(key)) {
+                return values[index];
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    // IMPORTANT put assumes get was already called and key is not present in this map
+    void put(K key, int value) {
+        // load factor is kept at 0.5
+        if (++size << 1 > keys.length) {
+            rehash();
+        }
+        putWithoutRehashCheck(key, value);
+    }
+
+    private void putWithoutRehashCheck(Object key, int value) {
+        int mask = keys.length - 1;
+        int index = spread(key.hashCode()) & mask;
+        while (keys[index] != null) {
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        values[index] = value;
+    }
+
+    private void rehash() {
+        @Nullable
+        Object[] existingKeys = keys;
+        int[] existingValues = values;
+        keys = new Object[existingKeys.length << 1];
+        values = new int[existingKeys.length << 1];
+        for (int i = 0; i < existingKeys.length; i++) {
+            Object key = existingKeys[i];
+            if (key != null) {
+                putWithoutRehashCheck(key, existingValues[i]);
+            }
+        }
+    }
+
+    // same as java.util.HashMap, spreads higher bits downward since the table index only uses the
+    // lower bits
+    private static int spread(int hashCode) {
+        return hashCode ^ (hashCode >>> 16);
+    }
+}
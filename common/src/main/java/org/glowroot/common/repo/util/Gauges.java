@@ -65,6 +65,8 @@ public class Gauges {
                 "milliseconds"));
         patterns.add(new UnitPattern("sun.management:type=HotspotRuntime:TotalSafepointTime",
                 "milliseconds"));
+        patterns.add(new UnitPattern("org.glowroot:type=GaugeCollector:CollectionTime",
+                "milliseconds"));
         patterns.add(
                 new UnitPattern("org.glowroot:type=FileSystem,name=.*:(Total|Free)Space", "bytes"));
         patterns.add(
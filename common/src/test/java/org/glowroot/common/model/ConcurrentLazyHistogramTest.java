@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConcurrentLazyHistogramTest {
+
+    @Test
+    public void shouldIncludeBufferedValuesInSnapshot() {
+        // given
+        ConcurrentLazyHistogram histogram = new ConcurrentLazyHistogram();
+        // when
+        for (int i = 1; i <= 10; i++) {
+            histogram.add(i * 1000);
+        }
+        // then
+        LazyHistogram snapshot = histogram.snapshot();
+        assertThat(snapshot.getValueAtPercentile(50)).isEqualTo(5000);
+        assertThat(snapshot.getValueAtPercentile(100)).isEqualTo(10000);
+    }
+
+    @Test
+    public void shouldKeepRawValuesInProtoWhenSmall() {
+        // given
+        ConcurrentLazyHistogram histogram = new ConcurrentLazyHistogram();
+        for (int i = 0; i < 100; i++) {
+            histogram.add(i);
+        }
+        // when
+        Aggregate.Histogram proto = histogram.toProto(new ScratchBuffer());
+        // then
+        assertThat(proto.getOrderedRawValueCount()).isEqualTo(100);
+        assertThat(proto.getEncodedBytes().isEmpty()).isTrue();
+    }
+
+    @Test
+    public void shouldRecordFromMultipleThreads() throws Exception {
+        // given
+        final ConcurrentLazyHistogram histogram = new ConcurrentLazyHistogram();
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        List<Future<Void>> futures = Lists.newArrayList();
+        // when
+        for (int i = 0; i < 16; i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int j = 1; j <= 10000; j++) {
+                        histogram.add(j * 1000);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        // then
+        LazyHistogram snapshot = histogram.snapshot();
+        assertThat(snapshot.getValueAtPercentile(50)).isBetween(4950000L, 5050000L);
+        assertThat(snapshot.getValueAtPercentile(99)).isBetween(9850000L, 9950000L);
+    }
+
+    @Test
+    public void shouldNotMissValuesInSnapshotTakenDuringRecording() throws Exception {
+        // given
+        final ConcurrentLazyHistogram histogram = new ConcurrentLazyHistogram();
+        final AtomicLong recordedCount = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        List<Future<Void>> futures = Lists.newArrayList();
+        for (int i = 0; i < 16; i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int j = 1; j <= 100000; j++) {
+                        histogram.add(j);
+                        recordedCount.incrementAndGet();
+                    }
+                    return null;
+                }
+            }));
+        }
+        // when
+        while (recordedCount.get() < 1600000) {
+            long minCount = recordedCount.get();
+            // then
+            assertThat(histogram.snapshot().getValueCount()).isGreaterThanOrEqualTo(minCount);
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        assertThat(histogram.snapshot().getValueCount()).isEqualTo(1600000);
+    }
+}
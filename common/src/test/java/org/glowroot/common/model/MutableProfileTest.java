@@ -164,6 +164,72 @@ public class MutableProfileTest {
                 + "}").replace(" ", ""));
     }
 
+    @Test
+    public void testProtoRoundTrip() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        List<StackTraceElement> stackTraceElements1 = Lists.newArrayList();
+        stackTraceElements1.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 123));
+        stackTraceElements1.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+        List<StackTraceElement> stackTraceElements2 = Lists.newArrayList();
+        stackTraceElements2.add(new StackTraceElement("Def", "ghi", null, 456));
+        stackTraceElements2.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+        profile.merge(stackTraceElements1, Thread.State.RUNNABLE);
+        profile.merge(stackTraceElements2, Thread.State.WAITING);
+        profile.merge(stackTraceElements1, Thread.State.RUNNABLE);
+        // when
+        MutableProfile fromProto = new MutableProfile();
+        fromProto.merge(profile.toProto());
+        MutableProfile fromProfile = new MutableProfile();
+        fromProfile.merge(profile);
+        // then
+        assertThat(fromProto.toProto()).isEqualTo(profile.toProto());
+        assertThat(fromProto.toJson()).isEqualTo(profile.toJson());
+        assertThat(fromProfile.toJson()).isEqualTo(profile.toJson());
+        assertThat(fromProfile.getSampleCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void testMergingAfterTruncating() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        List<StackTraceElement> stackTraceElements1 = Lists.newArrayList();
+        stackTraceElements1.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 123));
+        stackTraceElements1.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+        List<StackTraceElement> stackTraceElements2 = Lists.newArrayList();
+        stackTraceElements2.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 456));
+        stackTraceElements2.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+        profile.merge(stackTraceElements1, Thread.State.RUNNABLE);
+        profile.merge(stackTraceElements1, Thread.State.RUNNABLE);
+        profile.merge(stackTraceElements2, Thread.State.RUNNABLE);
+        // when
+        profile.truncateBranches(2);
+        profile.merge(stackTraceElements2, Thread.State.RUNNABLE);
+        // then
+        assertThat(profile.toJson()).isEqualTo(("{"
+                + "  \"unfilteredSampleCount\": 4,"
+                + "  \"rootNodes\": ["
+                + "    {"
+                + "      \"stackTraceElement\": \"xx.yy.zz.Main.main(Main.java:789)\","
+                + "      \"sampleCount\": 4,"
+                + "      \"ellipsedSampleCount\": 1,"
+                + "      \"childNodes\": ["
+                + "        {"
+                + "          \"stackTraceElement\": \"aa.bb.cc.Def.ghi(Def.java:123)\","
+                + "          \"leafThreadState\": \"RUNNABLE\","
+                + "          \"sampleCount\": 2"
+                + "        },"
+                + "        {"
+                + "          \"stackTraceElement\": \"aa.bb.cc.Def.ghi(Def.java:456)\","
+                + "          \"leafThreadState\": \"RUNNABLE\","
+                + "          \"sampleCount\": 1"
+                + "        }"
+                + "      ]"
+                + "    }"
+                + "  ]"
+                + "}").replace(" ", ""));
+    }
+
     // this is helpful when building tests
     @SuppressWarnings("unused")
     private static void prettyPrint(String json) throws IOException {
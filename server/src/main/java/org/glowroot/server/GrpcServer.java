@@ -17,23 +17,40 @@ package org.glowroot.server;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.concurrent.GuardedBy;
 
 import com.datastax.driver.core.exceptions.ReadTimeoutException;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.grpc.Status;
 import io.grpc.internal.ServerImpl;
 import io.grpc.netty.NettyServerBuilder;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.common.repo.AggregateRepository;
-import org.glowroot.common.repo.GaugeValueRepository;
-import org.glowroot.common.repo.TraceRepository;
 import org.glowroot.common.repo.util.AlertingService;
 import org.glowroot.server.storage.AgentDao;
+import org.glowroot.server.storage.GaugeValueDao;
+import org.glowroot.server.storage.TraceDao;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.AggregatesByType;
 import org.glowroot.wire.api.model.CollectorServiceGrpc.CollectorServiceImplBase;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectFrame;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectFrameAck;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.EmptyMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
@@ -43,35 +60,73 @@ import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogEvent;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceMessage;
 import org.glowroot.wire.api.model.Proto;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 class GrpcServer {
 
     private static final int GRPC_MAX_MESSAGE_SIZE_MB =
             Integer.getInteger("grpc.max.message.size.mb", 100);
 
+    // once the trace queue is full, traces are rejected with RESOURCE_EXHAUSTED instead of
+    // blocking the grpc transport threads, and the agents retry them later
+    private static final int TRACE_QUEUE_SIZE =
+            Integer.getInteger("glowroot.server.traceQueueSize", 1000);
+
+    private static final int MAX_IN_FLIGHT_TRACES =
+            Integer.getInteger("glowroot.server.maxInFlightTraces", 100);
+
+    // number of frames requested up front from an agent's collect stream, after that the next frame
+    // is only requested once a prior frame's traces have been queued, so that grpc flow control
+    // pushes back on the agent while frames are waiting to be processed
+    private static final int MAX_IN_FLIGHT_FRAMES_PER_STREAM =
+            Integer.getInteger("glowroot.server.maxInFlightFramesPerStream", 4);
+
     private static final Logger logger = LoggerFactory.getLogger(GrpcServer.class);
 
     private final AgentDao agentDao;
     private final AggregateRepository aggregateRepository;
-    private final GaugeValueRepository gaugeValueRepository;
-    private final TraceRepository traceRepository;
+    private final GaugeValueDao gaugeValueDao;
+    private final TraceDao traceDao;
     private final AlertingService alertingService;
 
     private final DownstreamServiceImpl downstreamService;
 
+    private final BlockingQueue<PendingTrace> traceQueue =
+            new LinkedBlockingQueue<PendingTrace>(TRACE_QUEUE_SIZE);
+    private final Semaphore inFlightTraces = new Semaphore(MAX_IN_FLIGHT_TRACES);
+    private final ExecutorService traceWriterExecutor;
+
+    // gauge alert checks read back from cassandra, so they are run off of the cassandra driver
+    // threads that complete the (asynchronous) gauge value store
+    private final ExecutorService gaugeAlertExecutor;
+
     private final ServerImpl server;
 
+    private volatile boolean closed;
+
     GrpcServer(int port, AgentDao agentDao, AggregateRepository aggregateRepository,
-            GaugeValueRepository gaugeValueRepository, TraceRepository traceRepository,
+            GaugeValueDao gaugeValueDao, TraceDao traceDao,
             AlertingService alertingService) throws IOException {
         this.agentDao = agentDao;
         this.aggregateRepository = aggregateRepository;
-        this.gaugeValueRepository = gaugeValueRepository;
-        this.traceRepository = traceRepository;
+        this.gaugeValueDao = gaugeValueDao;
+        this.traceDao = traceDao;
         this.alertingService = alertingService;
 
         downstreamService = new DownstreamServiceImpl(agentDao);
 
+        traceWriterExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Glowroot-Trace-Writer")
+                .build());
+        traceWriterExecutor.execute(new TraceWriter());
+        gaugeAlertExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Glowroot-Gauge-Alert")
+                .build());
+
         server = NettyServerBuilder.forPort(port)
                 .addService(new CollectorServiceImpl().bindService())
                 .addService(downstreamService.bindService())
@@ -84,8 +139,53 @@ class GrpcServer {
         return downstreamService;
     }
 
-    void close() {
+    void close() throws InterruptedException {
         server.shutdown();
+        closed = true;
+        // shutdownNow() is needed here to send interrupt to trace writer thread
+        traceWriterExecutor.shutdownNow();
+        if (!traceWriterExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
+        // traces may still have been queued by in-flight calls after the trace writer exited
+        failQueuedTraces();
+        gaugeAlertExecutor.shutdown();
+        if (!gaugeAlertExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
+    }
+
+    // returns false if the trace was not queued, in which case the response observer has already
+    // been completed with an error
+    private boolean queueTrace(String agentId, Trace trace,
+            StreamObserver<EmptyMessage> responseObserver) {
+        if (closed) {
+            responseObserver.onError(Status.UNAVAILABLE
+                    .withDescription("Server is shutting down")
+                    .asRuntimeException());
+            return false;
+        }
+        if (!traceQueue.offer(new PendingTrace(agentId, trace, responseObserver))) {
+            logger.debug("trace queue is full, rejecting trace from agent: {}", agentId);
+            responseObserver.onError(Status.RESOURCE_EXHAUSTED
+                    .withDescription("Trace queue is full")
+                    .asRuntimeException());
+            return false;
+        }
+        return true;
+    }
+
+    private void failQueuedTraces() {
+        PendingTrace pendingTrace;
+        while ((pendingTrace = traceQueue.poll()) != null) {
+            failOnClose(pendingTrace);
+        }
+    }
+
+    private static void failOnClose(PendingTrace pendingTrace) {
+        pendingTrace.responseObserver.onError(Status.UNAVAILABLE
+                .withDescription("Server is shutting down")
+                .asRuntimeException());
     }
 
     private class CollectorServiceImpl extends CollectorServiceImplBase {
@@ -140,61 +240,295 @@ class GrpcServer {
         @Override
         public void collectGaugeValues(GaugeValueMessage request,
                 StreamObserver<EmptyMessage> responseObserver) {
-            long maxCaptureTime = 0;
+            storeGaugeValues(request.getAgentId(), request.getGaugeValuesList(),
+                    responseObserver);
+        }
+
+        @Override
+        public void collectTrace(TraceMessage request,
+                StreamObserver<EmptyMessage> responseObserver) {
+            // the response is sent asynchronously by the trace writer once the trace is stored
             try {
-                gaugeValueRepository.store(request.getAgentId(), request.getGaugeValuesList());
-                for (GaugeValue gaugeValue : request.getGaugeValuesList()) {
-                    maxCaptureTime = Math.max(maxCaptureTime, gaugeValue.getCaptureTime());
-                }
+                queueTrace(request.getAgentId(), request.getTrace(), responseObserver);
             } catch (Throwable t) {
                 logger.error(t.getMessage(), t);
                 responseObserver.onError(t);
-                return;
             }
+        }
+
+        @Override
+        public void log(LogMessage request, StreamObserver<EmptyMessage> responseObserver) {
             try {
-                alertingService.checkGaugeAlerts(request.getAgentId(), maxCaptureTime,
-                        ReadTimeoutException.class);
+                logEvent(request.getAgentId(), request.getLogEvent());
             } catch (Throwable t) {
-                logger.error(t.getMessage(), t);
-                // don't fail collectGaugeValues()
+                responseObserver.onError(t);
+                return;
             }
             responseObserver.onNext(EmptyMessage.getDefaultInstance());
             responseObserver.onCompleted();
         }
 
         @Override
-        public void collectTrace(TraceMessage request,
-                StreamObserver<EmptyMessage> responseObserver) {
+        public StreamObserver<CollectFrame> collect(
+                StreamObserver<CollectFrameAck> responseObserver) {
+            ServerCallStreamObserver<CollectFrameAck> serverCallStreamObserver =
+                    (ServerCallStreamObserver<CollectFrameAck>) responseObserver;
+            serverCallStreamObserver.disableAutoInboundFlowControl();
+            serverCallStreamObserver.request(MAX_IN_FLIGHT_FRAMES_PER_STREAM);
+            return new CollectStreamObserver(serverCallStreamObserver);
+        }
+
+        private void storeGaugeValues(final String agentId, final List<GaugeValue> gaugeValues,
+                final StreamObserver<EmptyMessage> responseObserver) {
+            // the response is sent asynchronously once the gauge values are stored, so that the
+            // grpc thread is not blocked on cassandra
+            ListenableFuture<?> future;
             try {
-                traceRepository.store(request.getAgentId(), request.getTrace());
+                future = gaugeValueDao.storeAsync(agentId, gaugeValues);
             } catch (Throwable t) {
                 logger.error(t.getMessage(), t);
                 responseObserver.onError(t);
                 return;
             }
-            responseObserver.onNext(EmptyMessage.getDefaultInstance());
-            responseObserver.onCompleted();
+            Futures.addCallback(future, new FutureCallback<Object>() {
+                @Override
+                public void onSuccess(Object result) {
+                    responseObserver.onNext(EmptyMessage.getDefaultInstance());
+                    responseObserver.onCompleted();
+                    try {
+                        gaugeAlertExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                checkGaugeAlerts(agentId, gaugeValues);
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        // server is shutting down
+                        logger.debug(e.getMessage(), e);
+                    }
+                }
+                @Override
+                public void onFailure(Throwable t) {
+                    logger.error(t.getMessage(), t);
+                    responseObserver.onError(t);
+                }
+            });
         }
 
-        @Override
-        public void log(LogMessage request, StreamObserver<EmptyMessage> responseObserver) {
+        private void checkGaugeAlerts(String agentId, List<GaugeValue> gaugeValues) {
+            long maxCaptureTime = 0;
+            for (GaugeValue gaugeValue : gaugeValues) {
+                maxCaptureTime = Math.max(maxCaptureTime, gaugeValue.getCaptureTime());
+            }
             try {
-                LogEvent logEvent = request.getLogEvent();
-                Proto.Throwable t = logEvent.getThrowable();
-                if (t == null) {
-                    logger.warn("{} -- {} -- {} -- {}", request.getAgentId(), logEvent.getLevel(),
-                            logEvent.getLoggerName(), logEvent.getMessage());
-                } else {
-                    logger.warn("{} -- {} -- {} -- {}\n{}", request.getAgentId(),
-                            logEvent.getLevel(), logEvent.getLoggerName(),
-                            logEvent.getMessage(), t);
+                alertingService.checkGaugeAlerts(agentId, maxCaptureTime,
+                        ReadTimeoutException.class);
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+                // don't fail collectGaugeValues()
+            }
+        }
+
+        private void logEvent(String agentId, LogEvent logEvent) {
+            Proto.Throwable t = logEvent.getThrowable();
+            if (t == null) {
+                logger.warn("{} -- {} -- {} -- {}", agentId, logEvent.getLevel(),
+                        logEvent.getLoggerName(), logEvent.getMessage());
+            } else {
+                logger.warn("{} -- {} -- {} -- {}\n{}", agentId, logEvent.getLevel(),
+                        logEvent.getLoggerName(), logEvent.getMessage(), t);
+            }
+        }
+
+        // the next frame is requested once the frame's traces have been queued (queueing never
+        // blocks, a full trace queue fails the stream instead, see queueTrace()), and the frame is
+        // acked once all of its traces and gauge values are stored, acks may be sent out of frame
+        // order
+        private class CollectStreamObserver implements StreamObserver<CollectFrame> {
+
+            private final ServerCallStreamObserver<CollectFrameAck> responseObserver;
+
+            @GuardedBy("responseObserver")
+            private boolean done;
+
+            private CollectStreamObserver(
+                    ServerCallStreamObserver<CollectFrameAck> responseObserver) {
+                this.responseObserver = responseObserver;
+            }
+
+            @Override
+            public void onNext(CollectFrame frame) {
+                String agentId = frame.getAgentId();
+                // the extra count is released once all of the stores have been issued
+                int storeCount = frame.getTraceCount()
+                        + (frame.getGaugeValueCount() > 0 ? 1 : 0) + 1;
+                StreamObserver<EmptyMessage> frameStoreObserver =
+                        new FrameStoreObserver(frame.getFrameId(), storeCount);
+                try {
+                    for (Trace trace : frame.getTraceList()) {
+                        if (!queueTrace(agentId, trace, frameStoreObserver)) {
+                            // the frame store observer has already failed the stream, and the
+                            // agent re-sends the whole frame on a new stream
+                            return;
+                        }
+                    }
+                    if (frame.getGaugeValueCount() > 0) {
+                        storeGaugeValues(agentId, frame.getGaugeValueList(), frameStoreObserver);
+                    }
+                    for (LogEvent logEvent : frame.getLogEventList()) {
+                        logEvent(agentId, logEvent);
+                    }
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                    frameStoreObserver.onError(t);
+                    return;
+                }
+                synchronized (responseObserver) {
+                    if (!done) {
+                        responseObserver.request(1);
+                    }
+                }
+                frameStoreObserver.onCompleted();
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                logger.debug(t.getMessage(), t);
+                synchronized (responseObserver) {
+                    done = true;
+                }
+            }
+
+            @Override
+            public void onCompleted() {
+                synchronized (responseObserver) {
+                    if (!done) {
+                        done = true;
+                        responseObserver.onCompleted();
+                    }
+                }
+            }
+
+            private class FrameStoreObserver implements StreamObserver<EmptyMessage> {
+
+                private final long frameId;
+                private final AtomicInteger remaining;
+
+                private FrameStoreObserver(long frameId, int storeCount) {
+                    this.frameId = frameId;
+                    remaining = new AtomicInteger(storeCount);
+                }
+
+                @Override
+                public void onNext(EmptyMessage value) {}
+
+                @Override
+                public void onError(Throwable t) {
+                    // the agent re-sends all unacked frames on a new stream
+                    synchronized (responseObserver) {
+                        if (!done) {
+                            done = true;
+                            responseObserver.onError(t);
+                        }
+                    }
+                }
+
+                @Override
+                public void onCompleted() {
+                    if (remaining.decrementAndGet() != 0) {
+                        return;
+                    }
+                    synchronized (responseObserver) {
+                        if (!done) {
+                            responseObserver.onNext(CollectFrameAck.newBuilder()
+                                    .setFrameId(frameId)
+                                    .build());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // single writer stage that takes traces off of the queue and issues their (batched) writes,
+    // capping the number of traces with writes in flight at any given time
+    private class TraceWriter implements Runnable {
+
+        @Override
+        public void run() {
+            while (true) {
+                PendingTrace pendingTrace;
+                try {
+                    pendingTrace = traceQueue.take();
+                } catch (InterruptedException e) {
+                    if (closed) {
+                        failQueuedTraces();
+                        return;
+                    }
+                    continue;
+                }
+                if (!acquireInFlightPermit()) {
+                    // closed while waiting for a permit
+                    failOnClose(pendingTrace);
+                    failQueuedTraces();
+                    return;
                 }
+                store(pendingTrace);
+            }
+        }
+
+        private boolean acquireInFlightPermit() {
+            while (true) {
+                try {
+                    inFlightTraces.acquire();
+                    return true;
+                } catch (InterruptedException e) {
+                    if (closed) {
+                        return false;
+                    }
+                }
+            }
+        }
+
+        private void store(final PendingTrace pendingTrace) {
+            final StreamObserver<EmptyMessage> responseObserver = pendingTrace.responseObserver;
+            ListenableFuture<?> future;
+            try {
+                future = traceDao.storeAsync(pendingTrace.agentId, pendingTrace.trace);
             } catch (Throwable t) {
+                inFlightTraces.release();
+                logger.error(t.getMessage(), t);
                 responseObserver.onError(t);
                 return;
             }
-            responseObserver.onNext(EmptyMessage.getDefaultInstance());
-            responseObserver.onCompleted();
+            Futures.addCallback(future, new FutureCallback<Object>() {
+                @Override
+                public void onSuccess(Object result) {
+                    inFlightTraces.release();
+                    responseObserver.onNext(EmptyMessage.getDefaultInstance());
+                    responseObserver.onCompleted();
+                }
+                @Override
+                public void onFailure(Throwable t) {
+                    inFlightTraces.release();
+                    logger.error(t.getMessage(), t);
+                    responseObserver.onError(t);
+                }
+            });
+        }
+    }
+
+    private static class PendingTrace {
+
+        private final String agentId;
+        private final Trace trace;
+        private final StreamObserver<EmptyMessage> responseObserver;
+
+        private PendingTrace(String agentId, Trace trace,
+                StreamObserver<EmptyMessage> responseObserver) {
+            this.agentId = agentId;
+            this.trace = trace;
+            this.responseObserver = responseObserver;
         }
     }
 }
@@ -15,10 +15,31 @@
  */
 package org.glowroot.server;
 
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import com.datastax.driver.core.exceptions.OverloadedException;
+import com.datastax.driver.core.exceptions.QueryConsistencyException;
+import com.datastax.driver.core.exceptions.UnavailableException;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,10 +51,15 @@ import org.glowroot.server.storage.GaugeValueDao;
 
 import static java.util.concurrent.TimeUnit.SECONDS;
 
-public class RollupService implements Runnable {
+public class RollupService implements Runnable, RollupServiceMXBean {
 
     private static final Logger logger = LoggerFactory.getLogger(RollupService.class);
 
+    private static final int MAX_CONCURRENCY =
+            Integer.getInteger("glowroot.server.rollupConcurrency", 8);
+
+    private static final String MBEAN_OBJECT_NAME = "org.glowroot.server:type=RollupService";
+
     private final AgentDao agentDao;
     private final AggregateDao aggregateDao;
     private final GaugeValueDao gaugeValueDao;
@@ -41,27 +67,58 @@ public class RollupService implements Runnable {
     private final Clock clock;
 
     private final ExecutorService executor;
+    // per-agent rollups are executed on these threads
+    private final ExecutorService workerExecutor;
+
+    // this is halved whenever a per-agent rollup hits a cassandra timeout (or overload) and is
+    // increased by one after each pass that completes without any
+    private volatile int concurrency = MAX_CONCURRENCY;
+
+    private volatile long lastPassDurationMillis;
+    private volatile ImmutableMap<String, Long> lagMillisByAgentRollup = ImmutableMap.of();
+    private volatile ImmutableMap<String, Long> lagMillisByRollupLevel = ImmutableMap.of();
 
     private volatile boolean stopped;
 
     public RollupService(AgentDao agentDao, AggregateDao aggregateDao, GaugeValueDao gaugeValueDao,
-            DownstreamServiceImpl downstreamService, Clock clock) {
+            DownstreamServiceImpl downstreamService, Clock clock) throws Exception {
         this.agentDao = agentDao;
         this.aggregateDao = aggregateDao;
         this.gaugeValueDao = gaugeValueDao;
         this.downstreamService = downstreamService;
         this.clock = clock;
-        executor = Executors.newSingleThreadExecutor();
+        workerExecutor = Executors.newFixedThreadPool(MAX_CONCURRENCY, new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Glowroot-Rollup-Worker-%d")
+                .build());
+        registerMBean(castInitialized(this));
+        executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Glowroot-Rollup")
+                .build());
         executor.execute(castInitialized(this));
     }
 
     public void close() throws InterruptedException {
         stopped = true;
-        // shutdownNow() is needed here to send interrupt to RollupService thread
+        try {
+            ObjectName objectName = new ObjectName(MBEAN_OBJECT_NAME);
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            if (mbeanServer.isRegistered(objectName)) {
+                mbeanServer.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            logger.warn(e.getMessage(), e);
+        }
+        // shutdownNow() is needed here to send interrupt to RollupService threads
         executor.shutdownNow();
+        workerExecutor.shutdownNow();
         if (!executor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
+        if (!workerExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
     }
 
     @Override
@@ -69,16 +126,9 @@ public class RollupService implements Runnable {
         while (true) {
             try {
                 Thread.sleep(millisUntilNextRollup(clock.currentTimeMillis()));
-                for (AgentRollup agentRollup : agentDao.readAgentRollups()) {
-                    // rollup one agent at a time, mostly to avoid single large query on
-                    // gauge_needs_rollup_1 that times out due to use of Cassandra queue
-                    // anti-pattern (and lots of tombstones)
-                    aggregateDao.rollup(agentRollup.name());
-                    gaugeValueDao.rollup(agentRollup.name());
-                    if (agentRollup.leaf()) {
-                        downstreamService.updateAgentConfigIfConnectedAndNeeded(agentRollup.name());
-                    }
-                }
+                long startTime = clock.currentTimeMillis();
+                rollup(agentDao.readAgentRollups());
+                lastPassDurationMillis = clock.currentTimeMillis() - startTime;
             } catch (InterruptedException e) {
                 if (stopped) {
                     return;
@@ -89,13 +139,199 @@ public class RollupService implements Runnable {
         }
     }
 
+    @Override
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    @Override
+    public long getLastPassDurationMillis() {
+        return lastPassDurationMillis;
+    }
+
+    @Override
+    public Map<String, Long> getLagMillisByAgentRollup() {
+        return lagMillisByAgentRollup;
+    }
+
+    @Override
+    public Map<String, Long> getLagMillisByRollupLevel() {
+        return lagMillisByRollupLevel;
+    }
+
+    private void rollup(List<AgentRollup> agentRollups) throws Exception {
+        CompletionService<RollupResult> completionService =
+                new ExecutorCompletionService<RollupResult>(workerExecutor);
+        ConcurrentMap<String, Long> lagMillisByAgentRollup = Maps.newConcurrentMap();
+        ConcurrentMap<String, Long> lagMillisByRollupLevel = Maps.newConcurrentMap();
+        boolean timedOut = false;
+        int inFlight = 0;
+        for (AgentRollup agentRollup : agentRollups) {
+            // concurrency is re-read on each iteration, so that it takes effect immediately when
+            // it is reduced due to a timeout
+            while (inFlight >= concurrency) {
+                timedOut |= awaitNext(completionService);
+                inFlight--;
+            }
+            completionService.submit(new AgentRollupTask(agentRollup, lagMillisByAgentRollup,
+                    lagMillisByRollupLevel));
+            inFlight++;
+        }
+        while (inFlight > 0) {
+            timedOut |= awaitNext(completionService);
+            inFlight--;
+        }
+        if (!timedOut && concurrency < MAX_CONCURRENCY) {
+            concurrency++;
+        }
+        this.lagMillisByAgentRollup = ImmutableMap.copyOf(lagMillisByAgentRollup);
+        this.lagMillisByRollupLevel = ImmutableMap.copyOf(lagMillisByRollupLevel);
+    }
+
+    // returns true if the rollup timed out
+    private boolean awaitNext(CompletionService<RollupResult> completionService)
+            throws InterruptedException, ExecutionException {
+        RollupResult result = completionService.take().get();
+        if (result == RollupResult.TIMED_OUT) {
+            concurrency = Math.max(1, concurrency / 2);
+            return true;
+        }
+        return false;
+    }
+
     @VisibleForTesting
     static long millisUntilNextRollup(long currentTimeMillis) {
         return 60000 - (currentTimeMillis - 10000) % 60000;
     }
 
+    @VisibleForTesting
+    static boolean isTimeoutOrOverload(Throwable t) {
+        Throwable cause = t;
+        while (cause != null) {
+            if (cause instanceof QueryConsistencyException
+                    || cause instanceof OperationTimedOutException
+                    || cause instanceof OverloadedException
+                    || cause instanceof UnavailableException
+                    || cause instanceof NoHostAvailableException) {
+                return true;
+            }
+            cause = cause.getCause();
+        }
+        return false;
+    }
+
+    private static void recordLag(ConcurrentMap<String, Long> lagMillisMap, String key,
+            long lagMillis) {
+        Long existing = lagMillisMap.putIfAbsent(key, lagMillis);
+        while (existing != null && existing < lagMillis) {
+            if (lagMillisMap.replace(key, existing, lagMillis)) {
+                return;
+            }
+            existing = lagMillisMap.putIfAbsent(key, lagMillis);
+        }
+    }
+
+    private static void registerMBean(RollupServiceMXBean mbean) throws JMException {
+        ObjectName objectName = new ObjectName(MBEAN_OBJECT_NAME);
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            mbeanServer.registerMBean(mbean, objectName);
+        } catch (InstanceAlreadyExistsException e) {
+            // a prior rollup service in the same jvm was not closed (e.g. failed startup), replace
+            // its mbean so that the metrics reported are from this rollup service
+            logger.debug(e.getMessage(), e);
+            mbeanServer.unregisterMBean(objectName);
+            mbeanServer.registerMBean(mbean, objectName);
+        }
+    }
+
     @SuppressWarnings("return.type.incompatible")
     private static <T> /*@Initialized*/ T castInitialized(/*@UnderInitialization*/ T obj) {
         return obj;
     }
+
+    private class AgentRollupTask implements Callable<RollupResult> {
+
+        private final AgentRollup agentRollup;
+        private final ConcurrentMap<String, Long> lagMillisByAgentRollup;
+        private final ConcurrentMap<String, Long> lagMillisByRollupLevel;
+
+        private AgentRollupTask(AgentRollup agentRollup,
+                ConcurrentMap<String, Long> lagMillisByAgentRollup,
+                ConcurrentMap<String, Long> lagMillisByRollupLevel) {
+            this.agentRollup = agentRollup;
+            this.lagMillisByAgentRollup = lagMillisByAgentRollup;
+            this.lagMillisByRollupLevel = lagMillisByRollupLevel;
+        }
+
+        @Override
+        public RollupResult call() {
+            String agentRollupName = agentRollup.name();
+            try {
+                // rollup one agent per task, mostly to avoid single large query on
+                // gauge_needs_rollup_1 that times out due to use of Cassandra queue
+                // anti-pattern (and lots of tombstones)
+                aggregateDao.rollup(agentRollupName);
+                gaugeValueDao.rollup(agentRollupName);
+            } catch (InterruptedException e) {
+                // shutting down
+                Thread.currentThread().interrupt();
+                return RollupResult.ERROR;
+            } catch (Exception e) {
+                logger.error("{} - {}", agentRollupName, e.getMessage(), e);
+                recordLagAfterFailure();
+                return isTimeoutOrOverload(e) ? RollupResult.TIMED_OUT : RollupResult.ERROR;
+            }
+            // each rollup level is rolled up before the next rollup level, so once the rollup
+            // completes there is nothing left waiting to be rolled up (other than the most recent
+            // interval at each rollup level, which is likely still being added to)
+            lagMillisByAgentRollup.put(agentRollupName, 0L);
+            try {
+                if (agentRollup.leaf()) {
+                    downstreamService.updateAgentConfigIfConnectedAndNeeded(agentRollupName);
+                }
+                return RollupResult.SUCCESS;
+            } catch (InterruptedException e) {
+                // shutting down
+                Thread.currentThread().interrupt();
+                return RollupResult.ERROR;
+            } catch (Exception e) {
+                logger.error("{} - {}", agentRollupName, e.getMessage(), e);
+                return isTimeoutOrOverload(e) ? RollupResult.TIMED_OUT : RollupResult.ERROR;
+            }
+        }
+
+        // only called after a failure, since otherwise there is nothing left waiting
+        private void recordLagAfterFailure() {
+            Map<Integer, Long> aggregateOldestPending;
+            Map<Integer, Long> gaugeOldestPending;
+            try {
+                aggregateOldestPending =
+                        aggregateDao.readOldestPendingCaptureTimes(agentRollup.name());
+                gaugeOldestPending =
+                        gaugeValueDao.readOldestPendingCaptureTimes(agentRollup.name());
+            } catch (Exception e) {
+                logger.debug(e.getMessage(), e);
+                return;
+            }
+            long currentTime = clock.currentTimeMillis();
+            lagMillisByAgentRollup.put(agentRollup.name(), 0L);
+            recordLag("aggregate", aggregateOldestPending, currentTime);
+            recordLag("gauge", gaugeOldestPending, currentTime);
+        }
+
+        private void recordLag(String dataType, Map<Integer, Long> oldestPendingCaptureTimes,
+                long currentTime) {
+            for (Map.Entry<Integer, Long> entry : oldestPendingCaptureTimes.entrySet()) {
+                long lagMillis = Math.max(0, currentTime - entry.getValue());
+                RollupService.recordLag(lagMillisByAgentRollup, agentRollup.name(), lagMillis);
+                RollupService.recordLag(lagMillisByRollupLevel, dataType + "-" + entry.getKey(),
+                        lagMillis);
+            }
+        }
+    }
+
+    private enum RollupResult {
+        SUCCESS, TIMED_OUT, ERROR
+    }
 }
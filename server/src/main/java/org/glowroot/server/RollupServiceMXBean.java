@@ -0,0 +1,33 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.server;
+
+import java.util.Map;
+
+public interface RollupServiceMXBean {
+
+    int getConcurrency();
+
+    long getLastPassDurationMillis();
+
+    // lag is how long the oldest rollup still waiting after the last rollup pass has been due (zero
+    // when the rollup pass completed for the agent rollup), keyed by agent rollup (max across data
+    // types and rollup levels)
+    Map<String, Long> getLagMillisByAgentRollup();
+
+    // keyed by data type and rollup level, e.g. "aggregate-1" (max across agent rollups)
+    Map<String, Long> getLagMillisByRollupLevel();
+}
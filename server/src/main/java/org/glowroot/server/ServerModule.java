@@ -19,12 +19,15 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
 import java.net.URISyntaxException;
 import java.security.CodeSource;
 import java.util.List;
 import java.util.Properties;
 
 import javax.annotation.Nullable;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.KeyspaceMetadata;
@@ -75,6 +78,9 @@ class ServerModule {
 
     private static final Logger logger;
 
+    private static final String AGGREGATE_READ_CACHE_MBEAN_OBJECT_NAME =
+            "org.glowroot.server:type=AggregateReadCache";
+
     static {
         CodeSource codeSource = ServerModule.class.getProtectionDomain().getCodeSource();
         File glowrootServerJarFile = null;
@@ -154,6 +160,8 @@ class ServerModule {
                     new TransactionTypeDao(session, configRepository);
             AggregateDao aggregateDao =
                     new AggregateDao(session, transactionTypeDao, configRepository);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(aggregateDao.getReadCache(),
+                    new ObjectName(AGGREGATE_READ_CACHE_MBEAN_OBJECT_NAME));
             TraceDao traceDao = new TraceDao(session, transactionTypeDao, configRepository);
             GaugeValueDao gaugeValueDao = new GaugeValueDao(session, configRepository);
             TriggeredAlertDao triggeredAlertDao = new TriggeredAlertDao(session, configRepository);
@@ -210,6 +218,7 @@ class ServerModule {
             if (rollupService != null) {
                 rollupService.close();
             }
+            unregisterAggregateReadCacheMBean();
             if (session != null) {
                 session.close();
             }
@@ -273,10 +282,22 @@ class ServerModule {
         uiModule.close();
         server.close();
         rollupService.close();
+        unregisterAggregateReadCacheMBean();
         session.close();
         cluster.close();
     }
 
+    private static void unregisterAggregateReadCacheMBean() {
+        try {
+            ObjectName objectName = new ObjectName(AGGREGATE_READ_CACHE_MBEAN_OBJECT_NAME);
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(objectName)) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            logger.warn(e.getMessage(), e);
+        }
+    }
+
     private static ServerConfiguration getServerConfiguration() throws IOException {
         ImmutableServerConfiguration.Builder builder = ImmutableServerConfiguration.builder();
         File propFile = new File("glowroot-server.properties");
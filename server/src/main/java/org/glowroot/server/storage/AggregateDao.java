@@ -103,6 +103,10 @@ public class AggregateDao implements AggregateRepository {
     private static final String WITH_LCS =
             "with compaction = { 'class' : 'LeveledCompactionStrategy' }";
 
+    // the rollup cache is weighed by the number of (overall and transaction) aggregates held
+    private static final long ROLLUP_CACHE_MAX_AGGREGATES =
+            Long.getLong("glowroot.server.rollupCacheMaxAggregates", 50000);
+
     private static final Table summaryTable = ImmutableTable.builder()
             .partialName("summary")
             .addColumns(ImmutableColumn.of("total_duration_nanos", "double"))
@@ -223,6 +227,13 @@ public class AggregateDao implements AggregateRepository {
 
     private final ImmutableList<Table> allTables;
 
+    // key is transaction type
+    private final RollupCache<Map<String, TransactionTypeRollup>> rollupCache =
+            new RollupCache<>(Maps::newHashMap, AggregateDao::getAggregateCount,
+                    ROLLUP_CACHE_MAX_AGGREGATES);
+
+    private final AggregateReadCache readCache = new AggregateReadCache();
+
     public AggregateDao(Session session, TransactionTypeDao transactionTypeDao,
             ConfigRepository configRepository) {
         this.session = session;
@@ -327,6 +338,10 @@ public class AggregateDao implements AggregateRepository {
         this.deleteNeedsRollup = deleteNeedsRollup;
     }
 
+    public AggregateReadCache getReadCache() {
+        return readCache;
+    }
+
     @Override
     public void store(String agentId, long captureTime, List<AggregatesByType> aggregatesByTypeList,
             List<String> sharedQueryTexts) throws Exception {
@@ -356,12 +371,12 @@ public class AggregateDao implements AggregateRepository {
             // END TEMPORARY
             Aggregate overallAggregate = aggregatesByType.getOverallAggregate();
             futures.addAll(storeOverallAggregate(agentId, transactionType, captureTime,
-                    overallAggregate, sharedQueries, adjustedTTL));
+                    overallAggregate, sharedQueries, 0, adjustedTTL));
             for (TransactionAggregate transactionAggregate : aggregatesByType
                     .getTransactionAggregateList()) {
                 futures.addAll(storeTransactionAggregate(agentId, transactionType,
                         transactionAggregate.getTransactionName(), captureTime,
-                        transactionAggregate.getAggregate(), sharedQueries, adjustedTTL));
+                        transactionAggregate.getAggregate(), sharedQueries, 0, adjustedTTL));
             }
             transactionTypeDao.maybeUpdateLastCaptureTime(agentId, transactionType, futures);
         }
@@ -375,17 +390,34 @@ public class AggregateDao implements AggregateRepository {
             transactionTypes.add("Web");
         }
         // END TEMPORARY
+        List<UUID> uniquenessKeys = Lists.newArrayList();
         for (int i = 1; i < rollupConfigs.size(); i++) {
             long intervalMillis = rollupConfigs.get(i).intervalMillis();
             long rollupCaptureTime = Utils.getRollupCaptureTime(captureTime, intervalMillis);
+            UUID uniqueness = UUIDs.timeBased();
             BoundStatement boundStatement = insertNeedsRollup.get(i - 1).bind();
             boundStatement.setString(0, agentId);
             boundStatement.setTimestamp(1, new Date(rollupCaptureTime));
-            boundStatement.setUUID(2, UUIDs.timeBased());
+            boundStatement.setUUID(2, uniqueness);
             boundStatement.setSet(3, transactionTypes);
             futures.add(session.executeAsync(boundStatement));
+            uniquenessKeys.add(uniqueness);
         }
         Futures.allAsList(futures).get();
+        readCache.invalidate(agentId, 0, rollupConfigs.get(0).intervalMillis(), captureTime);
+        // only fold into the rollup cache once the data is safely stored, since otherwise the agent
+        // will retry and the data would be folded in twice
+        if (hasSharedQueryTextsOnly(aggregatesByTypeList)) {
+            RollupParams rollupParams = getRollupParams(agentId, 0, adjustedTTL);
+            for (int i = 1; i < rollupConfigs.size(); i++) {
+                long intervalMillis = rollupConfigs.get(i).intervalMillis();
+                long rollupCaptureTime = Utils.getRollupCaptureTime(captureTime, intervalMillis);
+                rollupCache.fold(agentId, i, rollupCaptureTime, intervalMillis,
+                        uniquenessKeys.get(i - 1), ImmutableList.of(captureTime),
+                        value -> mergeInto(value, aggregatesByTypeList, sharedQueries,
+                                rollupParams));
+            }
+        }
     }
 
     // query.from() is non-inclusive
@@ -467,93 +499,24 @@ public class AggregateDao implements AggregateRepository {
     // query.from() is INCLUSIVE
     @Override
     public List<OverviewAggregate> readOverviewAggregates(String agentRollup,
-            TransactionQuery query)
-            throws IOException {
-        ResultSet results = executeQuery(agentRollup, query, overviewTable);
-        List<OverviewAggregate> overviewAggregates = Lists.newArrayList();
-        for (Row row : results) {
-            int i = 0;
-            long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
-            double totalDurationNanos = row.getDouble(i++);
-            long transactionCount = row.getLong(i++);
-            boolean asyncTransactions = row.getBool(i++);
-            List<Aggregate.Timer> mainThreadRootTimers =
-                    Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser());
-            List<Aggregate.Timer> auxThreadRootTimers =
-                    Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser());
-            List<Aggregate.Timer> asyncTimers =
-                    Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser());
-            ImmutableOverviewAggregate.Builder builder = ImmutableOverviewAggregate.builder()
-                    .captureTime(captureTime)
-                    .totalDurationNanos(totalDurationNanos)
-                    .transactionCount(transactionCount)
-                    .asyncTransactions(asyncTransactions)
-                    .addAllMainThreadRootTimers(mainThreadRootTimers)
-                    .addAllAuxThreadRootTimers(auxThreadRootTimers)
-                    .addAllAsyncTimers(asyncTimers);
-            Double mainThreadTotalCpuNanos = row.get(i++, Double.class);
-            Double mainThreadTotalBlockedNanos = row.get(i++, Double.class);
-            Double mainThreadTotalWaitedNanos = row.get(i++, Double.class);
-            Double mainThreadTotalAllocatedBytes = row.get(i++, Double.class);
-            Aggregate.ThreadStats mainThreadStats =
-                    buildThreadStats(mainThreadTotalCpuNanos, mainThreadTotalBlockedNanos,
-                            mainThreadTotalWaitedNanos, mainThreadTotalAllocatedBytes);
-            if (mainThreadStats != null) {
-                builder.mainThreadStats(mainThreadStats);
-            }
-            Double auxThreadTotalCpuNanos = row.get(i++, Double.class);
-            Double auxThreadTotalBlockedNanos = row.get(i++, Double.class);
-            Double auxThreadTotalWaitedNanos = row.get(i++, Double.class);
-            Double auxThreadTotalAllocatedBytes = row.get(i++, Double.class);
-            Aggregate.ThreadStats auxThreadStats =
-                    buildThreadStats(auxThreadTotalCpuNanos, auxThreadTotalBlockedNanos,
-                            auxThreadTotalWaitedNanos, auxThreadTotalAllocatedBytes);
-            if (auxThreadStats != null) {
-                builder.auxThreadStats(auxThreadStats);
-            }
-            overviewAggregates.add(builder.build());
-        }
-        return overviewAggregates;
+            TransactionQuery query) throws Exception {
+        return readRows(agentRollup, query, overviewTable, AggregateDao::readOverviewAggregate);
     }
 
     // query.from() is INCLUSIVE
     @Override
     public List<PercentileAggregate> readPercentileAggregates(String agentRollup,
-            TransactionQuery query) throws InvalidProtocolBufferException {
-        ResultSet results = executeQuery(agentRollup, query, histogramTable);
-        List<PercentileAggregate> percentileAggregates = Lists.newArrayList();
-        for (Row row : results) {
-            long captureTime = checkNotNull(row.getTimestamp(0)).getTime();
-            double totalDurationNanos = row.getDouble(1);
-            long transactionCount = row.getLong(2);
-            ByteBuffer bytes = checkNotNull(row.getBytes(3));
-            Aggregate.Histogram durationNanosHistogram =
-                    Aggregate.Histogram.parseFrom(ByteString.copyFrom(bytes));
-            percentileAggregates.add(ImmutablePercentileAggregate.builder()
-                    .captureTime(captureTime)
-                    .totalDurationNanos(totalDurationNanos)
-                    .transactionCount(transactionCount)
-                    .durationNanosHistogram(durationNanosHistogram)
-                    .build());
-        }
-        return percentileAggregates;
+            TransactionQuery query) throws Exception {
+        return readRows(agentRollup, query, histogramTable,
+                AggregateDao::readPercentileAggregate);
     }
 
     // query.from() is INCLUSIVE
     @Override
     public List<ThroughputAggregate> readThroughputAggregates(String agentRollup,
-            TransactionQuery query) throws IOException {
-        ResultSet results = executeQuery(agentRollup, query, throughputTable);
-        List<ThroughputAggregate> throughputAggregates = Lists.newArrayList();
-        for (Row row : results) {
-            long captureTime = checkNotNull(row.getTimestamp(0)).getTime();
-            long transactionCount = row.getLong(1);
-            throughputAggregates.add(ImmutableThroughputAggregate.builder()
-                    .captureTime(captureTime)
-                    .transactionCount(transactionCount)
-                    .build());
-        }
-        return throughputAggregates;
+            TransactionQuery query) throws Exception {
+        return readRows(agentRollup, query, throughputTable,
+                AggregateDao::readThroughputAggregate);
     }
 
     @Override
@@ -565,21 +528,15 @@ public class AggregateDao implements AggregateRepository {
     // query.from() is non-inclusive
     @Override
     public void mergeQueriesInto(String agentRollup, TransactionQuery query,
-            QueryCollector collector) throws IOException {
-        ResultSet results = executeQuery(agentRollup, query, queryTable);
+            QueryCollector collector) throws Exception {
+        List<QueryRow> queryRows =
+                readRows(agentRollup, query, queryTable, AggregateDao::readQueryRow);
         long captureTime = Long.MIN_VALUE;
-        for (Row row : results) {
-            int i = 0;
-            captureTime = Math.max(captureTime, checkNotNull(row.getTimestamp(i++)).getTime());
-            String queryType = checkNotNull(row.getString(i++));
-            String truncatedQueryText = checkNotNull(row.getString(i++));
-            String fullQueryTextSha1 = Strings.emptyToNull(row.getString(i++));
-            double totalDurationNanos = row.getDouble(i++);
-            long executionCount = row.getLong(i++);
-            boolean hasTotalRows = !row.isNull(i);
-            long totalRows = row.getLong(i++);
-            collector.mergeQuery(queryType, truncatedQueryText, fullQueryTextSha1,
-                    totalDurationNanos, executionCount, hasTotalRows, totalRows);
+        for (QueryRow queryRow : queryRows) {
+            captureTime = Math.max(captureTime, queryRow.captureTime());
+            collector.mergeQuery(queryRow.queryType(), queryRow.truncatedQueryText(),
+                    queryRow.fullQueryTextSha1(), queryRow.totalDurationNanos(),
+                    queryRow.executionCount(), queryRow.hasTotalRows(), queryRow.totalRows());
             collector.updateLastCaptureTime(captureTime);
         }
     }
@@ -587,18 +544,15 @@ public class AggregateDao implements AggregateRepository {
     // query.from() is non-inclusive
     @Override
     public void mergeServiceCallsInto(String agentRollup, TransactionQuery query,
-            ServiceCallCollector collector) throws IOException {
-        ResultSet results = executeQuery(agentRollup, query, serviceCallTable);
+            ServiceCallCollector collector) throws Exception {
+        List<ServiceCallRow> serviceCallRows =
+                readRows(agentRollup, query, serviceCallTable, AggregateDao::readServiceCallRow);
         long captureTime = Long.MIN_VALUE;
-        for (Row row : results) {
-            int i = 0;
-            captureTime = Math.max(captureTime, checkNotNull(row.getTimestamp(i++)).getTime());
-            String serviceCallType = checkNotNull(row.getString(i++));
-            String serviceCallText = checkNotNull(row.getString(i++));
-            double totalDurationNanos = row.getDouble(i++);
-            long executionCount = row.getLong(i++);
-            collector.mergeServiceCall(serviceCallType, serviceCallText, totalDurationNanos,
-                    executionCount);
+        for (ServiceCallRow serviceCallRow : serviceCallRows) {
+            captureTime = Math.max(captureTime, serviceCallRow.captureTime());
+            collector.mergeServiceCall(serviceCallRow.serviceCallType(),
+                    serviceCallRow.serviceCallText(), serviceCallRow.totalDurationNanos(),
+                    serviceCallRow.executionCount());
             collector.updateLastCaptureTime(captureTime);
         }
     }
@@ -606,14 +560,14 @@ public class AggregateDao implements AggregateRepository {
     // query.from() is non-inclusive
     @Override
     public void mergeMainThreadProfilesInto(String agentRollup, TransactionQuery query,
-            ProfileCollector collector) throws InvalidProtocolBufferException {
+            ProfileCollector collector) throws Exception {
         mergeProfilesInto(agentRollup, query, mainThreadProfileTable, collector);
     }
 
     // query.from() is non-inclusive
     @Override
     public void mergeAuxThreadProfilesInto(String agentRollup, TransactionQuery query,
-            ProfileCollector collector) throws InvalidProtocolBufferException {
+            ProfileCollector collector) throws Exception {
         mergeProfilesInto(agentRollup, query, auxThreadProfileTable, collector);
     }
 
@@ -691,6 +645,21 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
+    // returns the capture time of the oldest rollup still waiting to be performed for each rollup
+    // level that has one (keyed by rollup level), which is used to track rollup lag
+    public Map<Integer, Long> readOldestPendingCaptureTimes(String agentRollup) {
+        Map<Integer, Long> oldestPendingCaptureTimes = Maps.newHashMap();
+        for (int rollupLevel = 1; rollupLevel < configRepository.getRollupConfigs()
+                .size(); rollupLevel++) {
+            List<NeedsRollup> needsRollupList = getNeedsRollupList(agentRollup, rollupLevel,
+                    readNeedsRollup, session);
+            if (!needsRollupList.isEmpty()) {
+                oldestPendingCaptureTimes.put(rollupLevel, needsRollupList.get(0).getCaptureTime());
+            }
+        }
+        return oldestPendingCaptureTimes;
+    }
+
     private void rollupLevel(String agentRollup, int rollupLevel, int ttl) throws Exception {
         List<NeedsRollup> needsRollupList =
                 getNeedsRollupList(agentRollup, rollupLevel, readNeedsRollup, session);
@@ -704,12 +673,28 @@ public class AggregateDao implements AggregateRepository {
             long captureTime = rollupContent.getCaptureTime();
             int adjustedTTL = GaugeValueDao.getAdjustedTTL(ttl, captureTime);
             RollupParams rollupParams = getRollupParams(agentRollup, rollupLevel, adjustedTTL);
-            long from = captureTime - rollupIntervalMillis;
-            for (String transactionType : rollupContent.getKeys()) {
-                rollupOne(rollupParams, transactionType, from, captureTime);
+            Map<String, TransactionTypeRollup> cachedRollup = rollupCache.remove(agentRollup,
+                    rollupLevel, captureTime, rollupContent.getUniquenessKeysForDeletion());
+            if (cachedRollup != null
+                    && cachedRollup.keySet().containsAll(rollupContent.getKeys())) {
+                rollupFromCache(rollupParams, captureTime, cachedRollup);
+            } else {
+                long from = captureTime - rollupIntervalMillis;
+                for (String transactionType : rollupContent.getKeys()) {
+                    rollupOne(rollupParams, transactionType, from, captureTime);
+                }
+            }
+            readCache.invalidate(agentRollup, rollupLevel, rollupIntervalMillis, captureTime);
+            UUID nextUniqueness = postRollup(agentRollup, rollupLevel, rollupContent,
+                    nextRollupIntervalMillis, insertNeedsRollup, deleteNeedsRollup, session);
+            if (nextUniqueness != null) {
+                // the data for the next rollup level is folded in directly at store time, so the
+                // next level's needs rollup uniqueness key only needs to be recorded
+                rollupCache.addUniqueness(agentRollup, rollupLevel + 1,
+                        Utils.getRollupCaptureTime(captureTime,
+                                checkNotNull(nextRollupIntervalMillis)),
+                        nextUniqueness);
             }
-            postRollup(agentRollup, rollupLevel, rollupContent, nextRollupIntervalMillis,
-                    insertNeedsRollup, deleteNeedsRollup, session);
         }
     }
 
@@ -754,6 +739,45 @@ public class AggregateDao implements AggregateRepository {
         Futures.allAsList(futures).get();
     }
 
+    private void rollupFromCache(RollupParams rollup, long captureTime,
+            Map<String, TransactionTypeRollup> cachedRollup) throws Exception {
+        ScratchBuffer scratchBuffer = new ScratchBuffer();
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        for (Entry<String, TransactionTypeRollup> entry : cachedRollup.entrySet()) {
+            String transactionType = entry.getKey();
+            TransactionTypeRollup transactionTypeRollup = entry.getValue();
+            MutableAggregate overallAggregate = transactionTypeRollup.overallAggregate;
+            futures.addAll(storeOverallAggregate(rollup.agentRollup(), transactionType,
+                    captureTime, toAggregate(overallAggregate, scratchBuffer),
+                    ImmutableList.of(), rollup.rollupLevel(), rollup.adjustedTTL()));
+            futures.addAll(insertQueries(overallAggregate, rollup, transactionType, null,
+                    captureTime));
+            for (Entry<String, MutableAggregate> transactionEntry : transactionTypeRollup
+                    .transactionAggregates.entrySet()) {
+                String transactionName = transactionEntry.getKey();
+                MutableAggregate transactionAggregate = transactionEntry.getValue();
+                futures.addAll(storeTransactionAggregate(rollup.agentRollup(), transactionType,
+                        transactionName, captureTime,
+                        toAggregate(transactionAggregate, scratchBuffer), ImmutableList.of(),
+                        rollup.rollupLevel(), rollup.adjustedTTL()));
+                futures.addAll(insertQueries(transactionAggregate, rollup, transactionType,
+                        transactionName, captureTime));
+            }
+        }
+        Futures.allAsList(futures).get();
+    }
+
+    private List<ResultSetFuture> insertQueries(MutableAggregate aggregate, RollupParams rollup,
+            String transactionType, @Nullable String transactionName, long captureTime) {
+        QueryCollector queries = aggregate.getQueries();
+        if (queries == null) {
+            return ImmutableList.of();
+        }
+        return insertQueries(queries.getSortedQueries(), rollup.rollupLevel(),
+                rollup.agentRollup(), transactionType, transactionName, captureTime,
+                rollup.adjustedTTL());
+    }
+
     private List<ResultSetFuture> rollupOverallSummary(RollupParams rollup,
             TransactionQuery query) {
         ResultSet results = executeQueryForRollup(rollup.agentRollup(), query, summaryTable);
@@ -1102,10 +1126,7 @@ public class AggregateDao implements AggregateRepository {
 
     private List<ResultSetFuture> storeOverallAggregate(String agentRollup, String transactionType,
             long captureTime, Aggregate aggregate, List<SharedQueryTextAndSha1> sharedQueries,
-            int adjustedTTL) throws Exception {
-
-        final int rollupLevel = 0;
-
+            int rollupLevel, int adjustedTTL) throws Exception {
         List<ResultSetFuture> futures = Lists.newArrayList();
         BoundStatement boundStatement = getInsertOverallPS(summaryTable, rollupLevel).bind();
         int i = 0;
@@ -1188,10 +1209,8 @@ public class AggregateDao implements AggregateRepository {
 
     private List<ResultSetFuture> storeTransactionAggregate(String agentRollup,
             String transactionType, String transactionName, long captureTime, Aggregate aggregate,
-            List<SharedQueryTextAndSha1> sharedQueries, int adjustedTTL) throws IOException {
-
-        final int rollupLevel = 0;
-
+            List<SharedQueryTextAndSha1> sharedQueries, int rollupLevel, int adjustedTTL)
+            throws IOException {
         List<ResultSetFuture> futures = Lists.newArrayList();
         BoundStatement boundStatement = getInsertTransactionPS(summaryTable, rollupLevel).bind();
         int i = 0;
@@ -1515,19 +1534,130 @@ public class AggregateDao implements AggregateRepository {
     }
 
     private void mergeProfilesInto(String agentRollup, TransactionQuery query, Table profileTable,
-            ProfileCollector collector) throws InvalidProtocolBufferException {
-        ResultSet results = executeQuery(agentRollup, query, profileTable);
+            ProfileCollector collector) throws Exception {
+        List<ProfileRow> profileRows =
+                readRows(agentRollup, query, profileTable, AggregateDao::readProfileRow);
         long captureTime = Long.MIN_VALUE;
-        for (Row row : results) {
-            captureTime = Math.max(captureTime, checkNotNull(row.getTimestamp(0)).getTime());
-            ByteBuffer bytes = checkNotNull(row.getBytes(1));
-            // TODO optimize this byte copying
-            Profile profile = Profile.parseFrom(ByteString.copyFrom(bytes));
-            collector.mergeProfile(profile);
+        for (ProfileRow profileRow : profileRows) {
+            captureTime = Math.max(captureTime, profileRow.captureTime());
+            collector.mergeProfile(profileRow.profile());
             collector.updateLastCaptureTime(captureTime);
         }
     }
 
+    // returns the decoded rows in capture time order, reading blocks of completed rollup
+    // intervals through the read cache, and only reading the remainder directly from cassandra
+    private <T> List<T> readRows(String agentRollup, TransactionQuery query, Table table,
+            RowReader<T> rowReader) throws Exception {
+        long intervalMillis =
+                configRepository.getRollupConfigs().get(query.rollupLevel()).intervalMillis();
+        long blockMillis = AggregateReadCache.getBlockMillis(intervalMillis);
+        long minCaptureTime = table.fromInclusive() ? query.from() : query.from() + 1;
+        long firstBlockEnd = Utils.getRollupCaptureTime(minCaptureTime, blockMillis);
+        long lastBlockEnd = Math.min(Utils.getRollupCaptureTime(query.to(), blockMillis),
+                AggregateReadCache.getLastCacheableBlockEnd(intervalMillis,
+                        System.currentTimeMillis()));
+        if (firstBlockEnd > lastBlockEnd) {
+            return readAllRows(executeQuery(agentRollup, query, table), rowReader);
+        }
+        long invalidationCount = readCache.getInvalidationCount();
+        List<AggregateReadCache.DecodedRow<?>> decodedRows = Lists.newArrayList();
+        // non-inclusive start of blocks that were not found in the cache
+        long missingFrom = Long.MIN_VALUE;
+        for (long blockEnd = firstBlockEnd; blockEnd <= lastBlockEnd; blockEnd += blockMillis) {
+            List<AggregateReadCache.DecodedRow<?>> cachedRows =
+                    readCache.get(getBlockKey(agentRollup, query, table, blockEnd));
+            if (cachedRows == null) {
+                if (missingFrom == Long.MIN_VALUE) {
+                    missingFrom = blockEnd - blockMillis;
+                }
+                continue;
+            }
+            if (missingFrom != Long.MIN_VALUE) {
+                decodedRows.addAll(readBlocks(agentRollup, query, table, rowReader, missingFrom,
+                        blockEnd - blockMillis, blockMillis, invalidationCount));
+                missingFrom = Long.MIN_VALUE;
+            }
+            decodedRows.addAll(cachedRows);
+        }
+        if (missingFrom != Long.MIN_VALUE) {
+            decodedRows.addAll(readBlocks(agentRollup, query, table, rowReader, missingFrom,
+                    lastBlockEnd, blockMillis, invalidationCount));
+        }
+        List<T> rows = Lists.newArrayList();
+        for (AggregateReadCache.DecodedRow<?> decodedRow : decodedRows) {
+            long captureTime = decodedRow.captureTime();
+            if (captureTime >= minCaptureTime && captureTime <= query.to()) {
+                // the block key includes the table, so all rows in the block are of type T
+                @SuppressWarnings("unchecked")
+                T value = (T) decodedRow.value();
+                rows.add(value);
+            }
+        }
+        if (query.to() > lastBlockEnd) {
+            TransactionQuery remainingQuery = ImmutableTransactionQuery.builder()
+                    .copyFrom(query)
+                    .from(table.fromInclusive() ? lastBlockEnd + 1 : lastBlockEnd)
+                    .build();
+            rows.addAll(readAllRows(executeQuery(agentRollup, remainingQuery, table), rowReader));
+        }
+        return rows;
+    }
+
+    // from is non-inclusive and must be the start of a block, to must be the end of a block
+    private <T> List<AggregateReadCache.DecodedRow<?>> readBlocks(String agentRollup,
+            TransactionQuery query, Table table, RowReader<T> rowReader, long from, long to,
+            long blockMillis, long invalidationCount) throws Exception {
+        TransactionQuery blockQuery = ImmutableTransactionQuery.builder()
+                .copyFrom(query)
+                .from(table.fromInclusive() ? from + 1 : from)
+                .to(to)
+                .build();
+        ResultSet results = executeQuery(agentRollup, blockQuery, table);
+        List<AggregateReadCache.DecodedRow<?>> decodedRows = Lists.newArrayList();
+        List<AggregateReadCache.DecodedRow<?>> blockRows = Lists.newArrayList();
+        long blockEnd = from + blockMillis;
+        int blockWeight = 0;
+        for (Row row : results) {
+            long captureTime = checkNotNull(row.getTimestamp(0)).getTime();
+            while (captureTime > blockEnd) {
+                readCache.put(getBlockKey(agentRollup, query, table, blockEnd), blockRows,
+                        blockWeight, invalidationCount);
+                decodedRows.addAll(blockRows);
+                blockRows = Lists.newArrayList();
+                blockEnd += blockMillis;
+                blockWeight = 0;
+            }
+            blockRows.add(new AggregateReadCache.DecodedRow<T>(captureTime, rowReader.read(row)));
+            blockWeight += getSerializedSize(row);
+        }
+        // empty blocks are cached too
+        while (blockEnd <= to) {
+            readCache.put(getBlockKey(agentRollup, query, table, blockEnd), blockRows,
+                    blockWeight, invalidationCount);
+            decodedRows.addAll(blockRows);
+            blockRows = Lists.newArrayList();
+            blockEnd += blockMillis;
+            blockWeight = 0;
+        }
+        return decodedRows;
+    }
+
+    private static <T> List<T> readAllRows(ResultSet results, RowReader<T> rowReader)
+            throws Exception {
+        List<T> rows = Lists.newArrayList();
+        for (Row row : results) {
+            rows.add(rowReader.read(row));
+        }
+        return rows;
+    }
+
+    private AggregateReadCache.BlockKey getBlockKey(String agentRollup, TransactionQuery query,
+            Table table, long blockEnd) {
+        return ImmutableBlockKey.of(agentRollup, query.transactionType(), query.transactionName(),
+                table.partialName(), query.rollupLevel(), blockEnd);
+    }
+
     private List<Integer> getTTLs() {
         List<Integer> ttls = Lists.newArrayList();
         List<Integer> rollupExpirationHours =
@@ -1597,17 +1727,22 @@ public class AggregateDao implements AggregateRepository {
     // present rollup has completed
     // if insert after deleting present rollup then possible for error to occur in between
     // and insert would never happen
-    static void postRollup(String agentRollup, int rollupLevel, NeedsRollup needsRollup,
+    //
+    // returns the uniqueness key that was inserted into the next needs rollup table, or null if
+    // this is the last rollup level
+    static @Nullable UUID postRollup(String agentRollup, int rollupLevel, NeedsRollup needsRollup,
             @Nullable Long nextRollupIntervalMillis, List<PreparedStatement> insertNeedsRollup,
             List<PreparedStatement> deleteNeedsRollup, Session session) {
+        UUID nextUniqueness = null;
         if (nextRollupIntervalMillis != null) {
             long rollupCaptureTime = Utils.getRollupCaptureTime(needsRollup.getCaptureTime(),
                     nextRollupIntervalMillis);
+            nextUniqueness = UUIDs.timeBased();
             BoundStatement boundStatement = insertNeedsRollup.get(rollupLevel).bind();
             int i = 0;
             boundStatement.setString(i++, agentRollup);
             boundStatement.setTimestamp(i++, new Date(rollupCaptureTime));
-            boundStatement.setUUID(i++, UUIDs.timeBased());
+            boundStatement.setUUID(i++, nextUniqueness);
             boundStatement.setSet(i++, needsRollup.getKeys());
             session.execute(boundStatement);
         }
@@ -1619,6 +1754,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setUUID(i++, uniqueness);
             session.execute(boundStatement);
         }
+        return nextUniqueness;
     }
 
     private static void bindQuery(BoundStatement boundStatement, String agentRollup,
@@ -1855,6 +1991,119 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
+    private static OverviewAggregate readOverviewAggregate(Row row) throws IOException {
+        int i = 0;
+        long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
+        double totalDurationNanos = row.getDouble(i++);
+        long transactionCount = row.getLong(i++);
+        boolean asyncTransactions = row.getBool(i++);
+        List<Aggregate.Timer> mainThreadRootTimers =
+                Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser());
+        List<Aggregate.Timer> auxThreadRootTimers =
+                Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser());
+        List<Aggregate.Timer> asyncTimers =
+                Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser());
+        ImmutableOverviewAggregate.Builder builder = ImmutableOverviewAggregate.builder()
+                .captureTime(captureTime)
+                .totalDurationNanos(totalDurationNanos)
+                .transactionCount(transactionCount)
+                .asyncTransactions(asyncTransactions)
+                .addAllMainThreadRootTimers(mainThreadRootTimers)
+                .addAllAuxThreadRootTimers(auxThreadRootTimers)
+                .addAllAsyncTimers(asyncTimers);
+        Double mainThreadTotalCpuNanos = row.get(i++, Double.class);
+        Double mainThreadTotalBlockedNanos = row.get(i++, Double.class);
+        Double mainThreadTotalWaitedNanos = row.get(i++, Double.class);
+        Double mainThreadTotalAllocatedBytes = row.get(i++, Double.class);
+        Aggregate.ThreadStats mainThreadStats =
+                buildThreadStats(mainThreadTotalCpuNanos, mainThreadTotalBlockedNanos,
+                        mainThreadTotalWaitedNanos, mainThreadTotalAllocatedBytes);
+        if (mainThreadStats != null) {
+            builder.mainThreadStats(mainThreadStats);
+        }
+        Double auxThreadTotalCpuNanos = row.get(i++, Double.class);
+        Double auxThreadTotalBlockedNanos = row.get(i++, Double.class);
+        Double auxThreadTotalWaitedNanos = row.get(i++, Double.class);
+        Double auxThreadTotalAllocatedBytes = row.get(i++, Double.class);
+        Aggregate.ThreadStats auxThreadStats =
+                buildThreadStats(auxThreadTotalCpuNanos, auxThreadTotalBlockedNanos,
+                        auxThreadTotalWaitedNanos, auxThreadTotalAllocatedBytes);
+        if (auxThreadStats != null) {
+            builder.auxThreadStats(auxThreadStats);
+        }
+        return builder.build();
+    }
+
+    private static PercentileAggregate readPercentileAggregate(Row row)
+            throws InvalidProtocolBufferException {
+        long captureTime = checkNotNull(row.getTimestamp(0)).getTime();
+        double totalDurationNanos = row.getDouble(1);
+        long transactionCount = row.getLong(2);
+        ByteBuffer bytes = checkNotNull(row.getBytes(3));
+        Aggregate.Histogram durationNanosHistogram =
+                Aggregate.Histogram.parseFrom(ByteString.copyFrom(bytes));
+        return ImmutablePercentileAggregate.builder()
+                .captureTime(captureTime)
+                .totalDurationNanos(totalDurationNanos)
+                .transactionCount(transactionCount)
+                .durationNanosHistogram(durationNanosHistogram)
+                .build();
+    }
+
+    private static ThroughputAggregate readThroughputAggregate(Row row) {
+        long captureTime = checkNotNull(row.getTimestamp(0)).getTime();
+        long transactionCount = row.getLong(1);
+        return ImmutableThroughputAggregate.builder()
+                .captureTime(captureTime)
+                .transactionCount(transactionCount)
+                .build();
+    }
+
+    private static QueryRow readQueryRow(Row row) {
+        int i = 0;
+        long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
+        String queryType = checkNotNull(row.getString(i++));
+        String truncatedQueryText = checkNotNull(row.getString(i++));
+        String fullQueryTextSha1 = Strings.emptyToNull(row.getString(i++));
+        double totalDurationNanos = row.getDouble(i++);
+        long executionCount = row.getLong(i++);
+        boolean hasTotalRows = !row.isNull(i);
+        long totalRows = row.getLong(i++);
+        return ImmutableQueryRow.of(captureTime, queryType, truncatedQueryText,
+                fullQueryTextSha1, totalDurationNanos, executionCount, hasTotalRows, totalRows);
+    }
+
+    private static ServiceCallRow readServiceCallRow(Row row) {
+        int i = 0;
+        long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
+        String serviceCallType = checkNotNull(row.getString(i++));
+        String serviceCallText = checkNotNull(row.getString(i++));
+        double totalDurationNanos = row.getDouble(i++);
+        long executionCount = row.getLong(i++);
+        return ImmutableServiceCallRow.of(captureTime, serviceCallType, serviceCallText,
+                totalDurationNanos, executionCount);
+    }
+
+    private static ProfileRow readProfileRow(Row row) throws InvalidProtocolBufferException {
+        long captureTime = checkNotNull(row.getTimestamp(0)).getTime();
+        ByteBuffer bytes = checkNotNull(row.getBytes(1));
+        // TODO optimize this byte copying
+        Profile profile = Profile.parseFrom(ByteString.copyFrom(bytes));
+        return ImmutableProfileRow.of(captureTime, profile);
+    }
+
+    // size of the row as read from cassandra, used to weigh the read cache entries
+    private static int getSerializedSize(Row row) {
+        int size = 0;
+        for (int i = 0; i < row.getColumnDefinitions().size(); i++) {
+            ByteBuffer bytes = row.getBytesUnsafe(i);
+            if (bytes != null) {
+                size += bytes.remaining();
+            }
+        }
+        return size;
+    }
+
     private static @Nullable Aggregate.ThreadStats buildThreadStats(@Nullable Double totalCpuNanos,
             @Nullable Double totalBlockedNanos, @Nullable Double totalWaitedNanos,
             @Nullable Double totalAllocatedBytes) {
@@ -1880,6 +2129,141 @@ public class AggregateDao implements AggregateRepository {
         return threadStats.build();
     }
 
+    // TEMPORARY UNTIL ROLL OUT AGENT 0.9.1
+    // (older agents send full query text inline, which is not folded into the rollup cache)
+    private static boolean hasSharedQueryTextsOnly(List<AggregatesByType> aggregatesByTypeList) {
+        for (AggregatesByType aggregatesByType : aggregatesByTypeList) {
+            if (hasInlineQueryText(aggregatesByType.getOverallAggregate())) {
+                return false;
+            }
+            for (TransactionAggregate transactionAggregate : aggregatesByType
+                    .getTransactionAggregateList()) {
+                if (hasInlineQueryText(transactionAggregate.getAggregate())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasInlineQueryText(Aggregate aggregate) {
+        for (QueriesByType queriesByType : aggregate.getQueriesByTypeList()) {
+            for (Aggregate.Query query : queriesByType.getQueryList()) {
+                if (!query.getQueryText().isEmpty()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    // END TEMPORARY
+
+    // used to weigh rollup cache values
+    private static int getAggregateCount(Map<String, TransactionTypeRollup> cachedRollup) {
+        int count = 0;
+        for (TransactionTypeRollup transactionTypeRollup : cachedRollup.values()) {
+            count += 1 + transactionTypeRollup.transactionAggregates.size();
+        }
+        return count;
+    }
+
+    private static void mergeInto(Map<String, TransactionTypeRollup> cachedRollup,
+            List<AggregatesByType> aggregatesByTypeList,
+            List<SharedQueryTextAndSha1> sharedQueries, RollupParams rollup) throws Exception {
+        for (AggregatesByType aggregatesByType : aggregatesByTypeList) {
+            String transactionType = aggregatesByType.getTransactionType();
+            // TEMPORARY UNTIL ROLL OUT AGENT 0.9.0
+            if (transactionType.equals("Servlet")) {
+                transactionType = "Web";
+            }
+            // END TEMPORARY
+            TransactionTypeRollup transactionTypeRollup = cachedRollup.get(transactionType);
+            if (transactionTypeRollup == null) {
+                transactionTypeRollup = new TransactionTypeRollup(rollup);
+                cachedRollup.put(transactionType, transactionTypeRollup);
+            }
+            mergeInto(transactionTypeRollup.overallAggregate,
+                    aggregatesByType.getOverallAggregate(), sharedQueries);
+            for (TransactionAggregate transactionAggregate : aggregatesByType
+                    .getTransactionAggregateList()) {
+                String transactionName = transactionAggregate.getTransactionName();
+                MutableAggregate mutableAggregate =
+                        transactionTypeRollup.transactionAggregates.get(transactionName);
+                if (mutableAggregate == null) {
+                    mutableAggregate = new MutableAggregate(rollup.maxAggregateQueriesPerType(),
+                            rollup.maxAggregateServiceCallsPerType());
+                    transactionTypeRollup.transactionAggregates.put(transactionName,
+                            mutableAggregate);
+                }
+                mergeInto(mutableAggregate, transactionAggregate.getAggregate(), sharedQueries);
+            }
+        }
+    }
+
+    private static void mergeInto(MutableAggregate mutableAggregate, Aggregate aggregate,
+            List<SharedQueryTextAndSha1> sharedQueries) throws Exception {
+        mutableAggregate.addTotalDurationNanos(aggregate.getTotalDurationNanos());
+        mutableAggregate.addTransactionCount(aggregate.getTransactionCount());
+        mutableAggregate.addErrorCount(aggregate.getErrorCount());
+        mutableAggregate.addAsyncTransactions(aggregate.getAsyncTransactions());
+        mutableAggregate.mergeMainThreadRootTimers(aggregate.getMainThreadRootTimerList());
+        mutableAggregate.mergeAuxThreadRootTimers(aggregate.getAuxThreadRootTimerList());
+        mutableAggregate.mergeAsyncTimers(aggregate.getAsyncTimerList());
+        mutableAggregate.mergeMainThreadStats(
+                aggregate.hasMainThreadStats() ? aggregate.getMainThreadStats() : null);
+        mutableAggregate.mergeAuxThreadStats(
+                aggregate.hasAuxThreadStats() ? aggregate.getAuxThreadStats() : null);
+        mutableAggregate.mergeDurationNanosHistogram(aggregate.getDurationNanosHistogram());
+        for (QueriesByType queriesByType : aggregate.getQueriesByTypeList()) {
+            for (Aggregate.Query query : queriesByType.getQueryList()) {
+                SharedQueryTextAndSha1 sharedQuery =
+                        sharedQueries.get(query.getSharedQueryTextIndex());
+                mutableAggregate.mergeQuery(queriesByType.getType(),
+                        sharedQuery.truncatedQueryText(), sharedQuery.fullQueryTextSha1(),
+                        query.getTotalDurationNanos(), query.getExecutionCount(),
+                        query.hasTotalRows(), query.getTotalRows().getValue());
+            }
+        }
+        mutableAggregate.mergeServiceCalls(aggregate.getServiceCallsByTypeList());
+        if (aggregate.hasMainThreadProfile()) {
+            mutableAggregate.mergeMainThreadProfile(aggregate.getMainThreadProfile());
+        }
+        if (aggregate.hasAuxThreadProfile()) {
+            mutableAggregate.mergeAuxThreadProfile(aggregate.getAuxThreadProfile());
+        }
+    }
+
+    // queries are not included since they are already resolved to truncated query text and sha1
+    private static Aggregate toAggregate(MutableAggregate mutableAggregate,
+            ScratchBuffer scratchBuffer) throws IOException {
+        Aggregate.Builder builder = Aggregate.newBuilder()
+                .setTotalDurationNanos(mutableAggregate.getTotalDurationNanos())
+                .setTransactionCount(mutableAggregate.getTransactionCount())
+                .setErrorCount(mutableAggregate.getErrorCount())
+                .setAsyncTransactions(mutableAggregate.isAsyncTransactions())
+                .addAllMainThreadRootTimer(mutableAggregate.getMainThreadRootTimersProto())
+                .addAllAuxThreadRootTimer(mutableAggregate.getAuxThreadRootTimersProto())
+                .addAllAsyncTimer(mutableAggregate.getAsyncTimersProto())
+                .setDurationNanosHistogram(
+                        mutableAggregate.getDurationNanosHistogram().toProto(scratchBuffer))
+                .addAllServiceCallsByType(mutableAggregate.getServiceCallsProto());
+        if (!mutableAggregate.getMainThreadStats().isNA()) {
+            builder.setMainThreadStats(mutableAggregate.getMainThreadStats().toProto());
+        }
+        if (!mutableAggregate.getAuxThreadStats().isNA()) {
+            builder.setAuxThreadStats(mutableAggregate.getAuxThreadStats().toProto());
+        }
+        MutableProfile mainThreadProfile = mutableAggregate.getMainThreadProfile();
+        if (mainThreadProfile != null) {
+            builder.setMainThreadProfile(mainThreadProfile.toProto());
+        }
+        MutableProfile auxThreadProfile = mutableAggregate.getAuxThreadProfile();
+        if (auxThreadProfile != null) {
+            builder.setAuxThreadProfile(auxThreadProfile.toProto());
+        }
+        return builder.build();
+    }
+
     private static ByteBuffer toByteBuffer(AbstractMessage message) {
         return ByteBuffer.wrap(message.toByteString().toByteArray());
     }
@@ -1900,6 +2284,37 @@ public class AggregateDao implements AggregateRepository {
         String type();
     }
 
+    @Value.Immutable
+    @Styles.AllParameters
+    interface QueryRow {
+        long captureTime();
+        String queryType();
+        String truncatedQueryText();
+        @Nullable
+        String fullQueryTextSha1();
+        double totalDurationNanos();
+        long executionCount();
+        boolean hasTotalRows();
+        long totalRows();
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface ServiceCallRow {
+        long captureTime();
+        String serviceCallType();
+        String serviceCallText();
+        double totalDurationNanos();
+        long executionCount();
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface ProfileRow {
+        long captureTime();
+        Profile profile();
+    }
+
     @Value.Immutable
     interface RollupParams {
         String agentRollup();
@@ -1909,6 +2324,10 @@ public class AggregateDao implements AggregateRepository {
         int maxAggregateServiceCallsPerType();
     }
 
+    private interface RowReader<T> {
+        T read(Row row) throws Exception;
+    }
+
     static class NeedsRollup {
 
         private final long captureTime;
@@ -1932,6 +2351,17 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
+    private static class TransactionTypeRollup {
+
+        private final MutableAggregate overallAggregate;
+        private final Map<String, MutableAggregate> transactionAggregates = Maps.newHashMap();
+
+        private TransactionTypeRollup(RollupParams rollup) {
+            overallAggregate = new MutableAggregate(rollup.maxAggregateQueriesPerType(),
+                    rollup.maxAggregateServiceCallsPerType());
+        }
+    }
+
     private static class MutableSummary {
         private double totalDurationNanos;
         private long transactionCount;
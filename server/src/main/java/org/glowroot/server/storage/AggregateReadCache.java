@@ -0,0 +1,188 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.server.storage;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.collect.ImmutableList;
+import org.immutables.value.Value;
+
+import org.glowroot.common.repo.Utils;
+import org.glowroot.common.util.Styles;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// holds decoded aggregate rows for blocks of completed rollup intervals, so that repeated reads of
+// the same historical time range (e.g. many users reloading the same dashboards) are served
+// without re-reading and re-decoding the rows from cassandra
+//
+// rows for completed intervals only change when late data arrives (e.g. from an agent that was
+// disconnected for a while, or from a rollup that is running behind), in which case the blocks
+// are invalidated after the data is written
+public class AggregateReadCache implements AggregateReadCacheMXBean {
+
+    private static final long MAX_WEIGHT_BYTES =
+            Long.getLong("glowroot.server.aggregateReadCacheMaxBytes", 64 * 1024 * 1024);
+
+    // number of rollup intervals per block
+    private static final int BLOCK_INTERVALS = 12;
+
+    // blocks are only cached once their last interval ended at least this long ago, which gives
+    // agents and rollups time to write the data (late data is still handled by invalidation, this
+    // just keeps the current blocks, which are still being written, out of the cache)
+    private static final long SETTLE_MILLIS = MINUTES.toMillis(5);
+
+    private final Cache<BlockKey, Block> cache;
+
+    private final AtomicLong weightBytes = new AtomicLong();
+    private final AtomicLong invalidationCount = new AtomicLong();
+
+    AggregateReadCache() {
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(MAX_WEIGHT_BYTES)
+                .weigher((BlockKey key, Block block) -> block.weight())
+                .removalListener((RemovalListener<BlockKey, Block>) notification -> {
+                    Block block = notification.getValue();
+                    if (block != null) {
+                        weightBytes.addAndGet(-block.weight());
+                    }
+                })
+                // rows also expire in cassandra (based on the rollup expiration settings)
+                .expireAfterWrite(1, HOURS)
+                .recordStats()
+                .build();
+    }
+
+    static long getBlockMillis(long intervalMillis) {
+        return intervalMillis * BLOCK_INTERVALS;
+    }
+
+    // returns the end (capture time) of the last block that can be cached
+    static long getLastCacheableBlockEnd(long intervalMillis, long currentTimeMillis) {
+        long blockMillis = getBlockMillis(intervalMillis);
+        return Math.floorDiv(currentTimeMillis - intervalMillis - SETTLE_MILLIS, blockMillis)
+                * blockMillis;
+    }
+
+    @Nullable
+    List<DecodedRow<?>> get(BlockKey key) {
+        Block block = cache.getIfPresent(key);
+        return block == null ? null : block.rows();
+    }
+
+    void put(BlockKey key, List<DecodedRow<?>> rows, int weight, long invalidationCountAtRead) {
+        weightBytes.addAndGet(weight);
+        cache.put(key, ImmutableBlock.of(rows, weight));
+        if (invalidationCount.get() != invalidationCountAtRead) {
+            // the rows may have been read prior to a write that was made to the block
+            cache.invalidate(key);
+        }
+    }
+
+    // must be called after the data has been written
+    void invalidate(String agentRollup, int rollupLevel, long intervalMillis, long captureTime) {
+        long blockEnd = Utils.getRollupCaptureTime(captureTime, getBlockMillis(intervalMillis));
+        if (blockEnd > getLastCacheableBlockEnd(intervalMillis, System.currentTimeMillis())) {
+            // the block cannot have been cached, and any read that has not completed yet will
+            // not cache it either since it was not cacheable at the time that read started
+            return;
+        }
+        invalidationCount.incrementAndGet();
+        cache.asMap().keySet().removeIf(key -> key.agentRollup().equals(agentRollup)
+                && key.rollupLevel() == rollupLevel && key.blockEnd() == blockEnd);
+    }
+
+    @Override
+    public long getHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return cache.stats().missCount();
+    }
+
+    @Override
+    public double getHitRate() {
+        return cache.stats().hitRate();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return cache.stats().evictionCount();
+    }
+
+    // this must be called before reading the rows that are passed to put()
+    @Override
+    public long getInvalidationCount() {
+        return invalidationCount.get();
+    }
+
+    @Override
+    public long getSize() {
+        return cache.size();
+    }
+
+    @Override
+    public long getWeightBytes() {
+        return weightBytes.get();
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface BlockKey {
+        String agentRollup();
+        String transactionType();
+        @Nullable
+        String transactionName();
+        String tableName();
+        int rollupLevel();
+        long blockEnd(); // capture time of the last interval in the block
+    }
+
+    static class DecodedRow<T> {
+
+        private final long captureTime;
+        private final T value;
+
+        DecodedRow(long captureTime, T value) {
+            this.captureTime = captureTime;
+            this.value = value;
+        }
+
+        long captureTime() {
+            return captureTime;
+        }
+
+        T value() {
+            return value;
+        }
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface Block {
+        ImmutableList<DecodedRow<?>> rows();
+        int weight();
+    }
+}
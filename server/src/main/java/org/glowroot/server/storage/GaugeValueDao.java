@@ -17,8 +17,12 @@ package org.glowroot.server.storage;
 
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
 
 import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.PreparedStatement;
@@ -29,11 +33,15 @@ import com.datastax.driver.core.Session;
 import com.datastax.driver.core.utils.UUIDs;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimaps;
 import com.google.common.collect.SetMultimap;
 import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import org.glowroot.common.repo.ConfigRepository;
 import org.glowroot.common.repo.ConfigRepository.RollupConfig;
@@ -56,6 +64,13 @@ public class GaugeValueDao implements GaugeValueRepository {
     private static final String WITH_LCS =
             "with compaction = { 'class' : 'LeveledCompactionStrategy' }";
 
+    // rough estimate of the serialized size of a gauge value insert, not including gauge name
+    private static final int GAUGE_VALUE_SIZE_BYTES = 100;
+
+    // the rollup cache is weighed by the number of (rolled up) gauge values held
+    private static final long ROLLUP_CACHE_MAX_GAUGE_VALUES =
+            Long.getLong("glowroot.server.rollupCacheMaxGaugeValues", 1000000);
+
     private final Session session;
     private final ConfigRepository configRepository;
 
@@ -70,6 +85,10 @@ public class GaugeValueDao implements GaugeValueRepository {
     private final List<PreparedStatement> readNeedsRollup;
     private final List<PreparedStatement> deleteNeedsRollup;
 
+    // key is gauge name
+    private final RollupCache<Map<String, MutableGaugeValue>> rollupCache =
+            new RollupCache<>(Maps::newHashMap, Map::size, ROLLUP_CACHE_MAX_GAUGE_VALUES);
+
     public GaugeValueDao(Session session, ConfigRepository configRepository) {
         this.session = session;
         this.configRepository = configRepository;
@@ -125,42 +144,102 @@ public class GaugeValueDao implements GaugeValueRepository {
 
     @Override
     public void store(String agentId, List<GaugeValue> gaugeValues) throws Exception {
+        storeAsync(agentId, gaugeValues).get();
+    }
+
+    // the returned future completes once all of the gauge values have been stored
+    public ListenableFuture<?> storeAsync(String agentId, List<GaugeValue> gaugeValues) {
         if (gaugeValues.isEmpty()) {
-            return;
+            return Futures.immediateFuture(null);
         }
         int ttl = getTTLs().get(0);
         List<ResultSetFuture> futures = Lists.newArrayList();
+        // values for the same gauge are written as a single partition batch
+        PartitionBatcher batcher = new PartitionBatcher();
+        // agents send the same gauge names on every flush, so each distinct gauge name is only
+        // processed once per flush
+        Map<String, String> gaugeNames = Maps.newHashMap();
         for (GaugeValue gaugeValue : gaugeValues) {
+            String gaugeName = gaugeNames.get(gaugeValue.getGaugeName());
+            if (gaugeName == null) {
+                gaugeName = gaugeValue.getGaugeName();
+                // TEMPORARY UNTIL ROLL OUT AGENT 0.9.1
+                int index = gaugeName.lastIndexOf(':');
+                String mbeanObjectName = gaugeName.substring(0, index);
+                String mbeanAttributeName = gaugeName.substring(index + 1);
+                gaugeName = mbeanObjectName + ':' + mbeanAttributeName.replace('/', '.');
+                // END TEMPORARY
+                gaugeNames.put(gaugeValue.getGaugeName(), gaugeName);
+                gaugeNameDao.maybeUpdateLastCaptureTime(agentId, gaugeName, futures);
+            }
             BoundStatement boundStatement = insertValuePS.get(0).bind();
             int i = 0;
             boundStatement.setString(i++, agentId);
-            String gaugeName = gaugeValue.getGaugeName();
-            // TEMPORARY UNTIL ROLL OUT AGENT 0.9.1
-            int index = gaugeName.lastIndexOf(':');
-            String mbeanObjectName = gaugeName.substring(0, index);
-            String mbeanAttributeName = gaugeName.substring(index + 1);
-            gaugeName = mbeanObjectName + ':' + mbeanAttributeName.replace('/', '.');
-            // END TEMPORARY
             boundStatement.setString(i++, gaugeName);
             long captureTime = gaugeValue.getCaptureTime();
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setDouble(i++, gaugeValue.getValue());
             boundStatement.setLong(i++, gaugeValue.getWeight());
             boundStatement.setInt(i++, getAdjustedTTL(ttl, captureTime));
-            futures.add(session.executeAsync(boundStatement));
-            gaugeNameDao.maybeUpdateLastCaptureTime(agentId, gaugeName, futures);
+            batcher.add(PartitionBatcher.partitionKey(agentId, gaugeName), boundStatement,
+                    GAUGE_VALUE_SIZE_BYTES + gaugeName.length());
         }
         // insert into gauge_needs_rollup_1
         SetMultimap<Long, String> rollupCaptureTimes = getRollupCaptureTimes(gaugeValues);
+        Map<Long, UUID> uniquenessKeys = Maps.newHashMap();
         for (Entry<Long, Set<String>> entry : Multimaps.asMap(rollupCaptureTimes).entrySet()) {
+            UUID uniqueness = UUIDs.timeBased();
             BoundStatement boundStatement = insertNeedsRollup.get(0).bind();
             boundStatement.setString(0, agentId);
             boundStatement.setTimestamp(1, new Date(entry.getKey()));
-            boundStatement.setUUID(2, UUIDs.timeBased());
+            boundStatement.setUUID(2, uniqueness);
             boundStatement.setSet(3, entry.getValue());
-            futures.add(session.executeAsync(boundStatement));
+            batcher.add(PartitionBatcher.partitionKey(agentId), boundStatement);
+            uniquenessKeys.put(entry.getKey(), uniqueness);
+        }
+        batcher.executeAsync(session, futures);
+        ListenableFuture<?> future = Futures.allAsList(futures);
+        // only fold into the rollup cache once the data is safely stored, since otherwise the agent
+        // will retry and the data would be folded in twice
+        //
+        // this callback runs on the cassandra driver's callback thread, so all of the folding work
+        // (including grouping the values by rollup interval) is handed off to the fold executor
+        Futures.addCallback(future, new FutureCallback<Object>() {
+            @Override
+            public void onSuccess(@Nullable Object result) {
+                rollupCache.execute(
+                        () -> foldIntoRollupCache(agentId, gaugeValues, uniquenessKeys));
+            }
+            @Override
+            public void onFailure(Throwable t) {
+                // the failure is reported to the caller via the returned future
+            }
+        });
+        return future;
+    }
+
+    private void foldIntoRollupCache(String agentId, List<GaugeValue> gaugeValues,
+            Map<Long, UUID> uniquenessKeys) {
+        long intervalMillis = configRepository.getRollupConfigs().get(0).intervalMillis();
+        ListMultimap<Long, GaugeValue> gaugeValuesByRollupCaptureTime =
+                Multimaps.index(gaugeValues, gaugeValue -> Utils
+                        .getRollupCaptureTime(gaugeValue.getCaptureTime(), intervalMillis));
+        for (Entry<Long, List<GaugeValue>> entry : Multimaps
+                .asMap(gaugeValuesByRollupCaptureTime).entrySet()) {
+            long rollupCaptureTime = entry.getKey();
+            List<GaugeValue> values = entry.getValue();
+            List<String> sourceKeys = Lists.newArrayList();
+            for (GaugeValue gaugeValue : values) {
+                sourceKeys.add(gaugeValue.getGaugeName() + '@' + gaugeValue.getCaptureTime());
+            }
+            rollupCache.foldNow(agentId, 1, rollupCaptureTime, intervalMillis,
+                    checkNotNull(uniquenessKeys.get(rollupCaptureTime)), sourceKeys, value -> {
+                        for (GaugeValue gaugeValue : values) {
+                            getOrCreate(value, gaugeValue.getGaugeName())
+                                    .add(gaugeValue.getValue(), gaugeValue.getWeight());
+                        }
+                    });
         }
-        Futures.allAsList(futures).get();
     }
 
     @Override
@@ -202,6 +281,22 @@ public class GaugeValueDao implements GaugeValueRepository {
         }
     }
 
+    // returns the capture time of the oldest rollup still waiting to be performed for each rollup
+    // level that has one (keyed by rollup level), which is used to track rollup lag
+    public Map<Integer, Long> readOldestPendingCaptureTimes(String agentRollup) {
+        Map<Integer, Long> oldestPendingCaptureTimes = Maps.newHashMap();
+        for (int rollupLevel = 1; rollupLevel <= configRepository.getRollupConfigs()
+                .size(); rollupLevel++) {
+            List<NeedsRollup> needsRollupList =
+                    AggregateDao.getNeedsRollupList(agentRollup, rollupLevel, readNeedsRollup,
+                            session);
+            if (!needsRollupList.isEmpty()) {
+                oldestPendingCaptureTimes.put(rollupLevel, needsRollupList.get(0).getCaptureTime());
+            }
+        }
+        return oldestPendingCaptureTimes;
+    }
+
     private void rollupLevel(String agentRollup, int rollupLevel, int ttl) throws Exception {
         List<NeedsRollup> needsRollupList =
                 AggregateDao.getNeedsRollupList(agentRollup, rollupLevel, readNeedsRollup, session);
@@ -214,12 +309,39 @@ public class GaugeValueDao implements GaugeValueRepository {
         for (NeedsRollup needsRollup : needsRollupList) {
             long captureTime = needsRollup.getCaptureTime();
             long from = captureTime - rollupIntervalMillis;
+            int adjustedTTL = getAdjustedTTL(ttl, captureTime);
+            Map<String, MutableGaugeValue> cachedRollup = rollupCache.remove(agentRollup,
+                    rollupLevel, captureTime, needsRollup.getUniquenessKeysForDeletion());
+            Map<String, MutableGaugeValue> rolledUpValues = Maps.newHashMap();
+            List<ResultSetFuture> futures = Lists.newArrayList();
             for (String gaugeName : needsRollup.getKeys()) {
-                int adjustedTTL = getAdjustedTTL(ttl, captureTime);
-                rollupOne(rollupLevel, agentRollup, gaugeName, from, captureTime, adjustedTTL);
+                MutableGaugeValue rolledUpValue =
+                        cachedRollup == null ? null : cachedRollup.get(gaugeName);
+                if (rolledUpValue == null) {
+                    rolledUpValue = readForRollup(rollupLevel, agentRollup, gaugeName, from,
+                            captureTime);
+                }
+                futures.add(insertRollup(rollupLevel, agentRollup, gaugeName, captureTime,
+                        rolledUpValue, adjustedTTL));
+                rolledUpValues.put(gaugeName, rolledUpValue);
+            }
+            Futures.allAsList(futures).get();
+            UUID nextUniqueness = AggregateDao.postRollup(agentRollup, rollupLevel, needsRollup,
+                    nextRollupIntervalMillis, insertNeedsRollup, deleteNeedsRollup, session);
+            if (nextUniqueness != null) {
+                // the next rollup level is folded forward from this rollup level, same as it would
+                // be when reading this rollup level back from cassandra
+                long nextIntervalMillis = checkNotNull(nextRollupIntervalMillis);
+                rollupCache.fold(agentRollup, rollupLevel + 1,
+                        Utils.getRollupCaptureTime(captureTime, nextIntervalMillis),
+                        nextIntervalMillis, nextUniqueness, ImmutableList.of(captureTime),
+                        value -> {
+                            for (Entry<String, MutableGaugeValue> entry : rolledUpValues
+                                    .entrySet()) {
+                                getOrCreate(value, entry.getKey()).add(entry.getValue());
+                            }
+                        });
             }
-            AggregateDao.postRollup(agentRollup, rollupLevel, needsRollup, nextRollupIntervalMillis,
-                    insertNeedsRollup, deleteNeedsRollup, session);
         }
     }
 
@@ -237,8 +359,8 @@ public class GaugeValueDao implements GaugeValueRepository {
     }
 
     // from is non-inclusive
-    private void rollupOne(int rollupLevel, String agentRollup, String gaugeName, long from,
-            long to, int adjustedTTL) throws Exception {
+    private MutableGaugeValue readForRollup(int rollupLevel, String agentRollup, String gaugeName,
+            long from, long to) {
         BoundStatement boundStatement = readValueForRollupPS.get(rollupLevel - 1).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollup);
@@ -246,23 +368,25 @@ public class GaugeValueDao implements GaugeValueRepository {
         boundStatement.setTimestamp(i++, new Date(from));
         boundStatement.setTimestamp(i++, new Date(to));
         ResultSet results = session.execute(boundStatement);
-        double totalWeightedValue = 0;
-        long totalWeight = 0;
+        MutableGaugeValue rolledUpValue = new MutableGaugeValue();
         for (Row row : results) {
-            double value = row.getDouble(0);
-            long weight = row.getLong(1);
-            totalWeightedValue += value * weight;
-            totalWeight += weight;
+            rolledUpValue.add(row.getDouble(0), row.getLong(1));
         }
-        boundStatement = insertValuePS.get(rollupLevel).bind();
-        i = 0;
+        return rolledUpValue;
+    }
+
+    private ResultSetFuture insertRollup(int rollupLevel, String agentRollup, String gaugeName,
+            long captureTime, MutableGaugeValue rolledUpValue, int adjustedTTL) {
+        BoundStatement boundStatement = insertValuePS.get(rollupLevel).bind();
+        int i = 0;
         boundStatement.setString(i++, agentRollup);
         boundStatement.setString(i++, gaugeName);
-        boundStatement.setTimestamp(i++, new Date(to));
-        boundStatement.setDouble(i++, totalWeightedValue / totalWeight);
-        boundStatement.setLong(i++, totalWeight);
+        boundStatement.setTimestamp(i++, new Date(captureTime));
+        boundStatement.setDouble(i++,
+                rolledUpValue.totalWeightedValue / rolledUpValue.totalWeight);
+        boundStatement.setLong(i++, rolledUpValue.totalWeight);
         boundStatement.setInt(i++, adjustedTTL);
-        session.execute(boundStatement);
+        return session.executeAsync(boundStatement);
     }
 
     private List<Integer> getTTLs() {
@@ -293,4 +417,30 @@ public class GaugeValueDao implements GaugeValueRepository {
         // max is just a safety guard (primarily used for unit tests)
         return Math.max(ttl - captureTimeAgoSeconds, 60);
     }
+
+    private static MutableGaugeValue getOrCreate(Map<String, MutableGaugeValue> rolledUpValues,
+            String gaugeName) {
+        MutableGaugeValue rolledUpValue = rolledUpValues.get(gaugeName);
+        if (rolledUpValue == null) {
+            rolledUpValue = new MutableGaugeValue();
+            rolledUpValues.put(gaugeName, rolledUpValue);
+        }
+        return rolledUpValue;
+    }
+
+    private static class MutableGaugeValue {
+
+        private double totalWeightedValue;
+        private long totalWeight;
+
+        private void add(double value, long weight) {
+            totalWeightedValue += value * weight;
+            totalWeight += weight;
+        }
+
+        private void add(MutableGaugeValue rolledUpValue) {
+            totalWeightedValue += rolledUpValue.totalWeightedValue;
+            totalWeight += rolledUpValue.totalWeight;
+        }
+    }
 }
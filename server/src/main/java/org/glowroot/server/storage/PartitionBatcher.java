@@ -0,0 +1,96 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.server.storage;
+
+import java.util.List;
+import java.util.Map;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+// groups statements by partition into unlogged batches, since cassandra applies a single partition
+// unlogged batch as a single mutation (unlike multi-partition batches, which just move the fan out
+// work onto the coordinator)
+//
+// statements for different tables can share a batch as long as they share the same partition key
+// values (and keyspace)
+class PartitionBatcher {
+
+    // this matches cassandra's default batch_size_warn_threshold_in_kb, above which cassandra logs
+    // a warning for every batch
+    private static final int MAX_BATCH_SIZE_BYTES = 5 * 1024;
+
+    // this is just a rough estimate for statements that don't pass their own estimate
+    private static final int DEFAULT_STATEMENT_SIZE_BYTES = 200;
+
+    private static final Joiner partitionKeyJoiner = Joiner.on('\0');
+
+    private final Map<String, PendingBatch> pendingBatches = Maps.newLinkedHashMap();
+    private final List<Statement> readyStatements = Lists.newArrayList();
+
+    static String partitionKey(String... partitionKeyValues) {
+        return partitionKeyJoiner.join(partitionKeyValues);
+    }
+
+    void add(String partitionKey, Statement statement) {
+        add(partitionKey, statement, DEFAULT_STATEMENT_SIZE_BYTES);
+    }
+
+    void add(String partitionKey, Statement statement, int estimatedSizeBytes) {
+        PendingBatch pendingBatch = pendingBatches.get(partitionKey);
+        if (pendingBatch == null) {
+            pendingBatch = new PendingBatch();
+            pendingBatches.put(partitionKey, pendingBatch);
+        } else if (pendingBatch.sizeBytes + estimatedSizeBytes > MAX_BATCH_SIZE_BYTES) {
+            readyStatements.add(pendingBatch.toStatement());
+            pendingBatch = new PendingBatch();
+            pendingBatches.put(partitionKey, pendingBatch);
+        }
+        pendingBatch.statements.add(statement);
+        pendingBatch.sizeBytes += estimatedSizeBytes;
+    }
+
+    void executeAsync(Session session, List<ResultSetFuture> futures) {
+        for (PendingBatch pendingBatch : pendingBatches.values()) {
+            readyStatements.add(pendingBatch.toStatement());
+        }
+        pendingBatches.clear();
+        for (Statement statement : readyStatements) {
+            futures.add(session.executeAsync(statement));
+        }
+        readyStatements.clear();
+    }
+
+    private static class PendingBatch {
+
+        private final List<Statement> statements = Lists.newArrayList();
+        private int sizeBytes;
+
+        private Statement toStatement() {
+            if (statements.size() == 1) {
+                return statements.get(0);
+            }
+            BatchStatement batchStatement = new BatchStatement(BatchStatement.Type.UNLOGGED);
+            batchStatement.addAll(statements);
+            return batchStatement;
+        }
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.server.storage;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.immutables.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.common.util.Styles;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// holds partially rolled up values in memory, folded forward as data arrives, so that rollups can
+// be written without re-reading the lower level rows from cassandra
+//
+// an interval is only handed back for rollup if it has seen every needs rollup uniqueness key that
+// the rollup is for, otherwise (e.g. after server restart, after a duplicate delivery, after late
+// data for an interval that has already been rolled up, when a fold was dropped because the fold
+// executor is backed up, or when the cache is full) the caller falls back to reading the lower
+// level rows from cassandra
+//
+// the cache is bounded by the total weight (approximate size) of the values, and agent rollups
+// that stop receiving data are expired so their intervals don't linger until the next rollup
+//
+// folding is done on a small dedicated executor, so that it does not add latency to the threads
+// that store the incoming data
+class RollupCache<V> {
+
+    private static final Logger logger = LoggerFactory.getLogger(RollupCache.class);
+
+    private static final int FOLD_THREADS =
+            Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    private static final int MAX_PENDING_FOLDS =
+            Integer.getInteger("glowroot.server.rollupCacheMaxPendingFolds", 10000);
+
+    private static final long EXPIRY_CHECK_INTERVAL_MILLIS = MINUTES.toMillis(1);
+
+    private final Supplier<V> valueFactory;
+    private final ToIntFunction<V> weigher;
+    private final long maxWeight;
+    private final Executor foldExecutor;
+
+    // data for intervals that started before this time may have been stored by a previous server
+    // process
+    private final long startTime;
+
+    private final ConcurrentMap<AgentRollupLevel, LevelState<V>> levelStates =
+            Maps.newConcurrentMap();
+
+    private final AtomicLong totalWeight = new AtomicLong();
+
+    private final AtomicLong nextExpiryCheckTime = new AtomicLong();
+
+    // weigher returns the approximate size of a value, in whatever unit maxWeight is in
+    RollupCache(Supplier<V> valueFactory, ToIntFunction<V> weigher, long maxWeight) {
+        this(valueFactory, weigher, maxWeight, createFoldExecutor());
+    }
+
+    @VisibleForTesting
+    RollupCache(Supplier<V> valueFactory, ToIntFunction<V> weigher, long maxWeight,
+            Executor foldExecutor) {
+        this.valueFactory = valueFactory;
+        this.weigher = weigher;
+        this.maxWeight = maxWeight;
+        this.foldExecutor = foldExecutor;
+        startTime = System.currentTimeMillis();
+        nextExpiryCheckTime.set(startTime + EXPIRY_CHECK_INTERVAL_MILLIS);
+    }
+
+    // sourceKeys identify the data being folded in (e.g. the capture time of a level 0 aggregate)
+    // so that a duplicate delivery (e.g. agent retry after the server response was lost) is not
+    // double counted
+    //
+    // the folder is run asynchronously, so it must not depend on any state that the caller may
+    // modify after this returns
+    void fold(String agentRollup, int rollupLevel, long captureTime, long intervalMillis,
+            UUID uniqueness, Collection<?> sourceKeys, Folder<V> folder) {
+        execute(() -> foldNow(agentRollup, rollupLevel, captureTime, intervalMillis, uniqueness,
+                sourceKeys, folder));
+    }
+
+    // runs the fold task on the fold executor, this is for callers that also need to prepare the
+    // data before folding it in (e.g. group it by interval), and that should not do that work on
+    // the calling thread either, the fold task should call foldNow() to fold in the data
+    void execute(Runnable foldTask) {
+        try {
+            foldExecutor.execute(foldTask);
+        } catch (RejectedExecutionException e) {
+            // the interval will be missing the uniqueness key, so will not be used for rollup
+            logger.debug(e.getMessage(), e);
+        }
+    }
+
+    // used to record needs rollup uniqueness keys that do not bring any new data into the interval
+    void addUniqueness(String agentRollup, int rollupLevel, long captureTime, UUID uniqueness) {
+        LevelState<V> levelState =
+                levelStates.get(ImmutableAgentRollupLevel.of(agentRollup, rollupLevel));
+        if (levelState == null) {
+            return;
+        }
+        Interval<V> interval;
+        synchronized (levelState) {
+            interval = levelState.intervals.get(captureTime);
+        }
+        if (interval == null) {
+            return;
+        }
+        synchronized (interval) {
+            if (interval.value != null) {
+                interval.uniquenessKeys.add(uniqueness);
+            }
+        }
+    }
+
+    // returns null if the interval cannot be used for the rollup, in which case the caller needs
+    // to read the lower level rows from cassandra
+    //
+    // this also evicts any older intervals for the agent rollup and rollup level, since rollups are
+    // performed in capture time order and so those will not be asked for again (if they are, e.g.
+    // due to late data, then they are read from cassandra)
+    @Nullable
+    V remove(String agentRollup, int rollupLevel, long captureTime, Set<UUID> uniquenessKeys) {
+        LevelState<V> levelState =
+                levelStates.get(ImmutableAgentRollupLevel.of(agentRollup, rollupLevel));
+        if (levelState == null) {
+            return null;
+        }
+        Interval<V> interval;
+        List<Interval<V>> evictedIntervals;
+        synchronized (levelState) {
+            levelState.lastAccessTime = System.currentTimeMillis();
+            levelState.lastRolledUpCaptureTime =
+                    Math.max(levelState.lastRolledUpCaptureTime, captureTime);
+            NavigableMap<Long, Interval<V>> evicted =
+                    levelState.intervals.headMap(captureTime, true);
+            interval = evicted.remove(captureTime);
+            evictedIntervals = ImmutableList.copyOf(evicted.values());
+            evicted.clear();
+        }
+        for (Interval<V> evictedInterval : evictedIntervals) {
+            synchronized (evictedInterval) {
+                invalidate(evictedInterval);
+            }
+        }
+        if (interval == null) {
+            return null;
+        }
+        synchronized (interval) {
+            V value = interval.value;
+            boolean complete = interval.uniquenessKeys.containsAll(uniquenessKeys);
+            // any data arriving for this interval from now on is late and is only in cassandra
+            invalidate(interval);
+            return complete ? value : null;
+        }
+    }
+
+    @VisibleForTesting
+    long getTotalWeight() {
+        return totalWeight.get();
+    }
+
+    // same as fold(), but runs the folder on the calling thread, see execute()
+    void foldNow(String agentRollup, int rollupLevel, long captureTime,
+            long intervalMillis, UUID uniqueness, Collection<?> sourceKeys, Folder<V> folder) {
+        expireIdleIfNeeded();
+        Interval<V> interval =
+                getOrCreateInterval(agentRollup, rollupLevel, captureTime, intervalMillis);
+        if (interval == null) {
+            return;
+        }
+        synchronized (interval) {
+            V value = interval.value;
+            if (value == null) {
+                return;
+            }
+            for (Object sourceKey : sourceKeys) {
+                if (!interval.sourceKeys.add(sourceKey)) {
+                    invalidate(interval);
+                    return;
+                }
+            }
+            try {
+                folder.fold(value);
+            } catch (Exception e) {
+                logger.debug(e.getMessage(), e);
+                invalidate(interval);
+                return;
+            }
+            int weight = weigher.applyAsInt(value);
+            if (totalWeight.addAndGet(weight - interval.weight) > maxWeight) {
+                // the cache is full, this interval will be rolled up from cassandra instead
+                interval.weight = weight;
+                invalidate(interval);
+                return;
+            }
+            interval.weight = weight;
+            interval.uniquenessKeys.add(uniqueness);
+        }
+    }
+
+    private @Nullable Interval<V> getOrCreateInterval(String agentRollup, int rollupLevel,
+            long captureTime, long intervalMillis) {
+        if (captureTime - intervalMillis < startTime) {
+            return null;
+        }
+        AgentRollupLevel key = ImmutableAgentRollupLevel.of(agentRollup, rollupLevel);
+        while (true) {
+            LevelState<V> levelState = levelStates.get(key);
+            if (levelState == null) {
+                levelState = new LevelState<V>(intervalMillis);
+                LevelState<V> existing = levelStates.putIfAbsent(key, levelState);
+                if (existing != null) {
+                    levelState = existing;
+                }
+            }
+            synchronized (levelState) {
+                if (levelState.expired) {
+                    // lost race with expireIdle(), try again with a new level state
+                    continue;
+                }
+                levelState.lastAccessTime = System.currentTimeMillis();
+                Interval<V> interval = levelState.intervals.get(captureTime);
+                if (interval != null) {
+                    return interval;
+                }
+                if (captureTime <= levelState.lastRolledUpCaptureTime
+                        || totalWeight.get() >= maxWeight) {
+                    return null;
+                }
+                interval = new Interval<V>(valueFactory.get());
+                levelState.intervals.put(captureTime, interval);
+                return interval;
+            }
+        }
+    }
+
+    private void expireIdleIfNeeded() {
+        long currentTime = System.currentTimeMillis();
+        long nextExpiryCheckTime = this.nextExpiryCheckTime.get();
+        if (currentTime < nextExpiryCheckTime || !this.nextExpiryCheckTime
+                .compareAndSet(nextExpiryCheckTime, currentTime + EXPIRY_CHECK_INTERVAL_MILLIS)) {
+            return;
+        }
+        expireIdle(currentTime);
+    }
+
+    // an agent rollup level is idle once it hasn't been folded into or rolled up for two of its
+    // intervals, e.g. the agent has been shut down
+    @VisibleForTesting
+    void expireIdle(long currentTime) {
+        for (Entry<AgentRollupLevel, LevelState<V>> entry : levelStates.entrySet()) {
+            LevelState<V> levelState = entry.getValue();
+            List<Interval<V>> expiredIntervals;
+            synchronized (levelState) {
+                if (currentTime - levelState.lastAccessTime < 2 * levelState.intervalMillis) {
+                    continue;
+                }
+                levelState.expired = true;
+                levelStates.remove(entry.getKey(), levelState);
+                expiredIntervals = ImmutableList.copyOf(levelState.intervals.values());
+                levelState.intervals.clear();
+            }
+            for (Interval<V> interval : expiredIntervals) {
+                synchronized (interval) {
+                    invalidate(interval);
+                }
+            }
+        }
+    }
+
+    @GuardedBy("interval")
+    private void invalidate(Interval<V> interval) {
+        interval.value = null;
+        interval.uniquenessKeys.clear();
+        interval.sourceKeys.clear();
+        totalWeight.addAndGet(-interval.weight);
+        interval.weight = 0;
+    }
+
+    private static Executor createFoldExecutor() {
+        return new ThreadPoolExecutor(FOLD_THREADS, FOLD_THREADS, 0, MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_PENDING_FOLDS), new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("Glowroot-Rollup-Cache-Fold-%d")
+                        .build());
+    }
+
+    interface Folder<V> {
+        void fold(V value) throws Exception;
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface AgentRollupLevel {
+        String agentRollup();
+        int rollupLevel();
+    }
+
+    private static class LevelState<V> {
+
+        private final long intervalMillis;
+
+        @GuardedBy("this")
+        private long lastRolledUpCaptureTime = Long.MIN_VALUE;
+
+        @GuardedBy("this")
+        private long lastAccessTime;
+
+        @GuardedBy("this")
+        private boolean expired;
+
+        @GuardedBy("this")
+        private final NavigableMap<Long, Interval<V>> intervals = Maps.newTreeMap();
+
+        private LevelState(long intervalMillis) {
+            this.intervalMillis = intervalMillis;
+            lastAccessTime = System.currentTimeMillis();
+        }
+    }
+
+    private static class Interval<V> {
+
+        // null once the interval can no longer be used for rollup
+        @GuardedBy("this")
+        private @Nullable V value;
+
+        @GuardedBy("this")
+        private final Set<UUID> uniquenessKeys = Sets.newHashSet();
+
+        @GuardedBy("this")
+        private final Set<Object> sourceKeys = Sets.newHashSet();
+
+        // the weight of the value that is currently counted in totalWeight
+        @GuardedBy("this")
+        private int weight;
+
+        private Interval(V value) {
+            this.value = value;
+        }
+    }
+}
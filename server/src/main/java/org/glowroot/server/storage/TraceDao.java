@@ -41,6 +41,7 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.primitives.Ints;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import org.immutables.value.Value;
@@ -342,9 +343,15 @@ public class TraceDao implements TraceRepository {
 
     @Override
     public void store(String agentId, Trace trace) throws Exception {
+        storeAsync(agentId, trace).get();
+    }
+
+    // the returned future completes once all of the trace's writes have completed
+    public ListenableFuture<?> storeAsync(String agentId, Trace trace) throws Exception {
         String traceId = trace.getId();
-        // TODO after roll out agent 0.9.1, no need to read header if !trace.getUpdate()
-        Trace.Header priorHeader = readHeader(agentId, traceId);
+        // no need to read prior header (to clean up after prior partial trace) if this is not an
+        // update (this relies on agents 0.9.1+ which always set update when sending an update)
+        Trace.Header priorHeader = trace.getUpdate() ? readHeader(agentId, traceId) : null;
         Trace.Header header = trace.getHeader();
 
         // TEMPORARY UNTIL ROLL OUT AGENT 0.9.1
@@ -365,9 +372,14 @@ public class TraceDao implements TraceRepository {
         List<String> agentRollups = AgentRollups.getAgentRollups(agentId);
 
         List<ResultSetFuture> futures = Lists.newArrayList();
+        PartitionBatcher batcher = new PartitionBatcher();
         int adjustedTTL = GaugeValueDao.getAdjustedTTL(getTTL(), header.getCaptureTime());
         for (String agentRollup : agentRollups) {
             List<Trace.Attribute> attributes = header.getAttributeList();
+            String overallPartitionKey =
+                    PartitionBatcher.partitionKey(agentRollup, header.getTransactionType());
+            String transactionPartitionKey = PartitionBatcher.partitionKey(agentRollup,
+                    header.getTransactionType(), header.getTransactionName());
             if (header.getSlow()) {
                 BoundStatement boundStatement = insertOverallSlowPoint.bind();
                 int i = 0;
@@ -385,7 +397,7 @@ public class TraceDao implements TraceRepository {
                     boundStatement.setBytes(i++, Messages.toByteBuffer(attributes));
                 }
                 boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
+                batcher.add(overallPartitionKey, boundStatement);
 
                 boundStatement = insertTransactionSlowPoint.bind();
                 i = 0;
@@ -404,7 +416,7 @@ public class TraceDao implements TraceRepository {
                     boundStatement.setBytes(i++, Messages.toByteBuffer(attributes));
                 }
                 boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
+                batcher.add(transactionPartitionKey, boundStatement);
 
                 boundStatement = insertOverallSlowCount.bind();
                 i = 0;
@@ -414,7 +426,7 @@ public class TraceDao implements TraceRepository {
                 boundStatement.setString(i++, agentId);
                 boundStatement.setString(i++, traceId);
                 boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
+                batcher.add(overallPartitionKey, boundStatement);
 
                 boundStatement = insertTransactionSlowCount.bind();
                 i = 0;
@@ -425,7 +437,7 @@ public class TraceDao implements TraceRepository {
                 boundStatement.setString(i++, agentId);
                 boundStatement.setString(i++, traceId);
                 boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
+                batcher.add(transactionPartitionKey, boundStatement);
 
                 if (priorHeader != null) {
                     boundStatement = deletePartialOverallSlowPoint.bind();
@@ -479,7 +491,7 @@ public class TraceDao implements TraceRepository {
                 boundStatement.setString(i++, traceId);
                 boundStatement.setString(i++, header.getError().getMessage());
                 boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
+                batcher.add(overallPartitionKey, boundStatement);
 
                 boundStatement = insertTransactionErrorMessage.bind();
                 i = 0;
@@ -491,7 +503,7 @@ public class TraceDao implements TraceRepository {
                 boundStatement.setString(i++, traceId);
                 boundStatement.setString(i++, header.getError().getMessage());
                 boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
+                batcher.add(transactionPartitionKey, boundStatement);
 
                 boundStatement = insertOverallErrorPoint.bind();
                 i = 0;
@@ -509,7 +521,7 @@ public class TraceDao implements TraceRepository {
                     boundStatement.setBytes(i++, Messages.toByteBuffer(attributes));
                 }
                 boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
+                batcher.add(overallPartitionKey, boundStatement);
 
                 boundStatement = insertTransactionErrorPoint.bind();
                 i = 0;
@@ -528,7 +540,7 @@ public class TraceDao implements TraceRepository {
                     boundStatement.setBytes(i++, Messages.toByteBuffer(attributes));
                 }
                 boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
+                batcher.add(transactionPartitionKey, boundStatement);
 
                 boundStatement = insertOverallErrorCount.bind();
                 i = 0;
@@ -538,7 +550,7 @@ public class TraceDao implements TraceRepository {
                 boundStatement.setString(i++, agentId);
                 boundStatement.setString(i++, traceId);
                 boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
+                batcher.add(overallPartitionKey, boundStatement);
 
                 boundStatement = insertTransactionErrorCount.bind();
                 i = 0;
@@ -549,7 +561,7 @@ public class TraceDao implements TraceRepository {
                 boundStatement.setString(i++, agentId);
                 boundStatement.setString(i++, traceId);
                 boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
+                batcher.add(transactionPartitionKey, boundStatement);
             }
             for (Trace.Attribute attributeName : attributes) {
                 traceAttributeNameDao.maybeUpdateLastCaptureTime(agentRollup,
@@ -563,7 +575,7 @@ public class TraceDao implements TraceRepository {
         boundStatement.setString(i++, traceId);
         boundStatement.setBytes(i++, ByteBuffer.wrap(header.toByteArray()));
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        batcher.add(agentId, boundStatement, header.getSerializedSize());
 
         for (int entryIndex = 0; entryIndex < trace.getEntryCount(); entryIndex++) {
             Trace.Entry entry = trace.getEntry(entryIndex);
@@ -595,7 +607,7 @@ public class TraceDao implements TraceRepository {
                 boundStatement.setToNull(i++);
             }
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            batcher.add(agentId, boundStatement, entry.getSerializedSize());
         }
 
         if (trace.hasMainThreadProfile()) {
@@ -606,7 +618,8 @@ public class TraceDao implements TraceRepository {
             boundStatement.setBytes(i++,
                     ByteBuffer.wrap(trace.getMainThreadProfile().toByteArray()));
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            batcher.add(agentId, boundStatement,
+                    trace.getMainThreadProfile().getSerializedSize());
         }
 
         if (trace.hasAuxThreadProfile()) {
@@ -617,11 +630,13 @@ public class TraceDao implements TraceRepository {
             boundStatement.setBytes(i++,
                     ByteBuffer.wrap(trace.getAuxThreadProfile().toByteArray()));
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            batcher.add(agentId, boundStatement,
+                    trace.getAuxThreadProfile().getSerializedSize());
         }
         transactionTypeDao.maybeUpdateLastCaptureTime(agentId, header.getTransactionType(),
                 futures);
-        Futures.allAsList(futures).get();
+        batcher.executeAsync(session, futures);
+        return Futures.allAsList(futures);
     }
 
     @Override
@@ -15,6 +15,11 @@
  */
 package org.glowroot.server;
 
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutionException;
+
+import com.datastax.driver.core.exceptions.InvalidQueryException;
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
 import org.junit.Test;
 
 import org.glowroot.server.RollupService;
@@ -30,4 +35,13 @@ public class RollupServiceTest {
         assertThat(RollupService.millisUntilNextRollup(45000)).isEqualTo(25000);
         assertThat(RollupService.millisUntilNextRollup(60000)).isEqualTo(10000);
     }
+
+    @Test
+    public void shouldDetectTimeout() {
+        Exception timeout = new OperationTimedOutException(new InetSocketAddress(9042));
+        assertThat(RollupService.isTimeoutOrOverload(timeout)).isTrue();
+        assertThat(RollupService.isTimeoutOrOverload(new ExecutionException(timeout))).isTrue();
+        assertThat(RollupService.isTimeoutOrOverload(new InvalidQueryException("bad query")))
+                .isFalse();
+    }
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.server.storage;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.server.storage.AggregateReadCache.BlockKey;
+import org.glowroot.server.storage.AggregateReadCache.DecodedRow;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AggregateReadCacheTest {
+
+    private static final long INTERVAL_MILLIS = 60000;
+
+    private AggregateReadCache readCache;
+    private long blockEnd;
+
+    @Before
+    public void beforeEachTest() {
+        readCache = new AggregateReadCache();
+        blockEnd = AggregateReadCache.getLastCacheableBlockEnd(INTERVAL_MILLIS,
+                System.currentTimeMillis());
+    }
+
+    @Test
+    public void shouldCacheBlock() {
+        // given
+        BlockKey key = ImmutableBlockKey.of("a", "Web", null, "overview", 0, blockEnd);
+        // when
+        readCache.put(key, rows(blockEnd), 100, readCache.getInvalidationCount());
+        // then
+        assertThat(readCache.get(key)).hasSize(1);
+        assertThat(readCache.getHitCount()).isEqualTo(1);
+        assertThat(readCache.getWeightBytes()).isEqualTo(100);
+    }
+
+    @Test
+    public void shouldInvalidateBlockOnLateData() {
+        // given
+        BlockKey key = ImmutableBlockKey.of("a", "Web", "one", "query", 0, blockEnd);
+        BlockKey otherKey = ImmutableBlockKey.of("b", "Web", "one", "query", 0, blockEnd);
+        readCache.put(key, rows(blockEnd), 100, readCache.getInvalidationCount());
+        readCache.put(otherKey, rows(blockEnd), 100, readCache.getInvalidationCount());
+        // when
+        readCache.invalidate("a", 0, INTERVAL_MILLIS, blockEnd - INTERVAL_MILLIS);
+        // then
+        assertThat(readCache.get(key)).isNull();
+        assertThat(readCache.get(otherKey)).isNotNull();
+        assertThat(readCache.getWeightBytes()).isEqualTo(100);
+    }
+
+    @Test
+    public void shouldNotCacheBlockReadBeforeInvalidation() {
+        // given
+        BlockKey key = ImmutableBlockKey.of("a", "Web", null, "overview", 0, blockEnd);
+        long invalidationCount = readCache.getInvalidationCount();
+        // when
+        readCache.invalidate("a", 0, INTERVAL_MILLIS, blockEnd);
+        readCache.put(key, rows(blockEnd), 100, invalidationCount);
+        // then
+        assertThat(readCache.get(key)).isNull();
+    }
+
+    @Test
+    public void shouldNotInvalidateForCurrentData() {
+        // when
+        readCache.invalidate("a", 0, INTERVAL_MILLIS, System.currentTimeMillis());
+        // then
+        assertThat(readCache.getInvalidationCount()).isEqualTo(0);
+    }
+
+    private static List<DecodedRow<?>> rows(long captureTime) {
+        return ImmutableList.<DecodedRow<?>>of(new DecodedRow<String>(captureTime, "x"));
+    }
+}
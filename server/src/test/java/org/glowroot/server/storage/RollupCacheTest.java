@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.server.storage;
+
+import java.util.List;
+import java.util.UUID;
+
+import com.datastax.driver.core.utils.UUIDs;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RollupCacheTest {
+
+    private static final long INTERVAL_MILLIS = 60000;
+
+    private RollupCache<List<String>> rollupCache;
+    private long captureTime;
+
+    @Before
+    public void beforeEachTest() {
+        rollupCache = new RollupCache<>(Lists::newArrayList, List::size, 3,
+                MoreExecutors.directExecutor());
+        captureTime = System.currentTimeMillis() + 2 * INTERVAL_MILLIS;
+    }
+
+    @Test
+    public void shouldRollupFromCache() {
+        UUID uniqueness1 = UUIDs.timeBased();
+        UUID uniqueness2 = UUIDs.timeBased();
+        rollupCache.fold("a", 1, captureTime, INTERVAL_MILLIS, uniqueness1, ImmutableList.of(1),
+                value -> value.add("x"));
+        rollupCache.fold("a", 1, captureTime, INTERVAL_MILLIS, uniqueness2, ImmutableList.of(2),
+                value -> value.add("y"));
+        assertThat(rollupCache.remove("a", 1, captureTime,
+                ImmutableSet.of(uniqueness1, uniqueness2))).containsExactly("x", "y");
+    }
+
+    @Test
+    public void shouldNotRollupFromCacheWhenMissingUniqueness() {
+        UUID uniqueness1 = UUIDs.timeBased();
+        UUID uniqueness2 = UUIDs.timeBased();
+        rollupCache.fold("a", 1, captureTime, INTERVAL_MILLIS, uniqueness1, ImmutableList.of(1),
+                value -> value.add("x"));
+        assertThat(rollupCache.remove("a", 1, captureTime,
+                ImmutableSet.of(uniqueness1, uniqueness2))).isNull();
+    }
+
+    @Test
+    public void shouldNotRollupFromCacheAfterDuplicate() {
+        UUID uniqueness1 = UUIDs.timeBased();
+        UUID uniqueness2 = UUIDs.timeBased();
+        rollupCache.fold("a", 1, captureTime, INTERVAL_MILLIS, uniqueness1, ImmutableList.of(1),
+                value -> value.add("x"));
+        rollupCache.fold("a", 1, captureTime, INTERVAL_MILLIS, uniqueness2, ImmutableList.of(1),
+                value -> value.add("x"));
+        assertThat(rollupCache.remove("a", 1, captureTime,
+                ImmutableSet.of(uniqueness1, uniqueness2))).isNull();
+    }
+
+    @Test
+    public void shouldNotRollupFromCacheAfterLateData() {
+        UUID uniqueness1 = UUIDs.timeBased();
+        UUID uniqueness2 = UUIDs.timeBased();
+        rollupCache.fold("a", 1, captureTime, INTERVAL_MILLIS, uniqueness1, ImmutableList.of(1),
+                value -> value.add("x"));
+        assertThat(rollupCache.remove("a", 1, captureTime, ImmutableSet.of(uniqueness1)))
+                .containsExactly("x");
+        rollupCache.fold("a", 1, captureTime, INTERVAL_MILLIS, uniqueness2, ImmutableList.of(2),
+                value -> value.add("y"));
+        assertThat(rollupCache.remove("a", 1, captureTime, ImmutableSet.of(uniqueness2)))
+                .isNull();
+    }
+
+    @Test
+    public void shouldNotRollupFromCacheForIntervalStartingBeforeServerStart() {
+        UUID uniqueness = UUIDs.timeBased();
+        long captureTime = System.currentTimeMillis();
+        rollupCache.fold("a", 1, captureTime, INTERVAL_MILLIS, uniqueness, ImmutableList.of(1),
+                value -> value.add("x"));
+        assertThat(rollupCache.remove("a", 1, captureTime, ImmutableSet.of(uniqueness)))
+                .isNull();
+    }
+
+    @Test
+    public void shouldNotRollupFromCacheWhenFull() {
+        UUID uniqueness1 = UUIDs.timeBased();
+        UUID uniqueness2 = UUIDs.timeBased();
+        rollupCache.fold("a", 1, captureTime, INTERVAL_MILLIS, uniqueness1, ImmutableList.of(1),
+                value -> value.add("x"));
+        rollupCache.fold("b", 1, captureTime, INTERVAL_MILLIS, uniqueness2, ImmutableList.of(1),
+                value -> value.addAll(ImmutableList.of("x", "y", "z")));
+        assertThat(rollupCache.remove("a", 1, captureTime, ImmutableSet.of(uniqueness1)))
+                .containsExactly("x");
+        assertThat(rollupCache.remove("b", 1, captureTime, ImmutableSet.of(uniqueness2)))
+                .isNull();
+        assertThat(rollupCache.getTotalWeight()).isZero();
+    }
+
+    @Test
+    public void shouldExpireIdleAgentRollup() {
+        UUID uniqueness = UUIDs.timeBased();
+        rollupCache.fold("a", 1, captureTime, INTERVAL_MILLIS, uniqueness, ImmutableList.of(1),
+                value -> value.add("x"));
+        assertThat(rollupCache.getTotalWeight()).isEqualTo(1);
+        rollupCache.expireIdle(System.currentTimeMillis() + 2 * INTERVAL_MILLIS);
+        assertThat(rollupCache.getTotalWeight()).isZero();
+        assertThat(rollupCache.remove("a", 1, captureTime, ImmutableSet.of(uniqueness)))
+                .isNull();
+    }
+}
@@ -387,12 +387,7 @@ glowroot.config([
     $stateProvider.state('config.transaction', {
       url: '/transaction?agent-id',
       templateUrl: 'views/config/transaction.html',
-      controller: 'ConfigCommonCtrl',
-      resolve: {
-        backendUrl: function () {
-          return 'backend/config/transaction';
-        }
-      }
+      controller: 'ConfigTransactionCtrl'
     });
     $stateProvider.state('config.gaugeList', {
       url: '/gauge-list?agent-id',
@@ -208,6 +208,8 @@ class ConfigJsonService {
         abstract int slowThresholdMillis();
         abstract int profilingIntervalMillis();
         abstract boolean captureThreadStats();
+        abstract ImmutableList<String> timerCountersOnlyTransactionTypes();
+        abstract int timerCountersOnlyDepth();
         abstract String version();
 
         private TransactionConfig convert() {
@@ -215,6 +217,8 @@ class ConfigJsonService {
                     .setSlowThresholdMillis(of(slowThresholdMillis()))
                     .setProfilingIntervalMillis(of(profilingIntervalMillis()))
                     .setCaptureThreadStats(captureThreadStats())
+                    .addAllTimerCountersOnlyTransactionType(timerCountersOnlyTransactionTypes())
+                    .setTimerCountersOnlyDepth(of(timerCountersOnlyDepth()))
                     .build();
         }
         private static TransactionConfigDto create(TransactionConfig config) {
@@ -222,6 +226,12 @@ class ConfigJsonService {
                     .slowThresholdMillis(config.getSlowThresholdMillis().getValue())
                     .profilingIntervalMillis(config.getProfilingIntervalMillis().getValue())
                     .captureThreadStats(config.getCaptureThreadStats())
+                    .timerCountersOnlyTransactionTypes(
+                            config.getTimerCountersOnlyTransactionTypeList())
+                    // agents prior to the counters-only tier do not send the depth, 1 is the
+                    // agent side default
+                    .timerCountersOnlyDepth(config.hasTimerCountersOnlyDepth()
+                            ? config.getTimerCountersOnlyDepth().getValue() : 1)
                     .version(Versions.getVersion(config))
                     .build();
         }
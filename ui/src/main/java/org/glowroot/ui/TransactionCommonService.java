@@ -18,10 +18,17 @@ package org.glowroot.ui;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import javax.annotation.Nullable;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
+import org.immutables.value.Value;
 
 import org.glowroot.common.config.ConfigDefaults;
 import org.glowroot.common.live.ImmutableOverallQuery;
@@ -47,9 +54,12 @@ import org.glowroot.common.model.TransactionSummaryCollector.SummarySortOrder;
 import org.glowroot.common.model.TransactionSummaryCollector.TransactionSummary;
 import org.glowroot.common.repo.AggregateRepository;
 import org.glowroot.common.repo.ConfigRepository;
+import org.glowroot.common.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common.repo.MutableAggregate;
 import org.glowroot.common.repo.Utils;
+import org.glowroot.common.repo.util.RollupLevelService;
 import org.glowroot.common.util.Clock;
+import org.glowroot.common.util.Styles;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
@@ -59,61 +69,99 @@ class TransactionCommonService {
     private final LiveAggregateRepository liveAggregateRepository;
     private final ConfigRepository configRepository;
     private final Clock clock;
+    private final ExecutorService executor;
 
     TransactionCommonService(AggregateRepository aggregateRepository,
             LiveAggregateRepository liveAggregateRepository, ConfigRepository configRepository,
-            Clock clock) {
+            Clock clock, ExecutorService executor) {
         this.aggregateRepository = aggregateRepository;
         this.liveAggregateRepository = liveAggregateRepository;
         this.configRepository = configRepository;
         this.clock = clock;
+        this.executor = executor;
     }
 
     // query.from() is non-inclusive
-    OverallSummary readOverallSummary(String agentRollup, OverallQuery query) throws Exception {
+    OverallSummary readOverallSummary(final String agentRollup, final OverallQuery query)
+            throws Exception {
         OverallSummaryCollector collector = new OverallSummaryCollector();
-        long revisedFrom = query.from();
         long revisedTo =
                 liveAggregateRepository.mergeInOverallSummary(agentRollup, query, collector);
-        for (int rollupLevel = query.rollupLevel(); rollupLevel >= 0; rollupLevel--) {
-            OverallQuery revisedQuery = ImmutableOverallQuery.builder()
-                    .copyFrom(query)
-                    .from(revisedFrom)
-                    .to(revisedTo)
-                    .rollupLevel(rollupLevel)
-                    .build();
-            aggregateRepository.mergeOverallSummaryInto(agentRollup, revisedQuery, collector);
-            long lastRolledUpTime = collector.getLastCaptureTime();
-            revisedFrom = Math.max(revisedFrom, lastRolledUpTime + 1);
-            if (revisedFrom > revisedTo) {
-                break;
-            }
-        }
+        mergeRollupLevels(query.from(), revisedTo, query.rollupLevel(), collector,
+                new RollupLevelMerger<OverallSummaryCollector>() {
+                    @Override
+                    OverallSummaryCollector newCollector() {
+                        return new OverallSummaryCollector();
+                    }
+                    @Override
+                    void mergeInto(long from, long to, int rollupLevel,
+                            OverallSummaryCollector collector) throws Exception {
+                        OverallQuery revisedQuery = ImmutableOverallQuery.builder()
+                                .copyFrom(query)
+                                .from(from)
+                                .to(to)
+                                .rollupLevel(rollupLevel)
+                                .build();
+                        aggregateRepository.mergeOverallSummaryInto(agentRollup, revisedQuery,
+                                collector);
+                    }
+                    @Override
+                    long getLastCaptureTime(OverallSummaryCollector collector) {
+                        return collector.getLastCaptureTime();
+                    }
+                    @Override
+                    void mergeCollector(OverallSummaryCollector levelCollector,
+                            OverallSummaryCollector collector) {
+                        OverallSummary overallSummary = levelCollector.getOverallSummary();
+                        collector.mergeSummary(overallSummary.totalDurationNanos(),
+                                overallSummary.transactionCount(),
+                                levelCollector.getLastCaptureTime());
+                    }
+                });
         return collector.getOverallSummary();
     }
 
     // query.from() is non-inclusive
-    Result<TransactionSummary> readTransactionSummaries(String agentRollup, OverallQuery query,
-            SummarySortOrder sortOrder, int limit) throws Exception {
+    Result<TransactionSummary> readTransactionSummaries(final String agentRollup,
+            final OverallQuery query, final SummarySortOrder sortOrder, final int limit)
+            throws Exception {
         TransactionSummaryCollector collector = new TransactionSummaryCollector();
-        long revisedFrom = query.from();
         long revisedTo =
                 liveAggregateRepository.mergeInTransactionSummaries(agentRollup, query, collector);
-        for (int rollupLevel = query.rollupLevel(); rollupLevel >= 0; rollupLevel--) {
-            OverallQuery revisedQuery = ImmutableOverallQuery.builder()
-                    .copyFrom(query)
-                    .from(revisedFrom)
-                    .to(revisedTo)
-                    .rollupLevel(rollupLevel)
-                    .build();
-            aggregateRepository.mergeTransactionSummariesInto(agentRollup, revisedQuery, sortOrder,
-                    limit, collector);
-            long lastRolledUpTime = collector.getLastCaptureTime();
-            revisedFrom = Math.max(revisedFrom, lastRolledUpTime + 1);
-            if (revisedFrom > revisedTo) {
-                break;
-            }
-        }
+        mergeRollupLevels(query.from(), revisedTo, query.rollupLevel(), collector,
+                new RollupLevelMerger<TransactionSummaryCollector>() {
+                    @Override
+                    TransactionSummaryCollector newCollector() {
+                        return new TransactionSummaryCollector();
+                    }
+                    @Override
+                    void mergeInto(long from, long to, int rollupLevel,
+                            TransactionSummaryCollector collector) throws Exception {
+                        OverallQuery revisedQuery = ImmutableOverallQuery.builder()
+                                .copyFrom(query)
+                                .from(from)
+                                .to(to)
+                                .rollupLevel(rollupLevel)
+                                .build();
+                        aggregateRepository.mergeTransactionSummariesInto(agentRollup,
+                                revisedQuery, sortOrder, limit, collector);
+                    }
+                    @Override
+                    long getLastCaptureTime(TransactionSummaryCollector collector) {
+                        return collector.getLastCaptureTime();
+                    }
+                    @Override
+                    void mergeCollector(TransactionSummaryCollector levelCollector,
+                            TransactionSummaryCollector collector) {
+                        long lastCaptureTime = levelCollector.getLastCaptureTime();
+                        for (TransactionSummary transactionSummary : levelCollector
+                                .getResult(sortOrder, Integer.MAX_VALUE).records()) {
+                            collector.collect(transactionSummary.transactionName(),
+                                    transactionSummary.totalDurationNanos(),
+                                    transactionSummary.transactionCount(), lastCaptureTime);
+                        }
+                    }
+                });
         return collector.getResult(sortOrder, limit);
     }
 
@@ -473,10 +521,9 @@ class TransactionCommonService {
         return rolledUpThroughputAggregates;
     }
 
-    private MutableProfile getMergedProfile(String agentRollup, TransactionQuery query,
-            boolean auxiliary) throws Exception {
+    private MutableProfile getMergedProfile(final String agentRollup,
+            final TransactionQuery query, final boolean auxiliary) throws Exception {
         ProfileCollector collector = new ProfileCollector();
-        long revisedFrom = query.from();
         long revisedTo;
         if (auxiliary) {
             revisedTo =
@@ -485,27 +532,110 @@ class TransactionCommonService {
             revisedTo = liveAggregateRepository.mergeInMainThreadProfiles(agentRollup, query,
                     collector);
         }
-        for (int rollupLevel = query.rollupLevel(); rollupLevel >= 0; rollupLevel--) {
-            TransactionQuery revisedQuery = ImmutableTransactionQuery.builder()
-                    .copyFrom(query)
-                    .from(revisedFrom)
-                    .to(revisedTo)
-                    .rollupLevel(rollupLevel)
-                    .build();
-            if (auxiliary) {
-                aggregateRepository.mergeAuxThreadProfilesInto(agentRollup, revisedQuery,
-                        collector);
+        mergeRollupLevels(query.from(), revisedTo, query.rollupLevel(), collector,
+                new RollupLevelMerger<ProfileCollector>() {
+                    @Override
+                    ProfileCollector newCollector() {
+                        return new ProfileCollector();
+                    }
+                    @Override
+                    void mergeInto(long from, long to, int rollupLevel,
+                            ProfileCollector collector) throws Exception {
+                        TransactionQuery revisedQuery = ImmutableTransactionQuery.builder()
+                                .copyFrom(query)
+                                .from(from)
+                                .to(to)
+                                .rollupLevel(rollupLevel)
+                                .build();
+                        if (auxiliary) {
+                            aggregateRepository.mergeAuxThreadProfilesInto(agentRollup,
+                                    revisedQuery, collector);
+                        } else {
+                            aggregateRepository.mergeMainThreadProfilesInto(agentRollup,
+                                    revisedQuery, collector);
+                        }
+                    }
+                    @Override
+                    long getLastCaptureTime(ProfileCollector collector) {
+                        return collector.getLastCaptureTime();
+                    }
+                    @Override
+                    void mergeCollector(ProfileCollector levelCollector,
+                            ProfileCollector collector) {
+                        collector.getProfile().merge(levelCollector.getProfile());
+                        collector.updateLastCaptureTime(levelCollector.getLastCaptureTime());
+                    }
+                });
+        return collector.getProfile();
+    }
+
+    // reads the rollup levels concurrently instead of walking them from coarse to fine, which
+    // requires waiting for each level's last capture time before the next level can be read
+    //
+    // each level is assigned the part of (from, to] that it is expected to have rolled up, and any
+    // part of that slice which turns out to not be rolled up yet is then read from the finer levels
+    private <C> void mergeRollupLevels(long from, long to, int rollupLevel, C collector,
+            final RollupLevelMerger<C> merger) throws Exception {
+        List<RollupSlice> slices = getRollupSlices(from, to, rollupLevel);
+        if (slices.isEmpty()) {
+            return;
+        }
+        List<Future<C>> futures = Lists.newArrayList();
+        // the first slice is read by the current thread
+        for (final RollupSlice slice : slices.subList(1, slices.size())) {
+            futures.add(executor.submit(new Callable<C>() {
+                @Override
+                public C call() throws Exception {
+                    return merger.read(slice);
+                }
+            }));
+        }
+        List<C> levelCollectors = Lists.newArrayList();
+        try {
+            levelCollectors.add(merger.read(slices.get(0)));
+            for (Future<C> future : futures) {
+                levelCollectors.add(getResult(future));
+            }
+        } finally {
+            for (Future<C> future : futures) {
+                future.cancel(false);
+            }
+        }
+        for (int i = 0; i < slices.size(); i++) {
+            RollupSlice slice = slices.get(i);
+            C levelCollector = levelCollectors.get(i);
+            long lastCaptureTime = merger.getLastCaptureTime(levelCollector);
+            merger.mergeCollector(levelCollector, collector);
+            if (slice.rollupLevel() > 0 && lastCaptureTime < slice.to()) {
+                // the end of the slice has not been rolled up (yet)
+                mergeRollupLevels(Math.max(slice.from(), lastCaptureTime), slice.to(),
+                        slice.rollupLevel() - 1, collector, merger);
+            }
+        }
+    }
+
+    // the fat agent rolls up each level to RollupLevelService.getSafeRollupTime() of the last
+    // level 0 capture time, so for the fat agent the slices match what has actually been rolled up
+    @VisibleForTesting
+    List<RollupSlice> getRollupSlices(long from, long to, int rollupLevel)
+            throws Exception {
+        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        List<RollupSlice> slices = Lists.newArrayList();
+        long sliceFrom = from;
+        for (int i = rollupLevel; i >= 0; i--) {
+            long sliceTo;
+            if (i == 0) {
+                sliceTo = to;
             } else {
-                aggregateRepository.mergeMainThreadProfilesInto(agentRollup, revisedQuery,
-                        collector);
+                sliceTo = RollupLevelService.getSafeRollupTime(to,
+                        rollupConfigs.get(i).intervalMillis());
             }
-            long lastRolledUpTime = collector.getLastCaptureTime();
-            revisedFrom = Math.max(revisedFrom, lastRolledUpTime + 1);
-            if (revisedFrom > revisedTo) {
-                break;
+            if (sliceTo > sliceFrom) {
+                slices.add(ImmutableRollupSlice.of(sliceFrom, sliceTo, i));
+                sliceFrom = sliceTo;
             }
         }
-        return collector.getProfile();
+        return slices;
     }
 
     private int getMaxAggregateQueriesPerType(String agentRollup) throws IOException {
@@ -525,4 +655,41 @@ class TransactionCommonService {
             return ConfigDefaults.MAX_AGGREGATE_SERVICE_CALLS_PER_TYPE;
         }
     }
+
+    private static <V> V getResult(Future<V> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            Throwables.propagateIfPossible(cause, Exception.class);
+            throw e;
+        }
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface RollupSlice {
+        long from(); // non-inclusive
+        long to();
+        int rollupLevel();
+    }
+
+    private abstract static class RollupLevelMerger<C> {
+
+        abstract C newCollector();
+
+        // from is non-inclusive
+        abstract void mergeInto(long from, long to, int rollupLevel, C collector)
+                throws Exception;
+
+        abstract long getLastCaptureTime(C collector);
+
+        abstract void mergeCollector(C levelCollector, C collector);
+
+        private C read(RollupSlice slice) throws Exception {
+            C collector = newCollector();
+            mergeInto(slice.from(), slice.to(), slice.rollupLevel(), collector);
+            return collector;
+        }
+    }
 }
@@ -17,11 +17,16 @@ package org.glowroot.ui;
 
 import java.io.File;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import javax.annotation.Nullable;
 
 import com.google.common.base.Ticker;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.immutables.builder.Builder;
 
 import org.glowroot.common.live.LiveAggregateRepository;
@@ -40,9 +45,14 @@ import org.glowroot.common.repo.util.RollupLevelService;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 
+import static java.util.concurrent.TimeUnit.SECONDS;
+
 public class UiModule {
 
+    private static final int QUERY_QUEUE_SIZE = 100;
+
     private final LazyHttpServer lazyHttpServer;
+    private final ExecutorService queryExecutor;
 
     @Builder.Factory
     public static UiModule createUiModule(
@@ -72,8 +82,21 @@ public class UiModule {
                 new HttpSessionManager(fat, offlineViewer, configRepository, clock, layoutService);
         IndexHtmlHttpService indexHtmlHttpService = new IndexHtmlHttpService(layoutService);
         LayoutHttpService layoutHttpService = new LayoutHttpService(layoutService);
+        // used to read multiple rollup levels concurrently, bounded to one thread per http worker
+        // thread, and once the queue is full the requesting http worker thread reads the rollup
+        // level itself (which is safe since the query tasks never wait on other query tasks)
+        ThreadFactory queryThreadFactory = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Glowroot-Query-%d")
+                .build();
+        ThreadPoolExecutor queryExecutor = new ThreadPoolExecutor(numWorkerThreads,
+                numWorkerThreads, 60, SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUERY_QUEUE_SIZE), queryThreadFactory,
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        queryExecutor.allowCoreThreadTimeOut(true);
         TransactionCommonService transactionCommonService = new TransactionCommonService(
-                aggregateRepository, liveAggregateRepository, configRepository, clock);
+                aggregateRepository, liveAggregateRepository, configRepository, clock,
+                queryExecutor);
         TraceCommonService traceCommonService =
                 new TraceCommonService(traceRepository, liveTraceRepository);
         TransactionJsonService transactionJsonService = new TransactionJsonService(
@@ -120,11 +143,12 @@ public class UiModule {
                 traceExportHttpService, glowrootLogHttpService, jsonServices, numWorkerThreads);
 
         lazyHttpServer.init(adminJsonService);
-        return new UiModule(lazyHttpServer);
+        return new UiModule(lazyHttpServer, queryExecutor);
     }
 
-    private UiModule(LazyHttpServer lazyHttpServer) {
+    private UiModule(LazyHttpServer lazyHttpServer, ExecutorService queryExecutor) {
         this.lazyHttpServer = lazyHttpServer;
+        this.queryExecutor = queryExecutor;
     }
 
     public int getPort() throws InterruptedException {
@@ -137,6 +161,7 @@ public class UiModule {
         if (httpServer != null) {
             httpServer.close();
         }
+        queryExecutor.shutdown();
     }
 
     private static int getPort(@Nullable HttpServer httpServer) {
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.glowroot.common.live.ImmutableOverallQuery;
+import org.glowroot.common.live.LiveAggregateRepository;
+import org.glowroot.common.live.LiveAggregateRepository.OverallQuery;
+import org.glowroot.common.model.OverallSummaryCollector;
+import org.glowroot.common.model.OverallSummaryCollector.OverallSummary;
+import org.glowroot.common.repo.AggregateRepository;
+import org.glowroot.common.repo.ConfigRepository;
+import org.glowroot.common.repo.ConfigRepository.RollupConfig;
+import org.glowroot.common.repo.ImmutableRollupConfig;
+import org.glowroot.common.util.Clock;
+import org.glowroot.ui.TransactionCommonService.RollupSlice;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TransactionCommonServiceTest {
+
+    private static final long MINUTE = 60000;
+
+    // rollup level 0 is 1 minute, level 1 is 5 minutes and level 2 is 30 minutes
+    private static final ImmutableList<RollupConfig> rollupConfigs = ImmutableList.<RollupConfig>of(
+            ImmutableRollupConfig.of(MINUTE, 0), ImmutableRollupConfig.of(5 * MINUTE, 0),
+            ImmutableRollupConfig.of(30 * MINUTE, 0));
+
+    private AggregateRepository aggregateRepository;
+    private LiveAggregateRepository liveAggregateRepository;
+    private ExecutorService executor;
+    private TransactionCommonService transactionCommonService;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        aggregateRepository = mock(AggregateRepository.class);
+        liveAggregateRepository = mock(LiveAggregateRepository.class);
+        ConfigRepository configRepository = mock(ConfigRepository.class);
+        when(configRepository.getRollupConfigs()).thenReturn(rollupConfigs);
+        when(liveAggregateRepository.mergeInOverallSummary(anyString(), any(OverallQuery.class),
+                any(OverallSummaryCollector.class))).thenAnswer(new Answer<Long>() {
+                    @Override
+                    public Long answer(InvocationOnMock invocation) {
+                        return ((OverallQuery) invocation.getArguments()[1]).to();
+                    }
+                });
+        // with a direct executor, the finer rollup level slices are read first (while they are
+        // being submitted), and then the coarsest rollup level slice is read by the calling thread
+        executor = MoreExecutors.newDirectExecutorService();
+        transactionCommonService = new TransactionCommonService(aggregateRepository,
+                liveAggregateRepository, configRepository, mock(Clock.class), executor);
+    }
+
+    @After
+    public void afterEachTest() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void shouldSliceByRollupLevel() throws Exception {
+        // when
+        List<RollupSlice> slices =
+                transactionCommonService.getRollupSlices(0, 66 * MINUTE, 2);
+        // then
+        assertThat(slices).containsExactly(ImmutableRollupSlice.of(0, 60 * MINUTE, 2),
+                ImmutableRollupSlice.of(60 * MINUTE, 65 * MINUTE, 1),
+                ImmutableRollupSlice.of(65 * MINUTE, 66 * MINUTE, 0));
+    }
+
+    @Test
+    public void shouldNotSliceFinerLevelsWhenAlignedToRollupInterval() throws Exception {
+        // when
+        List<RollupSlice> slices =
+                transactionCommonService.getRollupSlices(0, 60 * MINUTE, 2);
+        // then
+        assertThat(slices).containsExactly(ImmutableRollupSlice.of(0, 60 * MINUTE, 2));
+    }
+
+    @Test
+    public void shouldNotSliceCoarserThanQueryRollupLevel() throws Exception {
+        // when
+        List<RollupSlice> slices =
+                transactionCommonService.getRollupSlices(0, 66 * MINUTE, 1);
+        // then
+        assertThat(slices).containsExactly(ImmutableRollupSlice.of(0, 65 * MINUTE, 1),
+                ImmutableRollupSlice.of(65 * MINUTE, 66 * MINUTE, 0));
+    }
+
+    @Test
+    public void shouldMergeRollupLevels() throws Exception {
+        // given
+        List<OverallQuery> queries =
+                mockRolledUpTo(66 * MINUTE, 66 * MINUTE, 66 * MINUTE);
+        // when
+        OverallSummary overallSummary = transactionCommonService.readOverallSummary("",
+                createQuery(0, 66 * MINUTE, 2));
+        // then
+        // one transaction per minute, each counted exactly once
+        assertThat(overallSummary.transactionCount()).isEqualTo(66);
+        assertThat(queries).containsExactly(createQuery(60 * MINUTE, 65 * MINUTE, 1),
+                createQuery(65 * MINUTE, 66 * MINUTE, 0),
+                createQuery(0, 60 * MINUTE, 2));
+    }
+
+    @Test
+    public void shouldReadPartNotRolledUpYetFromFinerLevel() throws Exception {
+        // given
+        // rollup level 2 is lagging behind by one interval
+        List<OverallQuery> queries =
+                mockRolledUpTo(66 * MINUTE, 66 * MINUTE, 30 * MINUTE);
+        // when
+        OverallSummary overallSummary = transactionCommonService.readOverallSummary("",
+                createQuery(0, 66 * MINUTE, 2));
+        // then
+        assertThat(overallSummary.transactionCount()).isEqualTo(66);
+        assertThat(queries).containsExactly(createQuery(60 * MINUTE, 65 * MINUTE, 1),
+                createQuery(65 * MINUTE, 66 * MINUTE, 0),
+                createQuery(0, 60 * MINUTE, 2),
+                createQuery(30 * MINUTE, 60 * MINUTE, 1));
+    }
+
+    @Test
+    public void shouldReadPartNotRolledUpYetFromFinestLevel() throws Exception {
+        // given
+        // rollup level 1 is lagging behind by one interval
+        List<OverallQuery> queries =
+                mockRolledUpTo(66 * MINUTE, 60 * MINUTE, 60 * MINUTE);
+        // when
+        OverallSummary overallSummary = transactionCommonService.readOverallSummary("",
+                createQuery(0, 66 * MINUTE, 2));
+        // then
+        assertThat(overallSummary.transactionCount()).isEqualTo(66);
+        assertThat(queries).containsExactly(createQuery(60 * MINUTE, 65 * MINUTE, 1),
+                createQuery(65 * MINUTE, 66 * MINUTE, 0),
+                createQuery(0, 60 * MINUTE, 2),
+                createQuery(60 * MINUTE, 65 * MINUTE, 0));
+    }
+
+    // each rollup level has one transaction per minute up to the given capture time, stored at
+    // the end of each rollup interval, returns the queries made against the aggregate repository
+    private List<OverallQuery> mockRolledUpTo(final long... rolledUpTo) throws Exception {
+        final List<OverallQuery> queries = Lists.newArrayList();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                OverallQuery query = (OverallQuery) invocation.getArguments()[1];
+                OverallSummaryCollector collector =
+                        (OverallSummaryCollector) invocation.getArguments()[2];
+                synchronized (queries) {
+                    queries.add(ImmutableOverallQuery.copyOf(query));
+                }
+                long intervalMillis = rollupConfigs.get(query.rollupLevel()).intervalMillis();
+                long to = Math.min(query.to(), rolledUpTo[query.rollupLevel()]);
+                // from is non-inclusive
+                long captureTime = (query.from() / intervalMillis + 1) * intervalMillis;
+                for (; captureTime <= to; captureTime += intervalMillis) {
+                    long transactionCount = intervalMillis / MINUTE;
+                    collector.mergeSummary(transactionCount, transactionCount, captureTime);
+                }
+                return null;
+            }
+        }).when(aggregateRepository).mergeOverallSummaryInto(anyString(),
+                any(OverallQuery.class), any(OverallSummaryCollector.class));
+        return queries;
+    }
+
+    private static OverallQuery createQuery(long from, long to, int rollupLevel) {
+        return ImmutableOverallQuery.builder()
+                .transactionType("tt")
+                .from(from)
+                .to(to)
+                .rollupLevel(rollupLevel)
+                .build();
+    }
+}
@@ -63,7 +63,8 @@ public class BasicSmokeIT extends WebDriverIT {
                 .preparePost("http://localhost:" + getUiPort()
                         + "/backend/config/transaction?agent-id=" + agentId)
                 .setBody("{\"slowThresholdMillis\":0,\"profilingIntervalMillis\":10,"
-                        + "\"captureThreadStats\":false,\"version\":\"" + version + "\"}")
+                        + "\"captureThreadStats\":false,\"timerCountersOnlyTransactionTypes\":[],"
+                        + "\"timerCountersOnlyDepth\":1,\"version\":\"" + version + "\"}")
                 .build();
         int statusCode = asyncHttpClient.executeRequest(request).get().getStatusCode();
         asyncHttpClient.close();
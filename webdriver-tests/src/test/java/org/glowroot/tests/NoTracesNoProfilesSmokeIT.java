@@ -73,6 +73,7 @@ public class NoTracesNoProfilesSmokeIT extends WebDriverIT {
                         + "/backend/config/transaction?agent-id=" + agentId)
                 .setBody("{\"slowThresholdMillis\":" + Integer.MAX_VALUE
                         + ",\"profilingIntervalMillis\":0,\"captureThreadStats\":false,"
+                        + "\"timerCountersOnlyTransactionTypes\":[],\"timerCountersOnlyDepth\":1,"
                         + "\"version\":\"" + version + "\"}")
                 .build();
         int statusCode = asyncHttpClient.executeRequest(request).get().getStatusCode();